@@ -0,0 +1,643 @@
+package storageInterface;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Enumeration;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Protegge la richiesta e la risposta di una richiesta asincrona dal thread che la elabora, quando la risposta
+ * viene chiusa da un altro thread (e.g.: allo scadere del timeout): dopo {@link javax.servlet.AsyncContext#complete()}
+ * il container puo' riutilizzare richiesta e risposta per un'altra richiesta.
+ * <p>
+ * La richiesta ({@link #getRequest()}) e la risposta ({@link #getResponse()}) vengono usate tenendo lo stesso lock
+ * di {@link #close()} e {@link #closeWithError(int, String)}, quindi la chiusura attende l'operazione in corso
+ * (e.g.: la lettura di un blocco del body). Dopo la chiusura le letture della richiesta falliscono con una
+ * {@link IllegalStateException} (o una {@link IOException} per il body), mentre le scritture della risposta vengono
+ * ignorate, cosi' che chi elabora la richiesta possa terminare senza accorgersene.
+ * Vengono protetti i metodi usati dalla servlet; gli altri passano direttamente alla richiesta o alla risposta.
+ *
+ *
+ */
+public class AsyncGuard
+{
+    private final Object lock = new Object();
+
+    private boolean closed; // protetto da lock
+
+    private final GuardedRequest request;
+
+    private final GuardedResponse response;
+
+    private final static String closedMessage = "The request has already been completed";
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link AsyncGuard}.
+     * @param request la richiesta da proteggere
+     * @param response la risposta da proteggere
+     */
+    public AsyncGuard(HttpServletRequest request, HttpServletResponse response)
+    {
+        this.request = new GuardedRequest(request);
+        this.response = new GuardedResponse(response);
+    }
+
+
+    /**
+     * @return la richiesta, da usare al posto dell'originale
+     */
+    public HttpServletRequest getRequest()
+    {
+        return request;
+    }
+
+
+    /**
+     * @return la risposta, da usare al posto dell'originale
+     */
+    public HttpServletResponse getResponse()
+    {
+        return response;
+    }
+
+
+    /**
+     * @return {@code true} se la risposta e' stata chiusa
+     */
+    public boolean isClosed()
+    {
+        synchronized(lock)
+        {
+            return closed;
+        }
+    }
+
+
+    /**
+     * Chiude la risposta, dopo aver atteso l'eventuale operazione in corso su richiesta o risposta.
+     * @return {@code true} se la risposta e' stata chiusa da questa chiamata (e va quindi completata),
+     *         {@code false} se era gia' chiusa
+     */
+    public boolean close()
+    {
+        synchronized(lock)
+        {
+            if(closed)
+            {
+                return false;
+            }
+
+            closed = true;
+            return true;
+        }
+    }
+
+
+    /**
+     * Come {@link #close()}, ma prima di chiudere la risposta vi invia un errore (se non e' gia' stata inviata in parte).
+     * @param status lo status code dell'errore
+     * @param message il messaggio dell'errore
+     * @return {@code true} se la risposta e' stata chiusa da questa chiamata, {@code false} se era gia' chiusa
+     * @throws IOException se fallisce l'invio dell'errore
+     */
+    public boolean closeWithError(int status, String message) throws IOException
+    {
+        synchronized(lock)
+        {
+            if(closed)
+            {
+                return false;
+            }
+
+            closed = true;
+
+            HttpServletResponse originalResponse = (HttpServletResponse) response.getResponse();
+
+            if(!originalResponse.isCommitted())
+            {
+                originalResponse.sendError(status, message);
+            }
+
+            return true;
+        }
+    }
+
+
+    // da chiamare tenendo lock, prima di ogni lettura della richiesta
+    private void checkOpen()
+    {
+        if(closed)
+        {
+            throw new IllegalStateException(closedMessage);
+        }
+    }
+
+
+    /**
+     * Richiesta protetta dal lock.
+     */
+    private class GuardedRequest extends HttpServletRequestWrapper
+    {
+        private GuardedRequest(HttpServletRequest request)
+        {
+            super(request);
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getHeader(name);
+            }
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name)
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getHeaders(name);
+            }
+        }
+
+        @Override
+        public Object getAttribute(String name)
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getAttribute(name);
+            }
+        }
+
+        @Override
+        public void setAttribute(String name, Object value)
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                super.setAttribute(name, value);
+            }
+        }
+
+        @Override
+        public String getParameter(String name)
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getParameter(name);
+            }
+        }
+
+        @Override
+        public String[] getParameterValues(String name)
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getParameterValues(name);
+            }
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap()
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getParameterMap();
+            }
+        }
+
+        @Override
+        public String getMethod()
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getMethod();
+            }
+        }
+
+        @Override
+        public String getRequestURI()
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getRequestURI();
+            }
+        }
+
+        @Override
+        public String getQueryString()
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getQueryString();
+            }
+        }
+
+        @Override
+        public int getContentLength()
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getContentLength();
+            }
+        }
+
+        @Override
+        public String getContentType()
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getContentType();
+            }
+        }
+
+        @Override
+        public String getCharacterEncoding()
+        {
+            synchronized(lock)
+            {
+                checkOpen();
+                return super.getCharacterEncoding();
+            }
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException
+        {
+            final ServletInputStream inputStream;
+
+            synchronized(lock)
+            {
+                checkOpen();
+                inputStream = super.getInputStream();
+            }
+
+            return new ServletInputStream()
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    synchronized(lock)
+                    {
+                        checkOpenStream();
+                        return inputStream.read();
+                    }
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    synchronized(lock)
+                    {
+                        checkOpenStream();
+                        return inputStream.read(b, off, len);
+                    }
+                }
+
+                @Override
+                public int available() throws IOException
+                {
+                    synchronized(lock)
+                    {
+                        checkOpenStream();
+                        return inputStream.available();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException
+        {
+            String characterEncoding = getCharacterEncoding();
+
+            try
+            {
+                return new BufferedReader(new InputStreamReader(getInputStream(), characterEncoding != null ? characterEncoding : "ISO-8859-1"));
+            }
+            catch(UnsupportedEncodingException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // il body viene letto con le eccezioni di uno stream
+        private void checkOpenStream() throws IOException
+        {
+            if(closed)
+            {
+                throw new IOException(closedMessage);
+            }
+        }
+    }
+
+
+    /**
+     * Risposta protetta dal lock: dopo la chiusura le scritture vengono ignorate.
+     */
+    private class GuardedResponse extends HttpServletResponseWrapper
+    {
+        private ServletOutputStream outputStream;
+
+        private PrintWriter writer;
+
+        private GuardedResponse(HttpServletResponse response)
+        {
+            super(response);
+        }
+
+        @Override
+        public void sendError(int status, String message) throws IOException
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.sendError(status, message);
+                }
+            }
+        }
+
+        @Override
+        public void sendError(int status) throws IOException
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.sendError(status);
+                }
+            }
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.sendRedirect(location);
+                }
+            }
+        }
+
+        @Override
+        public void setStatus(int status)
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.setStatus(status);
+                }
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value)
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.setHeader(name, value);
+                }
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value)
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.addHeader(name, value);
+                }
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value)
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.setIntHeader(name, value);
+                }
+            }
+        }
+
+        @Override
+        public void setDateHeader(String name, long date)
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.setDateHeader(name, date);
+                }
+            }
+        }
+
+        @Override
+        public void setContentType(String type)
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.setContentType(type);
+                }
+            }
+        }
+
+        @Override
+        public void setContentLength(int length)
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.setContentLength(length);
+                }
+            }
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset)
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.setCharacterEncoding(charset);
+                }
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException
+        {
+            synchronized(lock)
+            {
+                if(!closed)
+                {
+                    super.flushBuffer();
+                }
+            }
+        }
+
+        @Override
+        public int getStatus()
+        {
+            synchronized(lock)
+            {
+                return super.getStatus();
+            }
+        }
+
+        @Override
+        public boolean isCommitted()
+        {
+            synchronized(lock)
+            {
+                return super.isCommitted();
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            synchronized(lock)
+            {
+                if(outputStream == null)
+                {
+                    final ServletOutputStream originalStream = closed ? null : super.getOutputStream();
+
+                    outputStream = new ServletOutputStream()
+                    {
+                        @Override
+                        public void write(int b) throws IOException
+                        {
+                            synchronized(lock)
+                            {
+                                if(!closed)
+                                {
+                                    originalStream.write(b);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException
+                        {
+                            synchronized(lock)
+                            {
+                                if(!closed)
+                                {
+                                    originalStream.write(b, off, len);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void flush() throws IOException
+                        {
+                            synchronized(lock)
+                            {
+                                if(!closed)
+                                {
+                                    originalStream.flush();
+                                }
+                            }
+                        }
+                    };
+                }
+
+                return outputStream;
+            }
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException
+        {
+            synchronized(lock)
+            {
+                if(writer == null)
+                {
+                    final PrintWriter originalWriter = closed ? null : super.getWriter();
+
+                    // Writer ha un proprio campo lock
+                    writer = new PrintWriter(new Writer()
+                    {
+                        @Override
+                        public void write(char[] cbuf, int off, int len)
+                        {
+                            synchronized(AsyncGuard.this.lock)
+                            {
+                                if(!closed)
+                                {
+                                    originalWriter.write(cbuf, off, len);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void flush()
+                        {
+                            synchronized(AsyncGuard.this.lock)
+                            {
+                                if(!closed)
+                                {
+                                    originalWriter.flush();
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void close()
+                        {
+                            synchronized(AsyncGuard.this.lock)
+                            {
+                                if(!closed)
+                                {
+                                    originalWriter.close();
+                                }
+                            }
+                        }
+                    });
+                }
+
+                return writer;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package storageInterface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Esito di un'operazione asincrona sul database (vedi {@link IAsyncDatabase}): oltre ad essere atteso con
+ * {@link #get()}, puo' notificare la fine dell'operazione ad uno o piu' listener ({@link #addListener(Runnable)}),
+ * cosi' che chi ha avviato l'operazione non debba tenere occupato un thread ad attenderla.
+ *
+ * @param <T> il tipo del risultato dell'operazione
+ *
+ *
+ */
+public class AsyncResult<T> extends FutureTask<T>
+{
+    // listener da eseguire alla fine dell'operazione; null quando l'operazione e' terminata (protetto da this)
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link AsyncResult}: l'operazione viene eseguita da {@link #run()}.
+     * @param operation l'operazione da eseguire
+     */
+    public AsyncResult(Callable<T> operation)
+    {
+        super(operation);
+    }
+
+
+    /**
+     * Aggiunge un listener, eseguito alla fine dell'operazione sul thread che l'ha eseguita
+     * (o subito, sul thread chiamante, se l'operazione e' gia' terminata).
+     * @param listener il listener da eseguire
+     */
+    public void addListener(Runnable listener)
+    {
+        synchronized(this)
+        {
+            if(listeners != null)
+            {
+                listeners.add(listener);
+                return;
+            }
+        }
+
+        listener.run();
+    }
+
+
+    /**
+     * Restituisce il risultato dell'operazione, attendendola se non e' ancora terminata;
+     * un'eccezione lanciata dall'operazione viene rilanciata cosi' com'e' (invece che incapsulata in una
+     * {@link ExecutionException}), come se l'operazione fosse stata eseguita dal thread chiamante.
+     * @return il risultato dell'operazione
+     */
+    public T getResult()
+    {
+        try
+        {
+            return get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for the database", e);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+
+            if(e.getCause() instanceof Error)
+            {
+                throw (Error) e.getCause();
+            }
+
+            throw new DatabaseException("Database operation failed", e.getCause());
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.FutureTask#done()
+     */
+    @Override
+    protected void done()
+    {
+        List<Runnable> doneListeners;
+
+        synchronized(this)
+        {
+            doneListeners = listeners;
+            listeners = null;
+        }
+
+        for(Runnable listener : doneListeners)
+        {
+            listener.run();
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package storageInterface;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * POST su !batch di {@link StorageInterfaceServlet}: piu' letture, scritture e cancellazioni con pochi accessi al
+ * database (vedi {@link BatchProcessor}).
+ *
+ *
+ */
+public class BatchHandler
+{
+    private final static String invalidBatchMessage = "Invalid batch request: ";
+
+    private final IDatabase db;
+
+    private final IAsyncDatabase asyncDb;
+
+    private final XmlValidator xmlValidator;
+
+    private final int maxBodySize;
+
+    private final AtomicLong requestContentBytes;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link BatchHandler}.
+     * @param db il database su cui eseguire le richieste batch
+     * @param asyncDb la versione asincrona di {@code db}, con cui eseguire in parallelo le operazioni indipendenti,
+     * o {@code null}
+     * @param xmlValidator il validatore delle risorse scritte
+     * @param maxBodySize dimensione massima (in byte) di una richiesta batch
+     * @param requestContentBytes contatore dei byte ricevuti
+     */
+    public BatchHandler(IDatabase db, IAsyncDatabase asyncDb, XmlValidator xmlValidator, int maxBodySize, AtomicLong requestContentBytes)
+    {
+        this.db = db;
+        this.asyncDb = asyncDb;
+        this.xmlValidator = xmlValidator;
+        this.maxBodySize = maxBodySize;
+        this.requestContentBytes = requestContentBytes;
+    }
+
+
+    /**
+     * Esegue la richiesta batch nel body della richiesta, scrivendo gli esiti nella risposta.
+     * @param req la richiesta
+     * @param resp la risposta
+     * @throws IOException se il body non puo' essere letto o la risposta scritta
+     */
+    public void doPost(HttpServletRequest req, HttpServletResponse resp)
+    throws IOException
+    {
+        if(!StorageInterfaceServlet.isAcceptHeaderValid(req))
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, StorageInterfaceServlet.invalidAcceptHeaderMessage);
+            return;
+        }
+
+        if(!StorageInterfaceServlet.isContentTypeHeaderValid(req))
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, StorageInterfaceServlet.invalidContentTypeHeaderMessage);
+            return;
+        }
+
+        if(req.getContentLength() > maxBodySize)
+        {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, StorageInterfaceServlet.bodyTooLargeMessage);
+            return;
+        }
+
+        BoundedTeeInputStream bodyStream = new BoundedTeeInputStream(req.getInputStream(), maxBodySize, req.getContentLength());
+
+        resp.setContentType(StorageInterfaceServlet.xmlResponseContentType);
+
+        try
+        {
+            new BatchProcessor(db, asyncDb, xmlValidator).process(new InputStreamReader(bodyStream, StorageInterfaceServlet.getRequestCharset(req)),
+                                                                  resp.getWriter());
+        }
+        catch(XMLStreamException e)   // richiesta malformata (o troppo grande)
+        {
+            if(bodyStream.isLimitExceeded())
+            {
+                resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, StorageInterfaceServlet.bodyTooLargeMessage);
+                return;
+            }
+
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, invalidBatchMessage + e.getMessage());
+            return;
+        }
+        catch(Exception e)  // IOException o SAXException
+        {
+            if(bodyStream.isLimitExceeded())
+            {
+                resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, StorageInterfaceServlet.bodyTooLargeMessage);
+                return;
+            }
+
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+        }
+        finally
+        {
+            requestContentBytes.addAndGet(bodyStream.size());
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+}
@@ -0,0 +1,557 @@
+package storageInterface;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamSource;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Esegue una richiesta batch, cioe' un insieme di letture, scritture e cancellazioni di risorse,
+ * usando le operazioni multiple di {@link IDatabase} in modo da accedere al database il meno possibile.
+ * <p>
+ * Formato della richiesta:
+ * <pre>
+ * &lt;batch&gt;
+ *   &lt;get uri="..."/&gt;
+ *   &lt;put uri="..." ifMatch="..."&gt;contenuto xml (con escape)&lt;/put&gt;
+ *   &lt;delete uri="..." ifMatch="..."/&gt;
+ * &lt;/batch&gt;
+ * </pre>
+ * L'attributo {@code ifMatch} e' opzionale: come per le singole richieste, una scrittura senza {@code ifMatch}
+ * puo' solo creare la risorsa (400 se esiste gia'), una cancellazione senza {@code ifMatch} e' incondizionata.
+ * Vengono eseguite prima tutte le letture, poi tutte le scritture, infine tutte le cancellazioni.
+ * <p>
+ * Formato della risposta (un {@code item} per ogni operazione, nello stesso ordine della richiesta):
+ * <pre>
+ * &lt;batchResult&gt;
+ *   &lt;item op="get" uri="..." status="200" etag="..."&gt;contenuto xml (con escape)&lt;/item&gt;
+ *   ...
+ * &lt;/batchResult&gt;
+ * </pre>
+ * dove {@code status} e' il codice HTTP che avrebbe restituito la singola operazione.
+ * <p>
+ * Se e' disponibile un {@link IAsyncDatabase}, le scritture e le cancellazioni condizionali (che non possono essere
+ * raggruppate in un'unica operazione multipla) su risorse diverse vengono eseguite in parallelo.
+ *
+ *
+ */
+public class BatchProcessor
+{
+    private final IDatabase db;
+
+    // null => operazioni condizionali eseguite una alla volta
+    private final IAsyncDatabase asyncDb;
+
+    private final XmlValidator xmlValidator;
+
+    // nomi di elementi e attributi
+    private final static String batchElementName = "batch";
+
+    private final static String batchResultElementName = "batchResult";
+
+    private final static String itemElementName = "item";
+
+    private final static String getOperationName = "get";
+
+    private final static String putOperationName = "put";
+
+    private final static String deleteOperationName = "delete";
+
+    private final static String operationAttributeName = "op";
+
+    private final static String uriAttributeName = "uri";
+
+    private final static String ifMatchAttributeName = "ifMatch";
+
+    private final static String statusAttributeName = "status";
+
+    private final static String etagAttributeName = "etag";
+
+    // 507 Insufficient Storage (RFC 4918), non definito in HttpServletResponse
+    private final static int insufficientStorageStatusCode = 507;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link BatchProcessor}.
+     * @param db il database su cui eseguire le operazioni
+     * @param xmlValidator il validatore con cui controllare il contenuto delle scritture
+     */
+    public BatchProcessor(IDatabase db, XmlValidator xmlValidator)
+    {
+        this(db, null, xmlValidator);
+    }
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link BatchProcessor} che esegue in parallelo, con {@code asyncDb},
+     * le operazioni condizionali su risorse diverse.
+     * @param db il database su cui eseguire le operazioni
+     * @param asyncDb la versione asincrona di {@code db}, o {@code null}
+     * @param xmlValidator il validatore con cui controllare il contenuto delle scritture
+     */
+    public BatchProcessor(IDatabase db, IAsyncDatabase asyncDb, XmlValidator xmlValidator)
+    {
+        this.db = db;
+        this.asyncDb = asyncDb;
+        this.xmlValidator = xmlValidator;
+    }
+
+
+    /**
+     * Legge la richiesta batch da {@code in}, la esegue e scrive la risposta su {@code out}.
+     * @param in la richiesta batch
+     * @param out dove scrivere la risposta
+     * @throws XMLStreamException se la richiesta non e' nel formato atteso
+     * @throws IOException se fallisce la lettura della richiesta o la validazione di un contenuto
+     * @throws SAXException se fallisce il ricaricamento dello schema
+     */
+    public void process(Reader in, Writer out) throws XMLStreamException, IOException, SAXException
+    {
+        List<BatchItem> items = parse(in);
+
+        executeGets(items);
+        executePuts(items);
+        executeDeletes(items);
+
+        write(items, out);
+    }
+
+
+    private List<BatchItem> parse(Reader in) throws XMLStreamException
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+
+        // la richiesta arriva dal client: niente DTD ne' entity esterne
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+
+        List<BatchItem> items = new ArrayList<BatchItem>();
+
+        try
+        {
+            reader.nextTag();
+            reader.require(XMLStreamConstants.START_ELEMENT, null, batchElementName);
+
+            while(reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+            {
+                String operation = reader.getLocalName();
+
+                if(!operation.equals(getOperationName) && !operation.equals(putOperationName) && !operation.equals(deleteOperationName))
+                {
+                    throw new XMLStreamException("Unknown batch operation: " + operation, reader.getLocation());
+                }
+
+                String uri = reader.getAttributeValue(null, uriAttributeName);
+
+                if(uri == null || uri.isEmpty())
+                {
+                    throw new XMLStreamException("Missing " + uriAttributeName + " attribute", reader.getLocation());
+                }
+
+                BatchItem item = new BatchItem(operation, uri, reader.getAttributeValue(null, ifMatchAttributeName));
+
+                if(operation.equals(putOperationName))
+                {
+                    item.content = reader.getElementText(); // si ferma sull'END_ELEMENT
+                }
+                else
+                {
+                    reader.nextTag();
+                }
+
+                reader.require(XMLStreamConstants.END_ELEMENT, null, operation);
+
+                items.add(item);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return items;
+    }
+
+
+    private void executeGets(List<BatchItem> items)
+    {
+        Set<String> uris = new LinkedHashSet<String>();
+
+        for(BatchItem item : items)
+        {
+            if(item.operation.equals(getOperationName))
+            {
+                uris.add(item.uri);
+            }
+        }
+
+        if(uris.isEmpty())
+        {
+            return;
+        }
+
+        Map<String, IResource> found = db.getAll(uris);
+
+        for(BatchItem item : items)
+        {
+            if(item.operation.equals(getOperationName))
+            {
+                IResource resource = found.get(item.uri);
+
+                if(resource != null)
+                {
+                    item.status = HttpServletResponse.SC_OK;
+                    item.eTag = resource.getETag();
+                    item.content = resource.getContent();
+                }
+                else
+                {
+                    item.status = HttpServletResponse.SC_NOT_FOUND;
+                }
+            }
+        }
+    }
+
+
+    private void executePuts(List<BatchItem> items) throws IOException, SAXException
+    {
+        List<BatchItem> putItems = new ArrayList<BatchItem>();
+
+        for(BatchItem item : items)
+        {
+            if(!item.operation.equals(putOperationName))
+            {
+                continue;
+            }
+
+            if(!xmlValidator.isValid(new StreamSource(new StringReader(item.content))))
+            {
+                item.status = HttpServletResponse.SC_BAD_REQUEST;
+                item.content = null;
+                continue;
+            }
+
+            item.resource = new SINode(item.uri, item.content);
+
+            // il contenuto non viene ripetuto nella risposta
+            item.content = null;
+
+            putItems.add(item);
+        }
+
+        // ogni scrittura e' condizionale (come una singola PUT, senza ifMatch e' ammessa solo la creazione):
+        // non possono essere raggruppate in un'unica putAll senza perdere l'atomicita' del controllo
+        if(asyncDb != null)
+        {
+            executePutsAsync(putItems);
+        }
+        else
+        {
+            for(BatchItem item : putItems)
+            {
+                try
+                {
+                    if(item.ifMatch != null)
+                    {
+                        // come una singola PUT con If-Match: se la risorsa non esiste viene creata
+                        item.eTag = db.putIfMatch(item.resource, item.ifMatch);
+                        item.status = HttpServletResponse.SC_OK;
+                    }
+
+                    if(item.eTag == null)
+                    {
+                        item.eTag = db.putIfAbsent(item.resource);
+                        item.status = createStatus(item);
+                    }
+                }
+                catch(InsufficientStorageException e)
+                {
+                    item.status = insufficientStorageStatusCode;
+                }
+            }
+        }
+    }
+
+
+    // esito di una creazione (putIfAbsent) fallita o riuscita: 201 se la risorsa e' stata creata, altrimenti
+    // 412 se la scrittura aveva ifMatch (ETag diverso), 400 se non lo aveva (come una PUT senza If-Match)
+    private static int createStatus(BatchItem item)
+    {
+        if(item.eTag != null)
+        {
+            return HttpServletResponse.SC_CREATED;
+        }
+
+        return (item.ifMatch != null) ? HttpServletResponse.SC_PRECONDITION_FAILED : HttpServletResponse.SC_BAD_REQUEST;
+    }
+
+
+    private void executeDeletes(List<BatchItem> items)
+    {
+        // le cancellazioni incondizionate vengono eseguite tutte insieme
+        Set<String> unconditionalDeletes = new LinkedHashSet<String>();
+
+        List<BatchItem> conditionalItems = new ArrayList<BatchItem>();
+
+        for(BatchItem item : items)
+        {
+            if(!item.operation.equals(deleteOperationName))
+            {
+                continue;
+            }
+
+            if(item.ifMatch == null)
+            {
+                unconditionalDeletes.add(item.uri);
+            }
+            else
+            {
+                conditionalItems.add(item);
+            }
+        }
+
+        if(asyncDb != null)
+        {
+            executeConditionalDeletesAsync(conditionalItems);
+        }
+        else
+        {
+            for(BatchItem item : conditionalItems)
+            {
+                if(db.deleteIfMatch(item.uri, item.ifMatch))
+                {
+                    item.status = HttpServletResponse.SC_OK;
+                }
+                else
+                {
+                    item.status = (db.getETag(item.uri) != null) ? HttpServletResponse.SC_PRECONDITION_FAILED : HttpServletResponse.SC_NOT_FOUND;
+                }
+            }
+        }
+
+        if(unconditionalDeletes.isEmpty())
+        {
+            return;
+        }
+
+        Set<String> deleted = db.deleteAll(unconditionalDeletes);
+
+        for(BatchItem item : items)
+        {
+            if(item.operation.equals(deleteOperationName) && item.ifMatch == null)
+            {
+                item.status = deleted.contains(item.uri) ? HttpServletResponse.SC_OK : HttpServletResponse.SC_NOT_FOUND;
+            }
+        }
+    }
+
+
+    // esegue in parallelo le scritture su risorse diverse: le operazioni sulla stessa risorsa
+    // vengono eseguite in turni successivi, nell'ordine della richiesta
+    private void executePutsAsync(List<BatchItem> putItems)
+    {
+        for(List<BatchItem> round : toRounds(putItems))
+        {
+            // le scritture con ifMatch provano prima ad aggiornare, le altre possono solo creare
+            List<AsyncResult<String>> putIfMatchResults = new ArrayList<AsyncResult<String>>(round.size());
+
+            for(BatchItem item : round)
+            {
+                putIfMatchResults.add((item.ifMatch != null) ? asyncDb.putIfMatch(item.resource, item.ifMatch) : null);
+            }
+
+            // come una singola PUT con If-Match: se la risorsa non esiste viene creata
+            List<AsyncResult<String>> putIfAbsentResults = new ArrayList<AsyncResult<String>>(round.size());
+
+            for(int i = 0; i < round.size(); i++)
+            {
+                BatchItem item = round.get(i);
+
+                item.status = HttpServletResponse.SC_OK;
+
+                if(putIfMatchResults.get(i) != null)
+                {
+                    try
+                    {
+                        item.eTag = putIfMatchResults.get(i).getResult();
+                    }
+                    catch(InsufficientStorageException e)
+                    {
+                        item.status = insufficientStorageStatusCode;
+                    }
+                }
+
+                putIfAbsentResults.add((item.status == HttpServletResponse.SC_OK && item.eTag == null) ? asyncDb.putIfAbsent(item.resource) : null);
+            }
+
+            for(int i = 0; i < round.size(); i++)
+            {
+                BatchItem item = round.get(i);
+
+                if(putIfAbsentResults.get(i) == null)
+                {
+                    continue;
+                }
+
+                try
+                {
+                    item.eTag = putIfAbsentResults.get(i).getResult();
+                    item.status = createStatus(item);
+                }
+                catch(InsufficientStorageException e)
+                {
+                    item.status = insufficientStorageStatusCode;
+                }
+            }
+        }
+    }
+
+
+    // esegue in parallelo le cancellazioni condizionali su risorse diverse
+    private void executeConditionalDeletesAsync(List<BatchItem> conditionalItems)
+    {
+        for(List<BatchItem> round : toRounds(conditionalItems))
+        {
+            List<AsyncResult<Boolean>> deleteResults = new ArrayList<AsyncResult<Boolean>>(round.size());
+
+            for(BatchItem item : round)
+            {
+                deleteResults.add(asyncDb.deleteIfMatch(item.uri, item.ifMatch));
+            }
+
+            // cancellazione fallita: 412 se la risorsa esiste, 404 altrimenti
+            List<AsyncResult<String>> eTagResults = new ArrayList<AsyncResult<String>>(round.size());
+
+            for(int i = 0; i < round.size(); i++)
+            {
+                BatchItem item = round.get(i);
+
+                if(deleteResults.get(i).getResult())
+                {
+                    item.status = HttpServletResponse.SC_OK;
+                    eTagResults.add(null);
+                }
+                else
+                {
+                    eTagResults.add(asyncDb.getETag(item.uri));
+                }
+            }
+
+            for(int i = 0; i < round.size(); i++)
+            {
+                if(eTagResults.get(i) != null)
+                {
+                    round.get(i).status = (eTagResults.get(i).getResult() != null) ? HttpServletResponse.SC_PRECONDITION_FAILED : HttpServletResponse.SC_NOT_FOUND;
+                }
+            }
+        }
+    }
+
+
+    // divide items in turni in cui ogni risorsa compare al piu' una volta, rispettando l'ordine della richiesta
+    private static List<List<BatchItem>> toRounds(List<BatchItem> items)
+    {
+        List<List<BatchItem>> rounds = new ArrayList<List<BatchItem>>();
+
+        // turno dell'ultima operazione su ciascuna risorsa
+        Map<String, Integer> lastRound = new HashMap<String, Integer>();
+
+        for(BatchItem item : items)
+        {
+            Integer previousRound = lastRound.get(item.uri);
+
+            int round = (previousRound == null) ? 0 : previousRound + 1;
+
+            if(round == rounds.size())
+            {
+                rounds.add(new ArrayList<BatchItem>());
+            }
+
+            rounds.get(round).add(item);
+
+            lastRound.put(item.uri, round);
+        }
+
+        return rounds;
+    }
+
+
+    private void write(List<BatchItem> items, Writer out) throws XMLStreamException
+    {
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+
+        writer.writeStartDocument();
+        writer.writeStartElement(batchResultElementName);
+
+        for(BatchItem item : items)
+        {
+            writer.writeStartElement(itemElementName);
+            writer.writeAttribute(operationAttributeName, item.operation);
+            writer.writeAttribute(uriAttributeName, item.uri);
+            writer.writeAttribute(statusAttributeName, Integer.toString(item.status));
+
+            if(item.eTag != null)
+            {
+                writer.writeAttribute(etagAttributeName, item.eTag);
+            }
+
+            if(item.content != null)
+            {
+                writer.writeCharacters(item.content);
+            }
+
+            writer.writeEndElement();
+        }
+
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+
+    // singola operazione di una richiesta batch, con il relativo esito
+    private static class BatchItem
+    {
+        private final String operation;
+
+        private final String uri;
+
+        private final String ifMatch;
+
+        private String content;
+
+        private int status;
+
+        private String eTag;
+
+        // risorsa da scrivere (solo per le scritture con contenuto valido)
+        private IResource resource;
+
+        private BatchItem(String operation, String uri, String ifMatch)
+        {
+            this.operation = operation;
+            this.uri = uri;
+            this.ifMatch = ifMatch;
+        }
+    }
+
+}
@@ -0,0 +1,529 @@
+package storageInterface;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Decoratore di un {@link IDatabase} che mantiene un {@link CountingBloomFilter} degli URI delle risorse esistenti:
+ * le letture, le cancellazioni e gli aggiornamenti condizionali di risorse che sicuramente non esistono vengono
+ * risolti senza accedere al database.
+ * <p>
+ * Il filtro viene costruito elencando tutte le risorse del database ({@link #rebuild(int)}): fino ad allora ogni
+ * operazione arriva al database. Una risorsa viene aggiunta al filtro prima di essere scritta, e rimossa solo dopo
+ * essere stata effettivamente eliminata, quindi il filtro puo' dare falsi positivi ma non falsi negativi.
+ * Questo vale pero' solo se tutte le scritture passano da questo decoratore. Se il database e' condiviso con
+ * altre istanze dell'applicazione (e.g.: il Datastore), le risorse create da queste non sono nel filtro finche'
+ * non viene ricostruito: con {@code maxStaleness} il filtro va ricostruito periodicamente, e una risposta negativa
+ * viene data solo se l'elenco da cui e' stato costruito e' iniziato da al piu' {@code maxStaleness} ms (altrimenti
+ * l'operazione arriva al database). Una risorsa creata da un'altra istanza puo' quindi risultare inesistente
+ * al piu' per {@code maxStaleness} ms dopo la sua creazione.
+ *
+ *
+ */
+public class BloomFilterDatabase implements IDatabase
+{
+    private final IDatabase db;
+
+    private final long expectedEntries;
+
+    private final double falsePositiveRate;
+
+    // eta' massima (ms) del filtro per le risposte negative, negativo = nessun limite
+    private final long maxStaleness;
+
+    private volatile CountingBloomFilter filter;
+
+    // filtro in costruzione in rebuild(), o null: riceve anche le risorse scritte nel frattempo
+    private volatile CountingBloomFilter building;
+
+    // true quando il filtro contiene tutte le risorse del database
+    private volatile boolean ready;
+
+    // istante di inizio dell'elenco delle risorse da cui e' stato costruito il filtro
+    private volatile long builtAt;
+
+    // le scritture tengono il read lock dall'aggiunta al filtro alla fine della scrittura: rebuild() inizia l'elenco
+    // quando quelle in corso sono terminate (e compaiono nell'elenco), e le successive aggiungono al nuovo filtro
+    private final ReentrantReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+
+    // metriche
+    private final AtomicLong negativeCount = new AtomicLong();
+
+    private final AtomicLong falsePositiveCount = new AtomicLong();
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link BloomFilterDatabase}; il filtro deve essere poi costruito con
+     * {@link #rebuild(int)}.
+     * @param db il database di cui filtrare gli accessi
+     * @param expectedEntries numero previsto di risorse
+     * @param falsePositiveRate probabilita' di falso positivo con {@code expectedEntries} risorse
+     */
+    public BloomFilterDatabase(IDatabase db, long expectedEntries, double falsePositiveRate)
+    {
+        this(db, expectedEntries, falsePositiveRate, -1);
+    }
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link BloomFilterDatabase} per un database condiviso con altre istanze;
+     * il filtro deve essere poi costruito, e ricostruito almeno ogni {@code maxStaleness} ms, con {@link #rebuild(int)}.
+     * @param db il database di cui filtrare gli accessi
+     * @param expectedEntries numero previsto di risorse
+     * @param falsePositiveRate probabilita' di falso positivo con {@code expectedEntries} risorse
+     * @param maxStaleness eta' massima (ms) del filtro perche' le sue risposte negative vengano usate,
+     * negativo = nessun limite (tutte le scritture passano da questo decoratore)
+     */
+    public BloomFilterDatabase(IDatabase db, long expectedEntries, double falsePositiveRate, long maxStaleness)
+    {
+        this.db = db;
+        this.expectedEntries = expectedEntries;
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxStaleness = maxStaleness;
+
+        filter = new CountingBloomFilter(expectedEntries, falsePositiveRate);
+    }
+
+
+    /**
+     * Costruisce un nuovo filtro con tutte le risorse del database, e da quel momento lo usa al posto del precedente
+     * (che nel frattempo resta in uso). Le scritture effettuate nel frattempo vengono registrate in entrambi.
+     * @param pageSize numero di risorse lette con ogni {@link IDatabase#list(String, String, int)}
+     */
+    public synchronized void rebuild(int pageSize)
+    {
+        CountingBloomFilter newFilter = new CountingBloomFilter(expectedEntries, falsePositiveRate);
+
+        rebuildLock.writeLock().lock();
+
+        try
+        {
+            building = newFilter;
+        }
+        finally
+        {
+            rebuildLock.writeLock().unlock();
+        }
+
+        long start = System.currentTimeMillis();
+
+        try
+        {
+            String cursor = null;
+
+            do
+            {
+                ResourceListing listing = db.list("", cursor, pageSize);
+
+                for(String resourceURI : listing.getETags().keySet())
+                {
+                    newFilter.add(resourceURI);
+                }
+
+                cursor = listing.getNextCursor();
+            }
+            while(cursor != null);
+
+            // prima filter e poi building: chi trova building a null trova gia' il nuovo filtro (vedi add())
+            filter = newFilter;
+            builtAt = start;
+            ready = true;
+        }
+        finally
+        {
+            building = null;
+        }
+    }
+
+
+    /**
+     * @return {@code true} se il filtro e' stato costruito ed e' in uso (eventualmente solo per le risposte
+     * positive, se e' piu' vecchio di {@code maxStaleness})
+     */
+    public boolean isReady()
+    {
+        return ready;
+    }
+
+
+    /**
+     * @return {@code true} se le risposte negative del filtro vengono usate
+     */
+    public boolean isFresh()
+    {
+        return ready && (maxStaleness < 0 || System.currentTimeMillis() - builtAt <= maxStaleness);
+    }
+
+
+    /**
+     * @return il filtro degli URI delle risorse esistenti
+     */
+    public CountingBloomFilter getFilter()
+    {
+        return filter;
+    }
+
+
+    /**
+     * @return numero di operazioni risolte senza accedere al database
+     */
+    public long getNegativeCount()
+    {
+        return negativeCount.get();
+    }
+
+
+    /**
+     * @return numero di letture di risorse inesistenti che il filtro non ha escluso
+     */
+    public long getFalsePositiveCount()
+    {
+        return falsePositiveCount.get();
+    }
+
+
+    // aggiunge l'URI al filtro (e a quello in costruzione), restituendo i filtri a cui e' stato aggiunto;
+    // da chiamare con il read lock di rebuildLock, tenuto fino al termine della scrittura
+    private List<CountingBloomFilter> add(String resourceURI)
+    {
+        List<CountingBloomFilter> added = new ArrayList<CountingBloomFilter>(2);
+
+        CountingBloomFilter pending = building;
+
+        if(pending != null)
+        {
+            pending.add(resourceURI);
+            added.add(pending);
+        }
+
+        CountingBloomFilter current = filter;
+
+        if(current != pending)
+        {
+            current.add(resourceURI);
+            added.add(current);
+        }
+
+        return added;
+    }
+
+
+    // il filtro da cui rimuovere le risorse eliminate, o null se non vanno rimosse: durante la costruzione del
+    // filtro la risorsa potrebbe non esservi ancora stata aggiunta, e con un database condiviso potrebbe essere
+    // stata creata da un'altra istanza (e non essere nel filtro): i contatori scenderebbero sotto il dovuto
+    private CountingBloomFilter getDecrementableFilter()
+    {
+        return ready && maxStaleness < 0 ? filter : null;
+    }
+
+
+    // false se la risorsa sicuramente non esiste
+    private boolean mightExist(String resourceURI)
+    {
+        if(!isFresh() || filter.mightContain(resourceURI))
+        {
+            return true;
+        }
+
+        negativeCount.incrementAndGet();
+        return false;
+    }
+
+
+    private void notFound(boolean filtered)
+    {
+        if(filtered)
+        {
+            falsePositiveCount.incrementAndGet();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource resource)
+    {
+        rebuildLock.readLock().lock();
+
+        try
+        {
+            // se la risorsa esisteva gia' resta contata due volte: solo un possibile falso positivo dopo la cancellazione
+            add(resource.getURI());
+
+            db.put(resource);
+        }
+        finally
+        {
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource resource)
+    {
+        rebuildLock.readLock().lock();
+
+        try
+        {
+            List<CountingBloomFilter> added = add(resource.getURI());
+
+            // in caso di eccezione la risorsa potrebbe essere stata creata comunque: resta nel filtro
+            String eTag = db.putIfAbsent(resource);
+
+            if(eTag == null)   // la risorsa esisteva gia' (ed e' gia' nel filtro)
+            {
+                for(CountingBloomFilter addedFilter : added)
+                {
+                    addedFilter.remove(resource.getURI());
+                }
+            }
+
+            return eTag;
+        }
+        finally
+        {
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource resource, String expectedETag)
+    {
+        if(!mightExist(resource.getURI()))
+        {
+            return null;
+        }
+
+        return db.putIfMatch(resource, expectedETag);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String resourceURI)
+    {
+        boolean filtered = isFresh();
+
+        if(!mightExist(resourceURI))
+        {
+            return null;
+        }
+
+        IResource resource = db.get(resourceURI);
+
+        if(resource == null)
+        {
+            notFound(filtered);
+        }
+
+        return resource;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String resourceURI)
+    {
+        boolean filtered = isFresh();
+
+        if(!mightExist(resourceURI))
+        {
+            return null;
+        }
+
+        String eTag = db.getETag(resourceURI);
+
+        if(eTag == null)
+        {
+            notFound(filtered);
+        }
+
+        return eTag;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String resourceURI, long offset, int length)
+    {
+        boolean filtered = isFresh();
+
+        if(!mightExist(resourceURI))
+        {
+            return null;
+        }
+
+        ResourceRange range = db.getRange(resourceURI, offset, length);
+
+        if(range == null)
+        {
+            notFound(filtered);
+        }
+
+        return range;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        return db.list(prefix, cursor, limit);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource resource)
+    {
+        return delete(resource.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String resourceURI)
+    {
+        return deleteIfMatch(resourceURI, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String resourceURI, String expectedETag)
+    {
+        CountingBloomFilter filtered = getDecrementableFilter();
+
+        if(!mightExist(resourceURI))
+        {
+            return false;
+        }
+
+        boolean deleted = expectedETag == null ? db.delete(resourceURI) : db.deleteIfMatch(resourceURI, expectedETag);
+
+        if(deleted && filtered != null)
+        {
+            filtered.remove(resourceURI);
+        }
+
+        return deleted;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> resourceURIs)
+    {
+        List<String> candidateURIs = new ArrayList<String>();
+
+        for(String resourceURI : resourceURIs)
+        {
+            if(mightExist(resourceURI))
+            {
+                candidateURIs.add(resourceURI);
+            }
+        }
+
+        if(candidateURIs.isEmpty())
+        {
+            return new HashMap<String, IResource>();
+        }
+
+        return db.getAll(candidateURIs);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> resources)
+    {
+        rebuildLock.readLock().lock();
+
+        try
+        {
+            for(IResource resource : resources)
+            {
+                add(resource.getURI());
+            }
+
+            db.putAll(resources);
+        }
+        finally
+        {
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> resourceURIs)
+    {
+        CountingBloomFilter filtered = getDecrementableFilter();
+
+        List<String> candidateURIs = new ArrayList<String>();
+
+        for(String resourceURI : new HashSet<String>(resourceURIs))
+        {
+            if(mightExist(resourceURI))
+            {
+                candidateURIs.add(resourceURI);
+            }
+        }
+
+        if(candidateURIs.isEmpty())
+        {
+            return new HashSet<String>();
+        }
+
+        Set<String> deleted = db.deleteAll(candidateURIs);
+
+        if(filtered != null)
+        {
+            for(String resourceURI : deleted)
+            {
+                filtered.remove(resourceURI);
+            }
+        }
+
+        return deleted;
+    }
+
+}
@@ -0,0 +1,213 @@
+package storageInterface;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * {@link FilterInputStream} che, mentre viene letto, copia tutti i byte letti in un unico buffer
+ * espandibile, in modo che lo stesso stream possa essere consumato (e.g.: da un validatore xml)
+ * e poi salvato senza doverlo rileggere.
+ * La lettura fallisce con una {@link BodyTooLargeException} se lo stream supera la dimensione massima consentita.
+ * {@link #close()} non chiude lo stream letto: il parser xml chiude lo stream che gli viene passato, ma dopo la
+ * validazione lo stream deve poter essere letto fino in fondo ({@link #drain()}), e lo stream della richiesta
+ * appartiene al container.
+ *
+ *
+ */
+public class BoundedTeeInputStream extends FilterInputStream
+{
+    private final int maxSize;
+
+    private byte[] buffer;
+
+    private int count;
+
+    private boolean limitExceeded;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link BoundedTeeInputStream}.
+     * @param in lo stream da leggere
+     * @param maxSize numero massimo di byte che e' consentito leggere
+     * @param expectedSize dimensione attesa dello stream (e.g.: il Content-Length), o un valore negativo se non nota
+     */
+    public BoundedTeeInputStream(InputStream in, int maxSize, int expectedSize)
+    {
+        super(in);
+        this.maxSize = maxSize;
+
+        // se la dimensione e' nota alloco subito il buffer giusto, cosi' non deve mai essere espanso
+        int initialSize = (expectedSize >= 0) ? Math.min(expectedSize, maxSize) : Math.min(8192, maxSize);
+        this.buffer = new byte[Math.max(initialSize, 16)];
+    }
+
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+
+        if(b >= 0)
+        {
+            ensureCapacity(1);
+            buffer[count++] = (byte) b;
+        }
+
+        return b;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int n = super.read(b, off, len);
+
+        if(n > 0)
+        {
+            ensureCapacity(n);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+        }
+
+        return n;
+    }
+
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        // i byte saltati devono comunque finire nel buffer
+        byte[] skipBuffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+
+        while(skipped < n)
+        {
+            int read = read(skipBuffer, 0, (int) Math.min(n - skipped, skipBuffer.length));
+
+            if(read < 0)
+            {
+                break;
+            }
+
+            skipped += read;
+        }
+
+        return skipped;
+    }
+
+
+    @Override
+    public void close()
+    {
+        // lo stream letto resta aperto (vedi sopra)
+    }
+
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+
+    /**
+     * Legge (copiandolo nel buffer) tutto cio' che resta dello stream.
+     * @throws IOException se fallisce la lettura, o se lo stream supera la dimensione massima consentita
+     */
+    public void drain() throws IOException
+    {
+        byte[] drainBuffer = new byte[4096];
+
+        while(read(drainBuffer, 0, drainBuffer.length) >= 0)
+        {
+            // continua a leggere
+        }
+    }
+
+
+    /**
+     * Indica se lo stream ha superato la dimensione massima consentita.
+     * @return {@code true} se e solo se lo stream ha superato la dimensione massima consentita
+     */
+    public boolean isLimitExceeded()
+    {
+        return limitExceeded;
+    }
+
+
+    /**
+     * Restituisce il numero di byte letti finora.
+     * @return il numero di byte letti finora
+     */
+    public int size()
+    {
+        return count;
+    }
+
+
+    /**
+     * Restituisce i byte letti finora. Se il buffer interno e' esattamente pieno (e.g.: la dimensione attesa
+     * era corretta) viene restituito il buffer stesso, senza copiarlo.
+     * @return i byte letti finora
+     */
+    public byte[] toByteArray()
+    {
+        if(count == buffer.length)
+        {
+            return buffer;
+        }
+
+        return Arrays.copyOf(buffer, count);
+    }
+
+
+    /**
+     * Decodifica i byte letti finora usando {@code charset}.
+     * @param charset il charset con cui decodificare i byte letti
+     * @return i byte letti finora, decodificati
+     */
+    public String toString(Charset charset)
+    {
+        return new String(buffer, 0, count, charset);
+    }
+
+
+    private void ensureCapacity(int n) throws BodyTooLargeException
+    {
+        if(count + n > maxSize)
+        {
+            limitExceeded = true;
+            throw new BodyTooLargeException(maxSize);
+        }
+
+        if(count + n > buffer.length)
+        {
+            // crescita geometrica: costo ammortizzato lineare nella dimensione del body
+            int newLength = Math.min(Math.max(buffer.length * 2, count + n), maxSize);
+            buffer = Arrays.copyOf(buffer, newLength);
+        }
+    }
+
+
+    /**
+     * Eccezione lanciata quando lo stream supera la dimensione massima consentita.
+     *
+     *
+     */
+    @SuppressWarnings("serial")
+    public static class BodyTooLargeException extends IOException
+    {
+        /**
+         * Istanzia un nuovo oggetto di tipo {@link BodyTooLargeException}.
+         * @param maxSize la dimensione massima consentita
+         */
+        public BodyTooLargeException(int maxSize)
+        {
+            super("Request body exceeds " + maxSize + " bytes");
+        }
+    }
+
+}
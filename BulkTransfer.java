@@ -0,0 +1,692 @@
+package storageInterface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Esportazione e importazione di tutte le risorse di un {@link IDatabase} in un unico archivio.
+ * <p>
+ * Formato dell'archivio: {@code magic, { int lunghezzaURI, URI, int lunghezzaETag, ETag, int lunghezzaContenuto,
+ * contenuto }, int -1}, con URI ed ETag codificati in UTF-8. L'archivio non ha indice, quindi viene scritto e letto
+ * in streaming.
+ * <p>
+ * Le letture (in esportazione) e le scritture (in importazione) sul database vengono eseguite da {@code threads}
+ * thread, a blocchi di {@code batchSize} risorse, mentre il thread chiamante scrive o legge l'archivio: al piu'
+ * {@code 2 * threads} blocchi sono in memoria contemporaneamente. Dopo ogni blocco completato (tutti i precedenti
+ * compresi) viene notificato un {@link Checkpoint}, da cui si puo' riprendere un trasferimento interrotto.
+ * <p>
+ * Da riga di comando, per il database su log:
+ * <pre>
+ * java storageInterface.BulkTransfer export|import cartellaDelLog archivio [thread [schema]]
+ * </pre>
+ * Il checkpoint viene salvato in {@code archivio.checkpoint} ed eliminato al termine: se il trasferimento viene
+ * interrotto, rieseguendo lo stesso comando riprende dall'ultimo checkpoint. In importazione, se e' indicato uno
+ * schema, il contenuto delle risorse viene validato.
+ * <p>
+ * Per gli altri database (e.g.: il Datastore) l'archivio viene trasferito un pezzo alla volta, con
+ * {@link #exportSlice(OutputStream, String, String, long, long, Checkpoint)} e
+ * {@link #importSlice(InputStream, long, XmlValidator, Checkpoint)}: la servlet lo fa con una richiesta HTTP per pezzo
+ * (vedi {@code !export} e {@code !import} in {@link StorageInterfaceServlet}), e il client conserva il punto da cui
+ * proseguire.
+ *
+ *
+ */
+public class BulkTransfer
+{
+    private final IDatabase db;
+
+    private final int threads;
+
+    private final int batchSize;
+
+    // intestazione dell'archivio (nome e versione del formato)
+    private final static byte[] magic = { 'S', 'I', 'A', 'R', 'C', 'H', 'V', '1' };
+
+    private final static int endMarker = -1;
+
+    // limite (oltre a batchSize) dei byte di contenuto di un blocco in importazione
+    private final static int maxBatchBytes = 8 * 1024 * 1024;
+
+    private final static int defaultThreads = 8;
+
+    private final static int defaultBatchSize = 100;
+
+    private final static int fileBufferSize = 1024 * 1024;
+
+    // intervallo minimo (ms) tra due salvataggi del checkpoint da riga di comando
+    private final static long checkpointSaveInterval = 1000;
+
+    private final static Charset utf8 = Charset.forName("UTF-8");
+
+
+    /**
+     * Punto da cui riprendere un trasferimento: tutte le risorse fino a questo punto sono state trasferite.
+     */
+    public interface Checkpoint
+    {
+        /**
+         * Notifica che un trasferimento ha raggiunto un nuovo punto di ripresa.
+         * In esportazione, l'archivio e' gia' stato scritto (e svuotato con flush) fino a {@code offset}.
+         * @param lastURI l'URI dell'ultima risorsa trasferita (in esportazione, il cursore da cui riprendere)
+         * @param records numero di risorse trasferite dall'inizio della chiamata
+         * @param offset posizione nell'archivio subito dopo l'ultima risorsa trasferita
+         * @throws IOException se il checkpoint non puo' essere salvato
+         */
+        public abstract void reached(String lastURI, long records, long offset) throws IOException;
+    }
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link BulkTransfer}.
+     * @param db il database da esportare o in cui importare
+     * @param threads numero di thread che accedono al database
+     * @param batchSize numero di risorse lette o scritte con un singolo accesso al database
+     */
+    public BulkTransfer(IDatabase db, int threads, int batchSize)
+    {
+        this.db = db;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * Scrive in {@code out}, in ordine di URI, le risorse il cui URI inizia con {@code prefix}.
+     * Con {@code offset} uguale a 0 scrive anche l'intestazione dell'archivio; altrimenti {@code out} prosegue
+     * un archivio gia' scritto fino a {@code offset} (e.g.: per riprendere dall'ultimo {@link Checkpoint}).
+     * Lo stream non viene chiuso.
+     * @param out lo stream su cui scrivere l'archivio
+     * @param prefix prefisso degli URI delle risorse da esportare ({@code ""} per esportarle tutte)
+     * @param cursor URI dopo il quale iniziare ({@link Checkpoint#reached(String, long, long)}), o {@code null}
+     * @param offset posizione di {@code out} nell'archivio
+     * @param checkpoint il {@link Checkpoint} da notificare, o {@code null}
+     * @return il numero di risorse esportate
+     * @throws IOException se la scrittura dell'archivio fallisce
+     */
+    public long exportTo(OutputStream out, String prefix, String cursor, long offset, Checkpoint checkpoint) throws IOException
+    {
+        long[] records = new long[1];
+
+        export(out, prefix, cursor, offset, Long.MAX_VALUE, checkpoint, records);
+
+        return records[0];
+    }
+
+
+    /**
+     * Come {@link #exportTo(OutputStream, String, String, long, Checkpoint)}, ma smette di leggere le risorse quando
+     * ne ha scritto almeno {@code maxBytes} byte (i blocchi gia' in lettura, al piu' {@code 2 * threads}, vengono
+     * comunque scritti): se restano altre risorse, la fine dell'archivio non viene scritta e l'esportazione prosegue
+     * con un'altra chiamata, dal cursore restituito e dalla posizione raggiunta.
+     * Serve ad esportare un database (e.g.: il Datastore, da una richiesta HTTP di durata limitata) un pezzo alla volta.
+     * @param out lo stream su cui scrivere l'archivio
+     * @param prefix prefisso degli URI delle risorse da esportare ({@code ""} per esportarle tutte)
+     * @param cursor URI dopo il quale iniziare, o {@code null}
+     * @param offset posizione di {@code out} nell'archivio
+     * @param maxBytes byte di archivio dopo i quali fermarsi
+     * @param checkpoint il {@link Checkpoint} da notificare, o {@code null}
+     * @return il cursore da cui proseguire, o {@code null} se l'esportazione e' completa
+     * @throws IOException se la scrittura dell'archivio fallisce
+     */
+    public String exportSlice(OutputStream out, String prefix, String cursor, long offset, long maxBytes, Checkpoint checkpoint)
+    throws IOException
+    {
+        return export(out, prefix, cursor, offset, maxBytes, checkpoint, new long[1]);
+    }
+
+
+    // restituisce il cursore da cui proseguire (null se l'archivio e' completo); records[0] = risorse esportate
+    private String export(OutputStream out, String prefix, String cursor, long offset, long maxBytes, Checkpoint checkpoint,
+                          long[] records)
+    throws IOException
+    {
+        DataOutputStream output = new DataOutputStream(out);
+
+        if(offset == 0)
+        {
+            output.write(magic);
+            offset += magic.length;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try
+        {
+            // blocchi in lettura, in ordine di URI
+            Deque<Future<List<IResource>>> pending = new ArrayDeque<Future<List<IResource>>>();
+
+            long startOffset = offset;
+
+            boolean more;
+
+            do
+            {
+                // l'elenco (solo URI ed ETag) e' sequenziale, le letture dei contenuti avvengono in parallelo
+                ResourceListing listing = db.list(prefix, cursor, batchSize);
+
+                cursor = listing.getNextCursor();
+
+                more = (cursor != null && offset - startOffset < maxBytes);
+
+                if(!listing.getETags().isEmpty())
+                {
+                    pending.add(executor.submit(newReadTask(new ArrayList<String>(listing.getETags().keySet()))));
+                }
+
+                while(!pending.isEmpty() && (pending.size() >= 2 * threads || !more))
+                {
+                    List<IResource> batch = getResult(pending.poll());
+
+                    for(IResource resource : batch)
+                    {
+                        offset += writeRecord(output, resource);
+                    }
+
+                    records[0] += batch.size();
+
+                    if(checkpoint != null && !batch.isEmpty())
+                    {
+                        output.flush();
+                        checkpoint.reached(batch.get(batch.size() - 1).getURI(), records[0], offset);
+                    }
+                }
+            }
+            while(more);
+
+            if(cursor == null)
+            {
+                output.writeInt(endMarker);
+            }
+
+            output.flush();
+
+            return cursor;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Legge da {@code in} le risorse di un archivio e le scrive nel database.
+     * Con {@code offset} uguale a 0 legge anche l'intestazione dell'archivio; altrimenti {@code in} e' gia'
+     * posizionato in {@code offset} (e.g.: per riprendere dall'ultimo {@link Checkpoint}).
+     * Lo stream non viene chiuso.
+     * @param in lo stream da cui leggere l'archivio
+     * @param offset posizione di {@code in} nell'archivio
+     * @param validator se non e' {@code null}, il validatore a cui deve essere conforme il contenuto delle risorse
+     * @param checkpoint il {@link Checkpoint} da notificare, o {@code null}
+     * @return il numero di risorse importate
+     * @throws IOException se la lettura dell'archivio fallisce, l'archivio non e' valido, o (con {@code validator})
+     * il contenuto di una risorsa non e' conforme allo schema
+     */
+    public long importFrom(InputStream in, long offset, XmlValidator validator, Checkpoint checkpoint) throws IOException
+    {
+        long[] records = new long[1];
+
+        importRecords(in, offset, validator, checkpoint, false, records);
+
+        return records[0];
+    }
+
+
+    /**
+     * Come {@link #importFrom(InputStream, long, XmlValidator, Checkpoint)}, ma {@code in} puo' contenere solo una parte
+     * dell'archivio (a partire da {@code offset}): vengono importate le risorse complete, e un'altra chiamata prosegue
+     * dalla posizione restituita (e.g.: per importare nel Datastore un pezzo di archivio per ogni richiesta HTTP).
+     * @param in lo stream da cui leggere la parte di archivio
+     * @param offset posizione di {@code in} nell'archivio
+     * @param validator se non e' {@code null}, il validatore a cui deve essere conforme il contenuto delle risorse
+     * @param checkpoint il {@link Checkpoint} da notificare, o {@code null}
+     * @return la posizione nell'archivio subito dopo l'ultima risorsa importata, da cui proseguire, o -1 se e' stata
+     * letta la fine dell'archivio
+     * @throws IOException se la lettura dell'archivio fallisce, l'archivio non e' valido, o (con {@code validator})
+     * il contenuto di una risorsa non e' conforme allo schema
+     */
+    public long importSlice(InputStream in, long offset, XmlValidator validator, Checkpoint checkpoint) throws IOException
+    {
+        return importRecords(in, offset, validator, checkpoint, true, new long[1]);
+    }
+
+
+    // con slice, la fine di in prima della fine dell'archivio non e' un errore; restituisce la posizione dopo l'ultima
+    // risorsa letta, o -1 se e' stata letta la fine dell'archivio; records[0] = risorse importate
+    private long importRecords(InputStream in, long offset, XmlValidator validator, Checkpoint checkpoint, boolean slice,
+                               long[] records)
+    throws IOException
+    {
+        DataInputStream input = new DataInputStream(in);
+
+        if(offset == 0)
+        {
+            byte[] header = new byte[magic.length];
+            input.readFully(header);
+
+            if(!Arrays.equals(header, magic))
+            {
+                throw new IOException("Not a resource archive");
+            }
+
+            offset += magic.length;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try
+        {
+            // blocchi in scrittura, in ordine di archivio, con la posizione nell'archivio alla fine di ciascuno
+            Deque<Future<List<IResource>>> pending = new ArrayDeque<Future<List<IResource>>>();
+            Deque<Long> pendingOffsets = new ArrayDeque<Long>();
+
+            List<IResource> batch = new ArrayList<IResource>();
+            long batchBytes = 0;
+
+            boolean ended = false;
+
+            boolean truncated = false;
+
+            long[] position = { offset };
+
+            while(!ended || !batch.isEmpty() || !pending.isEmpty())
+            {
+                if(!ended)
+                {
+                    IResource resource;
+
+                    try
+                    {
+                        resource = readRecord(input, position);
+                    }
+                    catch(TruncatedArchiveException e)
+                    {
+                        if(!slice)
+                        {
+                            throw e;
+                        }
+
+                        // fine della parte di archivio: il record incompleto verra' riletto dalla prossima
+                        resource = null;
+                        truncated = true;
+                    }
+
+                    if(resource == null)
+                    {
+                        ended = true;
+                    }
+                    else
+                    {
+                        batch.add(resource);
+                        batchBytes += resource.getContentBytes().length;
+                    }
+                }
+
+                if(batch.size() >= batchSize || batchBytes >= maxBatchBytes || (ended && !batch.isEmpty()))
+                {
+                    pending.add(executor.submit(newWriteTask(batch, validator)));
+                    pendingOffsets.add(position[0]);
+
+                    batch = new ArrayList<IResource>();
+                    batchBytes = 0;
+                }
+
+                while(!pending.isEmpty() && (pending.size() >= 2 * threads || (ended && batch.isEmpty())))
+                {
+                    List<IResource> written = getResult(pending.poll());
+                    long writtenOffset = pendingOffsets.poll();
+
+                    records[0] += written.size();
+
+                    if(checkpoint != null)
+                    {
+                        checkpoint.reached(written.get(written.size() - 1).getURI(), records[0], writtenOffset);
+                    }
+                }
+            }
+
+            return truncated ? position[0] : -1;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    private Callable<List<IResource>> newReadTask(final List<String> resourceURIs)
+    {
+        return new Callable<List<IResource>>()
+        {
+            @Override
+            public List<IResource> call()
+            {
+                Map<String, IResource> found = db.getAll(resourceURIs);
+
+                List<IResource> batch = new ArrayList<IResource>(found.size());
+
+                for(String resourceURI : resourceURIs)   // nell'ordine dell'elenco
+                {
+                    IResource resource = found.get(resourceURI);
+
+                    if(resource != null)   // null se e' stata cancellata dopo l'elenco
+                    {
+                        batch.add(resource);
+                    }
+                }
+
+                return batch;
+            }
+        };
+    }
+
+
+    private Callable<List<IResource>> newWriteTask(final List<IResource> batch, final XmlValidator validator)
+    {
+        return new Callable<List<IResource>>()
+        {
+            @Override
+            public List<IResource> call() throws IOException, SAXException
+            {
+                if(validator != null)
+                {
+                    for(IResource resource : batch)
+                    {
+                        if(!validator.isValid(new StreamSource(new ByteArrayInputStream(resource.getContentBytes()))))
+                        {
+                            throw new IOException("Resource " + resource.getURI() + " does not match xml schema");
+                        }
+                    }
+                }
+
+                db.putAll(batch);
+
+                return batch;
+            }
+        };
+    }
+
+
+    private static List<IResource> getResult(Future<List<IResource>> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if(cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+
+            if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IOException("Transfer failed", cause);
+        }
+    }
+
+
+    // restituisce il numero di byte scritti
+    private static int writeRecord(DataOutputStream output, IResource resource) throws IOException
+    {
+        byte[] uriBytes = resource.getURI().getBytes(utf8);
+        byte[] eTagBytes = resource.getETag().getBytes(utf8);
+        byte[] contentBytes = resource.getContentBytes();
+
+        output.writeInt(uriBytes.length);
+        output.write(uriBytes);
+        output.writeInt(eTagBytes.length);
+        output.write(eTagBytes);
+        output.writeInt(contentBytes.length);
+        output.write(contentBytes);
+
+        return 12 + uriBytes.length + eTagBytes.length + contentBytes.length;
+    }
+
+
+    // restituisce null alla fine dell'archivio; aggiorna position (la posizione nell'archivio)
+    private static IResource readRecord(DataInputStream input, long[] position) throws IOException
+    {
+        try
+        {
+            int uriLength = input.readInt();
+
+            if(uriLength == endMarker)
+            {
+                return null;
+            }
+
+            byte[] uriBytes = readBytes(input, uriLength);
+            byte[] eTagBytes = readBytes(input, input.readInt());
+            byte[] contentBytes = readBytes(input, input.readInt());
+
+            position[0] += 12 + uriBytes.length + eTagBytes.length + contentBytes.length;
+
+            // l'ETag dell'archivio viene conservato, cosi' che non serva ricalcolarlo
+            return new SINode(new String(uriBytes, utf8), contentBytes, new String(eTagBytes, utf8));
+        }
+        catch(EOFException e)
+        {
+            throw new TruncatedArchiveException(e);
+        }
+    }
+
+
+    private static byte[] readBytes(DataInputStream input, int length) throws IOException
+    {
+        if(length < 0)
+        {
+            throw new IOException("Corrupted archive");
+        }
+
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+
+    /**
+     * L'archivio termina prima della sua fine (o nel mezzo di un record).
+     */
+    @SuppressWarnings("serial")
+    private static class TruncatedArchiveException extends IOException
+    {
+        private TruncatedArchiveException(EOFException cause)
+        {
+            super("Truncated archive", cause);
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 3 || !(args[0].equals("export") || args[0].equals("import")))
+        {
+            System.err.println("Usage: java " + BulkTransfer.class.getName()
+                               + " export|import logDirectory archive [threads [schema]]");
+            System.exit(2);
+        }
+
+        File archiveFile = new File(args[2]);
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : defaultThreads;
+
+        File checkpointFile = new File(archiveFile.getPath() + ".checkpoint");
+
+        Properties resumePoint = new Properties();
+
+        if(checkpointFile.exists())
+        {
+            InputStream checkpointInput = new FileInputStream(checkpointFile);
+
+            try
+            {
+                resumePoint.load(checkpointInput);
+            }
+            finally
+            {
+                checkpointInput.close();
+            }
+        }
+
+        long resumeOffset = Long.parseLong(resumePoint.getProperty("offset", "0"));
+        long resumeRecords = Long.parseLong(resumePoint.getProperty("records", "0"));
+
+        LogStructuredDatabase db = new LogStructuredDatabase(new File(args[1]));
+
+        try
+        {
+            BulkTransfer bulkTransfer = new BulkTransfer(db, threads, defaultBatchSize);
+
+            long records;
+
+            if(args[0].equals("export"))
+            {
+                // l'archivio viene troncato all'ultimo checkpoint, dopo il quale potrebbe contenere un record incompleto
+                RandomAccessFile archive = new RandomAccessFile(archiveFile, "rw");
+
+                try
+                {
+                    archive.setLength(resumeOffset);
+                    archive.seek(resumeOffset);
+
+                    FileOutputStream archiveOutput = new FileOutputStream(archive.getFD());
+
+                    records = bulkTransfer.exportTo(new BufferedOutputStream(archiveOutput, fileBufferSize), "",
+                                                    resumePoint.getProperty("lastURI"), resumeOffset,
+                                                    newCheckpointFile(checkpointFile, archiveOutput, resumeRecords));
+
+                    archive.getFD().sync();
+                }
+                finally
+                {
+                    archive.close();
+                }
+            }
+            else
+            {
+                XmlValidator validator = args.length > 4 ? new XmlValidator(new File(args[4]), -1) : null;
+
+                FileInputStream archiveInput = new FileInputStream(archiveFile);
+
+                try
+                {
+                    archiveInput.getChannel().position(resumeOffset);
+
+                    records = bulkTransfer.importFrom(new BufferedInputStream(archiveInput, fileBufferSize), resumeOffset,
+                                                      validator, newCheckpointFile(checkpointFile, null, resumeRecords));
+                }
+                finally
+                {
+                    archiveInput.close();
+                }
+            }
+
+            checkpointFile.delete();
+
+            System.out.println(args[0] + ": " + (resumeRecords + records) + " resources");
+        }
+        finally
+        {
+            db.close();
+        }
+    }
+
+
+    // salva il checkpoint (al piu' una volta ogni checkpointSaveInterval ms) in un file di properties,
+    // sostituito atomicamente; in esportazione l'archivio viene prima reso persistente
+    private static Checkpoint newCheckpointFile(final File checkpointFile, final FileOutputStream archiveOutput,
+                                                final long resumeRecords)
+    {
+        return new Checkpoint()
+        {
+            private long lastSaveTime;
+
+            @Override
+            public void reached(String lastURI, long records, long offset) throws IOException
+            {
+                long now = System.currentTimeMillis();
+
+                if(now - lastSaveTime < checkpointSaveInterval)
+                {
+                    return;
+                }
+
+                lastSaveTime = now;
+
+                if(archiveOutput != null)
+                {
+                    archiveOutput.getFD().sync();
+                }
+
+                Properties resumePoint = new Properties();
+                resumePoint.setProperty("lastURI", lastURI);
+                resumePoint.setProperty("records", Long.toString(resumeRecords + records));
+                resumePoint.setProperty("offset", Long.toString(offset));
+
+                File temporaryFile = new File(checkpointFile.getPath() + ".tmp");
+
+                OutputStream checkpointOutput = new FileOutputStream(temporaryFile);
+
+                try
+                {
+                    resumePoint.store(checkpointOutput, null);
+                }
+                finally
+                {
+                    checkpointOutput.close();
+                }
+
+                if(!temporaryFile.renameTo(checkpointFile))
+                {
+                    checkpointFile.delete();
+
+                    if(!temporaryFile.renameTo(checkpointFile))
+                    {
+                        throw new IOException("Cannot save checkpoint " + checkpointFile);
+                    }
+                }
+            }
+        };
+    }
+
+}
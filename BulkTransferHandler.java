@@ -0,0 +1,230 @@
+package storageInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Esportazione (GET su !export) e importazione (POST su !import) di tutte le risorse di {@link StorageInterfaceServlet}
+ * in un archivio di {@link BulkTransfer}, un pezzo per richiesta, cosi' che ogni richiesta abbia una durata limitata
+ * (anche con il Datastore):
+ * <ul>
+ * <li>GET !export?cursor=c&amp;offset=o restituisce il pezzo di archivio che inizia in o (il primo con cursor assente
+ * e offset 0); se l'archivio non e' completo, la risposta indica il cursore e la posizione da cui proseguire
+ * (negli header X-Export-Cursor e X-Archive-Offset)</li>
+ * <li>POST !import?offset=o con il pezzo di archivio che inizia in o: vengono importate le risorse complete, e se
+ * l'archivio non e' terminato la risposta indica (in X-Archive-Offset) da dove inviare il pezzo successivo</li>
+ * </ul>
+ * Il client conserva cursore e posizione (il checkpoint), e puo' riprendere da li' un trasferimento interrotto.
+ * Abilitate solo se l'init-param bulkTransfer e' "true" (da proteggere come area amministrativa).
+ *
+ *
+ */
+public class BulkTransferHandler
+{
+    private final static String offsetParamName = "offset";
+
+    private final static String exportCursorHeaderName = "X-Export-Cursor";
+
+    private final static String archiveOffsetHeaderName = "X-Archive-Offset";
+
+    private final static String importedResourcesHeaderName = "X-Imported-Resources";
+
+    private final static String archiveContentType = "application/octet-stream";
+
+    // byte di archivio (circa) di un pezzo esportato, tenuto in memoria per inviare gli header prima del contenuto
+    private final static int exportSliceSize = 4 * 1024 * 1024;
+
+    // byte di archivio di un pezzo importato, oltre a maxBodySize (cosi' un pezzo contiene sempre almeno una risorsa)
+    private final static int importSliceSize = 8 * 1024 * 1024;
+
+    private final static int bulkTransferThreads = 4;
+
+    private final static int bulkTransferBatchSize = 20;
+
+    private final static String bulkTransferDisabledMessage = "Bulk transfer is disabled";
+
+    private final static String invalidOffsetMessage = offsetParamName + " must be a non-negative integer";
+
+    private final static String invalidArchiveMessage = "Invalid archive: ";
+
+    private final IDatabase db;
+
+    private final XmlValidator xmlValidator;
+
+    private final int maxBodySize;
+
+    private final boolean enabled;
+
+    private final AtomicLong requestContentBytes;
+
+    private final AtomicLong responseContentBytes;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link BulkTransferHandler}.
+     * @param db il database da esportare o in cui importare
+     * @param xmlValidator il validatore delle risorse importate
+     * @param maxBodySize dimensione massima (in byte) di una risorsa
+     * @param enabled {@code false} per rifiutare (con un 403) esportazioni e importazioni
+     * @param requestContentBytes contatore dei byte ricevuti
+     * @param responseContentBytes contatore dei byte inviati
+     */
+    public BulkTransferHandler(IDatabase db, XmlValidator xmlValidator, int maxBodySize, boolean enabled,
+                               AtomicLong requestContentBytes, AtomicLong responseContentBytes)
+    {
+        this.db = db;
+        this.xmlValidator = xmlValidator;
+        this.maxBodySize = maxBodySize;
+        this.enabled = enabled;
+        this.requestContentBytes = requestContentBytes;
+        this.responseContentBytes = responseContentBytes;
+    }
+
+
+    /**
+     * Invia un pezzo dell'archivio di tutte le risorse.
+     * @param req la richiesta
+     * @param resp la risposta
+     * @throws IOException se la risposta non puo' essere scritta
+     */
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException
+    {
+        if(!enabled)
+        {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, bulkTransferDisabledMessage);
+            return;
+        }
+
+        long offset = getOffsetParameter(req);
+
+        if(offset < 0)
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, invalidOffsetMessage);
+            return;
+        }
+
+        ByteArrayOutputStream slice = new ByteArrayOutputStream();
+
+        String nextCursor = new BulkTransfer(db, bulkTransferThreads, bulkTransferBatchSize)
+                            .exportSlice(slice, "", req.getParameter(StorageInterfaceServlet.cursorParamName), offset, exportSliceSize, null);
+
+        if(nextCursor != null)
+        {
+            resp.setHeader(exportCursorHeaderName, nextCursor);
+            resp.setHeader(archiveOffsetHeaderName, Long.toString(offset + slice.size()));
+        }
+
+        resp.setContentType(archiveContentType);
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setContentLength(slice.size());
+
+        slice.writeTo(resp.getOutputStream());
+
+        responseContentBytes.addAndGet(slice.size());
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+
+    /**
+     * Importa le risorse complete del pezzo dell'archivio nel body della richiesta.
+     * @param req la richiesta
+     * @param resp la risposta
+     * @throws IOException se il body non puo' essere letto o la risposta scritta
+     */
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException
+    {
+        if(!enabled)
+        {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, bulkTransferDisabledMessage);
+            return;
+        }
+
+        long offset = getOffsetParameter(req);
+
+        if(offset < 0)
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, invalidOffsetMessage);
+            return;
+        }
+
+        int maxSliceSize = (int) Math.min((long) importSliceSize + maxBodySize, Integer.MAX_VALUE);
+
+        if(req.getContentLength() > maxSliceSize)
+        {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, StorageInterfaceServlet.bodyTooLargeMessage);
+            return;
+        }
+
+        BoundedTeeInputStream bodyStream = new BoundedTeeInputStream(req.getInputStream(), maxSliceSize, req.getContentLength());
+
+        final long[] imported = new long[1];
+
+        long nextOffset;
+
+        try
+        {
+            nextOffset = new BulkTransfer(db, bulkTransferThreads, bulkTransferBatchSize)
+                         .importSlice(bodyStream, offset, xmlValidator, new BulkTransfer.Checkpoint()
+                         {
+                             @Override
+                             public void reached(String lastURI, long records, long reachedOffset)
+                             {
+                                 imported[0] = records;
+                             }
+                         });
+        }
+        catch(BoundedTeeInputStream.BodyTooLargeException e)
+        {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, StorageInterfaceServlet.bodyTooLargeMessage);
+            return;
+        }
+        catch(InsufficientStorageException e)
+        {
+            resp.sendError(StorageInterfaceServlet.insufficientStorageStatusCode, e.getMessage());
+            return;
+        }
+        catch(IOException e)   // archivio non valido, o risorsa non conforme allo schema
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, invalidArchiveMessage + e.getMessage());
+            return;
+        }
+        finally
+        {
+            requestContentBytes.addAndGet(bodyStream.size());
+        }
+
+        if(nextOffset == offset)   // il pezzo non contiene nemmeno una risorsa completa
+        {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, StorageInterfaceServlet.bodyTooLargeMessage);
+            return;
+        }
+
+        if(nextOffset >= 0)   // l'archivio prosegue
+        {
+            resp.setHeader(archiveOffsetHeaderName, Long.toString(nextOffset));
+        }
+
+        resp.setHeader(importedResourcesHeaderName, Long.toString(imported[0]));
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+
+    // -1 se il parametro offset non e' valido
+    private static long getOffsetParameter(HttpServletRequest req)
+    {
+        try
+        {
+            return Math.max(-1, StorageInterfaceServlet.getLongParameter(req, offsetParamName, 0));
+        }
+        catch(NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,543 @@
+package storageInterface;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decoratore di un {@link IDatabase} che mantiene in memoria le risorse lette piu' di recente.
+ * La cache e' divisa in segmenti, ciascuno con il proprio lock e la propria parte del budget (in byte):
+ * quando un segmento supera il budget vengono eliminate le risorse usate meno di recente (LRU).
+ * Le risorse restano in cache al massimo per un tempo prefissato (TTL) e vengono invalidate
+ * (o aggiornate) ad ogni scrittura o cancellazione effettuata attraverso il decoratore.
+ *
+ *
+ */
+public class CachingDatabase implements IDatabase
+{
+    private final IDatabase db;
+
+    private final Segment[] segments;
+
+    // durata massima di una risorsa in cache (ms), o un valore negativo se illimitata
+    private final long timeToLive;
+
+    // metriche
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final static int segmentsCount = 16;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link CachingDatabase}.
+     * @param db il database di cui mettere in cache le risorse
+     * @param maxBytes dimensione massima (stimata, in byte) delle risorse in cache
+     * @param timeToLive durata massima (in millisecondi) di una risorsa in cache, o un valore negativo se illimitata
+     */
+    public CachingDatabase(IDatabase db, long maxBytes, long timeToLive)
+    {
+        this.db = db;
+        this.timeToLive = timeToLive;
+        this.segments = new Segment[segmentsCount];
+
+        for(int i = 0; i < segmentsCount; i++)
+        {
+            segments[i] = new Segment(maxBytes / segmentsCount);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String resourceURI)
+    {
+        Segment segment = segmentFor(resourceURI);
+
+        CacheEntry cacheEntry = segment.get(resourceURI);
+
+        if(cacheEntry != null)
+        {
+            hitCount.incrementAndGet();
+            return cacheEntry.toResource();
+        }
+
+        missCount.incrementAndGet();
+
+        // la generazione letta prima di accedere al database impedisce di mettere in cache una versione
+        // che nel frattempo e' stata sovrascritta o cancellata
+        long generation = segment.getGeneration();
+
+        IResource resource = db.get(resourceURI);
+
+        if(resource != null)
+        {
+            segment.putIfGeneration(newEntry(resource), generation);
+        }
+
+        return resource;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String resourceURI)
+    {
+        CacheEntry cacheEntry = segmentFor(resourceURI).get(resourceURI);
+
+        if(cacheEntry != null)
+        {
+            hitCount.incrementAndGet();
+            return cacheEntry.eTag;
+        }
+
+        missCount.incrementAndGet();
+
+        return db.getETag(resourceURI);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String resourceURI, long offset, int length)
+    {
+        CacheEntry cacheEntry = segmentFor(resourceURI).get(resourceURI);
+
+        if(cacheEntry != null)
+        {
+            hitCount.incrementAndGet();
+            return ResourceRange.of(cacheEntry.toResource(), offset, length);
+        }
+
+        missCount.incrementAndGet();
+
+        // una porzione non basta a riempire la cache: la lettura parziale resta parziale anche sul database
+        return db.getRange(resourceURI, offset, length);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        // gli elenchi non passano dalla cache: la cache contiene solo alcune delle risorse
+        return db.list(prefix, cursor, limit);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource resource)
+    {
+        Segment segment = segmentFor(resource.getURI());
+
+        long generation = segment.getGeneration();
+
+        db.put(resource);
+
+        segment.update(newEntry(resource), generation);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource resource)
+    {
+        Segment segment = segmentFor(resource.getURI());
+
+        long generation = segment.getGeneration();
+
+        String eTag = db.putIfAbsent(resource);
+
+        if(eTag != null)
+        {
+            segment.update(newEntry(resource), generation);
+        }
+
+        return eTag;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource resource, String expectedETag)
+    {
+        Segment segment = segmentFor(resource.getURI());
+
+        long generation = segment.getGeneration();
+
+        String eTag = db.putIfMatch(resource, expectedETag);
+
+        if(eTag != null)
+        {
+            segment.update(newEntry(resource), generation);
+        }
+
+        return eTag;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource resource)
+    {
+        return delete(resource.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String resourceURI)
+    {
+        boolean deleted = db.delete(resourceURI);
+
+        segmentFor(resourceURI).invalidate(resourceURI);
+
+        return deleted;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String resourceURI, String expectedETag)
+    {
+        boolean deleted = db.deleteIfMatch(resourceURI, expectedETag);
+
+        if(deleted)
+        {
+            segmentFor(resourceURI).invalidate(resourceURI);
+        }
+
+        return deleted;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> resourceURIs)
+    {
+        Map<String, IResource> found = new HashMap<String, IResource>();
+
+        List<String> missingURIs = new ArrayList<String>();
+
+        Map<String, Long> generations = new HashMap<String, Long>();
+
+        for(String resourceURI : resourceURIs)
+        {
+            Segment segment = segmentFor(resourceURI);
+
+            CacheEntry cacheEntry = segment.get(resourceURI);
+
+            if(cacheEntry != null)
+            {
+                hitCount.incrementAndGet();
+                found.put(resourceURI, cacheEntry.toResource());
+            }
+            else
+            {
+                missCount.incrementAndGet();
+                missingURIs.add(resourceURI);
+                generations.put(resourceURI, segment.getGeneration());
+            }
+        }
+
+        if(!missingURIs.isEmpty())   // un solo accesso al database per tutte le risorse non in cache
+        {
+            for(IResource resource : db.getAll(missingURIs).values())
+            {
+                segmentFor(resource.getURI()).putIfGeneration(newEntry(resource), generations.get(resource.getURI()));
+                found.put(resource.getURI(), resource);
+            }
+        }
+
+        return found;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> resources)
+    {
+        Map<String, Long> generations = new HashMap<String, Long>();
+
+        for(IResource resource : resources)
+        {
+            generations.put(resource.getURI(), segmentFor(resource.getURI()).getGeneration());
+        }
+
+        db.putAll(resources);
+
+        for(IResource resource : resources)
+        {
+            segmentFor(resource.getURI()).update(newEntry(resource), generations.get(resource.getURI()));
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> resourceURIs)
+    {
+        Set<String> deleted = db.deleteAll(resourceURIs);
+
+        for(String resourceURI : resourceURIs)
+        {
+            segmentFor(resourceURI).invalidate(resourceURI);
+        }
+
+        return deleted;
+    }
+
+
+    /**
+     * Restituisce il numero di letture servite dalla cache.
+     * @return il numero di letture servite dalla cache
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+
+    /**
+     * Restituisce il numero di letture che hanno richiesto un accesso al database.
+     * @return il numero di letture che hanno richiesto un accesso al database
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+
+    /**
+     * Restituisce il numero di risorse eliminate dalla cache per rispettarne la dimensione massima o il TTL.
+     * @return il numero di risorse eliminate dalla cache
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+
+    /**
+     * Restituisce la dimensione complessiva (stimata, in byte) delle risorse in cache.
+     * @return la dimensione complessiva delle risorse in cache
+     */
+    public long sizeInBytes()
+    {
+        long bytes = 0;
+
+        for(Segment segment : segments)
+        {
+            bytes += segment.getBytes();
+        }
+
+        return bytes;
+    }
+
+
+    private Segment segmentFor(String resourceURI)
+    {
+        // rimescola i bit dell'hash, in modo che anche URI simili finiscano in segmenti diversi
+        int hash = resourceURI.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+
+        return segments[(hash & 0x7fffffff) % segmentsCount];
+    }
+
+
+    private CacheEntry newEntry(IResource resource)
+    {
+        long expirationTime = (timeToLive >= 0) ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE;
+
+        // se il contenuto e' comprimibile viene tenuto in cache solo compresso: occupa meno spazio e puo' essere
+        // inviato cosi' com'e'; le letture che lo vogliono non compresso lo decomprimono sul proprio SINode
+        byte[] gzippedContent = resource.getGzippedContent();
+
+        if(gzippedContent != null)
+        {
+            return new CacheEntry(resource.getURI(), null, gzippedContent, resource.getETag(), expirationTime);
+        }
+
+        return new CacheEntry(resource.getURI(), resource.getContentBytes(), null, resource.getETag(), expirationTime);
+    }
+
+
+    // risorsa in cache: immutabile, viene copiata in un nuovo SINode ad ogni lettura
+    private static class CacheEntry
+    {
+        private final String uri;
+
+        // esattamente uno dei due e' diverso da null
+        private final byte[] contentBytes;
+
+        private final byte[] gzippedContent;
+
+        private final String eTag;
+
+        private final long expirationTime;
+
+        private final long size;
+
+        private CacheEntry(String uri, byte[] contentBytes, byte[] gzippedContent, String eTag, long expirationTime)
+        {
+            this.uri = uri;
+            this.contentBytes = contentBytes;
+            this.gzippedContent = gzippedContent;
+            this.eTag = eTag;
+            this.expirationTime = expirationTime;
+            this.size = 2L * (uri.length() + eTag.length()) + ((contentBytes != null) ? contentBytes.length : gzippedContent.length) + 64;
+        }
+
+        private IResource toResource()
+        {
+            return new SINode(uri, contentBytes, gzippedContent, eTag);
+        }
+    }
+
+
+    // segmento della cache: una LinkedHashMap in ordine di accesso, protetta da un lock
+    private class Segment
+    {
+        private final long maxBytes;
+
+        private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(64, 0.75f, true);
+
+        private long bytes;
+
+        // incrementata ad ogni scrittura o cancellazione di una risorsa del segmento
+        private long generation;
+
+        private Segment(long maxBytes)
+        {
+            this.maxBytes = maxBytes;
+        }
+
+        private synchronized CacheEntry get(String resourceURI)
+        {
+            CacheEntry cacheEntry = entries.get(resourceURI);
+
+            if(cacheEntry != null && cacheEntry.expirationTime < System.currentTimeMillis())
+            {
+                remove(resourceURI);
+                evictionCount.incrementAndGet();
+                return null;
+            }
+
+            return cacheEntry;
+        }
+
+        private synchronized long getGeneration()
+        {
+            return generation;
+        }
+
+        private synchronized long getBytes()
+        {
+            return bytes;
+        }
+
+        // inserisce cacheEntry solo se nessuna scrittura e' avvenuta dopo la lettura di expectedGeneration
+        private synchronized void putIfGeneration(CacheEntry cacheEntry, long expectedGeneration)
+        {
+            if(generation == expectedGeneration)
+            {
+                insert(cacheEntry);
+            }
+        }
+
+        // chiamato dopo una scrittura andata a buon fine: se nessun'altra scrittura sul segmento e' avvenuta
+        // nel frattempo, la nuova versione viene messa in cache, altrimenti la risorsa viene invalidata
+        private synchronized void update(CacheEntry cacheEntry, long expectedGeneration)
+        {
+            if(generation == expectedGeneration)
+            {
+                insert(cacheEntry);
+            }
+            else
+            {
+                remove(cacheEntry.uri);
+            }
+
+            generation++;
+        }
+
+        private synchronized void invalidate(String resourceURI)
+        {
+            remove(resourceURI);
+            generation++;
+        }
+
+        private void insert(CacheEntry cacheEntry)
+        {
+            remove(cacheEntry.uri);
+
+            if(cacheEntry.size > maxBytes)   // troppo grande per la cache
+            {
+                return;
+            }
+
+            entries.put(cacheEntry.uri, cacheEntry);
+            bytes += cacheEntry.size;
+
+            // elimina le risorse usate meno di recente (le prime nell'ordine di accesso)
+            Iterator<Map.Entry<String, CacheEntry>> eldest = entries.entrySet().iterator();
+
+            while(bytes > maxBytes && eldest.hasNext())
+            {
+                CacheEntry evicted = eldest.next().getValue();
+                eldest.remove();
+                bytes -= evicted.size;
+                evictionCount.incrementAndGet();
+            }
+        }
+
+        private void remove(String resourceURI)
+        {
+            CacheEntry removed = entries.remove(resourceURI);
+
+            if(removed != null)
+            {
+                bytes -= removed.size;
+            }
+        }
+    }
+
+}
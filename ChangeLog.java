@@ -0,0 +1,445 @@
+package storageInterface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registro (in memoria) delle modifiche delle risorse: ogni creazione, aggiornamento o cancellazione viene aggiunta
+ * con un numero di sequenza crescente. Vengono conservate solo le ultime {@code capacity} modifiche (buffer circolare).
+ * I client leggono le modifiche successive all'ultimo numero di sequenza ricevuto, eventualmente attendendo
+ * che ne arrivino di nuove: bloccando il thread chiamante ({@link #getChanges(long, String, int, long)}) o
+ * registrandosi per essere avvisati ({@link #getChangesAsync(long, String, int, long)}); le attese sono in una lista,
+ * risvegliate da {@link #append(String, String)} o, allo scadere del timeout, da un unico thread di timer.
+ * <p>
+ * Il registro e' locale all'istanza: le modifiche eseguite da altre istanze dell'applicazione non compaiono,
+ * quindi con un database condiviso tra piu' istanze (e.g.: il Datastore) va usato {@link SharedChangeLog}.
+ * I numeri di sequenza partono da un valore derivato dall'istante di creazione del registro, cosi' che quelli
+ * di un registro precedente (e.g.: prima di un riavvio) siano riconoscibili come non piu' validi.
+ *
+ *
+ */
+public class ChangeLog
+{
+    private final Change[] changes;
+
+    // numero di sequenza dell'ultima modifica (le modifiche iniziano da firstSequence + 1)
+    private long lastSequence;
+
+    private long firstSequence;
+
+    // numeri di sequenza disponibili per ogni millisecondo dall'epoch, prima che si sovrappongano a quelli di un riavvio
+    private final static long sequencesPerMillisecond = 1000;
+
+    // client in attesa di una modifica con il loro prefisso (protetta da this)
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+
+    // esegue i timeout delle attese
+    private final ScheduledExecutorService timer;
+
+    private boolean closed;
+
+
+    /**
+     * Modifica di una risorsa.
+     */
+    public static class Change
+    {
+        private final long sequence;
+
+        private final String uri;
+
+        private final String eTag;
+
+        Change(long sequence, String uri, String eTag)
+        {
+            this.sequence = sequence;
+            this.uri = uri;
+            this.eTag = eTag;
+        }
+
+        /**
+         * @return il numero di sequenza della modifica
+         */
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * @return l'URI della risorsa modificata
+         */
+        public String getURI()
+        {
+            return uri;
+        }
+
+        /**
+         * @return il nuovo ETag della risorsa, o {@code null} se la risorsa e' stata eliminata
+         */
+        public String getETag()
+        {
+            return eTag;
+        }
+    }
+
+
+    /**
+     * Modifiche restituite da {@link ChangeLog#getChanges(long, String, int, long)}, con il numero di sequenza
+     * da cui continuare.
+     */
+    public static class Page
+    {
+        private final List<Change> changes;
+
+        private final long nextSequence;
+
+        private Page(List<Change> changes, long nextSequence)
+        {
+            this.changes = changes;
+            this.nextSequence = nextSequence;
+        }
+
+        /**
+         * @return le modifiche, in ordine di sequenza
+         */
+        public List<Change> getChanges()
+        {
+            return Collections.unmodifiableList(changes);
+        }
+
+        /**
+         * @return il numero di sequenza da passare alla richiesta successiva; comprende anche le modifiche
+         * esaminate ma scartate perche' non corrispondono al prefisso
+         */
+        public long getNextSequence()
+        {
+            return nextSequence;
+        }
+    }
+
+
+    /**
+     * Client in attesa di modifiche (vedi {@link ChangeLog#getChangesAsync(long, String, int, long)}).
+     */
+    private static class Subscription
+    {
+        private final long since;
+
+        private final String prefix;
+
+        // calcola la pagina restituita al client, quando viene eseguito
+        private final AsyncResult<Page> result;
+
+        private ScheduledFuture<?> timeout;
+
+        private Subscription(long since, String prefix, AsyncResult<Page> result)
+        {
+            this.since = since;
+            this.prefix = prefix;
+            this.result = result;
+        }
+    }
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link ChangeLog}.
+     * @param capacity numero di modifiche conservate
+     */
+    public ChangeLog(int capacity)
+    {
+        changes = new Change[capacity];
+        firstSequence = System.currentTimeMillis() * sequencesPerMillisecond;
+        lastSequence = firstSequence;
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "ChangeLog timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * Aggiunge una modifica al registro e risveglia i client in attesa di una modifica con il suo prefisso
+     * (o le cui modifiche non sono piu' conservate).
+     * @param uri l'URI della risorsa modificata
+     * @param eTag il nuovo ETag della risorsa, o {@code null} se la risorsa e' stata eliminata
+     * @return il numero di sequenza della modifica
+     */
+    public long append(String uri, String eTag)
+    {
+        long sequence;
+        List<Subscription> woken;
+
+        synchronized(this)
+        {
+            sequence = lastSequence + 1;
+            woken = addChanges(Collections.singletonList(new Change(sequence, uri, eTag)));
+        }
+
+        complete(woken);
+
+        return sequence;
+    }
+
+
+    /**
+     * Aggiunge al registro modifiche gia' numerate (e.g.: lette da un archivio condiviso con altre istanze) e
+     * risveglia i client interessati. Vengono aggiunte solo le modifiche che proseguono la sequenza senza buchi.
+     * @param added le modifiche, in ordine di sequenza
+     */
+    void addAll(List<Change> added)
+    {
+        List<Subscription> woken;
+
+        synchronized(this)
+        {
+            woken = addChanges(added);
+        }
+
+        complete(woken);
+    }
+
+
+    /**
+     * Fa ripartire il registro da {@code sequence}, scartando le modifiche conservate: i client che attendono
+     * modifiche precedenti ricevono {@code null} (come se non fossero piu' conservate).
+     * @param sequence il numero di sequenza dell'ultima modifica
+     */
+    void restartFrom(long sequence)
+    {
+        List<Subscription> woken;
+
+        synchronized(this)
+        {
+            firstSequence = sequence;
+            lastSequence = sequence;
+
+            woken = new ArrayList<Subscription>(subscriptions);
+            subscriptions.clear();
+        }
+
+        complete(woken);
+    }
+
+
+    // i client da risvegliare, che complete() risveglia fuori dal lock
+    private List<Subscription> addChanges(List<Change> added)
+    {
+        List<Subscription> woken = new ArrayList<Subscription>();
+        List<Change> appended = new ArrayList<Change>();
+
+        for(Change change : added)
+        {
+            if(change.sequence == lastSequence + 1)
+            {
+                lastSequence = change.sequence;
+                changes[(int) (lastSequence % changes.length)] = change;
+                appended.add(change);
+            }
+        }
+
+        long oldestSequence = getOldestSequence();
+
+        for(Iterator<Subscription> iterator = subscriptions.iterator(); iterator.hasNext(); )
+        {
+            Subscription subscription = iterator.next();
+
+            if(subscription.since < oldestSequence - 1 || matchesAny(appended, subscription.prefix))
+            {
+                iterator.remove();
+                woken.add(subscription);
+            }
+        }
+
+        return woken;
+    }
+
+
+    private static boolean matchesAny(List<Change> appended, String prefix)
+    {
+        for(Change change : appended)
+        {
+            if(change.uri.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    // i listener dei risultati vengono eseguiti sul thread chiamante
+    private static void complete(List<Subscription> woken)
+    {
+        for(Subscription subscription : woken)
+        {
+            subscription.timeout.cancel(false);
+            subscription.result.run();
+        }
+    }
+
+
+    /**
+     * @return il numero di sequenza dell'ultima modifica (da cui un nuovo client inizia a leggere)
+     */
+    public synchronized long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+
+    /**
+     * Restituisce le modifiche con numero di sequenza maggiore di {@code since} delle risorse il cui URI inizia con
+     * {@code prefix}. Se non ce ne sono, attende al piu' {@code timeout} millisecondi che ne arrivino.
+     * @param since il numero di sequenza dell'ultima modifica gia' ricevuta ({@link Page#getNextSequence()})
+     * @param prefix prefisso degli URI ({@code ""} per tutte le risorse)
+     * @param limit numero massimo di modifiche restituite
+     * @param timeout attesa massima in millisecondi (0 = nessuna attesa)
+     * @return le modifiche (eventualmente nessuna, allo scadere del timeout), o {@code null} se alcune delle modifiche
+     * successive a {@code since} non sono piu' conservate (o {@code since} non appartiene a questo registro):
+     * in tal caso il client deve rileggere le risorse che gli interessano e ricominciare da {@link #getLastSequence()}
+     * @throws InterruptedException se il thread viene interrotto durante l'attesa
+     */
+    public Page getChanges(long since, String prefix, int limit, long timeout) throws InterruptedException
+    {
+        try
+        {
+            return getChangesAsync(since, prefix, limit, timeout).get();
+        }
+        catch(ExecutionException e)   // la lettura della pagina non lancia eccezioni controllate
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+
+    /**
+     * Come {@link #getChanges(long, String, int, long)}, ma senza occupare un thread durante l'attesa: il risultato
+     * viene completato dal thread che aggiunge la prima modifica con il prefisso richiesto, o da quello del timer
+     * allo scadere del timeout (i listener del risultato vengono eseguiti su quel thread, e devono durare poco).
+     * @param since il numero di sequenza dell'ultima modifica gia' ricevuta ({@link Page#getNextSequence()})
+     * @param prefix prefisso degli URI ({@code ""} per tutte le risorse)
+     * @param limit numero massimo di modifiche restituite
+     * @param timeout attesa massima in millisecondi (0 = nessuna attesa)
+     * @return le modifiche, come in {@link #getChanges(long, String, int, long)}; il risultato e' gia' completato
+     * se non c'e' niente da attendere
+     */
+    public AsyncResult<Page> getChangesAsync(final long since, final String prefix, final int limit, long timeout)
+    {
+        final AsyncResult<Page> result = new AsyncResult<Page>(new Callable<Page>()
+        {
+            @Override
+            public Page call()
+            {
+                return readChanges(since, prefix, limit);
+            }
+        });
+
+        synchronized(this)
+        {
+            Page page = readChanges(since, prefix, limit);
+
+            if(page != null && page.getChanges().isEmpty() && timeout > 0 && !closed)
+            {
+                final Subscription subscription = new Subscription(since, prefix, result);
+
+                subscription.timeout = timer.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if(removeSubscription(subscription))
+                        {
+                            subscription.result.run();
+                        }
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+
+                subscriptions.add(subscription);
+
+                return result;
+            }
+        }
+
+        result.run();
+
+        return result;
+    }
+
+
+    /**
+     * Termina le attese in corso (con le modifiche disponibili, eventualmente nessuna) e il thread del timer;
+     * le richieste successive non attendono.
+     */
+    public void close()
+    {
+        List<Subscription> woken;
+
+        synchronized(this)
+        {
+            closed = true;
+
+            woken = new ArrayList<Subscription>(subscriptions);
+            subscriptions.clear();
+        }
+
+        complete(woken);
+
+        timer.shutdownNow();
+    }
+
+
+    private synchronized boolean removeSubscription(Subscription subscription)
+    {
+        return subscriptions.remove(subscription);
+    }
+
+
+    private long getOldestSequence()
+    {
+        return Math.max(firstSequence + 1, lastSequence - changes.length + 1);
+    }
+
+
+    // le modifiche successive a since gia' presenti (o null se non sono piu' conservate)
+    private synchronized Page readChanges(long since, String prefix, int limit)
+    {
+        if(since > lastSequence || since < getOldestSequence() - 1)
+        {
+            return null;
+        }
+
+        List<Change> found = new ArrayList<Change>();
+
+        while(since < lastSequence && found.size() < limit)
+        {
+            since++;
+
+            Change change = changes[(int) (since % changes.length)];
+
+            if(change.uri.startsWith(prefix))
+            {
+                found.add(change);
+            }
+        }
+
+        return new Page(found, since);
+    }
+
+}
@@ -0,0 +1,331 @@
+package storageInterface;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decoratore di un {@link IDatabase} che aggiunge ad un {@link ChangeLog} ogni scrittura o cancellazione
+ * andata a buon fine. La modifica viene registrata dopo che il database l'ha eseguita, tenendo il lock dell'URI
+ * durante la scrittura e la registrazione: le scritture concorrenti dello stesso URI compaiono nel registro
+ * nell'ordine in cui il database le ha applicate (se tutte passano da questo decoratore).
+ *
+ *
+ */
+public class ChangeLogDatabase implements IDatabase
+{
+    private final IDatabase db;
+
+    private final ChangeLog changeLog;
+
+    // scrittura e registrazione dello stesso URI sono un'unica operazione (lock striping, come in VersioningDatabase)
+    private final ReentrantLock[] locks;
+
+    private final static int lockCount = 16;
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link ChangeLogDatabase}.
+     * @param db il database di cui registrare le modifiche
+     * @param changeLog il registro delle modifiche
+     */
+    public ChangeLogDatabase(IDatabase db, ChangeLog changeLog)
+    {
+        this.db = db;
+        this.changeLog = changeLog;
+
+        locks = new ReentrantLock[lockCount];
+
+        for(int i = 0; i < lockCount; i++)
+        {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+
+    private ReentrantLock lockFor(String resourceURI)
+    {
+        return locks[(resourceURI.hashCode() & 0x7fffffff) % lockCount];
+    }
+
+
+    // blocca (in ordine, per evitare deadlock) i lock di tutti gli URI
+    private List<ReentrantLock> lockAll(Collection<String> resourceURIs)
+    {
+        Set<Integer> indexes = new TreeSet<Integer>();
+
+        for(String resourceURI : resourceURIs)
+        {
+            indexes.add((resourceURI.hashCode() & 0x7fffffff) % lockCount);
+        }
+
+        List<ReentrantLock> locked = new ArrayList<ReentrantLock>();
+
+        for(int index : indexes)
+        {
+            locks[index].lock();
+            locked.add(locks[index]);
+        }
+
+        return locked;
+    }
+
+
+    private static void unlockAll(List<ReentrantLock> locked)
+    {
+        for(ReentrantLock lock : locked)
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource resource)
+    {
+        ReentrantLock lock = lockFor(resource.getURI());
+        lock.lock();
+
+        try
+        {
+            db.put(resource);
+            changeLog.append(resource.getURI(), resource.getETag());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource resource)
+    {
+        ReentrantLock lock = lockFor(resource.getURI());
+        lock.lock();
+
+        try
+        {
+            String eTag = db.putIfAbsent(resource);
+
+            if(eTag != null)
+            {
+                changeLog.append(resource.getURI(), eTag);
+            }
+
+            return eTag;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource resource, String expectedETag)
+    {
+        ReentrantLock lock = lockFor(resource.getURI());
+        lock.lock();
+
+        try
+        {
+            String eTag = db.putIfMatch(resource, expectedETag);
+
+            if(eTag != null)
+            {
+                changeLog.append(resource.getURI(), eTag);
+            }
+
+            return eTag;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String resourceURI)
+    {
+        return db.get(resourceURI);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String resourceURI)
+    {
+        return db.getETag(resourceURI);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String resourceURI, long offset, int length)
+    {
+        return db.getRange(resourceURI, offset, length);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        return db.list(prefix, cursor, limit);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource resource)
+    {
+        return delete(resource.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String resourceURI)
+    {
+        ReentrantLock lock = lockFor(resourceURI);
+        lock.lock();
+
+        try
+        {
+            boolean deleted = db.delete(resourceURI);
+
+            if(deleted)
+            {
+                changeLog.append(resourceURI, null);
+            }
+
+            return deleted;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String resourceURI, String expectedETag)
+    {
+        ReentrantLock lock = lockFor(resourceURI);
+        lock.lock();
+
+        try
+        {
+            boolean deleted = db.deleteIfMatch(resourceURI, expectedETag);
+
+            if(deleted)
+            {
+                changeLog.append(resourceURI, null);
+            }
+
+            return deleted;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> resourceURIs)
+    {
+        return db.getAll(resourceURIs);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> resources)
+    {
+        List<String> resourceURIs = new ArrayList<String>();
+
+        for(IResource resource : resources)
+        {
+            resourceURIs.add(resource.getURI());
+        }
+
+        List<ReentrantLock> locked = lockAll(resourceURIs);
+
+        try
+        {
+            db.putAll(resources);
+
+            for(IResource resource : resources)
+            {
+                changeLog.append(resource.getURI(), resource.getETag());
+            }
+        }
+        finally
+        {
+            unlockAll(locked);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> resourceURIs)
+    {
+        List<ReentrantLock> locked = lockAll(resourceURIs);
+
+        try
+        {
+            Set<String> deleted = db.deleteAll(resourceURIs);
+
+            for(String resourceURI : deleted)
+            {
+                changeLog.append(resourceURI, null);
+            }
+
+            return deleted;
+        }
+        finally
+        {
+            unlockAll(locked);
+        }
+    }
+
+}
@@ -0,0 +1,320 @@
+package storageInterface;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * GET su !changes di {@link StorageInterfaceServlet}: modifiche successive a since (o, senza since, da adesso) delle
+ * risorse il cui nome inizia con prefix,
+ * {@code <changes next="sequenza"><change sequence="..." uri="..." etag="..."/>...</changes>} (deleted="true" al
+ * posto dell'etag per le risorse eliminate). Con wait (ms) la risposta attende la prima modifica (long-poll).
+ * Con Accept: text/event-stream la risposta e' invece uno stream di Server-Sent Events (un evento "change" per
+ * modifica, con l'elemento change come dati e il numero di sequenza come id, cosi' che alla riconnessione
+ * il client prosegua con Last-Event-ID). Se le modifiche richieste non sono piu' conservate la risposta e' 410
+ * (o, su uno stream, un evento "reset"): il client deve rileggere le risorse e ricominciare senza since.
+ * In modalita' asincrona le attese non occupano thread: la richiesta prosegue (con continueWith() di
+ * {@link StorageInterfaceServlet}) quando {@link ChangeLog} la risveglia.
+ *
+ *
+ */
+public class ChangesHandler
+{
+    // intervallo (ms) tra due commenti inviati su uno stream senza modifiche, per accorgersi dei client disconnessi
+    private final static long changeStreamKeepAliveInterval = 15 * 1000;
+
+    // parametri di una GET su !changes
+    private final static String sinceParamName = "since";
+
+    private final static String prefixParamName = "prefix";
+
+    private final static String waitParamName = "wait";
+
+    private final static String eventStreamContentType = "text/event-stream";
+
+    private final static String lastEventIdHeaderName = "Last-Event-ID";
+
+    private final static String changesElementName = "changes";
+
+    private final static String changeElementName = "change";
+
+    private final static String sequenceAttributeName = "sequence";
+
+    private final static String deletedAttributeName = "deleted";
+
+    private final static String invalidChangesParameterMessage = sinceParamName + " and " + waitParamName + " must be integers";
+
+    private final static String changeLogDisabledMessage = "Change log is not enabled";
+
+    private final static String changesUnavailableMessage = "Changes since the requested sequence are no longer available";
+
+    private final StorageInterfaceServlet servlet;
+
+    private final ChangeLog changeLog;
+
+    private final long changeMaxWait;
+
+    private final long changeStreamDuration;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link ChangesHandler}.
+     * @param servlet la servlet, con cui proseguire le richieste al termine delle attese
+     * @param changeLog il registro delle modifiche, o {@code null} se e' disabilitato
+     * @param changeMaxWait attesa massima (ms) di una richiesta in long-poll
+     * @param changeStreamDuration durata massima (ms) di uno stream di eventi, dopo la quale il client si riconnette
+     */
+    public ChangesHandler(StorageInterfaceServlet servlet, ChangeLog changeLog, long changeMaxWait, long changeStreamDuration)
+    {
+        this.servlet = servlet;
+        this.changeLog = changeLog;
+        this.changeMaxWait = changeMaxWait;
+        this.changeStreamDuration = changeStreamDuration;
+    }
+
+
+    /**
+     * Invia le modifiche richieste, attendendo la prima se la richiesta lo chiede; in modalita' asincrona l'attesa
+     * non occupa un thread (la richiesta prosegue quando il registro la risveglia).
+     * @param req la richiesta
+     * @param resp la risposta
+     * @throws IOException se la risposta non puo' essere scritta
+     */
+    public void doGet(HttpServletRequest req, final HttpServletResponse resp)
+    throws IOException
+    {
+        if(changeLog == null)
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, changeLogDisabledMessage);
+            return;
+        }
+
+        int limit = StorageInterfaceServlet.getLimit(req);
+
+        if(limit <= 0)
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, StorageInterfaceServlet.invalidLimitMessage);
+            return;
+        }
+
+        String prefix = req.getParameter(prefixParamName);
+
+        if(prefix == null)
+        {
+            prefix = "";
+        }
+
+        String sinceParam = req.getHeader(lastEventIdHeaderName);
+
+        if(sinceParam == null)
+        {
+            sinceParam = req.getParameter(sinceParamName);
+        }
+
+        long since;
+        long wait;
+
+        try
+        {
+            since = sinceParam != null ? Long.parseLong(sinceParam) : changeLog.getLastSequence();
+            wait = Math.max(0, Math.min(StorageInterfaceServlet.getLongParameter(req, waitParamName, 0), changeMaxWait));
+        }
+        catch(NumberFormatException e)
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, invalidChangesParameterMessage);
+            return;
+        }
+
+        String acceptHeader = req.getHeader(StorageInterfaceServlet.acceptHeaderName);
+
+        if(acceptHeader != null && acceptHeader.contains(eventStreamContentType))
+        {
+            streamChanges(req, resp, prefix, since, limit);
+            return;
+        }
+
+        servlet.continueWith(req, changeLog.getChangesAsync(since, prefix, limit, wait), new StorageInterfaceServlet.Continuation<ChangeLog.Page>()
+        {
+            @Override
+            void resume(ChangeLog.Page page) throws IOException
+            {
+                writeChanges(resp, page);
+            }
+
+            @Override
+            void fail(RuntimeException e) throws IOException   // attesa interrotta: servlet in fase di chiusura
+            {
+                if(!resp.isCommitted())
+                {
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, StorageInterfaceServlet.serverBusyMessage);
+                }
+            }
+        });
+    }
+
+
+    private static void writeChanges(HttpServletResponse resp, ChangeLog.Page page) throws IOException
+    {
+        if(page == null)
+        {
+            resp.sendError(HttpServletResponse.SC_GONE, changesUnavailableMessage);
+            return;
+        }
+
+        resp.setContentType(StorageInterfaceServlet.xmlResponseContentType);
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setStatus(HttpServletResponse.SC_OK);
+
+        try
+        {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(resp.getWriter());
+
+            writer.writeStartDocument();
+            writer.writeStartElement(changesElementName);
+            writer.writeAttribute(StorageInterfaceServlet.nextAttributeName, Long.toString(page.getNextSequence()));
+
+            for(ChangeLog.Change change : page.getChanges())
+            {
+                writeChange(writer, change);
+            }
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+        }
+        catch(XMLStreamException e)
+        {
+            throw new IOException("Cannot write changes", e);
+        }
+    }
+
+
+    // stream di Server-Sent Events, fino a changeStreamDuration o alla disconnessione del client
+    private void streamChanges(HttpServletRequest req, HttpServletResponse resp, String prefix, long since, int limit)
+    throws IOException
+    {
+        resp.setContentType(eventStreamContentType + "; charset=UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setStatus(HttpServletResponse.SC_OK);
+
+        long deadline = System.currentTimeMillis() + changeStreamDuration;
+
+        if(StorageInterfaceServlet.isAsyncRequest(req))
+        {
+            awaitChanges(req, resp, prefix, since, limit, deadline);
+            return;
+        }
+
+        // modalita' sincrona: la richiesta occupa comunque un thread del container, che attende le modifiche
+        try
+        {
+            for(long remaining = changeStreamDuration; remaining > 0; remaining = deadline - System.currentTimeMillis())
+            {
+                ChangeLog.Page page = changeLog.getChanges(since, prefix, limit, Math.min(remaining, changeStreamKeepAliveInterval));
+
+                if(!writeEvents(resp.getWriter(), page))
+                {
+                    return;
+                }
+
+                since = page.getNextSequence();
+            }
+        }
+        catch(InterruptedException e)   // servlet in fase di chiusura
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // modalita' asincrona: ogni attesa (al piu' changeStreamKeepAliveInterval) e' una prosecuzione della richiesta
+    private void awaitChanges(final HttpServletRequest req, final HttpServletResponse resp, final String prefix, long since,
+                              final int limit, final long deadline)
+    throws IOException
+    {
+        long remaining = deadline - System.currentTimeMillis();
+
+        if(remaining <= 0)
+        {
+            return;
+        }
+
+        AsyncResult<ChangeLog.Page> result = changeLog.getChangesAsync(since, prefix, limit, Math.min(remaining, changeStreamKeepAliveInterval));
+
+        servlet.continueWith(req, result, new StorageInterfaceServlet.Continuation<ChangeLog.Page>()
+        {
+            @Override
+            void resume(ChangeLog.Page page) throws IOException
+            {
+                if(writeEvents(resp.getWriter(), page))
+                {
+                    awaitChanges(req, resp, prefix, page.getNextSequence(), limit, deadline);
+                }
+            }
+        });
+    }
+
+
+    // un evento per modifica (o un commento se non ce ne sono); false se lo stream e' terminato (le modifiche
+    // non sono piu' conservate, o il client si e' disconnesso)
+    private static boolean writeEvents(PrintWriter writer, ChangeLog.Page page) throws IOException
+    {
+        if(page == null)
+        {
+            writer.write("event: reset\ndata: " + changesUnavailableMessage + "\n\n");
+            writer.flush();
+            return false;
+        }
+
+        try
+        {
+            for(ChangeLog.Change change : page.getChanges())
+            {
+                StringWriter data = new StringWriter();
+
+                XMLStreamWriter dataWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(data);
+                writeChange(dataWriter, change);
+                dataWriter.flush();
+
+                writer.write("id: " + change.getSequence() + "\nevent: " + changeElementName + "\ndata: " + data + "\n\n");
+            }
+        }
+        catch(XMLStreamException e)
+        {
+            throw new IOException("Cannot write changes", e);
+        }
+
+        if(page.getChanges().isEmpty())
+        {
+            writer.write(": keep-alive\n\n");
+        }
+
+        writer.flush();
+
+        return !writer.checkError();   // altrimenti il client si e' disconnesso
+    }
+
+
+    private static void writeChange(XMLStreamWriter writer, ChangeLog.Change change) throws XMLStreamException
+    {
+        writer.writeEmptyElement(changeElementName);
+        writer.writeAttribute(sequenceAttributeName, Long.toString(change.getSequence()));
+        writer.writeAttribute(StorageInterfaceServlet.uriAttributeName, change.getURI());
+
+        if(change.getETag() != null)
+        {
+            writer.writeAttribute(StorageInterfaceServlet.etagAttributeName, change.getETag());
+        }
+        else
+        {
+            writer.writeAttribute(deletedAttributeName, "true");
+        }
+    }
+
+}
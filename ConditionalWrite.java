@@ -0,0 +1,266 @@
+package storageInterface;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scrittura o cancellazione di una risorsa, descritta come oggetto e con il suo esito: corrisponde ad una chiamata di
+ * {@link IDatabase#put(IResource)}, {@link IDatabase#putIfAbsent(IResource)}, {@link IDatabase#putIfMatch(IResource, String)}
+ * o {@link IDatabase#deleteIfMatch(String, String)}, cosi' che piu' scritture possano essere eseguite insieme
+ * (vedi {@link IBatchWriteDatabase}).
+ *
+ *
+ */
+public class ConditionalWrite
+{
+    private final static int putType = 1;
+
+    private final static int putIfAbsentType = 2;
+
+    private final static int putIfMatchType = 3;
+
+    private final static int deleteIfMatchType = 4;
+
+    private final int type;
+
+    private final String uri;
+
+    // null per una cancellazione
+    private final IResource resource;
+
+    private final String expectedETag;
+
+    // null finche' la scrittura non e' stata eseguita
+    private volatile Boolean applied;
+
+
+    private ConditionalWrite(int type, String uri, IResource resource, String expectedETag)
+    {
+        this.type = type;
+        this.uri = uri;
+        this.resource = resource;
+        this.expectedETag = expectedETag;
+    }
+
+
+    /**
+     * @param resource {@link IResource} da creare o aggiornare
+     * @return una scrittura incondizionata, come {@link IDatabase#put(IResource)}
+     */
+    public static ConditionalWrite put(IResource resource)
+    {
+        return new ConditionalWrite(putType, resource.getURI(), resource, null);
+    }
+
+
+    /**
+     * @param resource {@link IResource} da creare
+     * @return una creazione, come {@link IDatabase#putIfAbsent(IResource)}
+     */
+    public static ConditionalWrite putIfAbsent(IResource resource)
+    {
+        return new ConditionalWrite(putIfAbsentType, resource.getURI(), resource, null);
+    }
+
+
+    /**
+     * @param resource {@link IResource} da aggiornare
+     * @param expectedETag l'ETag che la risorsa deve avere perche' venga aggiornata
+     * @return un aggiornamento, come {@link IDatabase#putIfMatch(IResource, String)}
+     */
+    public static ConditionalWrite putIfMatch(IResource resource, String expectedETag)
+    {
+        return new ConditionalWrite(putIfMatchType, resource.getURI(), resource, expectedETag);
+    }
+
+
+    /**
+     * @param resourceURI URI della risorsa da eliminare
+     * @param expectedETag l'ETag che la risorsa deve avere perche' venga eliminata, o {@code null} per eliminarla
+     * qualunque sia il suo ETag
+     * @return una cancellazione, come {@link IDatabase#deleteIfMatch(String, String)}
+     */
+    public static ConditionalWrite deleteIfMatch(String resourceURI, String expectedETag)
+    {
+        return new ConditionalWrite(deleteIfMatchType, resourceURI, null, expectedETag);
+    }
+
+
+    /**
+     * @return l'URI della risorsa
+     */
+    public String getURI()
+    {
+        return uri;
+    }
+
+
+    /**
+     * @return la risorsa da scrivere, o {@code null} se la scrittura e' una cancellazione
+     */
+    public IResource getResource()
+    {
+        return resource;
+    }
+
+
+    /**
+     * @return {@code true} se la scrittura e' una cancellazione
+     */
+    public boolean isDelete()
+    {
+        return type == deleteIfMatchType;
+    }
+
+
+    /**
+     * @return {@code true} se l'esito della scrittura dipende dallo stato attuale della risorsa
+     */
+    public boolean isConditional()
+    {
+        return type != putType;
+    }
+
+
+    /**
+     * @param currentETag l'ETag attuale della risorsa, o {@code null} se non esiste
+     * @return {@code true} se la condizione della scrittura e' soddisfatta
+     */
+    public boolean isSatisfiedBy(String currentETag)
+    {
+        switch(type)
+        {
+            case putType:
+                return true;
+            case putIfAbsentType:
+                return currentETag == null;
+            case putIfMatchType:
+                return currentETag != null && currentETag.equals(expectedETag);
+            default:
+                return currentETag != null && (expectedETag == null || currentETag.equals(expectedETag));
+        }
+    }
+
+
+    /**
+     * Registra l'esito della scrittura.
+     * @param applied {@code true} se la scrittura e' stata applicata, {@code false} se la condizione non era soddisfatta
+     */
+    public void setApplied(boolean applied)
+    {
+        this.applied = applied;
+    }
+
+
+    /**
+     * Annulla l'esito registrato (e.g.: la transazione che aveva valutato la condizione non e' stata confermata).
+     */
+    public void reset()
+    {
+        applied = null;
+    }
+
+
+    /**
+     * @return {@code true} se la scrittura e' stata eseguita (applicata o meno)
+     */
+    public boolean isExecuted()
+    {
+        return applied != null;
+    }
+
+
+    /**
+     * @return {@code true} se la scrittura e' stata eseguita ed applicata
+     */
+    public boolean isApplied()
+    {
+        return Boolean.TRUE.equals(applied);
+    }
+
+
+    /**
+     * @return l'esito come lo restituirebbe il metodo corrispondente di {@link IDatabase}: {@code null} per una
+     * scrittura incondizionata, l'ETag (o {@code null}) per una scrittura condizionale, un {@link Boolean} per
+     * una cancellazione
+     */
+    public Object getResult()
+    {
+        switch(type)
+        {
+            case putType:
+                return null;
+            case deleteIfMatchType:
+                return isApplied();
+            default:
+                return isApplied() ? resource.getETag() : null;
+        }
+    }
+
+
+    /**
+     * Esegue la scrittura, da sola, con il metodo corrispondente di {@code db}, e ne registra l'esito.
+     * @param db il database su cui eseguire la scrittura
+     */
+    public void executeOn(IDatabase db)
+    {
+        switch(type)
+        {
+            case putType:
+                db.put(resource);
+                setApplied(true);
+                break;
+            case putIfAbsentType:
+                setApplied(db.putIfAbsent(resource) != null);
+                break;
+            case putIfMatchType:
+                setApplied(db.putIfMatch(resource, expectedETag) != null);
+                break;
+            default:
+                setApplied(db.deleteIfMatch(uri, expectedETag));
+        }
+    }
+
+
+    /**
+     * Valuta le condizioni delle scritture nell'ordine, ciascuna sullo stato lasciato dalle precedenti, e ne registra
+     * l'esito. Per eseguire le scritture basta poi applicare, per ogni URI, solo l'ultima scrittura applicata.
+     * @param writes le scritture da valutare
+     * @param currentETags URI -> ETag attuale delle risorse coinvolte (le risorse che non esistono sono assenti)
+     * @return URI -> ultima scrittura applicata (una scrittura o una cancellazione), nell'ordine delle scritture;
+     * gli URI senza scritture applicate sono assenti
+     */
+    public static Map<String, ConditionalWrite> evaluate(List<ConditionalWrite> writes, Map<String, String> currentETags)
+    {
+        Map<String, String> eTags = new LinkedHashMap<String, String>(currentETags);
+
+        Map<String, ConditionalWrite> finalWrites = new LinkedHashMap<String, ConditionalWrite>();
+
+        for(ConditionalWrite write : writes)
+        {
+            boolean satisfied = write.isSatisfiedBy(eTags.get(write.uri));
+
+            write.setApplied(satisfied);
+
+            if(!satisfied)
+            {
+                continue;
+            }
+
+            if(write.isDelete())
+            {
+                eTags.remove(write.uri);
+            }
+            else
+            {
+                eTags.put(write.uri, write.resource.getETag());
+            }
+
+            finalWrites.put(write.uri, write);
+        }
+
+        return finalWrites;
+    }
+
+}
@@ -0,0 +1,175 @@
+package storageInterface;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Scrive nelle risposte di {@link StorageInterfaceServlet} il contenuto di una risorsa, compresso per i client
+ * che accettano gzip, o una sua porzione, misurando il tempo di scrittura e i byte inviati.
+ *
+ *
+ */
+public class ContentWriter
+{
+    private final static String acceptEncodingHeaderName = "Accept-Encoding";
+
+    private final static String contentEncodingHeaderName = "Content-Encoding";
+
+    private final static String varyHeaderName = "Vary";
+
+    private final static String contentRangeHeaderName = "Content-Range";
+
+    // content coding con cui viene inviato il contenuto compresso
+    private final static String gzipContentCoding = "gzip";
+
+    private final Histogram responseWriteHistogram;
+
+    private final AtomicLong responseContentBytes;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link ContentWriter}.
+     * @param responseWriteHistogram istogramma dei tempi di scrittura delle risposte
+     * @param responseContentBytes contatore dei byte di contenuto inviati
+     */
+    public ContentWriter(Histogram responseWriteHistogram, AtomicLong responseContentBytes)
+    {
+        this.responseWriteHistogram = responseWriteHistogram;
+        this.responseContentBytes = responseContentBytes;
+    }
+
+
+    /**
+     * Scrive i byte UTF-8 del contenuto direttamente sull'output stream, senza passare per un Writer;
+     * ai client che accettano gzip viene inviato il contenuto compresso in scrittura, senza ricomprimerlo
+     * (con l'ETag seguito dal suffisso "-gzip": le due rappresentazioni sono distinte anche dal Vary).
+     * @param req la richiesta
+     * @param resp la risposta
+     * @param siNode la risorsa da inviare
+     * @param eTag l'ETag del contenuto non compresso
+     * @throws IOException se la risposta non puo' essere scritta
+     */
+    public void writeContent(HttpServletRequest req, HttpServletResponse resp, IResource siNode, String eTag) throws IOException
+    {
+        resp.setHeader(varyHeaderName, acceptEncodingHeaderName);
+
+        byte[] contentBytes = null;
+
+        if(isGzipAccepted(req))
+        {
+            contentBytes = siNode.getGzippedContent();
+        }
+
+        if(contentBytes != null)
+        {
+            resp.setHeader(contentEncodingHeaderName, gzipContentCoding);
+            resp.setHeader(StorageInterfaceServlet.etagHeaderName, eTag + StorageInterfaceServlet.gzipETagSuffix);
+        }
+        else   // contenuto non compresso, o client che non accetta gzip: viene decompresso solo in questo caso
+        {
+            contentBytes = siNode.getContentBytes();
+            resp.setHeader(StorageInterfaceServlet.etagHeaderName, eTag);
+        }
+
+        writeBytes(resp, contentBytes);
+    }
+
+
+    /**
+     * Scrive una risposta 206 con la porzione del contenuto richiesta, o 416 se la porzione e' oltre la fine del
+     * contenuto (le porzioni non vengono compresse: Content-Range si riferisce ai byte non compressi).
+     * @param resp la risposta
+     * @param range la porzione da inviare
+     * @throws IOException se la risposta non puo' essere scritta
+     */
+    public void writeRange(HttpServletResponse resp, ResourceRange range) throws IOException
+    {
+        byte[] rangeBytes = range.getBytes();
+
+        resp.setHeader(StorageInterfaceServlet.etagHeaderName, range.getETag());
+        resp.setHeader(StorageInterfaceServlet.acceptRangesHeaderName, StorageInterfaceServlet.bytesRangeUnit);
+
+        if(rangeBytes.length == 0)
+        {
+            resp.setHeader(contentRangeHeaderName, StorageInterfaceServlet.bytesRangeUnit + " */" + range.getTotalLength());
+            resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        long lastBytePosition = range.getOffset() + rangeBytes.length - 1;
+
+        resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        resp.setHeader(contentRangeHeaderName, StorageInterfaceServlet.bytesRangeUnit + " " + range.getOffset() + "-" + lastBytePosition
+                                               + "/" + range.getTotalLength());
+        writeBytes(resp, rangeBytes);
+    }
+
+
+    private void writeBytes(HttpServletResponse resp, byte[] bytes) throws IOException
+    {
+        long startTime = System.nanoTime();
+
+        resp.setContentType(StorageInterfaceServlet.xmlResponseContentType);
+        resp.setContentLength(bytes.length);
+        resp.getOutputStream().write(bytes);
+
+        responseWriteHistogram.record(System.nanoTime() - startTime);
+        responseContentBytes.addAndGet(bytes.length);
+    }
+
+
+    // Accept-Encoding e' una lista di content coding separati da virgole, ciascuno con un eventuale peso (q):
+    // gzip e' accettato se compare (o compare "*") con peso diverso da 0
+    private static boolean isGzipAccepted(HttpServletRequest req)
+    {
+        String acceptEncodingHeader = req.getHeader(acceptEncodingHeaderName);
+
+        if(acceptEncodingHeader == null)
+        {
+            return false;
+        }
+
+        boolean wildcardAccepted = false;
+
+        for(String coding : acceptEncodingHeader.split(","))
+        {
+            String[] codingParts = coding.split(";");
+            String codingName = codingParts[0].trim().toLowerCase();
+
+            boolean accepted = true;
+
+            for(int i = 1; i < codingParts.length; i++)
+            {
+                String parameter = codingParts[i].trim();
+
+                if(parameter.startsWith("q="))
+                {
+                    try
+                    {
+                        accepted = Double.parseDouble(parameter.substring(2).trim()) > 0;
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        accepted = false;
+                    }
+                }
+            }
+
+            if(codingName.equals(gzipContentCoding) || codingName.equals("x-gzip"))
+            {
+                return accepted;   // un gzip esplicito prevale su "*"
+            }
+
+            if(codingName.equals("*"))
+            {
+                wildcardAccepted = accepted;
+            }
+        }
+
+        return wildcardAccepted;
+    }
+
+}
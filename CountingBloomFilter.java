@@ -0,0 +1,210 @@
+package storageInterface;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counting Bloom filter di stringhe: indica se una stringa e' stata sicuramente rimossa (o mai aggiunta), oppure
+ * se potrebbe essere presente (con una probabilita' di falso positivo che dipende dal numero di stringhe presenti).
+ * Ogni posizione del filtro e' un contatore di 4 bit (16 per {@code long}), aggiornato senza lock:
+ * un contatore arrivato al massimo non viene piu' decrementato, per non rischiare falsi negativi.
+ * <p>
+ * Aggiungere la stessa stringa piu' volte di quante venga rimossa causa solo falsi positivi; rimuovere una stringa
+ * che non e' stata aggiunta puo' invece causare falsi negativi, e deve essere evitato da chi usa il filtro.
+ *
+ *
+ */
+public class CountingBloomFilter
+{
+    private final AtomicLongArray counters;
+
+    // numero di contatori e di contatori per stringa
+    private final int size;
+
+    private final int hashCount;
+
+    // stringhe aggiunte meno stringhe rimosse
+    private final AtomicLong count = new AtomicLong();
+
+    private final static int counterBits = 4;
+
+    private final static int countersPerLong = Long.SIZE / counterBits;
+
+    private final static long maxCounter = (1L << counterBits) - 1;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link CountingBloomFilter} dimensionato per {@code expectedEntries} stringhe
+     * con probabilita' di falso positivo {@code falsePositiveRate}.
+     * @param expectedEntries numero previsto di stringhe presenti
+     * @param falsePositiveRate probabilita' di falso positivo con {@code expectedEntries} stringhe (tra 0 e 1, esclusi)
+     */
+    public CountingBloomFilter(long expectedEntries, double falsePositiveRate)
+    {
+        if(expectedEntries <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+        {
+            throw new IllegalArgumentException("Invalid Bloom filter parameters: " + expectedEntries + ", " + falsePositiveRate);
+        }
+
+        long optimalSize = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+
+        size = (int) Math.min(Math.max(optimalSize, countersPerLong), (long) Integer.MAX_VALUE - countersPerLong);
+        hashCount = (int) Math.max(1, Math.round((double) size / expectedEntries * Math.log(2)));
+        counters = new AtomicLongArray((size + countersPerLong - 1) / countersPerLong);
+    }
+
+
+    /**
+     * Aggiunge una stringa al filtro.
+     * @param key la stringa
+     */
+    public void add(String key)
+    {
+        long hash = hash(key);
+
+        for(int i = 0; i < hashCount; i++)
+        {
+            update(index(hash, i), 1);
+        }
+
+        count.incrementAndGet();
+    }
+
+
+    /**
+     * Rimuove dal filtro una stringa aggiunta in precedenza.
+     * @param key la stringa
+     */
+    public void remove(String key)
+    {
+        long hash = hash(key);
+
+        for(int i = 0; i < hashCount; i++)
+        {
+            update(index(hash, i), -1);
+        }
+
+        count.decrementAndGet();
+    }
+
+
+    /**
+     * @param key la stringa
+     * @return {@code false} se la stringa sicuramente non e' presente nel filtro, {@code true} se potrebbe esserlo
+     */
+    public boolean mightContain(String key)
+    {
+        long hash = hash(key);
+
+        for(int i = 0; i < hashCount; i++)
+        {
+            if(get(index(hash, i)) == 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @return numero di stringhe presenti (aggiunte meno rimosse)
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+
+    /**
+     * @return occupazione di memoria dei contatori, in byte
+     */
+    public long sizeInBytes()
+    {
+        return (long) counters.length() * Long.SIZE / Byte.SIZE;
+    }
+
+
+    /**
+     * @return probabilita' stimata di falso positivo, con il numero di stringhe attualmente presenti
+     */
+    public double getFalsePositiveRate()
+    {
+        double entries = Math.max(0, count.get());
+
+        return Math.pow(1 - Math.exp(-hashCount * entries / size), hashCount);
+    }
+
+
+    private int get(int index)
+    {
+        return (int) ((counters.get(index / countersPerLong) >>> shift(index)) & maxCounter);
+    }
+
+
+    // incrementa (delta = 1) o decrementa (delta = -1) il contatore, se non e' al massimo (ne' a 0)
+    private void update(int index, int delta)
+    {
+        int word = index / countersPerLong;
+        int shift = shift(index);
+
+        while(true)
+        {
+            long value = counters.get(word);
+            long counter = (value >>> shift) & maxCounter;
+
+            if(counter == maxCounter || counter == 0 && delta < 0)
+            {
+                return;
+            }
+
+            long newValue = value + ((long) delta << shift);
+
+            if(counters.compareAndSet(word, value, newValue))
+            {
+                return;
+            }
+        }
+    }
+
+
+    private static int shift(int index)
+    {
+        return (index % countersPerLong) * counterBits;
+    }
+
+
+    // double hashing: l'i-esimo contatore e' h1 + i * h2
+    private int index(long hash, int i)
+    {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        int combined = h1 + i * h2;
+
+        return (combined & Integer.MAX_VALUE) % size;
+    }
+
+
+    // FNV-1a a 64 bit, con il mescolamento finale di MurmurHash3
+    private static long hash(String key)
+    {
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < key.length(); i++)
+        {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+}
@@ -0,0 +1,21 @@
+package storageInterface;
+
+/**
+ * Eccezione lanciata da un {@link IDatabase} quando fallisce l'accesso al supporto su cui memorizza le risorse
+ * (e.g.: un errore di I/O su disco).
+ *
+ *
+ */
+@SuppressWarnings("serial")
+public class DatabaseException extends RuntimeException
+{
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link DatabaseException}.
+     * @param message descrizione dell'errore
+     * @param cause l'eccezione che ha causato l'errore
+     */
+    public DatabaseException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,975 @@
+package storageInterface;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Database di {@link StorageInterfaceServlet}, costruito in base agli init-param: il backend (o i suoi shard) e i
+ * decoratori che lo avvolgono, dal piu' interno al piu' esterno group commit, misura degli accessi, filtro delle
+ * risorse esistenti, versionamento, registro delle modifiche, letture unite e cache.
+ * Avvia le attivita' in background del backend (aggiunta degli shard, costruzione del filtro), ne registra le
+ * metriche e, con {@link #close()}, lo salva e lo chiude.
+ *
+ *
+ */
+public class DatabaseStack
+{
+    // init-param: tipo di database ("datastore", "memory" oppure "log")
+    private final static String databaseParamName = "database";
+
+    private final static String datastoreDatabaseName = "datastore";
+
+    private final static String inMemoryDatabaseName = "memory";
+
+    private final static String logStructuredDatabaseName = "log";
+
+    // init-param del database su log: cartella dei segmenti
+    private final static String logDirectoryParamName = "logDirectory";
+
+    private final static String defaultLogDirectory = "WEB-INF/data";
+
+    // init-param del database in memoria: limiti e file di snapshot (ripristinato alla costruzione, salvato in close())
+    private final static String maxEntriesParamName = "maxEntries";
+
+    private final static String maxBytesParamName = "maxBytes";
+
+    private final static String snapshotFileParamName = "snapshotFile";
+
+    // init-param: numero di shard (database dello stesso tipo tra cui vengono distribuite le risorse, solo per i
+    // database "memory" e "log") e numero di shard gia' esistenti, se minore (gli shard mancanti vengono aggiunti
+    // in background, spostandovi le risorse), punti di ogni shard sull'anello dell'hashing consistente
+    private final static String shardsParamName = "shards";
+
+    private final static String previousShardsParamName = "previousShards";
+
+    private final static String shardVirtualNodesParamName = "shardVirtualNodes";
+
+    private final static int defaultShardVirtualNodes = 128;
+
+    // thread per shard che eseguono in parallelo le operazioni su piu' shard
+    private final static int shardThreadsPerShard = 4;
+
+    // nome dello shard i-esimo (anche sottocartella del database su log e suffisso del file di snapshot)
+    private final static String shardNamePrefix = "shard-";
+
+    // stato dell'aggiunta di uno shard oltre previousShards, salvato accanto ai suoi dati (vedi getShardStateFile()):
+    // "adding" da prima che lo shard entri nell'anello, "added" quando le risorse sono state spostate. All'avvio uno
+    // shard "added" e' gia' nell'anello, e l'aggiunta di uno shard "adding" riprende (prima di servire le richieste,
+    // che altrimenti non troverebbero le risorse gia' spostate)
+    private final static String shardAddingState = "adding";
+
+    private final static String shardAddedState = "added";
+
+    private final static String shardStateFileName = "shard.state";
+
+    private final static Charset shardStateCharset = Charset.forName("UTF-8");
+
+    // init-param del group commit: attivazione ("true"), scritture per blocco, attesa massima (microsecondi)
+    // perche' un blocco si riempia, database scritto solo da questa istanza (predefinito: "true" tranne che per il Datastore)
+    private final static String groupCommitParamName = "groupCommit";
+
+    private final static String groupCommitMaxBatchParamName = "groupCommitMaxBatch";
+
+    private final static String groupCommitMaxDelayParamName = "groupCommitMaxDelay";
+
+    private final static String groupCommitExclusiveParamName = "groupCommitExclusive";
+
+    private final static int defaultGroupCommitMaxBatch = 100;
+
+    // init-param del filtro: numero previsto di risorse (se assente o 0 il filtro e' disabilitato) e probabilita'
+    // di falso positivo
+    private final static String bloomFilterExpectedEntriesParamName = "bloomFilterExpectedEntries";
+
+    private final static String bloomFilterFalsePositiveRateParamName = "bloomFilterFalsePositiveRate";
+
+    private final static double defaultBloomFilterFalsePositiveRate = 0.01;
+
+    // init-param del filtro con il Datastore, scritto anche dalle altre istanze: per quanto tempo (ms) dopo la sua
+    // creazione una risorsa creata da un'altra istanza puo' risultare inesistente; il filtro viene ricostruito
+    // ogni meta' di questo intervallo
+    private final static String bloomFilterMaxStalenessParamName = "bloomFilterMaxStaleness";
+
+    private final static long defaultBloomFilterMaxStaleness = 10 * 60 * 1000;
+
+    // risorse lette con ogni accesso al database durante la costruzione del filtro
+    private final static int bloomFilterRebuildPageSize = 1000;
+
+    // init-param delle letture unite: attivazione ("true")
+    private final static String singleFlightParamName = "singleFlight";
+
+    // init-param della cache: dimensione in byte (se assente o 0 la cache e' disabilitata) e TTL in millisecondi
+    private final static String cacheSizeParamName = "cacheSize";
+
+    private final static String cacheTimeToLiveParamName = "cacheTimeToLive";
+
+    // init-param del versionamento: attivazione ("true"), versioni conservate per risorsa, eta' massima (ms)
+    // delle versioni, ogni quante versioni archiviarne una completa
+    private final static String versioningParamName = "versioning";
+
+    private final static String maxVersionsParamName = "maxVersions";
+
+    private final static String versionMaxAgeParamName = "versionMaxAge";
+
+    private final static String versionSnapshotIntervalParamName = "versionSnapshotInterval";
+
+    private final static int defaultMaxVersions = 100;
+
+    private final static int defaultVersionSnapshotInterval = 16;
+
+    // init-param del Datastore: contenuti uguali di risorse diverse archiviati una sola volta ("true")
+    private final static String deduplicateContentParamName = "deduplicateContent";
+
+    // tipo delle entity del Datastore e sottocartella del database su log delle versioni archiviate
+    private final static String versionEntityKind = "SInodeVersion";
+
+    private final static String versionChunkEntityKind = "SInodeVersionChunk";
+
+    private final static String versionsDirectoryName = "versions";
+
+    // init-param del registro delle modifiche: numero di modifiche conservate (se assente o 0 il registro e' disabilitato)
+    private final static String changeLogSizeParamName = "changeLogSize";
+
+    // intervallo (ms) tra due letture delle modifiche delle altre istanze (solo con il Datastore)
+    private final static String changeLogPollIntervalParamName = "changeLogPollInterval";
+
+    private final static long defaultChangeLogPollInterval = 1000;
+
+    // tipo delle entity del Datastore delle modifiche registrate
+    private final static String changeEntityKind = "SInodeChange";
+
+    private final static String changeChunkEntityKind = "SInodeChangeChunk";
+
+    private final ServletConfig config;
+
+    // database completo, con tutti i decoratori abilitati
+    private IDatabase db;
+
+    // database effettivo, senza i decoratori che lo avvolgono in db
+    private IDatabase backendDb;
+
+    private ExecutorService shardExecutor;
+
+    // tutti gli shard creati, per nome (anche quelli non ancora aggiunti), vuoto se non ci sono shard
+    private final Map<String, IDatabase> shardDatabases = new LinkedHashMap<String, IDatabase>();
+
+    // scritture raggruppate (null se il group commit e' disabilitato)
+    private GroupCommitDatabase groupCommitDb;
+
+    // backendDb (o groupCommitDb) con la misura delle latenze e degli accessi per richiesta
+    private InstrumentedDatabase instrumentedDb;
+
+    // filtro delle risorse esistenti (null se disabilitato)
+    private BloomFilterDatabase bloomFilterDb;
+
+    // costruisce (ed eventualmente ricostruisce periodicamente) il filtro
+    private ScheduledExecutorService bloomFilterRebuilder;
+
+    // versioni precedenti delle risorse (null se il versionamento e' disabilitato)
+    private VersioningDatabase versioningDb;
+
+    // database in cui sono archiviate le versioni precedenti, dello stesso tipo di backendDb
+    private IDatabase versionsBackendDb;
+
+    // registro delle modifiche (null se disabilitato)
+    private ChangeLog changeLog;
+
+    // letture concorrenti della stessa risorsa unite in una sola (null se disabilitato)
+    private SingleFlightDatabase singleFlightDb;
+
+    // cache delle risorse (null se disabilitata)
+    private CachingDatabase cachingDb;
+
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link DatabaseStack}, costruendo il database in base agli init-param di
+     * {@code config}, e registra in {@code metrics} le metriche del database: latenze delle operazioni sul backend
+     * e contatori dei decoratori abilitati.
+     * @param config la configurazione della servlet
+     * @param metrics le metriche in cui registrare quelle del database
+     * @throws ServletException se gli init-param non sono validi o il backend non puo' essere aperto
+     */
+    public DatabaseStack(ServletConfig config, Metrics metrics) throws ServletException
+    {
+        this.config = config;
+
+        int shardCount = (int) getLongInitParameter(config, shardsParamName, 1);
+
+        backendDb = shardCount > 1 ? createShardedDatabase(shardCount) : createDatabase(null);
+        db = backendDb;
+
+        // sotto InstrumentedDatabase: ogni richiesta conta la propria scrittura come un solo accesso al database
+        if(Boolean.parseBoolean(config.getInitParameter(groupCommitParamName)))
+        {
+            String exclusiveParam = config.getInitParameter(groupCommitExclusiveParamName);
+            boolean exclusive = exclusiveParam != null ? Boolean.parseBoolean(exclusiveParam) : !(backendDb instanceof DatastoreDatabase);
+
+            groupCommitDb = new GroupCommitDatabase(db, (int) getLongInitParameter(config, groupCommitMaxBatchParamName, defaultGroupCommitMaxBatch),
+                                                    getLongInitParameter(config, groupCommitMaxDelayParamName, 0), exclusive);
+            db = groupCommitDb;
+        }
+
+        instrumentedDb = new InstrumentedDatabase(db, metrics);
+        db = instrumentedDb;
+
+        // sopra InstrumentedDatabase: le operazioni risolte dal filtro non contano come accessi al database
+        long bloomFilterExpectedEntries = getLongInitParameter(config, bloomFilterExpectedEntriesParamName, 0);
+
+        if(bloomFilterExpectedEntries > 0)
+        {
+            String falsePositiveRateParam = config.getInitParameter(bloomFilterFalsePositiveRateParamName);
+
+            // il Datastore e' condiviso da tutte le istanze: le risorse create dalle altre entrano nel filtro
+            // solo quando viene ricostruito
+            long maxStaleness = backendDb instanceof DatastoreDatabase
+                                ? Math.max(2, getLongInitParameter(config, bloomFilterMaxStalenessParamName, defaultBloomFilterMaxStaleness))
+                                : -1;
+
+            bloomFilterDb = new BloomFilterDatabase(db, bloomFilterExpectedEntries,
+                                                    falsePositiveRateParam != null ? Double.parseDouble(falsePositiveRateParam)
+                                                                                   : defaultBloomFilterFalsePositiveRate,
+                                                    maxStaleness);
+            db = bloomFilterDb;
+
+            startBloomFilterRebuild(maxStaleness / 2);
+        }
+
+        if(Boolean.parseBoolean(config.getInitParameter(versioningParamName)))
+        {
+            versionsBackendDb = createVersionsDatabase();
+            versioningDb = new VersioningDatabase(db, versionsBackendDb,
+                                                  (int) getLongInitParameter(config, maxVersionsParamName, defaultMaxVersions),
+                                                  getLongInitParameter(config, versionMaxAgeParamName, -1),
+                                                  (int) getLongInitParameter(config, versionSnapshotIntervalParamName, defaultVersionSnapshotInterval));
+            db = versioningDb;
+        }
+
+        int changeLogSize = (int) getLongInitParameter(config, changeLogSizeParamName, 0);
+
+        if(changeLogSize > 0)
+        {
+            // il Datastore e' condiviso da tutte le istanze: il registro deve contenere anche le loro modifiche
+            if(backendDb instanceof DatastoreDatabase)
+            {
+                changeLog = new SharedChangeLog(changeLogSize, new DatastoreDatabase(changeEntityKind, changeChunkEntityKind),
+                                                getLongInitParameter(config, changeLogPollIntervalParamName, defaultChangeLogPollInterval));
+            }
+            else
+            {
+                changeLog = new ChangeLog(changeLogSize);
+            }
+
+            db = new ChangeLogDatabase(db, changeLog);
+        }
+
+        // sotto la cache: dopo la scadenza di una risorsa molto richiesta, una sola lettura arriva al database
+        if(Boolean.parseBoolean(config.getInitParameter(singleFlightParamName)))
+        {
+            singleFlightDb = new SingleFlightDatabase(db);
+            db = singleFlightDb;
+        }
+
+        long cacheSize = getLongInitParameter(config, cacheSizeParamName, 0);
+
+        if(cacheSize > 0)
+        {
+            cachingDb = new CachingDatabase(db, cacheSize, getLongInitParameter(config, cacheTimeToLiveParamName, -1));
+            db = cachingDb;
+        }
+
+        registerMetrics(metrics);
+    }
+
+
+    /**
+     * @return il database completo, con tutti i decoratori abilitati
+     */
+    public IDatabase getDatabase()
+    {
+        return db;
+    }
+
+
+    /**
+     * @return il database effettivo (il backend, o l'insieme dei suoi shard), senza decoratori
+     */
+    public IDatabase getBackendDatabase()
+    {
+        return backendDb;
+    }
+
+
+    /**
+     * @return il database che misura gli accessi al backend (vedi {@link InstrumentedDatabase#getRoundTrips()})
+     */
+    public InstrumentedDatabase getInstrumentedDatabase()
+    {
+        return instrumentedDb;
+    }
+
+
+    /**
+     * @return il database delle versioni precedenti, o {@code null} se il versionamento e' disabilitato
+     */
+    public VersioningDatabase getVersioningDatabase()
+    {
+        return versioningDb;
+    }
+
+
+    /**
+     * @return il registro delle modifiche, o {@code null} se e' disabilitato
+     */
+    public ChangeLog getChangeLog()
+    {
+        return changeLog;
+    }
+
+
+    private void registerMetrics(Metrics metrics)
+    {
+        final List<LogStructuredDatabase> logStructuredDbs = getLogStructuredDatabases();
+
+        if(!logStructuredDbs.isEmpty())
+        {
+            metrics.counter("storage_interface_log_compaction_failures_total", "Failed compactions of log segments", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    long failures = 0;
+
+                    for(LogStructuredDatabase logStructuredDb : logStructuredDbs)
+                    {
+                        failures += logStructuredDb.getCompactionFailureCount();
+                    }
+
+                    return failures;
+                }
+            });
+        }
+
+        if(groupCommitDb != null)
+        {
+            metrics.counter("storage_interface_group_commit_batches_total", "Write batches committed by the group commit", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return groupCommitDb.getBatchCount();
+                }
+            });
+
+            metrics.counter("storage_interface_group_commit_writes_total", "Writes committed in batches by the group commit", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return groupCommitDb.getWriteCount();
+                }
+            });
+        }
+
+        if(bloomFilterDb != null)
+        {
+            metrics.counter("storage_interface_bloom_filter_negatives_total", "Operations on nonexistent resources answered by the Bloom filter", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return bloomFilterDb.getNegativeCount();
+                }
+            });
+
+            metrics.counter("storage_interface_bloom_filter_false_positives_total", "Reads of nonexistent resources not excluded by the Bloom filter", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return bloomFilterDb.getFalsePositiveCount();
+                }
+            });
+
+            metrics.gauge("storage_interface_bloom_filter_bytes", "Memory used by the Bloom filter", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return bloomFilterDb.getFilter().sizeInBytes();
+                }
+            });
+
+            metrics.gauge("storage_interface_bloom_filter_resources", "Resources counted in the Bloom filter", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return bloomFilterDb.getFilter().getCount();
+                }
+            });
+
+            // i gauge sono interi: probabilita' in parti per milione
+            metrics.gauge("storage_interface_bloom_filter_false_positive_ppm", "Estimated false positive rate of the Bloom filter, in parts per million", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return Math.round(bloomFilterDb.getFilter().getFalsePositiveRate() * 1e6);
+                }
+            });
+        }
+
+        if(singleFlightDb != null)
+        {
+            metrics.counter("storage_interface_single_flight_loads_total", "Resource reads that reached the storage backend", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return singleFlightDb.getLoadCount();
+                }
+            });
+
+            metrics.counter("storage_interface_single_flight_shared_total", "Resource reads that shared an in-flight read of the same URI", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return singleFlightDb.getSharedCount();
+                }
+            });
+        }
+
+        if(cachingDb != null)
+        {
+            metrics.counter("storage_interface_cache_hits_total", "Reads served by the cache", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return cachingDb.getHitCount();
+                }
+            });
+
+            metrics.counter("storage_interface_cache_misses_total", "Reads not served by the cache", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return cachingDb.getMissCount();
+                }
+            });
+
+            metrics.counter("storage_interface_cache_evictions_total", "Resources evicted from the cache", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return cachingDb.getEvictionCount();
+                }
+            });
+
+            metrics.gauge("storage_interface_cache_bytes", "Estimated size of the cached resources", new Metrics.Value()
+            {
+                @Override
+                public long get()
+                {
+                    return cachingDb.sizeInBytes();
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Termina le attese del registro delle modifiche e la ricostruzione del filtro, completa le scritture raggruppate
+     * in attesa, salva lo snapshot del database in memoria e chiude quello su log (e gli shard). Gli errori vengono
+     * registrati nel log della servlet.
+     */
+    public void close()
+    {
+        if(changeLog != null)   // termina le attese dei client
+        {
+            changeLog.close();
+        }
+
+        if(bloomFilterRebuilder != null)
+        {
+            bloomFilterRebuilder.shutdownNow();
+        }
+
+        if(groupCommitDb != null)
+        {
+            try
+            {
+                groupCommitDb.shutdown();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if(shardExecutor != null)
+        {
+            shardExecutor.shutdown();
+        }
+
+        if(shardDatabases.isEmpty())
+        {
+            saveAndClose(backendDb, null);
+        }
+
+        for(Map.Entry<String, IDatabase> shard : shardDatabases.entrySet())
+        {
+            saveAndClose(shard.getValue(), shard.getKey());
+        }
+
+        closeLogStructuredDatabase(versionsBackendDb);
+    }
+
+
+    // salva lo snapshot del database in memoria o chiude quello su log (shardName e' null se non ci sono shard)
+    private void saveAndClose(IDatabase database, String shardName)
+    {
+        File snapshotFile = getSnapshotFile(shardName);
+
+        if(database instanceof InMemoryDatabase && snapshotFile != null)
+        {
+            try
+            {
+                ((InMemoryDatabase) database).snapshot(snapshotFile);
+            }
+            catch(IOException e)
+            {
+                log("Cannot save snapshot to " + snapshotFile, e);
+            }
+        }
+
+        closeLogStructuredDatabase(database);
+    }
+
+
+    // database su log in uso: il backend (o i suoi shard) e quello delle versioni
+    private List<LogStructuredDatabase> getLogStructuredDatabases()
+    {
+        List<IDatabase> databases = new ArrayList<IDatabase>(shardDatabases.values());
+
+        if(shardDatabases.isEmpty())
+        {
+            databases.add(backendDb);
+        }
+
+        databases.add(versionsBackendDb);
+
+        List<LogStructuredDatabase> logStructuredDbs = new ArrayList<LogStructuredDatabase>();
+
+        for(IDatabase database : databases)
+        {
+            if(database instanceof LogStructuredDatabase)
+            {
+                logStructuredDbs.add((LogStructuredDatabase) database);
+            }
+        }
+
+        return logStructuredDbs;
+    }
+
+
+    private void closeLogStructuredDatabase(IDatabase database)
+    {
+        if(database instanceof LogStructuredDatabase)
+        {
+            try
+            {
+                ((LogStructuredDatabase) database).close();
+            }
+            catch(IOException e)
+            {
+                log("Cannot close " + logStructuredDatabaseName + " database", e);
+            }
+        }
+    }
+
+
+    // shardName e' null se non ci sono shard
+    private IDatabase createDatabase(String shardName) throws ServletException
+    {
+        String databaseParam = config.getInitParameter(databaseParamName);
+
+        if(databaseParam == null || databaseParam.equals(datastoreDatabaseName))
+        {
+            if(shardName != null)   // il Datastore distribuisce gia' le entity per chiave
+            {
+                throw new ServletException(shardsParamName + " is not supported by the " + datastoreDatabaseName + " database");
+            }
+
+            return new DatastoreDatabase(Boolean.parseBoolean(config.getInitParameter(deduplicateContentParamName)));
+        }
+
+        if(databaseParam.equals(inMemoryDatabaseName))
+        {
+            long maxEntries = getLongInitParameter(config, maxEntriesParamName, -1);
+            long maxBytes = getLongInitParameter(config, maxBytesParamName, -1);
+
+            InMemoryDatabase inMemoryDatabase = new InMemoryDatabase(maxEntries, maxBytes);
+
+            File snapshotFile = getSnapshotFile(shardName);
+
+            if(snapshotFile != null && snapshotFile.exists())
+            {
+                try
+                {
+                    inMemoryDatabase.restore(snapshotFile);
+                }
+                catch(IOException e)
+                {
+                    throw new ServletException("Cannot restore snapshot from " + snapshotFile, e);
+                }
+            }
+
+            return inMemoryDatabase;
+        }
+
+        if(databaseParam.equals(logStructuredDatabaseName))
+        {
+            return openLogStructuredDatabase(shardName != null ? new File(getLogDirectory(), shardName) : getLogDirectory());
+        }
+
+        throw new ServletException("Unknown " + databaseParamName + ": " + databaseParam);
+    }
+
+
+    // gli shard mancanti (oltre previousShards) vengono aggiunti da un thread in background, mentre la servlet
+    // e' gia' in uso
+    private IDatabase createShardedDatabase(int shardCount) throws ServletException
+    {
+        int previousShardCount = (int) Math.min(getLongInitParameter(config, previousShardsParamName, shardCount), shardCount);
+
+        final Map<String, IDatabase> newShards = new LinkedHashMap<String, IDatabase>();
+        Map<String, IDatabase> shards = new LinkedHashMap<String, IDatabase>();
+
+        // shard la cui aggiunta era in corso all'arresto (al massimo uno: gli shard vengono aggiunti uno alla volta)
+        String resumedShardName = null;
+
+        for(int i = 0; i < shardCount; i++)
+        {
+            String shardName = shardNamePrefix + i;
+
+            IDatabase shard = createDatabase(shardName);
+
+            String shardState = (i < previousShardCount) ? shardAddedState : readShardState(shardName);
+
+            if(shardAddedState.equals(shardState))
+            {
+                shards.put(shardName, shard);
+            }
+            else
+            {
+                newShards.put(shardName, shard);
+
+                if(shardAddingState.equals(shardState))
+                {
+                    resumedShardName = shardName;
+                }
+            }
+        }
+
+        shardDatabases.putAll(shards);
+        shardDatabases.putAll(newShards);
+
+        shardExecutor = Executors.newFixedThreadPool(shardCount * shardThreadsPerShard,
+                                                     newDaemonThreadFactory("StorageInterface shard"));
+
+        final ShardedDatabase shardedDb = new ShardedDatabase(shards,
+                                                              (int) getLongInitParameter(config, shardVirtualNodesParamName, defaultShardVirtualNodes),
+                                                              shardExecutor);
+
+        final String resumedShard = resumedShardName;
+
+        if(resumedShard != null)
+        {
+            shardedDb.startAddShard(resumedShard, newShards.get(resumedShard));
+            log("Resuming the addition of shard " + resumedShard);
+        }
+
+        if(!newShards.isEmpty())
+        {
+            Thread rebalanceThread = newDaemonThreadFactory("StorageInterface rebalance").newThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(Map.Entry<String, IDatabase> shard : newShards.entrySet())
+                        {
+                            if(shard.getKey().equals(resumedShard))
+                            {
+                                shardedDb.rebalance();
+                            }
+                            else
+                            {
+                                writeShardState(shard.getKey(), shardAddingState);
+                                shardedDb.addShard(shard.getKey(), shard.getValue());
+                            }
+
+                            writeShardState(shard.getKey(), shardAddedState);
+                            log("Added shard " + shard.getKey());
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        log("Cannot add shards", e);
+                    }
+                    catch(RuntimeException e)
+                    {
+                        log("Cannot add shards", e);
+                    }
+                }
+            });
+
+            rebalanceThread.start();
+        }
+
+        return shardedDb;
+    }
+
+
+    // file con lo stato dell'aggiunta dello shard: nella sua cartella (database su log) o accanto al suo snapshot
+    // (database in memoria); null se lo shard non viene salvato (lo stato non servirebbe)
+    private File getShardStateFile(String shardName)
+    {
+        if(logStructuredDatabaseName.equals(config.getInitParameter(databaseParamName)))
+        {
+            return new File(new File(getLogDirectory(), shardName), shardStateFileName);
+        }
+
+        File snapshotFile = getSnapshotFile(shardName);
+
+        return snapshotFile != null ? new File(snapshotFile.getPath() + "." + shardStateFileName) : null;
+    }
+
+
+    // null se lo stato non e' stato salvato (shard mai aggiunto, o non salvato)
+    private String readShardState(String shardName) throws ServletException
+    {
+        File stateFile = getShardStateFile(shardName);
+
+        if(stateFile == null || !stateFile.exists())
+        {
+            return null;
+        }
+
+        try
+        {
+            BufferedReader stateReader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), shardStateCharset));
+
+            try
+            {
+                return stateReader.readLine();
+            }
+            finally
+            {
+                stateReader.close();
+            }
+        }
+        catch(IOException e)
+        {
+            throw new ServletException("Cannot read " + stateFile, e);
+        }
+    }
+
+
+    // scritto in un file temporaneo poi rinominato, cosi' un'interruzione non lascia uno stato incompleto
+    private void writeShardState(String shardName, String shardState) throws IOException
+    {
+        File stateFile = getShardStateFile(shardName);
+
+        if(stateFile == null)
+        {
+            return;
+        }
+
+        File temporaryFile = new File(stateFile.getPath() + ".tmp");
+
+        FileOutputStream stateOutput = new FileOutputStream(temporaryFile);
+
+        try
+        {
+            stateOutput.write((shardState + "\n").getBytes(shardStateCharset));
+            stateOutput.getFD().sync();
+        }
+        finally
+        {
+            stateOutput.close();
+        }
+
+        if(stateFile.exists() && !stateFile.delete())
+        {
+            throw new IOException("Cannot replace " + stateFile);
+        }
+
+        if(!temporaryFile.renameTo(stateFile))
+        {
+            throw new IOException("Cannot rename " + temporaryFile + " to " + stateFile);
+        }
+    }
+
+
+    // costruisce il filtro elencando le risorse, senza ritardare l'avvio (fino ad allora il filtro non viene usato),
+    // e se rebuildInterval e' positivo lo ricostruisce ogni rebuildInterval ms
+    private void startBloomFilterRebuild(final long rebuildInterval)
+    {
+        bloomFilterRebuilder = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("StorageInterface bloom filter"));
+
+        Runnable rebuild = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    long start = System.currentTimeMillis();
+
+                    bloomFilterDb.rebuild(bloomFilterRebuildPageSize);
+
+                    log("Bloom filter built with " + bloomFilterDb.getFilter().getCount() + " resources in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                }
+                catch(RuntimeException e)   // il filtro resta quello precedente, usato solo finche' e' abbastanza recente
+                {
+                    log(rebuildInterval > 0 ? "Cannot rebuild the Bloom filter, retrying in " + rebuildInterval + " ms"
+                                            : "Cannot build the Bloom filter, it will not be used", e);
+                }
+            }
+        };
+
+        if(rebuildInterval > 0)
+        {
+            bloomFilterRebuilder.scheduleWithFixedDelay(rebuild, 0, rebuildInterval, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            bloomFilterRebuilder.execute(rebuild);
+            bloomFilterRebuilder.shutdown();
+        }
+    }
+
+
+    // file di snapshot del database in memoria, o dello shard shardName; null se non e' configurato
+    private File getSnapshotFile(String shardName)
+    {
+        String snapshotFileParam = config.getInitParameter(snapshotFileParamName);
+
+        if(snapshotFileParam == null)
+        {
+            return null;
+        }
+
+        return new File(shardName != null ? snapshotFileParam + "-" + shardName : snapshotFileParam);
+    }
+
+
+    // database delle versioni archiviate: dello stesso tipo del database principale, ma separato
+    // (il database in memoria delle versioni non viene salvato nello snapshot)
+    private IDatabase createVersionsDatabase() throws ServletException
+    {
+        String databaseParam = config.getInitParameter(databaseParamName);
+
+        if(databaseParam == null || databaseParam.equals(datastoreDatabaseName))
+        {
+            return new DatastoreDatabase(versionEntityKind, versionChunkEntityKind);
+        }
+
+        if(databaseParam.equals(inMemoryDatabaseName))
+        {
+            return new InMemoryDatabase(-1, -1);
+        }
+
+        return openLogStructuredDatabase(new File(getLogDirectory(), versionsDirectoryName));
+    }
+
+
+    private File getLogDirectory()
+    {
+        String logDirectoryParam = config.getInitParameter(logDirectoryParamName);
+
+        return new File(logDirectoryParam != null ? logDirectoryParam : defaultLogDirectory);
+    }
+
+
+    private static LogStructuredDatabase openLogStructuredDatabase(File logDirectory) throws ServletException
+    {
+        try
+        {
+            return new LogStructuredDatabase(logDirectory);
+        }
+        catch(IOException e)
+        {
+            throw new ServletException("Cannot open log directory " + logDirectory, e);
+        }
+    }
+
+
+    // come GenericServlet.log(), che qui non e' disponibile
+    private void log(String message)
+    {
+        config.getServletContext().log(config.getServletName() + ": " + message);
+    }
+
+
+    private void log(String message, Throwable t)
+    {
+        config.getServletContext().log(config.getServletName() + ": " + message, t);
+    }
+
+
+    static long getLongInitParameter(ServletConfig config, String paramName, long defaultValue)
+    {
+        String paramValue = config.getInitParameter(paramName);
+
+        if(paramValue == null)
+        {
+            return defaultValue;
+        }
+
+        return Long.parseLong(paramValue);
+    }
+
+
+    static ThreadFactory newDaemonThreadFactory(final String threadNamePrefix)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, threadNamePrefix + " " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+}
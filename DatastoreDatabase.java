@@ -1,17 +1,67 @@
 package storageInterface;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreNeedIndexException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
 
 /**
  * Implementazione di {@link IDatabase} basata sul
  * <a href="https://developers.google.com/appengine/docs/java/datastore/">DataStore</a>
  * di Google App Engine
+ * <p>
+ * I contenuti che (anche compressi) superano il limite di dimensione di una entity vengono suddivisi in blocchi
+ * di dimensione fissa, ciascuno salvato in una entity separata: la entity della risorsa contiene allora solo l'ETag,
+ * la lunghezza del contenuto e l'identificativo dell'insieme di blocchi. I blocchi vengono scritti (in parallelo)
+ * prima della entity della risorsa, e quelli della versione precedente cancellati dopo, cosi' che una lettura veda
+ * sempre una versione completa; {@link #getRange(String, long, int)} legge solo i blocchi che servono, e le risorse
+ * restituite da {@link #get(String)} leggono i blocchi solo al primo accesso al contenuto (se nel frattempo una
+ * scrittura li ha cancellati, l'accesso lancia {@link ConcurrentModificationException}).
+ * <p>
+ * Con la deduplicazione dei contenuti (vedi {@link #DatastoreDatabase(String, String, boolean)}) ogni contenuto
+ * distinto viene archiviato una sola volta, identificato dal suo SHA-256: la entity della risorsa contiene solo
+ * l'ETag e l'hash del contenuto, e un contatore per contenuto registra quante risorse lo usano. Scrivere un
+ * contenuto gia' archiviato costa solo l'incremento del contatore (il contenuto non viene inviato); quando il
+ * contatore arriva a 0 il contenuto viene cancellato.
+ * <p>
+ * Le scritture multiple ({@link #writeAll(List)}, e quindi {@link #putAll(Collection)} e {@link #deleteAll(Collection)})
+ * leggono e scrivono le entity di al massimo 25 risorse con una sola lettura e una sola scrittura, in una
+ * transazione cross-group; senza deduplicazione, che richiede una transazione per risorsa.
  *
  *
  */
@@ -22,7 +72,7 @@ import com.google.appengine.api.datastore.Text;
 //The file is named local_db.bin, and it is created in your application's WAR directory,
 //in the WEB-INF/appengine-generated/ directory. To clear the Datastore, delete this file.
 
-public class DatastoreDatabase implements IDatabase
+public class DatastoreDatabase implements IBatchWriteDatabase
 {
     private String entityKind;
     // il kind delle entita' e' fissato ed uguale per tutte le entita', in modo tale che la chiave sia
@@ -30,13 +80,128 @@ public class DatastoreDatabase implements IDatabase
 
     private String contentPropertyName;
 
+    private String etagPropertyName;
+
+    // codifica del contenuto: assente se il Blob contiene i byte UTF-8, "gzip" se sono compressi
+    private String encodingPropertyName;
+
+    // contenuto suddiviso in blocchi: lunghezza (in byte, non compressa), numero di blocchi e identificativo
+    // dell'insieme di blocchi (diverso per ogni scrittura, cosi' le versioni non si sovrappongono mai)
+    private String lengthPropertyName;
+
+    private String chunkCountPropertyName;
+
+    private String chunkSetPropertyName;
+
+    // kind delle entity che contengono i blocchi (una per blocco, ciascuna in un proprio entity group)
+    private String chunkEntityKind;
+
+    // deduplicazione: la entity della risorsa contiene l'hash del contenuto (bodyPropertyName), archiviato in una entity
+    // di tipo bodyEntityKind figlia di quella (di tipo bodyReferencesEntityKind) che conta le risorse che lo usano:
+    // contatore e contenuto sono nello stesso entity group, quindi vengono creati e cancellati insieme
+    private final boolean deduplicate;
+
+    private String bodyPropertyName;
+
+    private String referencesPropertyName;
+
+    private String bodyEntityKind;
+
+    private String bodyReferencesEntityKind;
+
+    private final static String bodyEntityName = "body";
+
+    // contenuto (eventualmente compresso) massimo salvato direttamente nella entity della risorsa:
+    // il limite di una entity e' 1 MB, compresi chiave e altre proprieta'
+    private final static int maxInlineContentSize = 1000 * 1000;
+
+    // byte (non compressi) di contenuto per blocco; ciascun blocco viene poi compresso, se conviene
+    private final static int chunkSize = 512 * 1024;
+
+    // blocchi letti o scritti con una singola chiamata (asincrona) al Datastore
+    private final static int chunksPerCall = 8;
+
+    private final static String gzipEncoding = "gzip";
+
+    // numero massimo di entity lette, scritte o cancellate in una singola chiamata al Datastore
+    private final static int maxBatchSize = 500;
+
+    // numero massimo di tentativi di una transazione in caso di scritture concorrenti
+    private final static int maxTransactionAttempts = 3;
+
+    // numero massimo di entity group in una transazione cross-group: writeAll() scrive al massimo tante risorse
+    // per transazione
+    private final static int maxTransactionGroups = 25;
+
+    // false dopo che una projection query sull'etag e' fallita perche' manca il suo indice composito
+    // (datastore-indexes.xml non distribuito, o indice ancora in costruzione): da allora gli etag vengono letti
+    // dalle entity, fino al riavvio dell'istanza
+    private volatile boolean etagIndexAvailable = true;
+
+    private final static Logger logger = Logger.getLogger(DatastoreDatabase.class.getName());
+
     /**
      * Istanzia un nuovo oggetto di tipo {@link DatastoreDatabase}.
      */
     public DatastoreDatabase()
     {
-        entityKind = "SInode";
+        this(false);
+    }
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link DatastoreDatabase}, eventualmente con la deduplicazione dei contenuti
+     * (vedi {@link #DatastoreDatabase(String, String, boolean)}).
+     * @param deduplicate {@code true} per archiviare una sola volta i contenuti uguali
+     */
+    public DatastoreDatabase(boolean deduplicate)
+    {
+        this("SInode", "SInodeChunk", deduplicate);
+    }
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link DatastoreDatabase} che memorizza le risorse in entity di tipo
+     * {@code entityKind} (e i blocchi dei contenuti grandi in entity di tipo {@code chunkEntityKind}),
+     * e.g.: per tenere separate dalle risorse le versioni archiviate da {@link VersioningDatabase}.
+     * @param entityKind tipo delle entity delle risorse
+     * @param chunkEntityKind tipo delle entity dei blocchi
+     */
+    public DatastoreDatabase(String entityKind, String chunkEntityKind)
+    {
+        this(entityKind, chunkEntityKind, false);
+    }
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link DatastoreDatabase} che, se {@code deduplicate} e' {@code true},
+     * archivia una sola volta i contenuti uguali di risorse diverse (in entity di tipo {@code entityKind + "Body"},
+     * con i contatori in entity di tipo {@code entityKind + "BodyReferences"}).
+     * Le scritture usano transazioni cross-group (risorsa, contenuto nuovo e contenuto precedente), e
+     * {@link #putAll(Collection)} e {@link #deleteAll(Collection)} scrivono una risorsa alla volta; le risorse
+     * salvate senza deduplicazione restano leggibili. Viceversa, senza deduplicazione le risorse salvate con la
+     * deduplicazione restano leggibili, e sovrascriverle o cancellarle ne decrementa il contatore del contenuto
+     * (in una transazione cross-group). Il contatore di un contenuto molto diffuso e' una singola entity:
+     * le scritture concorrenti di quel contenuto vengono serializzate (e ripetute in caso di conflitto).
+     * @param entityKind tipo delle entity delle risorse
+     * @param chunkEntityKind tipo delle entity dei blocchi
+     * @param deduplicate {@code true} per archiviare una sola volta i contenuti uguali
+     */
+    public DatastoreDatabase(String entityKind, String chunkEntityKind, boolean deduplicate)
+    {
+        this.entityKind = entityKind;
         contentPropertyName = "content";
+        etagPropertyName = "etag";
+        encodingPropertyName = "encoding";
+        lengthPropertyName = "length";
+        chunkCountPropertyName = "chunks";
+        chunkSetPropertyName = "chunkSet";
+        this.chunkEntityKind = chunkEntityKind;
+        this.deduplicate = deduplicate;
+        bodyPropertyName = "body";
+        referencesPropertyName = "references";
+        bodyEntityKind = entityKind + "Body";
+        bodyReferencesEntityKind = entityKind + "BodyReferences";
     }
 
 
@@ -48,15 +213,134 @@ public class DatastoreDatabase implements IDatabase
     {
         Key entityKey = getEntityKey(siNodeURI);
 
+        for(int attempt = 1; ; attempt++)
+        {
+            Entity siNodeEntity = getEntity(entityKey);
+
+            if(siNodeEntity == null)
+            {
+                return null;
+            }
+
+            IResource siNode = toResource(siNodeEntity);
+
+            if(siNode != null)
+            {
+                return siNode;
+            }
+
+            // il contenuto deduplicato e' stato cancellato da una scrittura concorrente: rileggo la versione corrente
+            if(attempt >= maxTransactionAttempts)
+            {
+                throw new ConcurrentModificationException("Content of " + siNodeURI + " keeps changing");
+            }
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String siNodeURI, long offset, int length)
+    {
+        Key entityKey = getEntityKey(siNodeURI);
+
+        for(int attempt = 1; ; attempt++)
+        {
+            Entity siNodeEntity = getEntity(entityKey);
+
+            if(siNodeEntity == null)
+            {
+                return null;
+            }
+
+            // la entity della risorsa, o quella del contenuto deduplicato (null se cancellato nel frattempo)
+            Entity contentEntity = getContentEntity(siNodeEntity, null);
+
+            if(contentEntity != null && !isChunked(contentEntity))   // contenuto in un'unica entity, gia' letta per intero
+            {
+                return ResourceRange.of(toResource(siNodeEntity, contentEntity), offset, length);
+            }
+
+            if(contentEntity != null)
+            {
+                long totalLength = (Long) contentEntity.getProperty(lengthPropertyName);
+
+                long[] bounds = ResourceRange.resolve(totalLength, offset, length);
+
+                // vengono letti solo i blocchi che contengono la porzione richiesta
+                byte[] rangeBytes = readChunks(contentEntity, bounds[0], (int) (bounds[1] - bounds[0]));
+
+                if(rangeBytes != null)
+                {
+                    return new ResourceRange(siNodeURI, (String) siNodeEntity.getProperty(etagPropertyName), totalLength,
+                                             bounds[0], rangeBytes);
+                }
+            }
+
+            if(attempt >= maxTransactionAttempts)
+            {
+                throw new ConcurrentModificationException("Chunks of " + siNodeURI + " keep changing");
+            }
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String siNodeURI)
+    {
+        Key entityKey = getEntityKey(siNodeURI);
+
+        if(etagIndexAvailable)
+        {
+            // projection query sulla sola proprieta' etag: il Datastore la legge dall'indice, senza caricare il contenuto.
+            // La query e' ancestor (l'entity e' antenata di se stessa), quindi fortemente consistente.
+            // NOTA: richiede l'indice composito (ancestor, etag) in datastore-indexes.xml
+            Query etagQuery = new Query(entityKind, entityKey)
+            .setFilter(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.EQUAL, entityKey))
+            .addProjection(new PropertyProjection(etagPropertyName, String.class));
+
+            DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+            try
+            {
+                Entity etagEntity = datastore.prepare(etagQuery).asSingleEntity();
+
+                if(etagEntity != null)
+                {
+                    return (String) etagEntity.getProperty(etagPropertyName);
+                }
+            }
+            catch(DatastoreNeedIndexException e)
+            {
+                disableETagIndex(e);
+            }
+        }
+
+        // la entity non esiste, oppure e' stata salvata senza etag indicizzato, oppure manca l'indice:
+        // leggo la entity, che contiene l'etag (ma non i blocchi, o il contenuto deduplicato)
         Entity siNodeEntity = getEntity(entityKey);
 
-        if(siNodeEntity != null)
+        if(siNodeEntity == null)
+        {
+            return null;
+        }
+
+        if(siNodeEntity.hasProperty(etagPropertyName))
         {
-            String siNodeEntityURI = entityKey.getName();
+            return (String) siNodeEntity.getProperty(etagPropertyName);
+        }
 
-            String siNodeContent = ((Text) siNodeEntity.getProperty(contentPropertyName)).getValue();
+        // entity salvata senza etag: leggo tutto
+        IResource siNode = get(siNodeURI);
 
-            return new SINode(siNodeEntityURI, siNodeContent);
+        if(siNode != null)
+        {
+            return siNode.getETag();
         }
         else
         {
@@ -65,6 +349,172 @@ public class DatastoreDatabase implements IDatabase
     }
 
 
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        Filter keyRangeFilter = getKeyRangeFilter(prefix, cursor);
+
+        // projection query sulla sola proprieta' etag, nell'intervallo di chiavi: gli ETag vengono letti dall'indice,
+        // senza caricare il contenuto. La chiamata asincrona procede in parallelo con la query sulle chiavi.
+        // NOTA: richiede l'indice composito (__key__, etag) in datastore-indexes.xml
+        Query etagQuery = new Query(entityKind)
+        .addSort(Entity.KEY_RESERVED_PROPERTY)
+        .addProjection(new PropertyProjection(etagPropertyName, String.class));
+
+        // query keys-only: definisce la pagina (con una chiave in piu', per sapere se e' l'ultima); a differenza
+        // della projection query comprende anche le entity salvate senza etag indicizzato
+        Query keysQuery = new Query(entityKind)
+        .addSort(Entity.KEY_RESERVED_PROPERTY)
+        .setKeysOnly();
+
+        if(keyRangeFilter != null)
+        {
+            etagQuery.setFilter(keyRangeFilter);
+            keysQuery.setFilter(keyRangeFilter);
+        }
+
+        List<Entity> etagEntities = etagIndexAvailable ? DatastoreServiceFactory.getAsyncDatastoreService().prepare(etagQuery)
+                                                         .asList(FetchOptions.Builder.withLimit(limit))
+                                                       : Collections.<Entity>emptyList();
+
+        List<Entity> keyEntities = DatastoreServiceFactory.getDatastoreService().prepare(keysQuery)
+                                   .asList(FetchOptions.Builder.withLimit(limit + 1));
+
+        Map<String, String> indexedETags = new HashMap<String, String>();
+
+        try
+        {
+            for(Entity etagEntity : etagEntities)
+            {
+                indexedETags.put(etagEntity.getKey().getName(), (String) etagEntity.getProperty(etagPropertyName));
+            }
+        }
+        catch(DatastoreNeedIndexException e)   // gli etag vengono letti dalle entity
+        {
+            disableETagIndex(e);
+        }
+
+        List<Key> pageKeys = new ArrayList<Key>(limit);
+
+        String nextCursor = null;
+
+        for(Entity keyEntity : keyEntities)
+        {
+            if(pageKeys.size() == limit)   // c'e' almeno un'altra risorsa: la pagina non e' l'ultima
+            {
+                nextCursor = pageKeys.get(limit - 1).getName();
+                break;
+            }
+
+            pageKeys.add(keyEntity.getKey());
+        }
+
+        // entity salvate senza etag indicizzato (caso raro, o tutte se manca l'indice): lette con una sola chiamata
+        List<Key> unindexedKeys = new ArrayList<Key>();
+
+        for(Key pageKey : pageKeys)
+        {
+            if(!indexedETags.containsKey(pageKey.getName()))
+            {
+                unindexedKeys.add(pageKey);
+            }
+        }
+
+        Map<Key, Entity> unindexedEntities = unindexedKeys.isEmpty() ? Collections.<Key, Entity>emptyMap()
+                                                                     : DatastoreServiceFactory.getDatastoreService().get(unindexedKeys);
+
+        LinkedHashMap<String, String> eTags = new LinkedHashMap<String, String>();
+
+        for(Key pageKey : pageKeys)
+        {
+            String uri = pageKey.getName();
+
+            String eTag = indexedETags.get(uri);
+
+            if(eTag == null)
+            {
+                Entity siNodeEntity = unindexedEntities.get(pageKey);
+
+                if(siNodeEntity == null)   // la risorsa e' stata cancellata nel frattempo
+                {
+                    continue;
+                }
+
+                eTag = (String) siNodeEntity.getProperty(etagPropertyName);
+
+                if(eTag == null)   // entity salvata senza etag
+                {
+                    eTag = getETag(uri);
+                }
+            }
+
+            if(eTag != null)   // null se la risorsa e' stata cancellata nel frattempo
+            {
+                eTags.put(uri, eTag);
+            }
+        }
+
+        return new ResourceListing(eTags, nextCursor);
+    }
+
+
+    // chiavi che seguono il cursore (o, se il cursore lo precede, a partire dal prefisso) e iniziano con il prefisso;
+    // null se l'intervallo comprende tutte le chiavi
+    private Filter getKeyRangeFilter(String prefix, String cursor)
+    {
+        List<Filter> filters = new ArrayList<Filter>(2);
+
+        if(cursor != null && cursor.compareTo(prefix) >= 0)
+        {
+            filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.GREATER_THAN, getEntityKey(cursor)));
+        }
+        else if(!prefix.isEmpty())
+        {
+            filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL, getEntityKey(prefix)));
+        }
+
+        String prefixEnd = getPrefixEnd(prefix);
+
+        if(prefixEnd != null)
+        {
+            filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN, getEntityKey(prefixEnd)));
+        }
+
+        if(filters.isEmpty())
+        {
+            return null;
+        }
+
+        if(filters.size() == 1)
+        {
+            return filters.get(0);
+        }
+
+        return CompositeFilterOperator.and(filters.get(0), filters.get(1));
+    }
+
+
+    // il primo nome che segue tutti quelli che iniziano con prefix (incrementando l'ultimo carattere incrementabile),
+    // o null se non esiste (prefisso vuoto, o di soli '\uffff')
+    private static String getPrefixEnd(String prefix)
+    {
+        for(int i = prefix.length() - 1; i >= 0; i--)
+        {
+            char c = prefix.charAt(i);
+
+            if(c != Character.MAX_VALUE)
+            {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+
+        return null;
+    }
+
+
     /* (non-Javadoc)
      * @see storageInterface.IStorageInterfaceDatabase#delete(storageInterface.SINode)
      */
@@ -83,20 +533,59 @@ public class DatastoreDatabase implements IDatabase
     @Override
     public boolean delete(String siNodeURI)
     {
-        Key entityKey = getEntityKey(siNodeURI);
+        return deleteIfMatch(siNodeURI, null);
+    }
 
-        Entity siNodeEntity = getEntity(entityKey);
 
-        if(siNodeEntity != null)
-        {
-            DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-            datastore.delete(entityKey);
-            return true;
-        }
-        else
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String siNodeURI, final String expectedETag)
+    {
+        final Key entityKey = getEntityKey(siNodeURI);
+
+        final List<Key> obsoleteChunkKeys = new ArrayList<Key>();
+
+        // lettura (per sapere se la entity esiste e controllarne l'etag) e cancellazione nella stessa transazione
+        boolean deleted = runInTransaction(new TransactionalOperation<Boolean>()
         {
-            return false;
-        }
+            @Override
+            public Boolean run(DatastoreService datastore, Transaction txn, boolean crossGroup)
+            {
+                obsoleteChunkKeys.clear();
+
+                Entity currentEntity = getEntity(txn, entityKey);
+
+                if(currentEntity == null)
+                {
+                    return false;
+                }
+
+                if(expectedETag != null && !expectedETag.equals(getStoredETag(currentEntity)))
+                {
+                    return false;
+                }
+
+                requireCrossGroup(currentEntity, crossGroup);
+
+                datastore.delete(txn, entityKey);
+
+                List<Key> bodyChunkKeys = removeBodyReference(datastore, txn, (String) currentEntity.getProperty(bodyPropertyName));
+
+                txn.commit();
+
+                obsoleteChunkKeys.addAll(getChunkKeys(currentEntity));
+                obsoleteChunkKeys.addAll(bodyChunkKeys);
+
+                return true;
+            }
+        });
+
+        // i blocchi vengono cancellati solo dopo la risorsa, cosi' nessuna lettura trova una risorsa senza blocchi
+        deleteChunks(obsoleteChunkKeys);
+
+        return deleted;
     }
 
 
@@ -106,54 +595,1233 @@ public class DatastoreDatabase implements IDatabase
     @Override
     public void put(IResource siNode)
     {
-        String resourceName = siNode.getURI();
-        String content = siNode.getContent();
+        // https://developers.google.com/appengine/docs/java/datastore/entities
+        // Note: The Datastore API does not distinguish between creating a new entity and updating an existing one.
+        // If the object's key represents an entity that already exists, the put() method overwrites the existing entity.
+        // La versione precedente viene comunque letta (nella stessa transazione), per cancellarne gli eventuali blocchi
+        conditionalPut(siNode, null, true);
+    }
 
-        Key entityKey = getEntityKey(resourceName);
 
-        Entity siNodeEntity = new Entity(entityKey);
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource siNode)
+    {
+        return conditionalPut(siNode, null, false);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource siNode, String expectedETag)
+    {
+        return conditionalPut(siNode, expectedETag, false);
+    }
 
-        // setProperty accetta stringhe lunghe <= 500 caratteri
-        // percio' usiamo un oggetto Text, che incapsula una stringa di arbitraria lunghezza
-        // il limite per Text e' 1 MB
-        Text contentText = new Text(content);
-        siNodeEntity.setProperty(contentPropertyName, contentText);
 
-        // NOTA: NON salvo l'etag nella entity - e' inutile
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> siNodeURIs)
+    {
+        Map<String, IResource> found = new HashMap<String, IResource>();
 
         DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-        // https://developers.google.com/appengine/docs/java/datastore/entities
-        // Note: The Datastore API does not distinguish between creating a new entity and updating an existing one.
-        // If the object's key represents an entity that already exists, the put() method overwrites the existing entity.
-        datastore.put(siNodeEntity);
 
+        for(List<Key> keysBatch : partition(getEntityKeys(siNodeURIs)))
+        {
+            // una sola chiamata al Datastore per ogni gruppo di chiavi
+            Collection<Entity> siNodeEntities = datastore.get(keysBatch).values();
+
+            // e una per i contenuti deduplicati
+            List<Key> bodyKeys = new ArrayList<Key>();
+
+            for(Entity siNodeEntity : siNodeEntities)
+            {
+                if(siNodeEntity.hasProperty(bodyPropertyName))
+                {
+                    bodyKeys.add(getBodyKey((String) siNodeEntity.getProperty(bodyPropertyName)));
+                }
+            }
+
+            Map<Key, Entity> bodyEntities = bodyKeys.isEmpty() ? Collections.<Key, Entity>emptyMap() : datastore.get(bodyKeys);
+
+            for(Entity siNodeEntity : siNodeEntities)
+            {
+                IResource siNode = toResource(siNodeEntity, getContentEntity(siNodeEntity, bodyEntities));
+
+                if(siNode == null)   // contenuto deduplicato cancellato nel frattempo: rileggo la singola risorsa
+                {
+                    siNode = get(siNodeEntity.getKey().getName());
+                }
+
+                if(siNode != null)
+                {
+                    found.put(siNode.getURI(), siNode);
+                }
+            }
+        }
+
+        return found;
     }
 
 
-    private Key getEntityKey(String entityName)
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> siNodes)
     {
-        Key entityKey = KeyFactory.createKey(entityKind, entityName);
+        List<ConditionalWrite> writes = new ArrayList<ConditionalWrite>(siNodes.size());
 
-        return entityKey;
+        for(IResource siNode : siNodes)
+        {
+            writes.add(ConditionalWrite.put(siNode));
+        }
+
+        writeAll(writes);
     }
 
 
-    private Entity getEntity(Key entityKey)
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> siNodeURIs)
     {
-        Entity siNodeEntity;
+        List<ConditionalWrite> writes = new ArrayList<ConditionalWrite>(siNodeURIs.size());
 
-        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        for(String siNodeURI : new LinkedHashSet<String>(siNodeURIs))
+        {
+            writes.add(ConditionalWrite.deleteIfMatch(siNodeURI, null));
+        }
 
-        try
+        writeAll(writes);
+
+        Set<String> deleted = new HashSet<String>();
+
+        for(ConditionalWrite write : writes)
         {
-            siNodeEntity = datastore.get(entityKey);
+            if(write.isApplied())
+            {
+                deleted.add(write.getURI());
+            }
         }
-        catch(EntityNotFoundException e)
+
+        return deleted;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IBatchWriteDatabase#writeAll(java.util.List)
+     */
+    @Override
+    public void writeAll(List<ConditionalWrite> writes)
+    {
+        if(deduplicate)   // i contatori dei contenuti vanno aggiornati in una transazione per ogni risorsa
         {
-            return null;
+            for(ConditionalWrite write : writes)
+            {
+                write.executeOn(this);
+            }
+
+            return;
         }
 
-        return siNodeEntity;
+        // le entity di ogni scrittura (la risorsa seguita dai blocchi): i blocchi di tutte le risorse vengono scritti
+        // insieme (in parallelo) prima delle transazioni
+        Map<ConditionalWrite, List<Entity>> entitiesByWrite = new IdentityHashMap<ConditionalWrite, List<Entity>>();
+
+        List<Entity> chunkEntities = new ArrayList<Entity>();
+
+        // le scritture di ogni URI, nell'ordine: vanno valutate tutte nella stessa transazione
+        Map<String, List<ConditionalWrite>> writesByURI = new LinkedHashMap<String, List<ConditionalWrite>>();
+
+        for(ConditionalWrite write : writes)
+        {
+            if(!write.isDelete())
+            {
+                List<Entity> entities = toEntities(write.getResource());
+
+                entitiesByWrite.put(write, entities);
+                chunkEntities.addAll(entities.subList(1, entities.size()));
+            }
+
+            List<ConditionalWrite> uriWrites = writesByURI.get(write.getURI());
+
+            if(uriWrites == null)
+            {
+                uriWrites = new ArrayList<ConditionalWrite>();
+                writesByURI.put(write.getURI(), uriWrites);
+            }
+
+            uriWrites.add(write);
+        }
+
+        // le scritture la cui entity e' stata effettivamente salvata: i loro blocchi sono in uso
+        Set<ConditionalWrite> storedWrites = Collections.newSetFromMap(new IdentityHashMap<ConditionalWrite, Boolean>());
+
+        try
+        {
+            writeChunks(chunkEntities);
+
+            List<String> uris = new ArrayList<String>(writesByURI.keySet());
+
+            // una transazione (cross-group) ogni maxTransactionGroups risorse: una lettura e una scrittura multipla ciascuna
+            for(int from = 0; from < uris.size(); from += maxTransactionGroups)
+            {
+                writeGroup(uris.subList(from, Math.min(from + maxTransactionGroups, uris.size())), writesByURI,
+                           entitiesByWrite, storedWrites);
+            }
+        }
+        finally
+        {
+            // i blocchi delle scritture non applicate, sostituite da una successiva o non eseguite non servono
+            List<Key> unusedChunkKeys = new ArrayList<Key>();
+
+            for(Map.Entry<ConditionalWrite, List<Entity>> writeEntities : entitiesByWrite.entrySet())
+            {
+                if(!storedWrites.contains(writeEntities.getKey()))
+                {
+                    unusedChunkKeys.addAll(getChunkKeys(writeEntities.getValue().get(0)));
+                }
+            }
+
+            deleteChunks(unusedChunkKeys);
+        }
+    }
+
+
+    // esegue le scritture delle risorse in uris (al massimo maxTransactionGroups) in una sola transazione: legge le entity
+    // attuali, valuta le condizioni, scrive e cancella le entity con una chiamata ciascuna; aggiunge a storedWrites
+    // le scritture le cui entity sono state salvate. Le risorse salvate con la deduplicazione vengono scritte dopo,
+    // una alla volta (il loro contatore va aggiornato)
+    private void writeGroup(final List<String> uris, final Map<String, List<ConditionalWrite>> writesByURI,
+                            final Map<ConditionalWrite, List<Entity>> entitiesByWrite, Set<ConditionalWrite> storedWrites)
+    {
+        final List<Key> obsoleteChunkKeys = new ArrayList<Key>();
+
+        final List<ConditionalWrite> deferredWrites = new ArrayList<ConditionalWrite>();
+
+        Map<String, ConditionalWrite> finalWrites = null;
+
+        try
+        {
+            finalWrites = runInTransaction(new TransactionalOperation<Map<String, ConditionalWrite>>()
+            {
+                @Override
+                public Map<String, ConditionalWrite> run(DatastoreService datastore, Transaction txn, boolean crossGroup)
+                {
+                    obsoleteChunkKeys.clear();
+                    deferredWrites.clear();
+
+                    Map<Key, Entity> currentEntities = datastore.get(txn, getEntityKeys(uris));
+
+                    Map<String, String> currentETags = new HashMap<String, String>();
+
+                    List<ConditionalWrite> groupWrites = new ArrayList<ConditionalWrite>();
+
+                    for(String uri : uris)
+                    {
+                        Entity currentEntity = currentEntities.get(getEntityKey(uri));
+
+                        if(currentEntity != null && currentEntity.hasProperty(bodyPropertyName))
+                        {
+                            deferredWrites.addAll(writesByURI.get(uri));
+                            continue;
+                        }
+
+                        if(currentEntity != null)
+                        {
+                            currentETags.put(uri, getStoredETag(currentEntity));
+                        }
+
+                        groupWrites.addAll(writesByURI.get(uri));
+                    }
+
+                    Map<String, ConditionalWrite> groupFinalWrites = ConditionalWrite.evaluate(groupWrites, currentETags);
+
+                    List<Entity> putEntities = new ArrayList<Entity>();
+
+                    List<Key> deleteKeys = new ArrayList<Key>();
+
+                    for(ConditionalWrite write : groupFinalWrites.values())
+                    {
+                        if(write.isDelete())
+                        {
+                            deleteKeys.add(getEntityKey(write.getURI()));
+                        }
+                        else
+                        {
+                            putEntities.add(entitiesByWrite.get(write).get(0));
+                        }
+                    }
+
+                    if(!putEntities.isEmpty())
+                    {
+                        datastore.put(txn, putEntities);
+                    }
+
+                    if(!deleteKeys.isEmpty())
+                    {
+                        datastore.delete(txn, deleteKeys);
+                    }
+
+                    txn.commit();
+
+                    for(String uri : groupFinalWrites.keySet())
+                    {
+                        Entity currentEntity = currentEntities.get(getEntityKey(uri));
+
+                        if(currentEntity != null)
+                        {
+                            obsoleteChunkKeys.addAll(getChunkKeys(currentEntity));
+                        }
+                    }
+
+                    return groupFinalWrites;
+                }
+            }, uris.size() > 1);
+        }
+        finally
+        {
+            if(finalWrites == null)   // transazione non confermata: nessuna scrittura del gruppo e' stata eseguita
+            {
+                for(String uri : uris)
+                {
+                    for(ConditionalWrite write : writesByURI.get(uri))
+                    {
+                        write.reset();
+                    }
+                }
+            }
+            else
+            {
+                for(ConditionalWrite write : finalWrites.values())
+                {
+                    storedWrites.add(write);
+                }
+            }
+
+            // i blocchi vengono cancellati solo dopo le risorse, cosi' nessuna lettura trova una risorsa senza blocchi
+            deleteChunks(obsoleteChunkKeys);
+        }
+
+        for(ConditionalWrite write : deferredWrites)
+        {
+            write.executeOn(this);
+        }
+    }
+
+
+    // controllo della precondizione e scrittura avvengono nella stessa transazione;
+    // gli eventuali blocchi vengono scritti prima, e quelli che non servono piu' cancellati dopo
+    private String conditionalPut(final IResource siNode, final String expectedETag, final boolean unconditional)
+    {
+        if(deduplicate)
+        {
+            return deduplicatedPut(siNode, expectedETag, unconditional);
+        }
+
+        List<Entity> entities = toEntities(siNode);
+
+        List<Entity> chunkEntities = entities.subList(1, entities.size());
+
+        writeChunks(chunkEntities);
+
+        return putEntities(siNode, entities.get(0), chunkEntities, expectedETag, unconditional);
+    }
+
+
+    // scrive la entity della risorsa (i cui blocchi, chunkEntities, sono gia' stati scritti) come conditionalPut
+    private String putEntities(final IResource siNode, final Entity siNodeEntity, List<Entity> chunkEntities,
+                               final String expectedETag, final boolean unconditional)
+    {
+        final List<Key> obsoleteChunkKeys = new ArrayList<Key>();
+
+        String savedETag = null;
+
+        try
+        {
+            savedETag = runInTransaction(new TransactionalOperation<String>()
+            {
+                @Override
+                public String run(DatastoreService datastore, Transaction txn, boolean crossGroup)
+                {
+                    obsoleteChunkKeys.clear();
+
+                    Entity currentEntity = getEntity(txn, siNodeEntity.getKey());
+
+                    if(!unconditional && !isPreconditionHolding(currentEntity, expectedETag))
+                    {
+                        return null;
+                    }
+
+                    List<Key> bodyChunkKeys = Collections.emptyList();
+
+                    if(currentEntity != null)   // la versione precedente potrebbe essere stata salvata con la deduplicazione
+                    {
+                        requireCrossGroup(currentEntity, crossGroup);
+
+                        bodyChunkKeys = removeBodyReference(datastore, txn, (String) currentEntity.getProperty(bodyPropertyName));
+                    }
+
+                    datastore.put(txn, siNodeEntity);
+                    txn.commit();
+
+                    if(currentEntity != null)
+                    {
+                        obsoleteChunkKeys.addAll(getChunkKeys(currentEntity));
+                    }
+
+                    obsoleteChunkKeys.addAll(bodyChunkKeys);
+
+                    return siNode.getETag();
+                }
+            });
+        }
+        finally
+        {
+            // se la risorsa non e' stata scritta, i blocchi appena scritti non servono
+            if(savedETag == null)
+            {
+                for(Entity chunkEntity : chunkEntities)
+                {
+                    obsoleteChunkKeys.add(chunkEntity.getKey());
+                }
+            }
+
+            deleteChunks(obsoleteChunkKeys);
+        }
+
+        return savedETag;
+    }
+
+
+    // come conditionalPut, ma con il contenuto deduplicato: nella stessa transazione (cross-group) vengono controllata
+    // la precondizione, scritta la risorsa, incrementato il contatore del nuovo contenuto (archiviandolo se non esiste)
+    // e decrementato quello del contenuto precedente
+    private String deduplicatedPut(final IResource siNode, final String expectedETag, final boolean unconditional)
+    {
+        final String contentHash = getContentHash(siNode);
+
+        final Entity siNodeEntity = new Entity(getEntityKey(siNode.getURI()));
+        siNodeEntity.setProperty(etagPropertyName, siNode.getETag());
+        siNodeEntity.setUnindexedProperty(bodyPropertyName, contentHash);
+
+        // entity del contenuto (seguita dai blocchi, gia' scritti), preparata solo se il contenuto non e' gia' archiviato
+        final List<Entity> bodyEntities = new ArrayList<Entity>();
+
+        if(getEntity(getBodyReferencesKey(contentHash)) == null)
+        {
+            prepareBody(siNode, contentHash, bodyEntities);
+        }
+
+        final List<Key> obsoleteChunkKeys = new ArrayList<Key>();
+
+        final boolean[] bodyStored = new boolean[1];
+
+        String savedETag = null;
+
+        try
+        {
+            savedETag = runInTransaction(new TransactionalOperation<String>()
+            {
+                @Override
+                public String run(DatastoreService datastore, Transaction txn, boolean crossGroup)
+                {
+                    obsoleteChunkKeys.clear();
+                    bodyStored[0] = false;
+
+                    Entity currentEntity = getEntity(txn, siNodeEntity.getKey());
+
+                    if(!unconditional && !isPreconditionHolding(currentEntity, expectedETag))
+                    {
+                        return null;
+                    }
+
+                    String currentHash = (currentEntity != null) ? (String) currentEntity.getProperty(bodyPropertyName) : null;
+
+                    List<Key> bodyChunkKeys = Collections.emptyList();
+
+                    boolean storeBody = false;
+
+                    if(!contentHash.equals(currentHash))   // stesso contenuto: i contatori non cambiano
+                    {
+                        storeBody = !addBodyReference(datastore, txn, contentHash);
+
+                        if(storeBody && bodyEntities.isEmpty())   // contenuto cancellato dopo il primo controllo
+                        {
+                            prepareBody(siNode, contentHash, bodyEntities);
+                        }
+
+                        if(storeBody)
+                        {
+                            Entity referencesEntity = new Entity(getBodyReferencesKey(contentHash));
+                            referencesEntity.setUnindexedProperty(referencesPropertyName, 1L);
+
+                            datastore.put(txn, Arrays.asList(referencesEntity, bodyEntities.get(0)));
+                        }
+
+                        bodyChunkKeys = removeBodyReference(datastore, txn, currentHash);
+                    }
+
+                    datastore.put(txn, siNodeEntity);
+                    txn.commit();
+
+                    bodyStored[0] = storeBody;
+
+                    if(currentEntity != null)   // risorsa salvata senza deduplicazione
+                    {
+                        obsoleteChunkKeys.addAll(getChunkKeys(currentEntity));
+                    }
+
+                    obsoleteChunkKeys.addAll(bodyChunkKeys);
+
+                    return siNode.getETag();
+                }
+            });
+        }
+        finally
+        {
+            // i blocchi scritti per un contenuto che non e' stato archiviato (gia' presente, o risorsa non scritta)
+            // non servono
+            if(!bodyStored[0] && !bodyEntities.isEmpty())
+            {
+                obsoleteChunkKeys.addAll(getChunkKeys(bodyEntities.get(0)));
+            }
+
+            deleteChunks(obsoleteChunkKeys);
+        }
+
+        return savedETag;
+    }
+
+
+    // prepara in bodyEntities la entity del contenuto, seguita da quelle dei blocchi (che vengono scritti subito)
+    private void prepareBody(IResource siNode, String contentHash, List<Entity> bodyEntities)
+    {
+        List<Entity> entities = toContentEntities(getBodyKey(contentHash), siNode);
+
+        writeChunks(entities.subList(1, entities.size()));
+
+        bodyEntities.addAll(entities);
+    }
+
+
+    // incrementa il contatore del contenuto; false se il contenuto non e' archiviato
+    private boolean addBodyReference(DatastoreService datastore, Transaction txn, String contentHash)
+    {
+        Entity referencesEntity = getEntity(txn, getBodyReferencesKey(contentHash));
+
+        if(referencesEntity == null)
+        {
+            return false;
+        }
+
+        referencesEntity.setUnindexedProperty(referencesPropertyName, (Long) referencesEntity.getProperty(referencesPropertyName) + 1);
+        datastore.put(txn, referencesEntity);
+
+        return true;
+    }
+
+
+    // decrementa il contatore del contenuto (se contentHash non e' null), cancellando contatore e contenuto quando
+    // arriva a 0; restituisce le chiavi dei blocchi del contenuto cancellato, da cancellare dopo il commit
+    private List<Key> removeBodyReference(DatastoreService datastore, Transaction txn, String contentHash)
+    {
+        if(contentHash == null)
+        {
+            return Collections.emptyList();
+        }
+
+        Key referencesKey = getBodyReferencesKey(contentHash);
+
+        Entity referencesEntity = getEntity(txn, referencesKey);
+
+        if(referencesEntity == null)
+        {
+            return Collections.emptyList();
+        }
+
+        long references = (Long) referencesEntity.getProperty(referencesPropertyName) - 1;
+
+        if(references > 0)
+        {
+            referencesEntity.setUnindexedProperty(referencesPropertyName, references);
+            datastore.put(txn, referencesEntity);
+
+            return Collections.emptyList();
+        }
+
+        Key bodyKey = getBodyKey(contentHash);
+
+        Entity bodyEntity = getEntity(txn, bodyKey);
+
+        datastore.delete(txn, referencesKey, bodyKey);
+
+        return (bodyEntity != null) ? getChunkKeys(bodyEntity) : Collections.<Key>emptyList();
+    }
+
+
+    // SHA-256 del solo contenuto, calcolato come l'ETag di una risorsa con URI vuoto
+    private static String getContentHash(IResource siNode)
+    {
+        MessageDigest contentDigest = SINode.newETagDigest("");
+
+        byte[] contentBytes = siNode.getContentBytes();
+
+        if(contentBytes != null)
+        {
+            contentDigest.update(contentBytes);
+        }
+
+        return SINode.toETag(contentDigest);
+    }
+
+
+    private Key getBodyReferencesKey(String contentHash)
+    {
+        return KeyFactory.createKey(bodyReferencesEntityKind, contentHash);
+    }
+
+
+    private Key getBodyKey(String contentHash)
+    {
+        return KeyFactory.createKey(getBodyReferencesKey(contentHash), bodyEntityKind, bodyEntityName);
+    }
+
+
+    // expectedETag == null => putIfAbsent, altrimenti putIfMatch
+    private boolean isPreconditionHolding(Entity currentEntity, String expectedETag)
+    {
+        if(expectedETag == null)   // putIfAbsent
+        {
+            return (currentEntity == null);
+        }
+        else // putIfMatch
+        {
+            return (currentEntity != null && expectedETag.equals(getStoredETag(currentEntity)));
+        }
+    }
+
+
+    // esegue operation in una transazione: se un altro scrittore modifica le entity lette nel frattempo,
+    // il commit fallisce e l'operazione viene ripetuta. Se operation non esegue il commit, la transazione viene annullata.
+    private <T> T runInTransaction(TransactionalOperation<T> operation)
+    {
+        // con la deduplicazione una scrittura modifica anche gli entity group dei contenuti; senza, solo se la versione
+        // precedente era stata salvata con la deduplicazione (vedi requireCrossGroup())
+        return runInTransaction(operation, deduplicate);
+    }
+
+
+    // come runInTransaction(operation), in una transazione cross-group fin dal primo tentativo se crossGroup e' true
+    private <T> T runInTransaction(TransactionalOperation<T> operation, boolean crossGroup)
+    {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+        for(int attempt = 1; ; attempt++)
+        {
+            Transaction txn = crossGroup ? datastore.beginTransaction(TransactionOptions.Builder.withXG(true))
+                                         : datastore.beginTransaction();
+
+            try
+            {
+                return operation.run(datastore, txn, crossGroup);
+            }
+            catch(CrossGroupRequiredException e)   // non conta come tentativo
+            {
+                crossGroup = true;
+                attempt--;
+            }
+            catch(ConcurrentModificationException cmEx)
+            {
+                if(attempt >= maxTransactionAttempts)
+                {
+                    throw cmEx;
+                }
+            }
+            finally
+            {
+                if(txn.isActive())
+                {
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+
+    // se la entity e' stata salvata con la deduplicazione, modificarla richiede di aggiornare anche il contatore del suo
+    // contenuto, in un altro entity group: se la transazione corrente non e' cross-group, viene ripetuta in una che lo e'
+    private void requireCrossGroup(Entity currentEntity, boolean crossGroup)
+    {
+        if(!crossGroup && currentEntity.hasProperty(bodyPropertyName))
+        {
+            throw new CrossGroupRequiredException();
+        }
+    }
+
+
+    private Key getEntityKey(String entityName)
+    {
+        Key entityKey = KeyFactory.createKey(entityKind, entityName);
+
+        return entityKey;
+    }
+
+
+    private List<Key> getEntityKeys(Collection<String> entityNames)
+    {
+        List<Key> entityKeys = new ArrayList<Key>(entityNames.size());
+
+        for(String entityName : entityNames)
+        {
+            entityKeys.add(getEntityKey(entityName));
+        }
+
+        return entityKeys;
+    }
+
+
+    // divide elements in gruppi di al massimo maxBatchSize elementi
+    private static <E> List<List<E>> partition(List<E> elements)
+    {
+        List<List<E>> batches = new ArrayList<List<E>>();
+
+        for(int from = 0; from < elements.size(); from += maxBatchSize)
+        {
+            batches.add(elements.subList(from, Math.min(from + maxBatchSize, elements.size())));
+        }
+
+        return batches;
+    }
+
+
+    private Entity getEntity(Key entityKey)
+    {
+        return getEntity(null, entityKey);
+    }
+
+
+    // txn == null => lettura fuori da qualsiasi transazione
+    private Entity getEntity(Transaction txn, Key entityKey)
+    {
+        Entity siNodeEntity;
+
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+        try
+        {
+            if(txn != null)
+            {
+                siNodeEntity = datastore.get(txn, entityKey);
+            }
+            else
+            {
+                siNodeEntity = datastore.get(entityKey);
+            }
+        }
+        catch(EntityNotFoundException e)
+        {
+            return null;
+        }
+
+        return siNodeEntity;
+    }
+
+
+    // la entity della risorsa, seguita dalle entity degli eventuali blocchi del contenuto
+    private List<Entity> toEntities(IResource siNode)
+    {
+        List<Entity> entities = toContentEntities(getEntityKey(siNode.getURI()), siNode);
+
+        // salvo anche l'etag, calcolato una sola volta in scrittura, cosi' le letture non devono ricalcolarlo;
+        // e' indicizzato perche' getETag lo possa leggere con una projection query, senza caricare il contenuto
+        entities.get(0).setProperty(etagPropertyName, siNode.getETag());
+
+        return entities;
+    }
+
+
+    // la entity con chiave entityKey che contiene il contenuto di siNode (o ne descrive i blocchi),
+    // seguita dalle entity degli eventuali blocchi
+    private List<Entity> toContentEntities(Key entityKey, IResource siNode)
+    {
+        Entity siNodeEntity = new Entity(entityKey);
+
+        // setProperty accetta stringhe lunghe <= 500 caratteri
+        // percio' usiamo un oggetto Blob, che incapsula un array di byte di arbitraria lunghezza
+        // (i byte UTF-8 del contenuto, cosi' non servono conversioni ne' in scrittura ne' in lettura)
+        // il limite per Blob e' 1 MB
+        // se conviene, il contenuto viene salvato compresso: cosi' occupa meno spazio e puo' essere
+        // inviato cosi' com'e' ai client che accettano Content-Encoding: gzip
+        byte[] gzippedContent = siNode.getGzippedContent();
+
+        byte[] storedContent = (gzippedContent != null) ? gzippedContent : siNode.getContentBytes();
+
+        if(storedContent.length <= maxInlineContentSize)
+        {
+            setContentProperty(siNodeEntity, siNode);
+
+            List<Entity> entities = new ArrayList<Entity>(1);
+            entities.add(siNodeEntity);
+
+            return entities;
+        }
+
+        // contenuto troppo grande per una sola entity: suddiviso in blocchi
+        byte[] contentBytes = siNode.getContentBytes();
+
+        int chunkCount = (contentBytes.length + chunkSize - 1) / chunkSize;
+
+        String chunkSet = UUID.randomUUID().toString();
+
+        siNodeEntity.setUnindexedProperty(lengthPropertyName, (long) contentBytes.length);
+        siNodeEntity.setUnindexedProperty(chunkCountPropertyName, (long) chunkCount);
+        siNodeEntity.setUnindexedProperty(chunkSetPropertyName, chunkSet);
+
+        List<Entity> entities = new ArrayList<Entity>(1 + chunkCount);
+
+        entities.add(siNodeEntity);
+
+        for(int i = 0; i < chunkCount; i++)
+        {
+            Key chunkKey = getChunkKey(chunkSet, i);
+
+            byte[] chunkBytes = Arrays.copyOfRange(contentBytes, i * chunkSize, Math.min(contentBytes.length, (i + 1) * chunkSize));
+
+            // ogni blocco e' trattato come una piccola risorsa: compresso (se conviene) e decompresso indipendentemente
+            // dagli altri; l'ETag del blocco non serve
+            Entity chunkEntity = new Entity(chunkKey);
+            setContentProperty(chunkEntity, new SINode(chunkKey.getName(), chunkBytes, ""));
+
+            entities.add(chunkEntity);
+        }
+
+        return entities;
+    }
+
+
+    private void setContentProperty(Entity entity, IResource resource)
+    {
+        byte[] gzippedContent = resource.getGzippedContent();
+
+        if(gzippedContent != null)
+        {
+            entity.setProperty(contentPropertyName, new Blob(gzippedContent));
+            entity.setUnindexedProperty(encodingPropertyName, gzipEncoding);
+        }
+        else
+        {
+            entity.setProperty(contentPropertyName, new Blob(resource.getContentBytes()));
+        }
+    }
+
+
+    // restituisce null se il contenuto deduplicato non esiste piu' (cancellato da una scrittura concorrente)
+    private IResource toResource(Entity siNodeEntity)
+    {
+        return toResource(siNodeEntity, getContentEntity(siNodeEntity, null));
+    }
+
+
+    // contentEntity e' la entity che contiene il contenuto (vedi getContentEntity); restituisce null anche se e' null
+    private IResource toResource(Entity siNodeEntity, Entity contentEntity)
+    {
+        if(contentEntity == null)
+        {
+            return null;
+        }
+
+        String siNodeEntityURI = siNodeEntity.getKey().getName();
+
+        // l'ETag salvato nella entity evita di ricalcolare lo SHA-256 ad ogni lettura;
+        // le entity salvate prima che l'ETag venisse memorizzato non lo hanno (null => verra' calcolato)
+        String siNodeETag = (String) siNodeEntity.getProperty(etagPropertyName);
+
+        if(isChunked(contentEntity))   // i blocchi vengono letti solo se (e quando) serve il contenuto
+        {
+            return new ChunkedResource(siNodeEntityURI, contentEntity, siNodeETag);
+        }
+
+        Object siNodeContent = contentEntity.getProperty(contentPropertyName);
+
+        if(siNodeContent instanceof Text)   // entity salvata prima che il contenuto venisse salvato come Blob
+        {
+            return new SINode(siNodeEntityURI, ((Text) siNodeContent).getValue(), siNodeETag);
+        }
+
+        if(gzipEncoding.equals(contentEntity.getProperty(encodingPropertyName)))
+        {
+            // il contenuto viene decompresso solo se (e quando) serve
+            return new SINode(siNodeEntityURI, null, ((Blob) siNodeContent).getBytes(), siNodeETag);
+        }
+
+        return new SINode(siNodeEntityURI, ((Blob) siNodeContent).getBytes(), siNodeETag);
+    }
+
+
+    // la entity che contiene il contenuto della risorsa: la risorsa stessa, o il contenuto deduplicato (letto da
+    // bodyEntities, se non e' null); null se il contenuto deduplicato e' stato cancellato da una scrittura concorrente
+    private Entity getContentEntity(Entity siNodeEntity, Map<Key, Entity> bodyEntities)
+    {
+        if(!siNodeEntity.hasProperty(bodyPropertyName))
+        {
+            return siNodeEntity;
+        }
+
+        Key bodyKey = getBodyKey((String) siNodeEntity.getProperty(bodyPropertyName));
+
+        return (bodyEntities != null) ? bodyEntities.get(bodyKey) : getEntity(bodyKey);
+    }
+
+
+    // byte UTF-8 del contenuto di un blocco, decompressi se necessario
+    private byte[] getContentBytes(Entity entity)
+    {
+        byte[] storedContent = ((Blob) entity.getProperty(contentPropertyName)).getBytes();
+
+        if(gzipEncoding.equals(entity.getProperty(encodingPropertyName)))
+        {
+            return new SINode(entity.getKey().getName(), null, storedContent, "").getContentBytes();
+        }
+
+        return storedContent;
+    }
+
+
+    private boolean isChunked(Entity siNodeEntity)
+    {
+        return siNodeEntity.hasProperty(chunkSetPropertyName);
+    }
+
+
+    private Key getChunkKey(String chunkSet, int chunkIndex)
+    {
+        return KeyFactory.createKey(chunkEntityKind, chunkSet + "-" + chunkIndex);
+    }
+
+
+    // chiavi dei blocchi del contenuto di una risorsa (nessuna se il contenuto non e' suddiviso in blocchi)
+    private List<Key> getChunkKeys(Entity siNodeEntity)
+    {
+        if(!isChunked(siNodeEntity))
+        {
+            return Collections.emptyList();
+        }
+
+        String chunkSet = (String) siNodeEntity.getProperty(chunkSetPropertyName);
+        long chunkCount = (Long) siNodeEntity.getProperty(chunkCountPropertyName);
+
+        List<Key> chunkKeys = new ArrayList<Key>((int) chunkCount);
+
+        for(int i = 0; i < chunkCount; i++)
+        {
+            chunkKeys.add(getChunkKey(chunkSet, i));
+        }
+
+        return chunkKeys;
+    }
+
+
+    // legge i byte [offset, offset + length) del contenuto suddiviso in blocchi, leggendo solo i blocchi necessari;
+    // restituisce null se qualche blocco non esiste piu'
+    private byte[] readChunks(Entity siNodeEntity, long offset, int length)
+    {
+        byte[] rangeBytes = new byte[length];
+
+        if(length == 0)
+        {
+            return rangeBytes;
+        }
+
+        String chunkSet = (String) siNodeEntity.getProperty(chunkSetPropertyName);
+
+        int firstChunk = (int) (offset / chunkSize);
+        int lastChunk = (int) ((offset + length - 1) / chunkSize);
+
+        List<Key> chunkKeys = new ArrayList<Key>(lastChunk - firstChunk + 1);
+
+        for(int i = firstChunk; i <= lastChunk; i++)
+        {
+            chunkKeys.add(getChunkKey(chunkSet, i));
+        }
+
+        Map<Key, Entity> chunkEntities = getChunks(chunkKeys);
+
+        for(int i = firstChunk; i <= lastChunk; i++)
+        {
+            Entity chunkEntity = chunkEntities.get(getChunkKey(chunkSet, i));
+
+            if(chunkEntity == null)
+            {
+                return null;
+            }
+
+            byte[] chunkBytes = getContentBytes(chunkEntity);
+
+            long chunkOffset = (long) i * chunkSize;
+
+            // parte del blocco che cade nella porzione richiesta
+            int from = (int) Math.max(0, offset - chunkOffset);
+            int to = (int) Math.min(chunkBytes.length, offset + length - chunkOffset);
+
+            System.arraycopy(chunkBytes, from, rangeBytes, (int) (chunkOffset + from - offset), to - from);
+        }
+
+        return rangeBytes;
+    }
+
+
+    // legge i blocchi con piu' chiamate asincrone al Datastore, eseguite in parallelo
+    private Map<Key, Entity> getChunks(List<Key> chunkKeys)
+    {
+        AsyncDatastoreService datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+
+        List<Future<Map<Key, Entity>>> futures = new ArrayList<Future<Map<Key, Entity>>>();
+
+        for(int from = 0; from < chunkKeys.size(); from += chunksPerCall)
+        {
+            futures.add(datastore.get(chunkKeys.subList(from, Math.min(from + chunksPerCall, chunkKeys.size()))));
+        }
+
+        Map<Key, Entity> chunkEntities = new HashMap<Key, Entity>();
+
+        for(Future<Map<Key, Entity>> future : futures)
+        {
+            chunkEntities.putAll(await(future));
+        }
+
+        return chunkEntities;
+    }
+
+
+    // scrive i blocchi con piu' chiamate asincrone al Datastore, eseguite in parallelo
+    private void writeChunks(List<Entity> chunkEntities)
+    {
+        AsyncDatastoreService datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+
+        List<Future<List<Key>>> futures = new ArrayList<Future<List<Key>>>();
+
+        for(int from = 0; from < chunkEntities.size(); from += chunksPerCall)
+        {
+            futures.add(datastore.put(chunkEntities.subList(from, Math.min(from + chunksPerCall, chunkEntities.size()))));
+        }
+
+        for(Future<List<Key>> future : futures)
+        {
+            await(future);
+        }
+    }
+
+
+    private void deleteChunks(List<Key> chunkKeys)
+    {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+        for(List<Key> keysBatch : partition(chunkKeys))
+        {
+            datastore.delete(keysBatch);
+        }
+    }
+
+
+    private static <T> T await(Future<T> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for the Datastore", e);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new DatabaseException("Datastore call failed", e.getCause());
+        }
+    }
+
+
+    private void disableETagIndex(DatastoreNeedIndexException e)
+    {
+        if(etagIndexAvailable)
+        {
+            etagIndexAvailable = false;
+
+            logger.log(Level.WARNING, "Missing datastore index on " + entityKind + "." + etagPropertyName
+                                      + ": reading ETags from the entities", e);
+        }
+    }
+
+
+    private String getStoredETag(Entity siNodeEntity)
+    {
+        String storedETag = (String) siNodeEntity.getProperty(etagPropertyName);
+
+        if(storedETag == null)   // entity salvata senza etag
+        {
+            storedETag = toResource(siNodeEntity).getETag();
+        }
+
+        return storedETag;
+    }
+
+
+    // risorsa con il contenuto suddiviso in blocchi: l'ETag e' salvato nella entity, i blocchi vengono letti solo al primo
+    // accesso al contenuto. Chi usa solo l'ETag (e.g.: un GET condizionale) non li legge mai, e getRange() legge
+    // solo quelli della porzione richiesta
+    private class ChunkedResource implements IResource
+    {
+        private final String uri;
+
+        // la entity che descrive i blocchi (la risorsa, o il contenuto deduplicato)
+        private final Entity contentEntity;
+
+        // null se la entity e' stata salvata senza etag
+        private final String eTag;
+
+        // il contenuto letto dai blocchi (o assegnato con setContent())
+        private volatile IResource loaded;
+
+
+        ChunkedResource(String uri, Entity contentEntity, String eTag)
+        {
+            this.uri = uri;
+            this.contentEntity = contentEntity;
+            this.eTag = eTag;
+        }
+
+
+        // i blocchi possono essere stati cancellati da una scrittura successiva alla lettura della entity:
+        // la versione letta non e' piu' disponibile
+        private IResource load()
+        {
+            IResource resource = loaded;
+
+            if(resource == null)
+            {
+                long totalLength = (Long) contentEntity.getProperty(lengthPropertyName);
+
+                byte[] contentBytes = readChunks(contentEntity, 0, (int) totalLength);
+
+                if(contentBytes == null)
+                {
+                    throw new ConcurrentModificationException("Chunks of " + uri + " were deleted by a concurrent write");
+                }
+
+                // un contenuto cosi' grande non viene compresso in lettura: viene inviato non compresso
+                resource = new SINode(uri, contentBytes, null, eTag);
+
+                loaded = resource;
+            }
+
+            return resource;
+        }
+
+
+        /* (non-Javadoc)
+         * @see storageInterface.IResource#getURI()
+         */
+        @Override
+        public String getURI()
+        {
+            return uri;
+        }
+
+
+        /* (non-Javadoc)
+         * @see storageInterface.IResource#setContent(java.lang.String)
+         */
+        @Override
+        public void setContent(String content)
+        {
+            loaded = new SINode(uri, content);
+        }
+
+
+        /* (non-Javadoc)
+         * @see storageInterface.IResource#setContent(byte[])
+         */
+        @Override
+        public void setContent(byte[] contentBytes)
+        {
+            loaded = new SINode(uri, contentBytes, null);
+        }
+
+
+        /* (non-Javadoc)
+         * @see storageInterface.IResource#getContent()
+         */
+        @Override
+        public String getContent()
+        {
+            return load().getContent();
+        }
+
+
+        /* (non-Javadoc)
+         * @see storageInterface.IResource#getContentBytes()
+         */
+        @Override
+        public byte[] getContentBytes()
+        {
+            return load().getContentBytes();
+        }
+
+
+        /* (non-Javadoc)
+         * @see storageInterface.IResource#getGzippedContent()
+         */
+        @Override
+        public byte[] getGzippedContent()
+        {
+            return load().getGzippedContent();
+        }
+
+
+        /* (non-Javadoc)
+         * @see storageInterface.IResource#getETag()
+         */
+        @Override
+        public String getETag()
+        {
+            IResource resource = loaded;
+
+            if(resource != null)
+            {
+                return resource.getETag();
+            }
+
+            return (eTag != null) ? eTag : load().getETag();
+        }
+    }
+
+
+    // operazione da eseguire all'interno di una transazione del Datastore (cross-group se crossGroup e' true)
+    private interface TransactionalOperation<T>
+    {
+        T run(DatastoreService datastore, Transaction txn, boolean crossGroup);
+    }
+
+
+    // lanciata (da requireCrossGroup()) per ripetere un'operazione in una transazione cross-group
+    @SuppressWarnings("serial")
+    private static class CrossGroupRequiredException extends RuntimeException
+    {
     }
 
 }
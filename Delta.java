@@ -0,0 +1,257 @@
+package storageInterface;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Codifica delta (copia/aggiunta, come VCDIFF) di un array di byte rispetto ad un altro.
+ * Un delta descrive come ricostruire il contenuto {@code target} a partire dal contenuto {@code base}:
+ * <pre>
+ * varint lunghezzaTarget, { 1, varint offsetInBase, varint lunghezza | 2, varint lunghezza, byte... }
+ * </pre>
+ * dove 1 copia una porzione di {@code base} e 2 aggiunge i byte che seguono.
+ * Le corrispondenze vengono cercate con un hash (rolling) dei blocchi di {@code base} di {@code blockSize} byte,
+ * quindi il delta tra due versioni di un documento con modifiche localizzate e' proporzionale alle modifiche.
+ *
+ *
+ */
+public final class Delta
+{
+    // lunghezza minima di una corrispondenza
+    private final static int blockSize = 16;
+
+    private final static int hashMultiplier = 0x01000193;
+
+    private final static byte copyOperation = 1;
+
+    private final static byte addOperation = 2;
+
+    private Delta()
+    {
+    }
+
+
+    /**
+     * Calcola il delta che trasforma {@code base} in {@code target}.
+     * @param base il contenuto di partenza
+     * @param target il contenuto da ricostruire
+     * @return il delta
+     */
+    public static byte[] encode(byte[] base, byte[] target)
+    {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream(64 + target.length / 16);
+
+        writeVarint(delta, target.length);
+
+        if(base.length < blockSize || target.length < blockSize)
+        {
+            writeAdd(delta, target, 0, target.length);
+            return delta.toByteArray();
+        }
+
+        // tabella hash -> (offset + 1) dei blocchi di base; in caso di collisione resta il primo blocco
+        int tableSize = Integer.highestOneBit(Math.max(16, base.length / blockSize) * 2);
+        int[] table = new int[tableSize];
+
+        for(int offset = base.length - base.length % blockSize - blockSize; offset >= 0; offset -= blockSize)
+        {
+            table[hash(base, offset) & (tableSize - 1)] = offset + 1;
+        }
+
+        // hashMultiplier^blockSize, per togliere dal rolling hash il byte che esce dalla finestra
+        int outFactor = 1;
+
+        for(int i = 0; i < blockSize; i++)
+        {
+            outFactor *= hashMultiplier;
+        }
+
+        int literalStart = 0;
+        int position = 0;
+        int windowHash = hash(target, 0);
+
+        while(position + blockSize <= target.length)
+        {
+            int candidate = table[windowHash & (tableSize - 1)] - 1;
+
+            if(candidate >= 0 && regionMatches(base, candidate, target, position, blockSize))
+            {
+                int baseStart = candidate;
+                int targetStart = position;
+
+                // la corrispondenza viene estesa all'indietro (nei byte non ancora emessi) e in avanti
+                while(targetStart > literalStart && baseStart > 0 && target[targetStart - 1] == base[baseStart - 1])
+                {
+                    targetStart--;
+                    baseStart--;
+                }
+
+                int matchEnd = position + blockSize;
+                int baseEnd = candidate + blockSize;
+
+                while(matchEnd < target.length && baseEnd < base.length && target[matchEnd] == base[baseEnd])
+                {
+                    matchEnd++;
+                    baseEnd++;
+                }
+
+                writeAdd(delta, target, literalStart, targetStart - literalStart);
+
+                delta.write(copyOperation);
+                writeVarint(delta, baseStart);
+                writeVarint(delta, matchEnd - targetStart);
+
+                position = matchEnd;
+                literalStart = matchEnd;
+
+                if(position + blockSize <= target.length)
+                {
+                    windowHash = hash(target, position);
+                }
+            }
+            else
+            {
+                if(position + blockSize < target.length)
+                {
+                    windowHash = windowHash * hashMultiplier - (target[position] & 0xff) * outFactor + (target[position + blockSize] & 0xff);
+                }
+
+                position++;
+            }
+        }
+
+        writeAdd(delta, target, literalStart, target.length - literalStart);
+
+        return delta.toByteArray();
+    }
+
+
+    /**
+     * Ricostruisce il contenuto applicando {@code delta} a {@code base}.
+     * @param base il contenuto di partenza (lo stesso passato a {@link #encode(byte[], byte[])})
+     * @param delta il delta
+     * @return il contenuto ricostruito
+     * @throws IllegalArgumentException se il delta non e' valido per {@code base}
+     */
+    public static byte[] apply(byte[] base, byte[] delta)
+    {
+        int[] position = { 0 };
+
+        byte[] target;
+
+        int targetPosition = 0;
+
+        try
+        {
+            target = new byte[readVarint(delta, position)];
+
+            while(position[0] < delta.length)
+            {
+                byte operation = delta[position[0]++];
+
+                if(operation == copyOperation)
+                {
+                    int offset = readVarint(delta, position);
+                    int length = readVarint(delta, position);
+
+                    System.arraycopy(base, offset, target, targetPosition, length);
+                    targetPosition += length;
+                }
+                else if(operation == addOperation)
+                {
+                    int length = readVarint(delta, position);
+
+                    System.arraycopy(delta, position[0], target, targetPosition, length);
+                    position[0] += length;
+                    targetPosition += length;
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Unknown delta operation " + operation);
+                }
+            }
+        }
+        catch(IndexOutOfBoundsException e)
+        {
+            throw new IllegalArgumentException("Delta does not match its base", e);
+        }
+
+        if(targetPosition != target.length)
+        {
+            throw new IllegalArgumentException("Delta does not match its base");
+        }
+
+        return target;
+    }
+
+
+    private static int hash(byte[] bytes, int offset)
+    {
+        int hash = 0;
+
+        for(int i = offset; i < offset + blockSize; i++)
+        {
+            hash = hash * hashMultiplier + (bytes[i] & 0xff);
+        }
+
+        return hash;
+    }
+
+
+    private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length)
+    {
+        for(int i = 0; i < length; i++)
+        {
+            if(a[aOffset + i] != b[bOffset + i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private static void writeAdd(ByteArrayOutputStream delta, byte[] bytes, int offset, int length)
+    {
+        if(length > 0)
+        {
+            delta.write(addOperation);
+            writeVarint(delta, length);
+            delta.write(bytes, offset, length);
+        }
+    }
+
+
+    // interi non negativi, 7 bit per byte (il bit piu' significativo indica che seguono altri byte)
+    private static void writeVarint(ByteArrayOutputStream out, int value)
+    {
+        while((value & ~0x7f) != 0)
+        {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+
+    private static int readVarint(byte[] bytes, int[] position)
+    {
+        int value = 0;
+
+        for(int shift = 0; shift < 32; shift += 7)
+        {
+            byte b = bytes[position[0]++];
+
+            value |= (b & 0x7f) << shift;
+
+            if((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Malformed delta");
+    }
+
+}
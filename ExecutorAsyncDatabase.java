@@ -0,0 +1,243 @@
+package storageInterface;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementazione di {@link IAsyncDatabase} che esegue le operazioni di un {@link IDatabase} (sincrono)
+ * sui thread di un {@link ExecutorService}: il thread chiamante non resta bloccato sull'I/O del database,
+ * e il numero di operazioni in corso e' limitato solo dai thread dell'executor.
+ * Senza executor le operazioni vengono eseguite sul thread chiamante, e restituiscono un {@link AsyncResult}
+ * gia' completato: lo stesso codice puo' cosi' usare il database in modo sincrono o asincrono.
+ *
+ *
+ */
+public class ExecutorAsyncDatabase implements IAsyncDatabase
+{
+    private final IDatabase db;
+
+    private final ExecutorService executor;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link ExecutorAsyncDatabase}.
+     * @param db il database su cui eseguire le operazioni
+     * @param executor l'executor sui cui thread eseguire le operazioni, o {@code null} per eseguirle sul thread chiamante
+     */
+    public ExecutorAsyncDatabase(IDatabase db, ExecutorService executor)
+    {
+        this.db = db;
+        this.executor = executor;
+    }
+
+
+    private <T> AsyncResult<T> execute(Callable<T> operation)
+    {
+        AsyncResult<T> result = new AsyncResult<T>(operation);
+
+        if(executor != null)
+        {
+            executor.execute(result);
+        }
+        else
+        {
+            result.run();
+        }
+
+        return result;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public AsyncResult<Void> put(final IResource resource)
+    {
+        return execute(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                db.put(resource);
+                return null;
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public AsyncResult<String> putIfAbsent(final IResource resource)
+    {
+        return execute(new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                return db.putIfAbsent(resource);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public AsyncResult<String> putIfMatch(final IResource resource, final String expectedETag)
+    {
+        return execute(new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                return db.putIfMatch(resource, expectedETag);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#get(java.lang.String)
+     */
+    @Override
+    public AsyncResult<IResource> get(final String resourceURI)
+    {
+        return execute(new Callable<IResource>()
+        {
+            @Override
+            public IResource call()
+            {
+                return db.get(resourceURI);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public AsyncResult<String> getETag(final String resourceURI)
+    {
+        return execute(new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                return db.getETag(resourceURI);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public AsyncResult<ResourceRange> getRange(final String resourceURI, final long offset, final int length)
+    {
+        return execute(new Callable<ResourceRange>()
+        {
+            @Override
+            public ResourceRange call()
+            {
+                return db.getRange(resourceURI, offset, length);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public AsyncResult<Boolean> deleteIfMatch(final String resourceURI, final String expectedETag)
+    {
+        return execute(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                return db.deleteIfMatch(resourceURI, expectedETag);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public AsyncResult<Map<String, IResource>> getAll(final Collection<String> resourceURIs)
+    {
+        return execute(new Callable<Map<String, IResource>>()
+        {
+            @Override
+            public Map<String, IResource> call()
+            {
+                return db.getAll(resourceURIs);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public AsyncResult<Void> putAll(final Collection<? extends IResource> resources)
+    {
+        return execute(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                db.putAll(resources);
+                return null;
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IAsyncDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public AsyncResult<Set<String>> deleteAll(final Collection<String> resourceURIs)
+    {
+        return execute(new Callable<Set<String>>()
+        {
+            @Override
+            public Set<String> call()
+            {
+                return db.deleteAll(resourceURIs);
+            }
+        });
+    }
+
+
+    /**
+     * Termina l'executor, attendendo (al piu' {@code timeoutMillis} millisecondi) le operazioni in corso.
+     * @param timeoutMillis tempo massimo di attesa, in millisecondi
+     * @throws InterruptedException se il thread viene interrotto durante l'attesa
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException
+    {
+        if(executor == null)
+        {
+            return;
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -0,0 +1,676 @@
+package storageInterface;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Decoratore di un {@link IDatabase} che raggruppa le scritture concorrenti (group commit): le scritture vengono
+ * accodate, e un thread le esegue a blocchi (al piu' {@code maxBatchSize}) con un solo {@link IDatabase#putAll(Collection)}
+ * e un solo {@link IDatabase#deleteAll(Collection)}; piu' scritture dello stesso URI nello stesso blocco diventano
+ * una sola. Ogni chiamante attende che il blocco della sua scrittura sia stato eseguito, quindi al suo ritorno la
+ * scrittura e' persistente come con il database decorato.
+ * <p>
+ * Un blocco viene eseguito appena termina il precedente, con le scritture arrivate nel frattempo; con
+ * {@code maxDelay} maggiore di 0 si attende fino a {@code maxDelay} microsecondi che il blocco si riempia.
+ * <p>
+ * Se il database e' un {@link IBatchWriteDatabase} (e.g.: {@link DatastoreDatabase}) ogni blocco, comprese le
+ * scritture condizionali ({@link #putIfAbsent(IResource)}, {@link #putIfMatch(IResource, String)},
+ * {@link #deleteIfMatch(String, String)}), viene eseguito con un solo {@link IBatchWriteDatabase#writeAll(List)},
+ * che controlla le condizioni atomicamente con le scritture anche se altri scrivono nel database.
+ * Altrimenti le scritture condizionali vengono raggruppate solo se il database e' {@code exclusive}, cioe'
+ * se nessun altro (e.g.: un'altra istanza dell'applicazione) vi scrive: in tal caso il thread del group commit
+ * legge con un solo accesso lo stato attuale delle risorse coinvolte e valuta le condizioni nell'ordine di arrivo,
+ * e il controllo e la scrittura restano atomici perche' tutte le scritture passano da quel thread; se non lo e',
+ * le scritture condizionali vengono eseguite direttamente.
+ * <p>
+ * Se l'esecuzione di un blocco fallisce, le scritture gia' applicate (il blocco puo' essere stato applicato in parte)
+ * mantengono il loro esito, le altre vengono rieseguite una alla volta, cosi' che l'errore
+ * (e.g.: {@link InsufficientStorageException}) arrivi solo a chi lo ha causato.
+ *
+ *
+ */
+public class GroupCommitDatabase implements IDatabase
+{
+    private final IDatabase db;
+
+    private final int maxBatchSize;
+
+    private final long maxDelay;
+
+    private final boolean exclusive;
+
+    // null se il database non esegue blocchi di scritture condizionali
+    private final IBatchWriteDatabase batchDb;
+
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+
+    private final Thread committer;
+
+    private volatile boolean running = true;
+
+    // le scritture vengono accodate tenendo il read lock, shutdown() ferma il thread tenendo il write lock:
+    // nessuna scrittura puo' essere accodata dopo che il thread ha svuotato la coda per l'ultima volta
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link GroupCommitDatabase} e avvia il thread del group commit.
+     * @param db il database su cui eseguire le scritture
+     * @param maxBatchSize numero massimo di scritture di un blocco
+     * @param maxDelay attesa massima (in microsecondi) perche' un blocco si riempia; 0 = nessuna attesa
+     * @param exclusive {@code true} se nessun altro scrive nel database (vedi sopra)
+     */
+    public GroupCommitDatabase(IDatabase db, int maxBatchSize, long maxDelay, boolean exclusive)
+    {
+        this.db = db;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        this.exclusive = exclusive;
+        this.batchDb = (db instanceof IBatchWriteDatabase) ? (IBatchWriteDatabase) db : null;
+
+        committer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                commitLoop();
+            }
+        }, "StorageInterface group commit");
+
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+
+    /**
+     * Esegue le scritture gia' accodate e ferma il thread del group commit; le scritture successive vengono
+     * eseguite direttamente.
+     * @throws InterruptedException se il thread viene interrotto durante l'attesa
+     */
+    public void shutdown() throws InterruptedException
+    {
+        runningLock.writeLock().lock();
+
+        try
+        {
+            running = false;
+        }
+        finally
+        {
+            runningLock.writeLock().unlock();
+        }
+
+        committer.interrupt();
+        committer.join();
+    }
+
+
+    /**
+     * @return numero di scritture eseguite a blocchi
+     */
+    public long getWriteCount()
+    {
+        return writeCount.get();
+    }
+
+
+    /**
+     * @return numero di blocchi eseguiti
+     */
+    public long getBatchCount()
+    {
+        return batchCount.get();
+    }
+
+
+    private void commitLoop()
+    {
+        List<Write> batch = new ArrayList<Write>();
+
+        while(running || !queue.isEmpty())
+        {
+            try
+            {
+                if(batch.isEmpty())
+                {
+                    Write first = running ? queue.take() : queue.poll();
+
+                    if(first == null)
+                    {
+                        continue;
+                    }
+
+                    batch.add(first);
+                }
+
+                queue.drainTo(batch, maxBatchSize - batch.size());
+
+                if(maxDelay > 0 && running)
+                {
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxDelay);
+
+                    while(batch.size() < maxBatchSize)
+                    {
+                        Write next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+                        if(next == null)
+                        {
+                            break;
+                        }
+
+                        batch.add(next);
+                        queue.drainTo(batch, maxBatchSize - batch.size());
+                    }
+                }
+            }
+            catch(InterruptedException e)   // shutdown(): le scritture gia' accodate vengono comunque eseguite
+            {
+                continue;
+            }
+
+            commit(batch);
+
+            batch = new ArrayList<Write>();
+        }
+    }
+
+
+    private void commit(List<Write> batch)
+    {
+        List<ConditionalWrite> writes = new ArrayList<ConditionalWrite>(batch.size());
+
+        for(Write write : batch)
+        {
+            writes.add(write.operation);
+        }
+
+        if(batchDb != null)
+        {
+            try
+            {
+                batchDb.writeAll(writes);
+
+                completed(batch);
+            }
+            catch(RuntimeException e)   // le scritture eseguite mantengono il loro esito, le altre vengono rieseguite
+            {
+                for(Write write : batch)
+                {
+                    retry(write, !write.operation.isExecuted());
+                }
+            }
+
+            return;
+        }
+
+        // null finche' le condizioni non sono state valutate (nulla e' stato ancora scritto)
+        Map<String, ConditionalWrite> finalWrites = null;
+
+        try
+        {
+            finalWrites = evaluate(writes);
+
+            List<IResource> puts = new ArrayList<IResource>();
+            List<String> deletes = new ArrayList<String>();
+
+            for(ConditionalWrite write : finalWrites.values())
+            {
+                if(write.isDelete())
+                {
+                    deletes.add(write.getURI());
+                }
+                else
+                {
+                    puts.add(write.getResource());
+                }
+            }
+
+            if(!puts.isEmpty())
+            {
+                db.putAll(puts);
+            }
+
+            if(!deletes.isEmpty())
+            {
+                db.deleteAll(deletes);
+            }
+
+            completed(batch);
+        }
+        catch(RuntimeException e)
+        {
+            recover(batch, finalWrites, e);
+        }
+    }
+
+
+    private void completed(List<Write> batch)
+    {
+        writeCount.addAndGet(batch.size());
+        batchCount.incrementAndGet();
+
+        for(Write write : batch)
+        {
+            write.done.countDown();
+        }
+    }
+
+
+    // valuta le condizioni delle scritture nell'ordine di arrivo, sullo stato attuale delle risorse coinvolte in
+    // scritture condizionali (letto con un solo accesso), e restituisce l'ultima scrittura applicata di ogni URI
+    private Map<String, ConditionalWrite> evaluate(List<ConditionalWrite> writes)
+    {
+        Set<String> conditionalURIs = new HashSet<String>();
+
+        for(ConditionalWrite write : writes)
+        {
+            if(write.isConditional())
+            {
+                conditionalURIs.add(write.getURI());
+            }
+        }
+
+        Map<String, String> eTags = new HashMap<String, String>();
+
+        if(!conditionalURIs.isEmpty())
+        {
+            for(IResource resource : db.getAll(conditionalURIs).values())
+            {
+                eTags.put(resource.getURI(), resource.getETag());
+            }
+        }
+
+        return ConditionalWrite.evaluate(writes, eTags);
+    }
+
+
+    // l'esecuzione del blocco e' fallita, ma putAll e deleteAll potrebbero essere stati applicati in parte:
+    // lo stato finale di ogni URI e' stato scritto per intero o per nulla, quindi viene riletto e le scritture
+    // degli URI gia' nello stato finale mantengono il loro esito, mentre quelle degli altri URI vengono rieseguite
+    // una alla volta (nell'ordine di arrivo), cosi' che l'errore arrivi solo a chi lo ha causato
+    private void recover(List<Write> batch, Map<String, ConditionalWrite> finalWrites, RuntimeException failure)
+    {
+        // null = tutte le scritture (le condizioni non erano ancora state valutate)
+        Set<String> retryURIs = null;
+
+        if(finalWrites != null)
+        {
+            retryURIs = new HashSet<String>();
+
+            try
+            {
+                Map<String, IResource> current = db.getAll(finalWrites.keySet());
+
+                for(ConditionalWrite write : finalWrites.values())
+                {
+                    IResource currentResource = current.get(write.getURI());
+
+                    boolean applied = write.isDelete() ? currentResource == null
+                                                       : currentResource != null && currentResource.getETag().equals(write.getResource().getETag());
+
+                    if(!applied)
+                    {
+                        retryURIs.add(write.getURI());
+                    }
+                }
+            }
+            catch(RuntimeException readException)   // lo stato delle risorse non e' noto: il blocco fallisce
+            {
+                for(Write write : batch)
+                {
+                    write.failure = failure;
+                    write.done.countDown();
+                }
+
+                return;
+            }
+        }
+
+        for(Write write : batch)
+        {
+            retry(write, retryURIs == null || retryURIs.contains(write.operation.getURI()));
+        }
+    }
+
+
+    // riesegue da sola la scrittura, se execute e' true, e ne segnala la conclusione
+    private void retry(Write write, boolean execute)
+    {
+        if(execute)
+        {
+            try
+            {
+                write.operation.executeOn(db);
+            }
+            catch(RuntimeException writeException)
+            {
+                write.failure = writeException;
+            }
+        }
+
+        write.done.countDown();
+    }
+
+
+    // accoda la scrittura e ne attende l'esecuzione (dopo shutdown() la esegue direttamente)
+    private Object submit(ConditionalWrite operation)
+    {
+        Write write = new Write(operation);
+
+        if(!enqueue(Collections.singletonList(write)))
+        {
+            operation.executeOn(db);
+        }
+        else
+        {
+            await(write);
+        }
+
+        return operation.getResult();
+    }
+
+
+    // accoda le scritture, se il thread del group commit e' ancora attivo
+    private boolean enqueue(List<Write> writes)
+    {
+        runningLock.readLock().lock();
+
+        try
+        {
+            if(!running)
+            {
+                return false;
+            }
+
+            queue.addAll(writes);
+            return true;
+        }
+        finally
+        {
+            runningLock.readLock().unlock();
+        }
+    }
+
+
+    private static void await(Write write)
+    {
+        boolean interrupted = false;
+
+        // la scrittura potrebbe essere gia' stata eseguita: bisogna comunque attenderne l'esito
+        while(true)
+        {
+            try
+            {
+                write.done.await();
+                break;
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if(write.failure != null)
+        {
+            throw write.failure;
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource resource)
+    {
+        submit(ConditionalWrite.put(resource));
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource resource)
+    {
+        if(!exclusive && batchDb == null)
+        {
+            return db.putIfAbsent(resource);
+        }
+
+        return (String) submit(ConditionalWrite.putIfAbsent(resource));
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource resource, String expectedETag)
+    {
+        if(!exclusive && batchDb == null)
+        {
+            return db.putIfMatch(resource, expectedETag);
+        }
+
+        return (String) submit(ConditionalWrite.putIfMatch(resource, expectedETag));
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String resourceURI)
+    {
+        return db.get(resourceURI);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String resourceURI)
+    {
+        return db.getETag(resourceURI);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String resourceURI, long offset, int length)
+    {
+        return db.getRange(resourceURI, offset, length);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        return db.list(prefix, cursor, limit);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource resource)
+    {
+        return delete(resource.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String resourceURI)
+    {
+        return deleteIfMatch(resourceURI, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String resourceURI, String expectedETag)
+    {
+        if(!exclusive && batchDb == null)
+        {
+            return db.deleteIfMatch(resourceURI, expectedETag);
+        }
+
+        return (Boolean) submit(ConditionalWrite.deleteIfMatch(resourceURI, expectedETag));
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> resourceURIs)
+    {
+        return db.getAll(resourceURIs);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> resources)
+    {
+        if(!exclusive)   // gia' un'unica scrittura
+        {
+            db.putAll(resources);
+            return;
+        }
+
+        // con il database esclusivo tutte le scritture devono passare dal thread del group commit
+        List<Write> writes = new ArrayList<Write>();
+
+        for(IResource resource : resources)
+        {
+            writes.add(new Write(ConditionalWrite.put(resource)));
+        }
+
+        submitAll(writes);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> resourceURIs)
+    {
+        if(!exclusive)
+        {
+            return db.deleteAll(resourceURIs);
+        }
+
+        List<Write> writes = new ArrayList<Write>();
+
+        for(String resourceURI : new HashSet<String>(resourceURIs))
+        {
+            writes.add(new Write(ConditionalWrite.deleteIfMatch(resourceURI, null)));
+        }
+
+        submitAll(writes);
+
+        Set<String> deleted = new HashSet<String>();
+
+        for(Write write : writes)
+        {
+            if(write.operation.isApplied())
+            {
+                deleted.add(write.operation.getURI());
+            }
+        }
+
+        return deleted;
+    }
+
+
+    private void submitAll(List<Write> writes)
+    {
+        if(!enqueue(writes))
+        {
+            for(Write write : writes)
+            {
+                write.operation.executeOn(db);
+            }
+
+            return;
+        }
+
+        RuntimeException failure = null;
+
+        for(Write write : writes)
+        {
+            try
+            {
+                await(write);
+            }
+            catch(RuntimeException e)
+            {
+                failure = e;
+            }
+        }
+
+        if(failure != null)
+        {
+            throw failure;
+        }
+    }
+
+
+    /**
+     * Scrittura accodata: l'esito e' registrato nella {@link ConditionalWrite}.
+     */
+    private static class Write
+    {
+        private final ConditionalWrite operation;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // scritto dal thread del group commit prima di done.countDown()
+        private RuntimeException failure;
+
+        private Write(ConditionalWrite operation)
+        {
+            this.operation = operation;
+        }
+    }
+
+}
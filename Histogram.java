@@ -0,0 +1,161 @@
+package storageInterface;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Istogramma log-lineare (come quelli di HdrHistogram) di valori interi non negativi, e.g.: latenze in nanosecondi.
+ * I valori minori di {@code 2 * subBucketCount} hanno ciascuno il proprio bucket; ogni potenza di 2 successiva
+ * e' divisa in {@code subBucketCount} bucket di uguale ampiezza, quindi l'errore relativo sui percentili
+ * e' al piu' {@code 1 / subBucketCount} (circa 1.6%) per qualsiasi valore.
+ * La registrazione di un valore costa due incrementi atomici, senza lock ne' allocazioni.
+ *
+ *
+ */
+public class Histogram
+{
+    // bucket per potenza di 2: 2^6 = 64
+    private final static int subBucketBits = 6;
+
+    private final static int subBucketCount = 1 << subBucketBits;
+
+    // i valori da 2^maxValueBits in su finiscono nell'ultimo bucket (2^40 ns sono piu' di 18 minuti)
+    private final static int maxValueBits = 40;
+
+    private final static long maxValue = (1L << maxValueBits) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(maxValue) + 1);
+
+    private final AtomicLong sum = new AtomicLong();
+
+
+    /**
+     * Registra un valore. I valori negativi vengono registrati come 0.
+     * @param value il valore da registrare
+     */
+    public void record(long value)
+    {
+        if(value < 0)
+        {
+            value = 0;
+        }
+
+        counts.incrementAndGet(indexOf(Math.min(value, maxValue)));
+        sum.addAndGet(value);
+    }
+
+
+    /**
+     * Restituisce un'istantanea dei valori registrati finora.
+     * @return l'istantanea
+     */
+    public Snapshot snapshot()
+    {
+        long[] snapshotCounts = new long[counts.length()];
+
+        for(int i = 0; i < snapshotCounts.length; i++)
+        {
+            snapshotCounts[i] = counts.get(i);
+        }
+
+        return new Snapshot(snapshotCounts, sum.get());
+    }
+
+
+    // i primi 2 * subBucketCount bucket sono lineari; poi il bucket e' dato dai subBucketBits + 1 bit piu' significativi
+    private static int indexOf(long value)
+    {
+        if(value < 2 * subBucketCount)
+        {
+            return (int) value;
+        }
+
+        int shift = 64 - Long.numberOfLeadingZeros(value) - (subBucketBits + 1);
+
+        return (shift << subBucketBits) + (int) (value >>> shift);
+    }
+
+
+    // massimo valore che finisce nel bucket index
+    private static long highestValueOf(int index)
+    {
+        if(index < 2 * subBucketCount)
+        {
+            return index;
+        }
+
+        int shift = (index >>> subBucketBits) - 1;
+        long subBucket = index - (shift << subBucketBits);
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+
+    /**
+     * Istantanea (immutabile) di un {@link Histogram}.
+     */
+    public static class Snapshot
+    {
+        private final long[] counts;
+
+        private final long count;
+
+        private final long sum;
+
+        private Snapshot(long[] counts, long sum)
+        {
+            long count = 0;
+
+            for(long bucketCount : counts)
+            {
+                count += bucketCount;
+            }
+
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        /**
+         * @return il numero di valori registrati
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return la somma dei valori registrati
+         */
+        public long getSum()
+        {
+            return sum;
+        }
+
+        /**
+         * Restituisce il valore sotto il quale (o uguale al quale) cade la frazione {@code quantile} dei valori registrati,
+         * arrotondato per eccesso al limite superiore del suo bucket.
+         * @param quantile la frazione dei valori, tra 0 e 1 (e.g.: 0.99 per il 99-esimo percentile)
+         * @return il valore, o 0 se non e' stato registrato alcun valore
+         */
+        public long getValueAtQuantile(double quantile)
+        {
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+
+            long cumulativeCount = 0;
+
+            for(int i = 0; i < counts.length; i++)
+            {
+                cumulativeCount += counts[i];
+
+                if(cumulativeCount >= rank)
+                {
+                    return highestValueOf(i);
+                }
+            }
+
+            return 0;
+        }
+    }
+
+}
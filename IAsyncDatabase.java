@@ -0,0 +1,93 @@
+package storageInterface;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Variante asincrona di {@link IDatabase}: ogni operazione viene avviata e restituisce subito un {@link AsyncResult},
+ * senza bloccare il thread chiamante fino alla risposta del database; la fine dell'operazione puo' essere attesa
+ * o notificata ad un listener ({@link AsyncResult#addListener(Runnable)}).
+ * Ciascun metodo ha la stessa semantica del corrispondente metodo di {@link IDatabase};
+ * le eccezioni lanciate dall'operazione vengono restituite da {@link AsyncResult#get()} (incapsulate in una
+ * {@link java.util.concurrent.ExecutionException}) e rilanciate da {@link AsyncResult#getResult()}.
+ *
+ *
+ */
+public interface IAsyncDatabase
+{
+    /**
+     * Versione asincrona di {@link IDatabase#put(IResource)}.
+     * @param resource {@link IResource} da creare o aggiornare
+     * @return un {@link AsyncResult} completato quando la scrittura e' terminata
+     */
+    public abstract AsyncResult<Void> put(IResource resource);
+
+    /**
+     * Versione asincrona di {@link IDatabase#putIfAbsent(IResource)}.
+     * @param resource {@link IResource} da creare
+     * @return un {@link AsyncResult} con l'ETag di {@code resource} se e' stato creato, {@code null} altrimenti
+     */
+    public abstract AsyncResult<String> putIfAbsent(IResource resource);
+
+    /**
+     * Versione asincrona di {@link IDatabase#putIfMatch(IResource, String)}.
+     * @param resource {@link IResource} da aggiornare
+     * @param expectedETag l'ETag che la risorsa deve avere nel database perche' venga aggiornata
+     * @return un {@link AsyncResult} con il nuovo ETag di {@code resource} se e' stato aggiornato, {@code null} altrimenti
+     */
+    public abstract AsyncResult<String> putIfMatch(IResource resource, String expectedETag);
+
+    /**
+     * Versione asincrona di {@link IDatabase#get(String)}.
+     * @param resourceURI {@link String} che identifica un {@link IResource}
+     * @return un {@link AsyncResult} con l'{@link IResource} determinato da {@code resourceURI}, o {@code null} se non esiste
+     */
+    public abstract AsyncResult<IResource> get(String resourceURI);
+
+    /**
+     * Versione asincrona di {@link IDatabase#getETag(String)}.
+     * @param resourceURI {@link String} che identifica un {@link IResource}
+     * @return un {@link AsyncResult} con l'ETag dell'{@link IResource} determinato da {@code resourceURI}, o {@code null} se non esiste
+     */
+    public abstract AsyncResult<String> getETag(String resourceURI);
+
+    /**
+     * Versione asincrona di {@link IDatabase#getRange(String, long, int)}.
+     * @param resourceURI {@link String} che identifica un {@link IResource}
+     * @param offset posizione del primo byte richiesto, o (se negativo) numero di byte richiesti alla fine del contenuto
+     * @param length numero massimo di byte richiesti (ignorato se {@code offset} e' negativo)
+     * @return un {@link AsyncResult} con la porzione richiesta del contenuto, o {@code null} se la risorsa non esiste
+     */
+    public abstract AsyncResult<ResourceRange> getRange(String resourceURI, long offset, int length);
+
+    /**
+     * Versione asincrona di {@link IDatabase#deleteIfMatch(String, String)}.
+     * @param resourceURI {@link String} che identifica l'{@link IResource} da eliminare
+     * @param expectedETag l'ETag che la risorsa deve avere perche' venga eliminata, o {@code null}
+     * @return un {@link AsyncResult} con {@code true} se e solo se la risorsa e' stata effettivamente eliminata
+     */
+    public abstract AsyncResult<Boolean> deleteIfMatch(String resourceURI, String expectedETag);
+
+    /**
+     * Versione asincrona di {@link IDatabase#getAll(Collection)}.
+     * @param resourceURIs gli URI delle risorse da leggere
+     * @return un {@link AsyncResult} con la mappa da URI a {@link IResource} delle risorse presenti nel database
+     */
+    public abstract AsyncResult<Map<String, IResource>> getAll(Collection<String> resourceURIs);
+
+    /**
+     * Versione asincrona di {@link IDatabase#putAll(Collection)}.
+     * @param resources gli {@link IResource} da creare o aggiornare
+     * @return un {@link AsyncResult} completato quando tutte le scritture sono terminate
+     */
+    public abstract AsyncResult<Void> putAll(Collection<? extends IResource> resources);
+
+    /**
+     * Versione asincrona di {@link IDatabase#deleteAll(Collection)}.
+     * @param resourceURIs gli URI delle risorse da eliminare
+     * @return un {@link AsyncResult} con gli URI delle risorse effettivamente eliminate
+     */
+    public abstract AsyncResult<Set<String>> deleteAll(Collection<String> resourceURIs);
+
+}
@@ -0,0 +1,24 @@
+package storageInterface;
+
+import java.util.List;
+
+/**
+ * {@link IDatabase} che esegue un blocco di scritture condizionali con pochi accessi: lo stato attuale delle risorse
+ * coinvolte viene letto con una lettura multipla, le condizioni valutate nell'ordine del blocco e le scritture
+ * applicate con una scrittura multipla.
+ *
+ *
+ */
+public interface IBatchWriteDatabase extends IDatabase
+{
+    /**
+     * Esegue le scritture in {@code writes}, nell'ordine, registrandone l'esito ({@link ConditionalWrite#isApplied()}):
+     * ogni scrittura ha la stessa semantica del metodo corrispondente di {@link IDatabase}, e il controllo della sua
+     * condizione avviene atomicamente con la scrittura; il blocco nel suo insieme puo' invece essere applicato
+     * in piu' parti. Se viene lanciata un'eccezione, le scritture gia' eseguite ({@link ConditionalWrite#isExecuted()})
+     * mantengono il loro esito, le altre non sono state applicate.
+     * @param writes le scritture da eseguire
+     */
+    public abstract void writeAll(List<ConditionalWrite> writes);
+
+}
@@ -1,5 +1,9 @@
 package storageInterface;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Interfaccia che definisce un database utilizzabile da {@link StorageInterfaceServlet}.
  * Tale database opera su oggetti di tipo {@link IResource}.
@@ -11,12 +15,31 @@ public interface IDatabase
     /**
      * Crea (se e solo se {@code resource} non e' presente nel database) o aggiorna
      * (se e solo se {@code resource} e' gia' presente nel database) l'{@link IResource} {@code resource}.
-     *
+     * Insieme al contenuto viene memorizzato anche l'ETag di {@code resource}, in modo che
+     * {@link #get(String)} possa restituirlo senza ricalcolarlo.
      *
      * @param resource {@link IResource} da creare o aggiornare
      */
     public abstract void put(IResource resource);
 
+    /**
+     * Crea l'{@link IResource} {@code resource} se e solo se non e' gia' presente nel database.
+     * Il controllo e la scrittura avvengono atomicamente.
+     * @param resource {@link IResource} da creare
+     * @return l'ETag di {@code resource} se e' stato creato; {@code null} se era gia' presente nel database
+     */
+    public abstract String putIfAbsent(IResource resource);
+
+    /**
+     * Aggiorna l'{@link IResource} {@code resource} se e solo se e' presente nel database e il suo ETag
+     * attuale e' {@code expectedETag}. Il controllo e la scrittura avvengono atomicamente.
+     * @param resource {@link IResource} da aggiornare
+     * @param expectedETag l'ETag che la risorsa deve avere nel database perche' venga aggiornata
+     * @return il nuovo ETag di {@code resource} se e' stato aggiornato; {@code null} se non era presente nel database
+     * o se il suo ETag era diverso da {@code expectedETag}
+     */
+    public abstract String putIfMatch(IResource resource, String expectedETag);
+
     /**
      * Se esiste, restituisce l'{@link IResource} univocamente determinato da {@code resourceURI}; altrimenti restituisce {@code null}.
      * @param resourceURI {@link String} che identifica un {@link IResource}
@@ -24,6 +47,38 @@ public interface IDatabase
      */
     public abstract IResource get(String resourceURI);
 
+    /**
+     * Se esiste, restituisce l'ETag dell'{@link IResource} univocamente determinato da {@code resourceURI};
+     * altrimenti restituisce {@code null}.
+     * Le implementazioni dovrebbero evitare di leggere il contenuto della risorsa.
+     * @param resourceURI {@link String} che identifica un {@link IResource}
+     * @return l'ETag dell'{@link IResource} univocamente determinato da {@code resourceURI}, se esiste; {@code null} altrimenti
+     */
+    public abstract String getETag(String resourceURI);
+
+    /**
+     * Se esiste, restituisce una porzione del contenuto (codificato in UTF-8) dell'{@link IResource} univocamente
+     * determinato da {@code resourceURI}; altrimenti restituisce {@code null}.
+     * Le implementazioni dovrebbero leggere solo la parte di contenuto richiesta. Se {@code offset} e' oltre la fine
+     * del contenuto, la porzione restituita e' vuota.
+     * @param resourceURI {@link String} che identifica un {@link IResource}
+     * @param offset posizione del primo byte richiesto, o (se negativo) numero di byte richiesti alla fine del contenuto
+     * @param length numero massimo di byte richiesti (ignorato se {@code offset} e' negativo)
+     * @return la porzione richiesta del contenuto, con ETag e lunghezza totale della risorsa, se esiste; {@code null} altrimenti
+     */
+    public abstract ResourceRange getRange(String resourceURI, long offset, int length);
+
+    /**
+     * Elenca, in ordine di URI, le risorse il cui URI inizia con {@code prefix}, con i rispettivi ETag,
+     * una pagina alla volta. Il contenuto delle risorse non viene letto.
+     * @param prefix prefisso degli URI delle risorse da elencare ({@code ""} per elencarle tutte)
+     * @param cursor il cursore restituito con la pagina precedente ({@link ResourceListing#getNextCursor()}),
+     * o {@code null} per la prima pagina
+     * @param limit numero massimo di risorse della pagina (maggiore di 0)
+     * @return la pagina dell'elenco, con il cursore della pagina successiva
+     */
+    public abstract ResourceListing list(String prefix, String cursor, int limit);
+
     /**
      * Elimina l'{@link IResource} {@code resource} dal database.
      * @param resource {@link IResource} da eliminare
@@ -40,4 +95,36 @@ public interface IDatabase
      */
     public abstract boolean delete(String resourceURI);
 
+    /**
+     * Elimina dal database l'{@link IResource} univocamente determinato da {@code resourceURI}, se e solo se
+     * il suo ETag attuale e' {@code expectedETag}. Il controllo e la cancellazione avvengono atomicamente.
+     * @param resourceURI {@link String} che identifica l'{@link IResource} da eliminare
+     * @param expectedETag l'ETag che la risorsa deve avere perche' venga eliminata; se {@code null} la risorsa
+     * viene eliminata qualunque sia il suo ETag
+     * @return {@code true} se e solo se la risorsa e' stata effettivamente eliminata, {@code false} altrimenti
+     * (e.g.: {@code resourceURI} non identificava un {@link IResource} nel database, o il suo ETag era diverso
+     * da {@code expectedETag})
+     */
+    public abstract boolean deleteIfMatch(String resourceURI, String expectedETag);
+
+    /**
+     * Restituisce gli {@link IResource} univocamente determinati dagli URI in {@code resourceURIs}.
+     * @param resourceURIs gli URI delle risorse da leggere
+     * @return una mappa da URI a {@link IResource}, che contiene solo le risorse presenti nel database
+     */
+    public abstract Map<String, IResource> getAll(Collection<String> resourceURIs);
+
+    /**
+     * Crea o aggiorna (come {@link #put(IResource)}) tutti gli {@link IResource} in {@code resources}.
+     * @param resources gli {@link IResource} da creare o aggiornare
+     */
+    public abstract void putAll(Collection<? extends IResource> resources);
+
+    /**
+     * Elimina dal database gli {@link IResource} univocamente determinati dagli URI in {@code resourceURIs}.
+     * @param resourceURIs gli URI delle risorse da eliminare
+     * @return gli URI delle risorse effettivamente eliminate
+     */
+    public abstract Set<String> deleteAll(Collection<String> resourceURIs);
+
 }
\ No newline at end of file
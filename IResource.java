@@ -2,7 +2,9 @@ package storageInterface;
 
 /**
  * Interfaccia che definisce il tipo di risorsa su cui opera {@link StorageInterfaceServlet}.
- * Ciascuna risorsa e' univocamente determinata da un URI e puo' avere un contenuto di tipo {@link String}.
+ * Ciascuna risorsa e' univocamente determinata da un URI e puo' avere un contenuto di tipo {@link String},
+ * accessibile anche come array di byte (nella codifica UTF-8) senza ulteriori conversioni, e in forma compressa (gzip)
+ * per essere memorizzato e trasmesso cosi' com'e'.
  *
  *
  */
@@ -20,12 +22,34 @@ public interface IResource
      */
     public abstract void setContent(String content);
 
+    /**
+     * Imposta {@code contentBytes}, codificato in UTF-8, come contenuto della risorsa.
+     * L'array non viene copiato: non deve essere modificato dopo la chiamata.
+     * @param contentBytes il contenuto (codificato in UTF-8) che si vuole assegnare alla risorsa
+     */
+    public abstract void setContent(byte[] contentBytes);
+
     /**
      * Restituisce il contenuto della risorsa.
      * @return il contenuto della risorsa
      */
     public abstract String getContent();
 
+    /**
+     * Restituisce il contenuto della risorsa, codificato in UTF-8.
+     * L'array restituito non e' una copia: non deve essere modificato.
+     * @return il contenuto della risorsa, codificato in UTF-8
+     */
+    public abstract byte[] getContentBytes();
+
+    /**
+     * Restituisce il contenuto della risorsa, codificato in UTF-8 e compresso con gzip, oppure {@code null}
+     * se il contenuto e' troppo piccolo (o troppo poco comprimibile) perche' convenga comprimerlo.
+     * La compressione viene eseguita al piu' una volta. L'array restituito non e' una copia: non deve essere modificato.
+     * @return il contenuto della risorsa compresso con gzip, o {@code null}
+     */
+    public abstract byte[] getGzippedContent();
+
     /**
      * Restituisce l'ETag della risorsa
      * @return l'ETag della risorsa
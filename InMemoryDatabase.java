@@ -0,0 +1,534 @@
+package storageInterface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implementazione di {@link IDatabase} che mantiene le risorse in memoria.
+ * Le risorse sono ordinate per URI in una {@link ConcurrentSkipListMap}, cosi' che possano essere elencate per prefisso:
+ * letture e scritture sono lock-free, le risorse memorizzate non vengono mai modificate e le operazioni condizionali
+ * sono realizzate con compare-and-set.
+ * Il numero di risorse e la loro dimensione complessiva possono essere limitati; il contenuto del database
+ * puo' essere salvato su (e ripristinato da) un file locale.
+ *
+ *
+ */
+public class InMemoryDatabase implements IDatabase
+{
+    private final ConcurrentNavigableMap<String, SINode> siNodes;
+
+    // limiti (un valore negativo indica nessun limite)
+    private final long maxEntries;
+
+    private final long maxBytes;
+
+    // stato corrente, usato per far rispettare i limiti
+    private final AtomicLong entries = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final static Charset snapshotCharset = Charset.forName("UTF-8");
+
+    private final static int snapshotMagicNumber = 0x53494D31; // "SIM1"
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link InMemoryDatabase}, senza limiti di dimensione.
+     */
+    public InMemoryDatabase()
+    {
+        this(-1, -1);
+    }
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link InMemoryDatabase}.
+     * @param maxEntries numero massimo di risorse memorizzabili, o un valore negativo per nessun limite
+     * @param maxBytes dimensione massima (stimata, in byte) delle risorse memorizzabili, o un valore negativo per nessun limite
+     */
+    public InMemoryDatabase(long maxEntries, long maxBytes)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.siNodes = new ConcurrentSkipListMap<String, SINode>();
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String siNodeURI)
+    {
+        SINode siNode = siNodes.get(siNodeURI);
+
+        if(siNode != null)
+        {
+            // copia: il chiamante puo' modificare il nodo restituito senza alterare quello memorizzato
+            return new SINode(siNode.getURI(), siNode.getContentBytes(), siNode.getGzippedContent(), siNode.getETag());
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String siNodeURI)
+    {
+        SINode siNode = siNodes.get(siNodeURI);
+
+        if(siNode != null)
+        {
+            return siNode.getETag();
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String siNodeURI, long offset, int length)
+    {
+        SINode siNode = siNodes.get(siNodeURI);
+
+        if(siNode != null)
+        {
+            return ResourceRange.of(siNode, offset, length);
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        // la pagina inizia dopo il cursore, o dal prefisso se il cursore lo precede
+        Map<String, SINode> tail = (cursor != null && cursor.compareTo(prefix) >= 0) ? siNodes.tailMap(cursor, false)
+                                                                                     : siNodes.tailMap(prefix, true);
+
+        LinkedHashMap<String, String> eTags = new LinkedHashMap<String, String>();
+
+        String lastURI = null;
+
+        for(Map.Entry<String, SINode> entry : tail.entrySet())
+        {
+            if(!entry.getKey().startsWith(prefix))   // oltre l'ultimo URI con il prefisso
+            {
+                break;
+            }
+
+            if(eTags.size() == limit)   // c'e' almeno un'altra risorsa: la pagina non e' l'ultima
+            {
+                return new ResourceListing(eTags, lastURI);
+            }
+
+            lastURI = entry.getKey();
+            eTags.put(lastURI, entry.getValue().getETag());
+        }
+
+        return new ResourceListing(eTags, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource siNode)
+    {
+        SINode newNode = copyOf(siNode);
+
+        // una sovrascrittura non aumenta il numero di risorse
+        int newEntries = siNodes.containsKey(newNode.getURI()) ? 0 : 1;
+
+        reserve(sizeOf(newNode), newEntries);
+
+        SINode oldNode = siNodes.put(newNode.getURI(), newNode);
+
+        // corregge la stima se nel frattempo il nodo e' stato creato o eliminato da un altro thread
+        if(oldNode != null)
+        {
+            release(sizeOf(oldNode), newEntries);
+        }
+        else
+        {
+            release(0, newEntries - 1);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource siNode)
+    {
+        SINode newNode = copyOf(siNode);
+
+        if(siNodes.containsKey(newNode.getURI()))   // evita di riservare spazio inutilmente
+        {
+            return null;
+        }
+
+        reserve(sizeOf(newNode), 1);
+
+        if(siNodes.putIfAbsent(newNode.getURI(), newNode) != null)
+        {
+            release(sizeOf(newNode), 1);
+            return null;
+        }
+
+        return newNode.getETag();
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource siNode, String expectedETag)
+    {
+        SINode newNode = copyOf(siNode);
+
+        while(true)
+        {
+            SINode oldNode = siNodes.get(newNode.getURI());
+
+            if(oldNode == null || !oldNode.getETag().equals(expectedETag))
+            {
+                return null;
+            }
+
+            reserve(sizeOf(newNode), 0);
+
+            // compare-and-set: fallisce se nel frattempo il nodo e' stato modificato (SINode usa l'uguaglianza per identita')
+            if(siNodes.replace(newNode.getURI(), oldNode, newNode))
+            {
+                release(sizeOf(oldNode), 0);
+                return newNode.getETag();
+            }
+
+            release(sizeOf(newNode), 0);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource siNode)
+    {
+        return delete(siNode.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String siNodeURI)
+    {
+        SINode oldNode = siNodes.remove(siNodeURI);
+
+        if(oldNode != null)
+        {
+            release(sizeOf(oldNode), 1);
+            return true;
+        }
+        else
+        {
+            return false;
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String siNodeURI, String expectedETag)
+    {
+        if(expectedETag == null)
+        {
+            return delete(siNodeURI);
+        }
+
+        while(true)
+        {
+            SINode oldNode = siNodes.get(siNodeURI);
+
+            if(oldNode == null || !oldNode.getETag().equals(expectedETag))
+            {
+                return false;
+            }
+
+            if(siNodes.remove(siNodeURI, oldNode))
+            {
+                release(sizeOf(oldNode), 1);
+                return true;
+            }
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> siNodeURIs)
+    {
+        Map<String, IResource> found = new HashMap<String, IResource>();
+
+        for(String siNodeURI : siNodeURIs)
+        {
+            IResource siNode = get(siNodeURI);
+
+            if(siNode != null)
+            {
+                found.put(siNodeURI, siNode);
+            }
+        }
+
+        return found;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> siNodes)
+    {
+        for(IResource siNode : siNodes)
+        {
+            put(siNode);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> siNodeURIs)
+    {
+        Set<String> deleted = new HashSet<String>();
+
+        for(String siNodeURI : siNodeURIs)
+        {
+            if(delete(siNodeURI))
+            {
+                deleted.add(siNodeURI);
+            }
+        }
+
+        return deleted;
+    }
+
+
+    /**
+     * Restituisce il numero di risorse memorizzate.
+     * @return il numero di risorse memorizzate
+     */
+    public long size()
+    {
+        return entries.get();
+    }
+
+
+    /**
+     * Restituisce la dimensione complessiva (stimata, in byte) delle risorse memorizzate.
+     * @return la dimensione complessiva delle risorse memorizzate
+     */
+    public long sizeInBytes()
+    {
+        return bytes.get();
+    }
+
+
+    /**
+     * Salva tutte le risorse su {@code snapshotFile}. Il file viene prima scritto in una copia temporanea
+     * e poi rinominato, in modo che un salvataggio interrotto non corrompa lo snapshot precedente.
+     * Le scritture concorrenti al salvataggio possono essere incluse o meno nello snapshot.
+     * @param snapshotFile il file in cui salvare le risorse
+     * @throws IOException se fallisce la scrittura del file
+     */
+    public void snapshot(File snapshotFile) throws IOException
+    {
+        File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+
+        try
+        {
+            out.writeInt(snapshotMagicNumber);
+
+            for(SINode siNode : siNodes.values())
+            {
+                out.writeBoolean(true);
+                writeString(out, siNode.getURI());
+                writeString(out, siNode.getETag());
+                writeBytes(out, siNode.getContentBytes());
+            }
+
+            out.writeBoolean(false); // fine dello snapshot
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if(snapshotFile.exists() && !snapshotFile.delete())
+        {
+            throw new IOException("Cannot replace " + snapshotFile);
+        }
+
+        if(!temporaryFile.renameTo(snapshotFile))
+        {
+            throw new IOException("Cannot rename " + temporaryFile + " to " + snapshotFile);
+        }
+    }
+
+
+    /**
+     * Aggiunge al database tutte le risorse salvate in {@code snapshotFile} (sovrascrivendo quelle con lo stesso URI).
+     * @param snapshotFile il file da cui ripristinare le risorse
+     * @throws IOException se fallisce la lettura del file, o se il file non e' uno snapshot valido
+     */
+    public void restore(File snapshotFile) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+
+        try
+        {
+            if(in.readInt() != snapshotMagicNumber)
+            {
+                throw new IOException(snapshotFile + " is not a snapshot");
+            }
+
+            while(in.readBoolean())
+            {
+                String siNodeURI = readString(in);
+                String eTag = readString(in);
+                byte[] contentBytes = readBytes(in);
+
+                put(new SINode(siNodeURI, contentBytes, eTag));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    private static SINode copyOf(IResource siNode)
+    {
+        // contenuto in byte, contenuto compresso ed ETag vengono calcolati (una volta sola) prima che il nodo
+        // diventi visibile agli altri thread; il contenuto compresso permette di rispondere ai client che accettano
+        // gzip senza comprimere ad ogni lettura
+        return new SINode(siNode.getURI(), siNode.getContentBytes(), siNode.getGzippedContent(), siNode.getETag());
+    }
+
+
+    // stima grossolana dell'occupazione in memoria di un nodo
+    private static long sizeOf(SINode siNode)
+    {
+        byte[] gzippedContent = siNode.getGzippedContent();
+
+        return 2L * (siNode.getURI().length() + siNode.getETag().length()) + siNode.getContentBytes().length
+               + ((gzippedContent != null) ? gzippedContent.length : 0) + 64;
+    }
+
+
+    // riserva lo spazio per nodeSize byte e newEntries risorse, lanciando InsufficientStorageException
+    // se i limiti verrebbero superati
+    private void reserve(long nodeSize, int newEntries)
+    {
+        long newBytes = bytes.addAndGet(nodeSize);
+        long newCount = entries.addAndGet(newEntries);
+
+        if(maxBytes >= 0 && newBytes > maxBytes)
+        {
+            release(nodeSize, newEntries);
+            throw new InsufficientStorageException("Database size limit (" + maxBytes + " bytes) exceeded");
+        }
+
+        if(maxEntries >= 0 && newCount > maxEntries)
+        {
+            release(nodeSize, newEntries);
+            throw new InsufficientStorageException("Database entries limit (" + maxEntries + ") exceeded");
+        }
+    }
+
+
+    // rilascia lo spazio riservato per nodeSize byte e oldEntries risorse
+    private void release(long nodeSize, int oldEntries)
+    {
+        bytes.addAndGet(-nodeSize);
+        entries.addAndGet(-oldEntries);
+    }
+
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        writeBytes(out, string.getBytes(snapshotCharset));
+    }
+
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        return new String(readBytes(in), snapshotCharset);
+    }
+
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    private static byte[] readBytes(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+
+        in.readFully(bytes);
+
+        return bytes;
+    }
+
+}
@@ -0,0 +1,406 @@
+package storageInterface;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decoratore di un {@link IDatabase} che registra in {@link Metrics} la latenza di ogni metodo
+ * ({@code storage_interface_database_duration_seconds}) e il numero di operazioni fallite con un'eccezione
+ * ({@code storage_interface_database_errors_total}).
+ * Conta inoltre gli accessi al database effettuati da ciascun thread (vedi {@link #resetRoundTrips()}),
+ * in modo che la servlet possa registrare quanti accessi ha richiesto ogni richiesta.
+ *
+ *
+ */
+public class InstrumentedDatabase implements IDatabase
+{
+    private final IDatabase db;
+
+    private final Histogram putHistogram;
+
+    private final Histogram putIfAbsentHistogram;
+
+    private final Histogram putIfMatchHistogram;
+
+    private final Histogram getHistogram;
+
+    private final Histogram getETagHistogram;
+
+    private final Histogram getRangeHistogram;
+
+    private final Histogram listHistogram;
+
+    private final Histogram deleteHistogram;
+
+    private final Histogram deleteIfMatchHistogram;
+
+    private final Histogram getAllHistogram;
+
+    private final Histogram putAllHistogram;
+
+    private final Histogram deleteAllHistogram;
+
+    private final AtomicLong errorCount;
+
+    // accessi al database del thread corrente, dall'ultimo resetRoundTrips()
+    private final ThreadLocal<long[]> roundTrips = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[1];
+        }
+    };
+
+    private final static String durationMetricName = "storage_interface_database_duration_seconds";
+
+    private final static String durationMetricHelp = "Latency of the storage backend operations";
+
+    private final static String errorsMetricName = "storage_interface_database_errors_total";
+
+    private final static String errorsMetricHelp = "Storage backend operations failed with an exception";
+
+    private final static double nanosPerSecond = 1e9;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link InstrumentedDatabase}.
+     * @param db il database di cui misurare le operazioni
+     * @param metrics il registro in cui registrare le metriche
+     */
+    public InstrumentedDatabase(IDatabase db, Metrics metrics)
+    {
+        this.db = db;
+
+        putHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "put");
+        putIfAbsentHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "putIfAbsent");
+        putIfMatchHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "putIfMatch");
+        getHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "get");
+        getETagHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "getETag");
+        getRangeHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "getRange");
+        listHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "list");
+        deleteHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "delete");
+        deleteIfMatchHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "deleteIfMatch");
+        getAllHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "getAll");
+        putAllHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "putAll");
+        deleteAllHistogram = metrics.histogram(durationMetricName, durationMetricHelp, nanosPerSecond, "method", "deleteAll");
+
+        errorCount = metrics.counter(errorsMetricName, errorsMetricHelp);
+    }
+
+
+    /**
+     * Azzera il numero di accessi al database effettuati dal thread corrente.
+     */
+    public void resetRoundTrips()
+    {
+        roundTrips.get()[0] = 0;
+    }
+
+
+    /**
+     * Restituisce il numero di accessi al database effettuati dal thread corrente dall'ultimo {@link #resetRoundTrips()}.
+     * Gli accessi effettuati per conto del thread da altri thread (e.g.: da un {@link ExecutorAsyncDatabase}) non sono compresi.
+     * @return il numero di accessi al database
+     */
+    public long getRoundTrips()
+    {
+        return roundTrips.get()[0];
+    }
+
+
+    // da chiamare prima di ogni accesso al database; restituisce l'istante di inizio dell'accesso
+    private long begin()
+    {
+        roundTrips.get()[0]++;
+
+        return System.nanoTime();
+    }
+
+
+    // da chiamare (in un finally) dopo ogni accesso al database
+    private void end(Histogram histogram, long startTime, boolean failed)
+    {
+        histogram.record(System.nanoTime() - startTime);
+
+        if(failed)
+        {
+            errorCount.incrementAndGet();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource resource)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            db.put(resource);
+            failed = false;
+        }
+        finally
+        {
+            end(putHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource resource)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            String eTag = db.putIfAbsent(resource);
+            failed = false;
+            return eTag;
+        }
+        finally
+        {
+            end(putIfAbsentHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource resource, String expectedETag)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            String eTag = db.putIfMatch(resource, expectedETag);
+            failed = false;
+            return eTag;
+        }
+        finally
+        {
+            end(putIfMatchHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String resourceURI)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            IResource resource = db.get(resourceURI);
+            failed = false;
+            return resource;
+        }
+        finally
+        {
+            end(getHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String resourceURI)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            String eTag = db.getETag(resourceURI);
+            failed = false;
+            return eTag;
+        }
+        finally
+        {
+            end(getETagHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String resourceURI, long offset, int length)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            ResourceRange range = db.getRange(resourceURI, offset, length);
+            failed = false;
+            return range;
+        }
+        finally
+        {
+            end(getRangeHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            ResourceListing listing = db.list(prefix, cursor, limit);
+            failed = false;
+            return listing;
+        }
+        finally
+        {
+            end(listHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource resource)
+    {
+        return delete(resource.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String resourceURI)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            boolean deleted = db.delete(resourceURI);
+            failed = false;
+            return deleted;
+        }
+        finally
+        {
+            end(deleteHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String resourceURI, String expectedETag)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            boolean deleted = db.deleteIfMatch(resourceURI, expectedETag);
+            failed = false;
+            return deleted;
+        }
+        finally
+        {
+            end(deleteIfMatchHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> resourceURIs)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            Map<String, IResource> found = db.getAll(resourceURIs);
+            failed = false;
+            return found;
+        }
+        finally
+        {
+            end(getAllHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> resources)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            db.putAll(resources);
+            failed = false;
+        }
+        finally
+        {
+            end(putAllHistogram, startTime, failed);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> resourceURIs)
+    {
+        long startTime = begin();
+        boolean failed = true;
+
+        try
+        {
+            Set<String> deleted = db.deleteAll(resourceURIs);
+            failed = false;
+            return deleted;
+        }
+        finally
+        {
+            end(deleteAllHistogram, startTime, failed);
+        }
+    }
+
+}
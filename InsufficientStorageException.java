@@ -0,0 +1,20 @@
+package storageInterface;
+
+/**
+ * Eccezione lanciata da un {@link IDatabase} quando non c'e' spazio sufficiente per memorizzare una risorsa
+ * (e.g.: e' stato raggiunto il numero massimo di risorse o la dimensione massima del database).
+ *
+ *
+ */
+@SuppressWarnings("serial")
+public class InsufficientStorageException extends RuntimeException
+{
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link InsufficientStorageException}.
+     * @param message descrizione del limite superato
+     */
+    public InsufficientStorageException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,148 @@
+package storageInterface;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * GET su una collezione di {@link StorageInterfaceServlet}: elenco (una pagina alla volta) delle risorse il cui nome
+ * inizia con quello della collezione,
+ * {@code <list prefix="..." next="cursore"><resource uri="..." etag="..."/>...</list>}.
+ * Con content=true ogni resource contiene anche il contenuto (con escape), letto listContentBatchSize risorse
+ * alla volta e scritto man mano, cosi' che la memoria usata non dipenda dalla dimensione della pagina.
+ * Se ci sono altre risorse, l'header Link (rel="next") contiene l'URI della pagina successiva.
+ *
+ *
+ */
+public class ListHandler
+{
+    private final static String contentParamName = "content";
+
+    // risorse lette (e scritte nella risposta) alla volta, quando l'elenco comprende il contenuto
+    private final static int listContentBatchSize = 20;
+
+    private final static String listElementName = "list";
+
+    private final static String resourceElementName = "resource";
+
+    private final static String prefixAttributeName = "prefix";
+
+    private final static String linkHeaderName = "Link";
+
+    private final IDatabase db;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link ListHandler}.
+     * @param db il database di cui elencare le risorse
+     */
+    public ListHandler(IDatabase db)
+    {
+        this.db = db;
+    }
+
+
+    /**
+     * Invia una pagina dell'elenco delle risorse della collezione {@code prefix}.
+     * @param req la richiesta
+     * @param resp la risposta
+     * @param prefix il nome della collezione
+     * @throws IOException se la risposta non puo' essere scritta
+     */
+    public void doGet(HttpServletRequest req, HttpServletResponse resp, String prefix)
+    throws IOException
+    {
+        int limit = StorageInterfaceServlet.getLimit(req);
+
+        if(limit <= 0)
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, StorageInterfaceServlet.invalidLimitMessage);
+            return;
+        }
+
+        boolean withContent = Boolean.parseBoolean(req.getParameter(contentParamName));
+
+        ResourceListing listing = db.list(prefix, req.getParameter(StorageInterfaceServlet.cursorParamName), limit);
+
+        String nextCursor = listing.getNextCursor();
+
+        if(nextCursor != null)
+        {
+            String nextPageURI = req.getRequestURI() + "?" + StorageInterfaceServlet.cursorParamName + "=" + URLEncoder.encode(nextCursor, "UTF-8")
+                                 + "&" + StorageInterfaceServlet.limitParamName + "=" + limit + (withContent ? "&" + contentParamName + "=true" : "");
+
+            resp.setHeader(linkHeaderName, "<" + nextPageURI + ">; rel=\"next\"");
+        }
+
+        resp.setContentType(StorageInterfaceServlet.xmlResponseContentType);
+        resp.setStatus(HttpServletResponse.SC_OK);
+
+        try
+        {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(resp.getWriter());
+
+            writer.writeStartDocument();
+            writer.writeStartElement(listElementName);
+            writer.writeAttribute(prefixAttributeName, prefix);
+
+            if(nextCursor != null)
+            {
+                writer.writeAttribute(StorageInterfaceServlet.nextAttributeName, nextCursor);
+            }
+
+            if(withContent)
+            {
+                List<String> uris = new ArrayList<String>(listing.getETags().keySet());
+
+                for(int from = 0; from < uris.size(); from += listContentBatchSize)
+                {
+                    List<String> batchURIs = uris.subList(from, Math.min(from + listContentBatchSize, uris.size()));
+
+                    Map<String, IResource> resources = db.getAll(batchURIs);
+
+                    for(String uri : batchURIs)
+                    {
+                        IResource resource = resources.get(uri);
+
+                        if(resource != null)   // null se e' stata cancellata dopo l'elenco
+                        {
+                            writer.writeStartElement(resourceElementName);
+                            writer.writeAttribute(StorageInterfaceServlet.uriAttributeName, uri);
+                            writer.writeAttribute(StorageInterfaceServlet.etagAttributeName, resource.getETag());
+                            writer.writeCharacters(resource.getContent());
+                            writer.writeEndElement();
+                        }
+                    }
+
+                    writer.flush();
+                }
+            }
+            else
+            {
+                for(Map.Entry<String, String> entry : listing.getETags().entrySet())
+                {
+                    writer.writeEmptyElement(resourceElementName);
+                    writer.writeAttribute(StorageInterfaceServlet.uriAttributeName, entry.getKey());
+                    writer.writeAttribute(StorageInterfaceServlet.etagAttributeName, entry.getValue());
+                }
+            }
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+        }
+        catch(XMLStreamException e)
+        {
+            throw new IOException("Cannot write resource list", e);
+        }
+    }
+
+}
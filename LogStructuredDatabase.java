@@ -0,0 +1,1366 @@
+package storageInterface;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Implementazione di {@link IDatabase} basata su un log su disco, per l'uso al di fuori di Google App Engine.
+ * <p>
+ * Ogni scrittura o cancellazione aggiunge un record in coda al segmento attivo (un file della cartella del database);
+ * quando il segmento attivo raggiunge la dimensione massima viene chiuso (e mappato in memoria) e ne viene aperto uno nuovo.
+ * Un indice in memoria (ordinato per URI) associa ad ogni URI la posizione del contenuto piu' recente e il suo ETag, per cui
+ * {@link #getETag(String)} e {@link #list(String, String, int)} non accedono al disco e {@link #get(String)} legge solo
+ * il contenuto, dai segmenti mappati in memoria.
+ * <p>
+ * Le scritture concorrenti vengono rese persistenti con un'unica fsync (group commit): ogni scrittura attende
+ * che i propri record siano su disco, ma una sola fsync copre tutti i record scritti fino a quel momento.
+ * In background, i segmenti con molti record sovrascritti o cancellati vengono compattati: i record ancora validi
+ * vengono copiati nel segmento attivo e il vecchio segmento viene eliminato.
+ * <p>
+ * Formato di un record: {@code int lunghezza, byte tipo, int lunghezzaURI, URI, int lunghezzaETag, ETag,
+ * int lunghezzaContenuto, contenuto, int CRC32}, dove il contenuto e' compresso con gzip quando conviene
+ * (vedi {@link IResource#getGzippedContent()}). All'apertura il log viene riletto per ricostruire l'indice;
+ * un record finale incompleto o corrotto (e.g.: per un crash durante la scrittura) viene scartato.
+ * La cartella viene bloccata (con un lock esclusivo sul file {@code lock}) fino a {@link #close()}: un solo database,
+ * di un solo processo, alla volta puo' usarla.
+ *
+ *
+ */
+public class LogStructuredDatabase implements IDatabase
+{
+    private final File directory;
+
+    private final long maxSegmentSize;
+
+    private final boolean syncWrites;
+
+    // frazione di byte non piu' validi oltre la quale un segmento viene compattato
+    private final double compactionThreshold;
+
+    // URI -> posizione della versione corrente, in ordine di URI
+    private final ConcurrentNavigableMap<String, Location> index = new ConcurrentSkipListMap<String, Location>();
+
+    // segmenti, in ordine di creazione
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+
+    // tutte le scritture sul log (e sull'indice) avvengono tenendo questo lock
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile Segment activeSegment;
+
+    // numero di record scritti (aggiornato tenendo writeLock) e di record sicuramente su disco
+    private volatile long writtenSequence;
+
+    private final Object syncMonitor = new Object();
+
+    private long durableSequence; // protetto da syncMonitor
+
+    private boolean syncInProgress; // protetto da syncMonitor
+
+    private final ScheduledExecutorService compactor;
+
+    // le compattazioni (del thread in background o esplicite) vengono eseguite una alla volta
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    // compattazioni fallite (e.g.: disco pieno): i segmenti restano com'e', ma lo spazio non viene recuperato
+    private final AtomicLong compactionFailureCount = new AtomicLong();
+
+    private final static Logger logger = Logger.getLogger(LogStructuredDatabase.class.getName());
+
+    // lock esclusivo sul file lockFileName della cartella, tenuto fino a close(): due processi (e.g.: la servlet e
+    // BulkTransfer da riga di comando) che scrivessero nello stesso log ne corromperebbero i segmenti
+    private final FileChannel lockChannel;
+
+    private final FileLock directoryLock;
+
+    private final static String lockFileName = "lock";
+
+    private final static byte putRecordType = 1;
+
+    private final static byte deleteRecordType = 2;
+
+    // come putRecordType, ma con il contenuto compresso con gzip
+    private final static byte gzippedPutRecordType = 3;
+
+    // lunghezza di un record senza URI, ETag e contenuto (escluso l'int iniziale con la lunghezza)
+    private final static int recordOverhead = 1 + 4 + 4 + 4 + 4;
+
+    private final static Charset recordCharset = Charset.forName("UTF-8");
+
+    private final static String segmentFilePrefix = "segment-";
+
+    private final static String segmentFileSuffix = ".log";
+
+    private final static long defaultMaxSegmentSize = 64L * 1024 * 1024;
+
+    private final static double defaultCompactionThreshold = 0.5;
+
+    private final static long defaultCompactionInterval = 60 * 1000;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link LogStructuredDatabase} con le impostazioni di default
+     * (segmenti da 64 MB, fsync ad ogni scrittura, compattazione ogni minuto dei segmenti validi per meno della meta').
+     * @param directory la cartella in cui si trovano (o verranno creati) i segmenti
+     * @throws IOException se fallisce la lettura dei segmenti esistenti
+     */
+    public LogStructuredDatabase(File directory) throws IOException
+    {
+        this(directory, defaultMaxSegmentSize, true, defaultCompactionThreshold, defaultCompactionInterval);
+    }
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link LogStructuredDatabase}.
+     * @param directory la cartella in cui si trovano (o verranno creati) i segmenti
+     * @param maxSegmentSize dimensione (in byte) oltre la quale il segmento attivo viene chiuso e ne viene aperto uno nuovo
+     * @param syncWrites se {@code true} ogni scrittura termina solo quando i suoi record sono su disco (fsync)
+     * @param compactionThreshold frazione di byte non piu' validi oltre la quale un segmento viene compattato
+     * @param compactionInterval intervallo (in millisecondi) tra due compattazioni, o un valore non positivo per disabilitarle
+     * @throws IOException se fallisce la lettura dei segmenti esistenti, o se la cartella e' gia' in uso
+     * (da un altro {@link LogStructuredDatabase}, anche di un altro processo)
+     */
+    public LogStructuredDatabase(File directory, long maxSegmentSize, boolean syncWrites, double compactionThreshold,
+                                 long compactionInterval) throws IOException
+    {
+        this.directory = directory;
+        this.maxSegmentSize = Math.min(maxSegmentSize, Integer.MAX_VALUE); // i segmenti chiusi vengono mappati in memoria
+        this.syncWrites = syncWrites;
+        this.compactionThreshold = compactionThreshold;
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        lockChannel = new RandomAccessFile(new File(directory, lockFileName), "rw").getChannel();
+
+        try
+        {
+            directoryLock = lockDirectory();
+
+            recover();
+        }
+        catch(IOException e)
+        {
+            lockChannel.close();   // rilascia anche il lock
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            lockChannel.close();
+            throw e;
+        }
+
+        if(compactionInterval > 0)
+        {
+            compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "LogStructuredDatabase compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            compactor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    compact();
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            compactor = null;
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String siNodeURI)
+    {
+        Location location = index.get(siNodeURI);
+
+        if(location == null)
+        {
+            return null;
+        }
+
+        if(location.gzipped)
+        {
+            // il contenuto viene decompresso solo se (e quando) serve
+            return new SINode(siNodeURI, null, readContent(location), location.eTag);
+        }
+
+        return new SINode(siNodeURI, readContent(location), location.eTag);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String siNodeURI)
+    {
+        Location location = index.get(siNodeURI);
+
+        if(location == null)
+        {
+            return null;
+        }
+
+        return location.eTag;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String siNodeURI, long offset, int length)
+    {
+        Location location = index.get(siNodeURI);
+
+        if(location == null)
+        {
+            return null;
+        }
+
+        if(location.gzipped)   // per estrarre una porzione bisogna decomprimere tutto
+        {
+            return ResourceRange.of(new SINode(siNodeURI, null, readContent(location), location.eTag), offset, length);
+        }
+
+        // contenuto non compresso: si leggono dal segmento solo i byte richiesti
+        int contentLength = location.recordSize - location.contentOffset - 4;
+
+        long[] bounds = ResourceRange.resolve(contentLength, offset, length);
+
+        try
+        {
+            byte[] rangeBytes = location.segment.read(location.recordOffset + location.contentOffset + bounds[0],
+                                                      (int) (bounds[1] - bounds[0]));
+
+            return new ResourceRange(siNodeURI, location.eTag, contentLength, bounds[0], rangeBytes);
+        }
+        catch(IOException e)
+        {
+            throw new DatabaseException("Cannot read from " + directory, e);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        // la pagina inizia dopo il cursore, o dal prefisso se il cursore lo precede
+        Map<String, Location> tail = (cursor != null && cursor.compareTo(prefix) >= 0) ? index.tailMap(cursor, false)
+                                                                                       : index.tailMap(prefix, true);
+
+        LinkedHashMap<String, String> eTags = new LinkedHashMap<String, String>();
+
+        String lastURI = null;
+
+        for(Map.Entry<String, Location> entry : tail.entrySet())
+        {
+            if(!entry.getKey().startsWith(prefix))   // oltre l'ultimo URI con il prefisso
+            {
+                break;
+            }
+
+            if(eTags.size() == limit)   // c'e' almeno un'altra risorsa: la pagina non e' l'ultima
+            {
+                return new ResourceListing(eTags, lastURI);
+            }
+
+            lastURI = entry.getKey();
+            eTags.put(lastURI, entry.getValue().eTag);
+        }
+
+        return new ResourceListing(eTags, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource siNode)
+    {
+        PendingRecord record = encodePut(siNode);
+
+        long sequence;
+
+        writeLock.lock();
+
+        try
+        {
+            sequence = appendPut(record);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+
+        awaitDurable(sequence);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource siNode)
+    {
+        PendingRecord record = encodePut(siNode);
+
+        long sequence;
+
+        writeLock.lock();
+
+        try
+        {
+            if(index.containsKey(record.uri))
+            {
+                return null;
+            }
+
+            sequence = appendPut(record);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+
+        awaitDurable(sequence);
+
+        return record.eTag;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource siNode, String expectedETag)
+    {
+        PendingRecord record = encodePut(siNode);
+
+        long sequence;
+
+        writeLock.lock();
+
+        try
+        {
+            Location location = index.get(record.uri);
+
+            if(location == null || !location.eTag.equals(expectedETag))
+            {
+                return null;
+            }
+
+            sequence = appendPut(record);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+
+        awaitDurable(sequence);
+
+        return record.eTag;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource siNode)
+    {
+        return delete(siNode.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String siNodeURI)
+    {
+        return deleteIfMatch(siNodeURI, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String siNodeURI, String expectedETag)
+    {
+        PendingRecord record = encodeDelete(siNodeURI);
+
+        long sequence;
+
+        writeLock.lock();
+
+        try
+        {
+            Location location = index.get(siNodeURI);
+
+            if(location == null || (expectedETag != null && !location.eTag.equals(expectedETag)))
+            {
+                return false;
+            }
+
+            sequence = appendDelete(record);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+
+        awaitDurable(sequence);
+
+        return true;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> siNodeURIs)
+    {
+        Map<String, IResource> found = new HashMap<String, IResource>();
+
+        for(String siNodeURI : siNodeURIs)
+        {
+            IResource siNode = get(siNodeURI);
+
+            if(siNode != null)
+            {
+                found.put(siNodeURI, siNode);
+            }
+        }
+
+        return found;
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> siNodes)
+    {
+        List<PendingRecord> records = new ArrayList<PendingRecord>(siNodes.size());
+
+        for(IResource siNode : siNodes)
+        {
+            records.add(encodePut(siNode));
+        }
+
+        long sequence = 0;
+
+        writeLock.lock();
+
+        try
+        {
+            for(PendingRecord record : records)
+            {
+                sequence = appendPut(record);
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+
+        // una sola attesa (e al piu' una fsync) per tutte le scritture
+        awaitDurable(sequence);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> siNodeURIs)
+    {
+        Set<String> deleted = new HashSet<String>();
+
+        long sequence = 0;
+
+        writeLock.lock();
+
+        try
+        {
+            for(String siNodeURI : siNodeURIs)
+            {
+                if(index.containsKey(siNodeURI))
+                {
+                    sequence = appendDelete(encodeDelete(siNodeURI));   // un record di cancellazione e' minimo
+                    deleted.add(siNodeURI);
+                }
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+
+        awaitDurable(sequence);
+
+        return deleted;
+    }
+
+
+    /**
+     * Compatta i segmenti chiusi in cui la frazione di byte non piu' validi supera la soglia impostata.
+     * Viene eseguito periodicamente in background, ma puo' anche essere invocato esplicitamente
+     * (attende l'eventuale compattazione in corso). Gli errori vengono registrati nel log e contati
+     * (vedi {@link #getCompactionFailureCount()}), non lanciati.
+     */
+    public void compact()
+    {
+        compactionLock.lock();
+
+        try
+        {
+            for(Segment segment : segments.values())
+            {
+                if(segment == activeSegment)
+                {
+                    continue;
+                }
+
+                if(segment.deadBytes.get() >= compactionThreshold * segment.size)
+                {
+                    try
+                    {
+                        compactSegment(segment);
+                    }
+                    catch(IOException e)
+                    {
+                        compactionFailed(segment, e);
+                        return;
+                    }
+                    catch(RuntimeException e)   // e.g.: DatabaseException di append() con il disco pieno
+                    {
+                        // un'eccezione che uscisse dal task periodico ne annullerebbe le esecuzioni successive
+                        compactionFailed(segment, e);
+                        return;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            compactionLock.unlock();
+        }
+    }
+
+
+    // il segmento resta com'e': verra' ritentato alla prossima compattazione
+    private void compactionFailed(Segment segment, Exception e)
+    {
+        compactionFailureCount.incrementAndGet();
+        logger.log(Level.WARNING, "Cannot compact segment " + segment.file + " in " + directory, e);
+    }
+
+
+    /**
+     * @return numero di compattazioni di segmenti fallite
+     */
+    public long getCompactionFailureCount()
+    {
+        return compactionFailureCount.get();
+    }
+
+
+    /**
+     * Chiude il database: ferma la compattazione, rende persistenti tutte le scritture e chiude i segmenti.
+     * @throws IOException se fallisce la chiusura dei segmenti
+     */
+    public void close() throws IOException
+    {
+        if(compactor != null)
+        {
+            compactor.shutdown();
+
+            try
+            {
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // attende anche una compattazione invocata esplicitamente
+        compactionLock.lock();
+        writeLock.lock();
+
+        try
+        {
+            activeSegment.channel.force(false);
+
+            for(Segment segment : segments.values())
+            {
+                segment.channel.close();
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+            compactionLock.unlock();
+
+            directoryLock.release();
+            lockChannel.close();
+        }
+    }
+
+
+    // ----------------------------------------------- scrittura -----------------------------------------------
+
+    // prepara il record di scrittura di siNode: ETag, compressione, codifica e CRC vengono calcolati senza tenere
+    // writeLock, cosi' che le scritture concorrenti serializzino solo l'append
+    private static PendingRecord encodePut(IResource siNode)
+    {
+        String eTag = siNode.getETag();
+
+        byte[] gzippedContent = siNode.getGzippedContent();
+
+        if(gzippedContent != null)
+        {
+            return new PendingRecord(encodeRecord(gzippedPutRecordType, siNode.getURI(), eTag, gzippedContent),
+                                     siNode.getURI(), eTag, true);
+        }
+
+        return new PendingRecord(encodeRecord(putRecordType, siNode.getURI(), eTag, siNode.getContentBytes()),
+                                 siNode.getURI(), eTag, false);
+    }
+
+
+    private static PendingRecord encodeDelete(String siNodeURI)
+    {
+        return new PendingRecord(encodeRecord(deleteRecordType, siNodeURI, "", new byte[0]), siNodeURI, null, false);
+    }
+
+
+    // da chiamare tenendo writeLock; restituisce il numero di sequenza del record scritto
+    private long appendPut(PendingRecord record)
+    {
+        Location newLocation = append(record);
+
+        Location oldLocation = index.put(record.uri, newLocation);
+
+        if(oldLocation != null)
+        {
+            oldLocation.markDead();
+        }
+
+        return writtenSequence;
+    }
+
+
+    // da chiamare tenendo writeLock; restituisce il numero di sequenza del record scritto
+    private long appendDelete(PendingRecord record)
+    {
+        Location tombstone = append(record);
+
+        // un record di cancellazione non contiene dati validi: serve solo finche' esistono versioni precedenti
+        tombstone.markDead();
+
+        Location oldLocation = index.remove(record.uri);
+
+        if(oldLocation != null)
+        {
+            oldLocation.markDead();
+        }
+
+        return writtenSequence;
+    }
+
+
+    // da chiamare tenendo writeLock: scrive il record in coda al segmento attivo (aprendone uno nuovo se necessario)
+    private Location append(PendingRecord pendingRecord)
+    {
+        ByteBuffer record = pendingRecord.record;
+
+        int recordSize = record.remaining();
+
+        try
+        {
+            Segment segment = activeSegment;
+
+            if(segment.size > 0 && segment.size + recordSize > maxSegmentSize)
+            {
+                segment = rollSegment();
+            }
+
+            long recordOffset = segment.size;
+
+            while(record.hasRemaining())
+            {
+                segment.channel.write(record, recordOffset + record.position());
+            }
+
+            segment.size += recordSize;
+
+            writtenSequence++;
+
+            return new Location(segment, recordOffset, recordSize, pendingRecord.contentOffset, pendingRecord.eTag,
+                                pendingRecord.gzipped);
+        }
+        catch(IOException e)
+        {
+            throw new DatabaseException("Cannot append to " + directory, e);
+        }
+    }
+
+
+    // da chiamare tenendo writeLock: chiude (mappandolo in memoria) il segmento attivo e ne apre uno nuovo
+    private Segment rollSegment() throws IOException
+    {
+        Segment oldSegment = activeSegment;
+
+        // i record del vecchio segmento devono essere su disco prima che il group commit passi al nuovo
+        oldSegment.channel.force(false);
+        oldSegment.seal();
+
+        Segment newSegment = openSegment(oldSegment.id + 1);
+        activeSegment = newSegment;
+
+        return newSegment;
+    }
+
+
+    // attende che il record con numero di sequenza sequence sia su disco: un solo thread alla volta esegue la fsync,
+    // che rende persistenti anche i record scritti dagli altri thread nel frattempo
+    private void awaitDurable(long sequence)
+    {
+        if(!syncWrites)
+        {
+            return;
+        }
+
+        while(true)
+        {
+            synchronized(syncMonitor)
+            {
+                while(durableSequence < sequence && syncInProgress)
+                {
+                    try
+                    {
+                        syncMonitor.wait();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new DatabaseException("Interrupted while waiting for fsync", e);
+                    }
+                }
+
+                if(durableSequence >= sequence)
+                {
+                    return;
+                }
+
+                syncInProgress = true;
+            }
+
+            long targetSequence = writtenSequence;
+            boolean synced = false;
+
+            try
+            {
+                activeSegment.channel.force(false);
+                synced = true;
+            }
+            catch(ClosedChannelException e)   // il segmento e' stato chiuso (e quindi reso persistente) nel frattempo
+            {
+                synced = true;
+            }
+            catch(IOException e)
+            {
+                throw new DatabaseException("Cannot sync " + directory, e);
+            }
+            finally
+            {
+                synchronized(syncMonitor)
+                {
+                    syncInProgress = false;
+
+                    if(synced)
+                    {
+                        durableSequence = Math.max(durableSequence, targetSequence);
+                    }
+
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+
+    private static ByteBuffer encodeRecord(byte type, String siNodeURI, String eTag, byte[] contentBytes)
+    {
+        byte[] uriBytes = siNodeURI.getBytes(recordCharset);
+        byte[] etagBytes = eTag.getBytes(recordCharset);
+
+        int recordLength = recordOverhead + uriBytes.length + etagBytes.length + contentBytes.length;
+
+        ByteBuffer record = ByteBuffer.allocate(4 + recordLength);
+
+        record.putInt(recordLength);
+        record.put(type);
+        record.putInt(uriBytes.length);
+        record.put(uriBytes);
+        record.putInt(etagBytes.length);
+        record.put(etagBytes);
+        record.putInt(contentBytes.length);
+        record.put(contentBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, recordLength - 4);
+        record.putInt((int) crc.getValue());
+
+        record.flip();
+
+        return record;
+    }
+
+
+    // posizione del contenuto rispetto all'inizio del record
+    private static int contentOffset(String siNodeURI, String eTag)
+    {
+        int uriLength = siNodeURI.getBytes(recordCharset).length;
+        int etagLength = (eTag != null) ? eTag.getBytes(recordCharset).length : 0;
+
+        return 4 + 1 + 4 + uriLength + 4 + etagLength + 4;
+    }
+
+
+    // ------------------------------------------------ lettura ------------------------------------------------
+
+    private byte[] readContent(Location location)
+    {
+        try
+        {
+            return location.segment.read(location.recordOffset + location.contentOffset,
+                                         location.recordSize - location.contentOffset - 4);
+        }
+        catch(IOException e)
+        {
+            throw new DatabaseException("Cannot read from " + directory, e);
+        }
+    }
+
+
+    // --------------------------------------------- recupero e compattazione ---------------------------------------------
+
+    // il lock esclusivo della cartella; fallisce se e' gia' tenuto da un altro processo, o da questo
+    // (i lock dei file sono per processo: un altro LogStructuredDatabase sulla stessa cartella)
+    private FileLock lockDirectory() throws IOException
+    {
+        FileLock lock;
+
+        try
+        {
+            lock = lockChannel.tryLock();
+        }
+        catch(OverlappingFileLockException e)
+        {
+            lock = null;
+        }
+
+        if(lock == null)
+        {
+            throw new IOException(directory + " is already in use by another database");
+        }
+
+        return lock;
+    }
+
+
+    // apre i segmenti esistenti e ricostruisce l'indice rileggendoli in ordine
+    private void recover() throws IOException
+    {
+        File[] segmentFiles = directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(segmentFilePrefix) && name.endsWith(segmentFileSuffix);
+            }
+        });
+
+        long[] segmentIds = new long[segmentFiles.length];
+
+        for(int i = 0; i < segmentFiles.length; i++)
+        {
+            String name = segmentFiles[i].getName();
+            segmentIds[i] = Long.parseLong(name.substring(segmentFilePrefix.length(), name.length() - segmentFileSuffix.length()));
+        }
+
+        Arrays.sort(segmentIds);
+
+        for(int i = 0; i < segmentIds.length; i++)
+        {
+            final Segment segment = openSegment(segmentIds[i]);
+
+            long validSize = scan(segment, new RecordVisitor()
+            {
+                @Override
+                public void visit(LogRecord record)
+                {
+                    Location location = new Location(segment, record.offset, record.size, record.contentOffset, record.eTag,
+                                                     record.type == gzippedPutRecordType);
+
+                    Location oldLocation;
+
+                    if(record.isPut())
+                    {
+                        oldLocation = index.put(record.uri, location);
+                    }
+                    else
+                    {
+                        location.markDead();
+                        oldLocation = index.remove(record.uri);
+                    }
+
+                    if(oldLocation != null)
+                    {
+                        oldLocation.markDead();
+                    }
+                }
+            });
+
+            if(validSize < segment.channel.size())
+            {
+                if(i < segmentIds.length - 1)   // solo l'ultimo segmento puo' essere stato interrotto da un crash
+                {
+                    throw new IOException(segment.file + " is corrupted at offset " + validSize);
+                }
+
+                segment.channel.truncate(validSize);
+            }
+
+            segment.size = validSize;
+
+            if(i < segmentIds.length - 1)
+            {
+                segment.seal();
+            }
+        }
+
+        if(segments.isEmpty())
+        {
+            activeSegment = openSegment(0);
+        }
+        else
+        {
+            activeSegment = segments.lastEntry().getValue();
+        }
+    }
+
+
+    // copia nel segmento attivo i record ancora validi di segment, poi lo elimina
+    private void compactSegment(final Segment segment) throws IOException
+    {
+        // i record di cancellazione del segmento piu' vecchio non nascondono piu' nulla
+        final boolean oldestSegment = (segments.firstEntry().getValue() == segment);
+
+        scan(segment, new RecordVisitor()
+        {
+            @Override
+            public void visit(LogRecord record)
+            {
+                writeLock.lock();
+
+                try
+                {
+                    Location current = index.get(record.uri);
+
+                    if(record.isPut())
+                    {
+                        // valido solo se l'indice punta ancora proprio a questo record
+                        if(current != null && current.segment == segment && current.recordOffset == record.offset)
+                        {
+                            Location newLocation = append(record.toPendingRecord());
+                            index.put(record.uri, newLocation);
+                        }
+                    }
+                    else if(!oldestSegment && current == null)
+                    {
+                        // la risorsa e' ancora cancellata: il record deve continuare a nascondere le versioni precedenti
+                        append(record.toPendingRecord()).markDead();
+                    }
+                }
+                finally
+                {
+                    writeLock.unlock();
+                }
+            }
+        });
+
+        // le copie devono essere su disco prima di eliminare gli originali
+        writeLock.lock();
+
+        try
+        {
+            activeSegment.channel.force(false);
+
+            segments.remove(segment.id);
+            segment.channel.close(); // i lettori ancora in corso usano la mappatura in memoria, che resta valida
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+
+        if(!segment.file.delete())
+        {
+            throw new IOException("Cannot delete " + segment.file);
+        }
+    }
+
+
+    // legge in ordine i record di segment, fermandosi al primo record incompleto o corrotto;
+    // restituisce la posizione della fine dell'ultimo record valido
+    private long scan(Segment segment, RecordVisitor visitor) throws IOException
+    {
+        long fileSize = segment.channel.size();
+
+        InputStream segmentStream = segment.openStream();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(segmentStream, 64 * 1024));
+
+        long offset = 0;
+
+        try
+        {
+            while(offset + 4 + recordOverhead <= fileSize)
+            {
+                int recordLength = in.readInt();
+
+                if(recordLength < recordOverhead || offset + 4 + recordLength > fileSize)
+                {
+                    break;
+                }
+
+                byte[] recordBytes = new byte[recordLength];
+                in.readFully(recordBytes);
+
+                LogRecord record = LogRecord.decode(recordBytes, offset);
+
+                if(record == null)   // CRC errato
+                {
+                    break;
+                }
+
+                visitor.visit(record);
+
+                offset += 4 + recordLength;
+            }
+        }
+        catch(EOFException e)
+        {
+            // record finale incompleto
+        }
+
+        return offset;
+    }
+
+
+    private Segment openSegment(long id) throws IOException
+    {
+        File file = new File(directory, String.format("%s%020d%s", segmentFilePrefix, id, segmentFileSuffix));
+
+        Segment segment = new Segment(id, file, new RandomAccessFile(file, "rw").getChannel());
+
+        segment.size = segment.channel.size();
+
+        segments.put(id, segment);
+
+        return segment;
+    }
+
+
+    // ----------------------------------------------- classi interne -----------------------------------------------
+
+    // file di log: il segmento attivo viene letto con letture posizionali, quelli chiusi attraverso la mappatura in memoria
+    private static class Segment
+    {
+        private final long id;
+
+        private final File file;
+
+        private final FileChannel channel;
+
+        // dimensione dei record scritti (aggiornata tenendo writeLock)
+        private volatile long size;
+
+        // byte di record non piu' validi (sovrascritti, cancellati, o record di cancellazione)
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        private volatile MappedByteBuffer mapped;
+
+        private Segment(long id, File file, FileChannel channel)
+        {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        private void seal() throws IOException
+        {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        private byte[] read(long position, int length) throws IOException
+        {
+            byte[] bytes = new byte[length];
+
+            MappedByteBuffer segmentMapping = mapped;
+
+            if(segmentMapping != null)
+            {
+                ByteBuffer view = segmentMapping.duplicate();
+                view.position((int) position);
+                view.get(bytes);
+
+                return bytes;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+            while(buffer.hasRemaining())
+            {
+                if(channel.read(buffer, position + buffer.position()) < 0)
+                {
+                    throw new EOFException(file + " is truncated");
+                }
+            }
+
+            return bytes;
+        }
+
+        private InputStream openStream() throws IOException
+        {
+            MappedByteBuffer segmentMapping = mapped;
+
+            if(segmentMapping != null)
+            {
+                final ByteBuffer view = segmentMapping.duplicate();
+
+                return new InputStream()
+                {
+                    @Override
+                    public int read()
+                    {
+                        return view.hasRemaining() ? (view.get() & 0xff) : -1;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len)
+                    {
+                        if(!view.hasRemaining())
+                        {
+                            return -1;
+                        }
+
+                        int n = Math.min(len, view.remaining());
+                        view.get(b, off, n);
+
+                        return n;
+                    }
+                };
+            }
+
+            // solo durante il recupero, quando nessun altro usa il canale
+            return Channels.newInputStream(channel.position(0));
+        }
+    }
+
+
+    // posizione (immutabile) di un record nel log
+    private static class Location
+    {
+        private final Segment segment;
+
+        private final long recordOffset;
+
+        private final int recordSize;
+
+        private final int contentOffset;
+
+        private final String eTag;
+
+        // true se il contenuto e' compresso con gzip
+        private final boolean gzipped;
+
+        private Location(Segment segment, long recordOffset, int recordSize, int contentOffset, String eTag, boolean gzipped)
+        {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordSize = recordSize;
+            this.contentOffset = contentOffset;
+            this.eTag = eTag;
+            this.gzipped = gzipped;
+        }
+
+        private void markDead()
+        {
+            segment.deadBytes.addAndGet(recordSize);
+        }
+    }
+
+
+    // record letto da un segmento
+    private static class LogRecord
+    {
+        private byte type;
+
+        private String uri;
+
+        private String eTag;
+
+        private long offset;
+
+        private int size;
+
+        private int contentOffset;
+
+        private byte[] recordBytes;
+
+        // restituisce null se il CRC non corrisponde
+        private static LogRecord decode(byte[] recordBytes, long offset)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(recordBytes);
+
+            CRC32 crc = new CRC32();
+            crc.update(recordBytes, 0, recordBytes.length - 4);
+
+            if(buffer.getInt(recordBytes.length - 4) != (int) crc.getValue())
+            {
+                return null;
+            }
+
+            LogRecord record = new LogRecord();
+
+            record.recordBytes = recordBytes;
+            record.offset = offset;
+            record.size = 4 + recordBytes.length;
+
+            record.type = buffer.get();
+
+            byte[] uriBytes = new byte[buffer.getInt()];
+            buffer.get(uriBytes);
+            record.uri = new String(uriBytes, recordCharset);
+
+            byte[] etagBytes = new byte[buffer.getInt()];
+            buffer.get(etagBytes);
+            record.eTag = record.isPut() ? new String(etagBytes, recordCharset) : null;
+
+            record.contentOffset = 4 + buffer.position() + 4;
+
+            return record;
+        }
+
+        private boolean isPut()
+        {
+            return type == putRecordType || type == gzippedPutRecordType;
+        }
+
+        private PendingRecord toPendingRecord()
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.putInt(recordBytes.length);
+            buffer.put(recordBytes);
+            buffer.flip();
+
+            return new PendingRecord(buffer, uri, eTag, type == gzippedPutRecordType);
+        }
+    }
+
+
+    // record codificato, pronto per essere aggiunto al log
+    private static class PendingRecord
+    {
+        private final ByteBuffer record;
+
+        private final String uri;
+
+        // null per un record di cancellazione
+        private final String eTag;
+
+        private final boolean gzipped;
+
+        private final int contentOffset;
+
+        private PendingRecord(ByteBuffer record, String uri, String eTag, boolean gzipped)
+        {
+            this.record = record;
+            this.uri = uri;
+            this.eTag = eTag;
+            this.gzipped = gzipped;
+            this.contentOffset = contentOffset(uri, eTag);
+        }
+    }
+
+
+    private interface RecordVisitor
+    {
+        void visit(LogRecord record);
+    }
+
+}
@@ -0,0 +1,283 @@
+package storageInterface;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro delle metriche dell'applicazione, esportate nel formato testuale di Prometheus
+ * (vedi {@link #write(Writer)}). Ogni serie e' identificata dal nome della metrica e dalle sue etichette.
+ * Contatori e istogrammi vengono creati (o recuperati, se gia' registrati) una volta sola, e poi aggiornati
+ * direttamente da chi li usa: il registro non e' coinvolto nella registrazione dei valori.
+ *
+ *
+ */
+public class Metrics
+{
+    // le metriche, per nome, in ordine di registrazione
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+    private final static String counterType = "counter";
+
+    private final static String gaugeType = "gauge";
+
+    private final static String summaryType = "summary";
+
+    // percentili esportati per gli istogrammi
+    private final static double[] quantiles = { 0.5, 0.99, 0.999 };
+
+
+    /**
+     * Valore letto al momento dell'esportazione (e.g.: da un contatore mantenuto da un altro oggetto).
+     */
+    public interface Value
+    {
+        /**
+         * @return il valore attuale
+         */
+        public abstract long get();
+    }
+
+
+    /**
+     * Restituisce il contatore identificato da {@code name} e {@code labels}, creandolo se non esiste.
+     * @param name nome della metrica (per convenzione termina con {@code _total})
+     * @param help descrizione della metrica
+     * @param labels etichette della serie, come coppie nome, valore
+     * @return il contatore
+     */
+    public AtomicLong counter(String name, String help, String... labels)
+    {
+        return (AtomicLong) getOrCreate(name, help, counterType, labels, new AtomicLong(), 1);
+    }
+
+    /**
+     * Registra un contatore mantenuto altrove, il cui valore viene letto da {@code value} ad ogni esportazione.
+     * @param name nome della metrica (per convenzione termina con {@code _total})
+     * @param help descrizione della metrica
+     * @param value il contatore
+     * @param labels etichette della serie, come coppie nome, valore
+     */
+    public void counter(String name, String help, Value value, String... labels)
+    {
+        getOrCreate(name, help, counterType, labels, value, 1);
+    }
+
+    /**
+     * Registra un valore istantaneo, letto da {@code value} ad ogni esportazione.
+     * @param name nome della metrica
+     * @param help descrizione della metrica
+     * @param value il valore
+     * @param labels etichette della serie, come coppie nome, valore
+     */
+    public void gauge(String name, String help, Value value, String... labels)
+    {
+        getOrCreate(name, help, gaugeType, labels, value, 1);
+    }
+
+    /**
+     * Restituisce l'istogramma identificato da {@code name} e {@code labels}, creandolo se non esiste.
+     * L'istogramma viene esportato come summary, con i percentili 50, 99 e 99.9.
+     * @param name nome della metrica
+     * @param help descrizione della metrica
+     * @param unit valore registrato che corrisponde a un'unita' del valore esportato
+     * (e.g.: 1e9 per registrare nanosecondi ed esportare secondi, come prevede la convenzione di Prometheus)
+     * @param labels etichette della serie, come coppie nome, valore
+     * @return l'istogramma
+     */
+    public Histogram histogram(String name, String help, double unit, String... labels)
+    {
+        return (Histogram) getOrCreate(name, help, summaryType, labels, new Histogram(), unit);
+    }
+
+
+    private synchronized Object getOrCreate(String name, String help, String type, String[] labels, Object metric, double unit)
+    {
+        Family family = families.get(name);
+
+        if(family == null)
+        {
+            family = new Family(help, type);
+            families.put(name, family);
+        }
+        else if(!family.type.equals(type))
+        {
+            throw new IllegalArgumentException(name + " is already registered as " + family.type);
+        }
+
+        String labelsString = toLabelsString(labels);
+
+        Series series = family.series.get(labelsString);
+
+        if(series == null)
+        {
+            series = new Series(metric, unit);
+            family.series.put(labelsString, series);
+        }
+
+        return series.metric;
+    }
+
+
+    // name1="value1",name2="value2"
+    private static String toLabelsString(String[] labels)
+    {
+        if(labels.length % 2 != 0)
+        {
+            throw new IllegalArgumentException("Labels must be name, value pairs");
+        }
+
+        StringBuilder builder = new StringBuilder();
+
+        for(int i = 0; i < labels.length; i += 2)
+        {
+            if(i > 0)
+            {
+                builder.append(',');
+            }
+
+            builder.append(labels[i]).append("=\"");
+
+            String labelValue = labels[i + 1];
+
+            for(int j = 0; j < labelValue.length(); j++)
+            {
+                char c = labelValue.charAt(j);
+
+                switch(c)
+                {
+                    case '\\':
+                        builder.append("\\\\");
+                        break;
+                    case '"':
+                        builder.append("\\\"");
+                        break;
+                    case '\n':
+                        builder.append("\\n");
+                        break;
+                    default:
+                        builder.append(c);
+                }
+            }
+
+            builder.append('"');
+        }
+
+        return builder.toString();
+    }
+
+
+    /**
+     * Scrive tutte le metriche nel formato testuale di Prometheus (versione 0.0.4).
+     * I percentili degli istogrammi si riferiscono a tutti i valori registrati dall'avvio.
+     * @param writer il {@link Writer} su cui scrivere
+     * @throws IOException se la scrittura fallisce
+     */
+    public synchronized void write(Writer writer) throws IOException
+    {
+        for(Map.Entry<String, Family> familyEntry : families.entrySet())
+        {
+            String name = familyEntry.getKey();
+            Family family = familyEntry.getValue();
+
+            writer.write("# HELP " + name + " " + family.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            writer.write("# TYPE " + name + " " + family.type + "\n");
+
+            for(Map.Entry<String, Series> seriesEntry : family.series.entrySet())
+            {
+                String labelsString = seriesEntry.getKey();
+                Series series = seriesEntry.getValue();
+
+                if(series.metric instanceof Histogram)
+                {
+                    Histogram.Snapshot snapshot = ((Histogram) series.metric).snapshot();
+
+                    for(double quantile : quantiles)
+                    {
+                        String quantileLabel = "quantile=\"" + quantile + "\"";
+
+                        // senza valori i percentili non sono definiti
+                        writeSample(writer, name, labelsString.isEmpty() ? quantileLabel : labelsString + "," + quantileLabel,
+                                    snapshot.getCount() == 0 ? Double.NaN : snapshot.getValueAtQuantile(quantile) / series.unit);
+                    }
+
+                    writeSample(writer, name + "_sum", labelsString, snapshot.getSum() / series.unit);
+                    writeSample(writer, name + "_count", labelsString, snapshot.getCount());
+                }
+                else if(series.metric instanceof AtomicLong)
+                {
+                    writeSample(writer, name, labelsString, ((AtomicLong) series.metric).get());
+                }
+                else
+                {
+                    writeSample(writer, name, labelsString, ((Value) series.metric).get());
+                }
+            }
+        }
+    }
+
+
+    private static void writeSample(Writer writer, String name, String labelsString, double value) throws IOException
+    {
+        writer.write(name);
+
+        if(!labelsString.isEmpty())
+        {
+            writer.write("{" + labelsString + "}");
+        }
+
+        writer.write(" ");
+
+        // i valori interi senza ".0"
+        if(value == Math.rint(value) && Math.abs(value) < 1e15)
+        {
+            writer.write(Long.toString((long) value));
+        }
+        else
+        {
+            writer.write(Double.toString(value));
+        }
+
+        writer.write("\n");
+    }
+
+
+    /**
+     * Metrica (con tutte le sue serie) identificata da un nome.
+     */
+    private static class Family
+    {
+        private final String help;
+
+        private final String type;
+
+        // le serie, per etichette, in ordine di registrazione
+        private final Map<String, Series> series = new LinkedHashMap<String, Series>();
+
+        private Family(String help, String type)
+        {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+
+    /**
+     * Serie di una metrica: un {@link AtomicLong}, un {@link Value} o un {@link Histogram}.
+     */
+    private static class Series
+    {
+        private final Object metric;
+
+        private final double unit;
+
+        private Series(Object metric, double unit)
+        {
+            this.metric = metric;
+            this.unit = unit;
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package storageInterface;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * GET su !metrics di {@link StorageInterfaceServlet}: le metriche nel formato testuale di Prometheus
+ * (l'header Accept non viene controllato: Prometheus chiede text/plain).
+ *
+ *
+ */
+public class MetricsHandler
+{
+    private final static String metricsContentType = "text/plain; version=0.0.4; charset=UTF-8";
+
+    private final Metrics metrics;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link MetricsHandler}.
+     * @param metrics le metriche da esportare
+     */
+    public MetricsHandler(Metrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * Invia le metriche.
+     * @param resp la risposta
+     * @throws IOException se la risposta non puo' essere scritta
+     */
+    public void doGet(HttpServletResponse resp) throws IOException
+    {
+        resp.setContentType(metricsContentType);
+        resp.setHeader("Cache-Control", "no-cache");
+
+        metrics.write(resp.getWriter());
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+}
@@ -0,0 +1,49 @@
+package storageInterface;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pagina di un elenco di risorse, restituita da {@link IDatabase#list(String, String, int)}:
+ * gli URI delle risorse, in ordine, con i rispettivi ETag, e il cursore da cui continuare l'elenco.
+ * Il cursore e' l'URI dell'ultima risorsa della pagina (la pagina successiva inizia dal primo URI maggiore),
+ * cosi' che qualsiasi database che mantiene gli URI ordinati possa interpretarlo.
+ *
+ *
+ */
+public class ResourceListing
+{
+    private final Map<String, String> eTags;
+
+    private final String nextCursor;
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link ResourceListing}. La mappa {@code eTags} non viene copiata.
+     * @param eTags mappa (ordinata per URI) da URI a ETag delle risorse della pagina
+     * @param nextCursor il cursore da cui continuare l'elenco, o {@code null} se non ci sono altre risorse
+     */
+    public ResourceListing(LinkedHashMap<String, String> eTags, String nextCursor)
+    {
+        this.eTags = eTags;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return mappa (ordinata per URI) da URI a ETag delle risorse della pagina
+     */
+    public Map<String, String> getETags()
+    {
+        return Collections.unmodifiableMap(eTags);
+    }
+
+    /**
+     * @return il cursore da passare a {@link IDatabase#list(String, String, int)} per la pagina successiva,
+     * o {@code null} se questa e' l'ultima pagina
+     */
+    public String getNextCursor()
+    {
+        return nextCursor;
+    }
+
+}
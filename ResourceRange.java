@@ -0,0 +1,126 @@
+package storageInterface;
+
+/**
+ * Porzione del contenuto (codificato in UTF-8) di una risorsa, restituita da {@link IDatabase#getRange(String, long, int)}.
+ *
+ *
+ */
+public class ResourceRange
+{
+    private final String uri;
+
+    private final String eTag;
+
+    private final long totalLength;
+
+    private final long offset;
+
+    private final byte[] bytes;
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link ResourceRange}. L'array {@code bytes} non viene copiato.
+     * @param uri URI della risorsa
+     * @param eTag ETag della risorsa
+     * @param totalLength lunghezza (in byte) dell'intero contenuto della risorsa
+     * @param offset posizione, nel contenuto, del primo byte di {@code bytes}
+     * @param bytes i byte del contenuto a partire da {@code offset}
+     */
+    public ResourceRange(String uri, String eTag, long totalLength, long offset, byte[] bytes)
+    {
+        this.uri = uri;
+        this.eTag = eTag;
+        this.totalLength = totalLength;
+        this.offset = offset;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Estrae da {@code resource} la porzione richiesta a {@link IDatabase#getRange(String, long, int)}.
+     * @param resource la risorsa, con l'intero contenuto
+     * @param offset posizione del primo byte richiesto, o (se negativo) numero di byte richiesti alla fine del contenuto
+     * @param length numero massimo di byte richiesti (ignorato se {@code offset} e' negativo)
+     * @return la porzione richiesta del contenuto di {@code resource}
+     */
+    public static ResourceRange of(IResource resource, long offset, int length)
+    {
+        byte[] contentBytes = resource.getContentBytes();
+
+        long[] bounds = resolve(contentBytes.length, offset, length);
+
+        byte[] rangeBytes = new byte[(int) (bounds[1] - bounds[0])];
+        System.arraycopy(contentBytes, (int) bounds[0], rangeBytes, 0, rangeBytes.length);
+
+        return new ResourceRange(resource.getURI(), resource.getETag(), contentBytes.length, bounds[0], rangeBytes);
+    }
+
+    /**
+     * Calcola gli estremi della porzione richiesta a {@link IDatabase#getRange(String, long, int)} di un contenuto lungo {@code totalLength} byte.
+     * @param totalLength lunghezza (in byte) dell'intero contenuto
+     * @param offset posizione del primo byte richiesto, o (se negativo) numero di byte richiesti alla fine del contenuto
+     * @param length numero massimo di byte richiesti (ignorato se {@code offset} e' negativo)
+     * @return posizione del primo byte della porzione e posizione successiva all'ultimo
+     */
+    public static long[] resolve(long totalLength, long offset, int length)
+    {
+        long first;
+        long end;
+
+        if(offset < 0)   // suffisso: gli ultimi -offset byte
+        {
+            first = Math.max(0, totalLength + offset);
+            end = totalLength;
+        }
+        else
+        {
+            first = Math.min(offset, totalLength);
+            end = Math.min(totalLength, first + length);
+        }
+
+        return new long[] { first, end };
+    }
+
+    /**
+     * Restituisce l'URI della risorsa
+     * @return l'URI della risorsa
+     */
+    public String getURI()
+    {
+        return uri;
+    }
+
+    /**
+     * Restituisce l'ETag della risorsa
+     * @return l'ETag della risorsa
+     */
+    public String getETag()
+    {
+        return eTag;
+    }
+
+    /**
+     * Restituisce la lunghezza (in byte) dell'intero contenuto della risorsa
+     * @return la lunghezza dell'intero contenuto della risorsa
+     */
+    public long getTotalLength()
+    {
+        return totalLength;
+    }
+
+    /**
+     * Restituisce la posizione, nel contenuto, del primo byte della porzione
+     * @return la posizione del primo byte della porzione
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * Restituisce i byte della porzione. L'array restituito non e' una copia: non deve essere modificato.
+     * @return i byte della porzione (vuoto se la porzione richiesta e' oltre la fine del contenuto)
+     */
+    public byte[] getBytes()
+    {
+        return bytes;
+    }
+}
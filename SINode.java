@@ -1,8 +1,14 @@
 package storageInterface;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.codec.binary.Hex;
 
@@ -15,7 +21,26 @@ public class SINode implements IResource
 {
     private String uri;
 
-    private String content;
+    // i campi calcolati alla prima richiesta sono volatile: lo stesso nodo (e.g.: in cache) viene letto da piu'
+    // thread, e ciascuno deve vedere un valore gia' completamente assegnato (al piu' lo ricalcola)
+    private volatile String content;
+
+    // codifica UTF-8 del contenuto: le due rappresentazioni vengono convertite l'una nell'altra solo se
+    // (e quando) servono, e al piu' una volta
+    private volatile byte[] contentBytes;
+
+    // contenuto UTF-8 compresso con gzip: calcolato al piu' una volta, o fornito da chi crea il nodo (e.g.: letto dal database)
+    private volatile byte[] gzippedContent;
+
+    // true se la compressione e' gia' stata tentata (o il contenuto compresso e' stato fornito): viene assegnato
+    // solo dopo gzippedContent, quindi chi lo legge true vede anche il contenuto compresso
+    private volatile boolean compressionDone;
+
+    // i contenuti piu' piccoli non vengono compressi: il guadagno non giustificherebbe la compressione e la decompressione
+    private final static int compressionThreshold = 1024;
+
+    // l'ETag viene calcolato una sola volta (o fornito da chi crea il nodo) e poi memorizzato
+    private volatile String eTag;
 
     /**
      * Istanzia un nuovo oggetto di tipo {@link SINode}, assegnandogli l'URI {@code siNodeURI}.
@@ -37,6 +62,51 @@ public class SINode implements IResource
         setContent(content);
     }
 
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link SINode}, assegnandogli l'URI {@code siNodeURI}, il contenuto {@code content}
+     * e l'ETag {@code eTag}, gia' calcolato (e.g.: in fase di scrittura, o letto dal database).
+     * @param siNodeURI URI che si vuole assegnare al {@link SINode}
+     * @param content contenuto che si vuole assegnare al {@link SINode}
+     * @param eTag ETag di {@code siNodeURI} e {@code content}, o {@code null} se va calcolato
+     */
+    public SINode(String siNodeURI, String content, String eTag)
+    {
+        this(siNodeURI, content);
+        this.eTag = eTag;
+    }
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link SINode}, assegnandogli l'URI {@code siNodeURI}, il contenuto
+     * codificato in UTF-8 {@code contentBytes} e l'ETag {@code eTag}. L'array {@code contentBytes} non viene copiato.
+     * @param siNodeURI URI che si vuole assegnare al {@link SINode}
+     * @param contentBytes contenuto (codificato in UTF-8) che si vuole assegnare al {@link SINode}
+     * @param eTag ETag di {@code siNodeURI} e {@code contentBytes}, o {@code null} se va calcolato
+     */
+    public SINode(String siNodeURI, byte[] contentBytes, String eTag)
+    {
+        this(siNodeURI);
+        setContent(contentBytes);
+        this.eTag = eTag;
+    }
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link SINode}, assegnandogli l'URI {@code siNodeURI}, il contenuto
+     * codificato in UTF-8 {@code contentBytes} e/o lo stesso contenuto compresso con gzip {@code gzippedContent}
+     * (e.g.: letto dal database): il contenuto non compresso viene calcolato solo se serve, mentre se
+     * {@code gzippedContent} e' {@code null} il contenuto non viene mai compresso (chi crea il nodo ha gia' stabilito
+     * che non conviene, o che non deve essere compresso in lettura). Gli array non vengono copiati.
+     * @param siNodeURI URI che si vuole assegnare al {@link SINode}
+     * @param contentBytes contenuto (codificato in UTF-8) che si vuole assegnare al {@link SINode}, o {@code null}
+     * @param gzippedContent {@code contentBytes} compresso con gzip, o {@code null} se il contenuto non va compresso
+     * @param eTag ETag di {@code siNodeURI} e del contenuto, o {@code null} se va calcolato
+     */
+    public SINode(String siNodeURI, byte[] contentBytes, byte[] gzippedContent, String eTag)
+    {
+        this(siNodeURI, contentBytes, eTag);
+        this.gzippedContent = gzippedContent;
+        this.compressionDone = true;
+    }
+
     @Override
     /*
      * (non-Javadoc)
@@ -45,6 +115,23 @@ public class SINode implements IResource
     public void setContent(String content)
     {
         this.content = content;
+        this.contentBytes = null;
+        this.gzippedContent = null;
+        this.compressionDone = false;
+        this.eTag = null;
+    }
+
+    /* (non-Javadoc)
+     * @see storageInterface.IResource#setContent(byte[])
+     */
+    @Override
+    public void setContent(byte[] contentBytes)
+    {
+        this.content = null;
+        this.contentBytes = contentBytes;
+        this.gzippedContent = null;
+        this.compressionDone = false;
+        this.eTag = null;
     }
 
     /* (non-Javadoc)
@@ -62,28 +149,112 @@ public class SINode implements IResource
     @Override
     public String getContent()
     {
-        return content;
+        String siNodeContent = content;
+
+        if(siNodeContent == null)
+        {
+            byte[] siNodeContentBytes = getContentBytes();
+
+            if(siNodeContentBytes != null)
+            {
+                siNodeContent = fromUTF8Bytes(siNodeContentBytes);
+                content = siNodeContent;
+            }
+        }
+
+        return siNodeContent;
     }
 
     /* (non-Javadoc)
-     * @see storageInterface.ISINode#getETag()
+     * @see storageInterface.IResource#getContentBytes()
      */
     @Override
-    public String getETag()
+    public byte[] getContentBytes()
     {
-        String uriConcatContent = uri + content;
+        byte[] siNodeContentBytes = contentBytes;
 
-        byte[] stringBytes = null;
+        if(siNodeContentBytes == null)
+        {
+            String siNodeContent = content;
+            byte[] siNodeGzippedContent = gzippedContent;
 
-        try
+            if(siNodeContent != null)
+            {
+                siNodeContentBytes = toUTF8Bytes(siNodeContent);
+            }
+            else if(siNodeGzippedContent != null)
+            {
+                siNodeContentBytes = gunzip(siNodeGzippedContent);
+            }
+
+            contentBytes = siNodeContentBytes;
+        }
+
+        return siNodeContentBytes;
+    }
+
+    /* (non-Javadoc)
+     * @see storageInterface.IResource#getGzippedContent()
+     */
+    @Override
+    public byte[] getGzippedContent()
+    {
+        if(!compressionDone)
         {
-            stringBytes = uriConcatContent.getBytes("UTF-8");
+            byte[] siNodeContentBytes = getContentBytes();
+
+            if(siNodeContentBytes != null && siNodeContentBytes.length >= compressionThreshold)
+            {
+                byte[] compressed = gzip(siNodeContentBytes);
+
+                // un contenuto poco comprimibile viene lasciato com'e'
+                if(compressed.length < siNodeContentBytes.length)
+                {
+                    gzippedContent = compressed;
+                }
+            }
+
+            // solo dopo gzippedContent: due thread possono comprimere lo stesso contenuto, ma nessuno vede il
+            // flag senza il contenuto compresso
+            compressionDone = true;
         }
-        catch(UnsupportedEncodingException ueEx)
+
+        return gzippedContent;
+    }
+
+    /* (non-Javadoc)
+     * @see storageInterface.ISINode#getETag()
+     */
+    @Override
+    public String getETag()
+    {
+        if(eTag == null)
         {
-            ueEx.printStackTrace();
+            MessageDigest messageDigest = newETagDigest(uri);
+
+            byte[] siNodeContentBytes = getContentBytes();
+
+            if(siNodeContentBytes != null)
+            {
+                messageDigest.update(siNodeContentBytes);
+            }
+
+            eTag = toETag(messageDigest);
         }
 
+        return eTag;
+    }
+
+
+    /**
+     * Restituisce un {@link MessageDigest} gia' aggiornato con {@code siNodeURI}: aggiornandolo con i byte UTF-8
+     * del contenuto (e.g.: mentre il body di una richiesta viene letto) e passandolo a {@link #toETag(MessageDigest)}
+     * si ottiene l'ETag del nodo, senza dover concatenare URI e contenuto.
+     * @param siNodeURI URI del nodo di cui si vuole calcolare l'ETag
+     * @return un {@link MessageDigest} da aggiornare con i byte UTF-8 del contenuto del nodo
+     */
+    public static MessageDigest newETagDigest(String siNodeURI)
+    {
         MessageDigest messageDigest = null;
 
         try
@@ -95,7 +266,20 @@ public class SINode implements IResource
             nsaEx.printStackTrace();
         }
 
-        byte[] etagBytes = messageDigest.digest(stringBytes);
+        messageDigest.update(toUTF8Bytes(siNodeURI));
+
+        return messageDigest;
+    }
+
+
+    /**
+     * Completa il calcolo di un ETag iniziato con {@link #newETagDigest(String)}.
+     * @param messageDigest il {@link MessageDigest} aggiornato con URI e contenuto del nodo
+     * @return l'ETag del nodo
+     */
+    public static String toETag(MessageDigest messageDigest)
+    {
+        byte[] etagBytes = messageDigest.digest();
 
         final String etagString = new String(Hex.encodeHex(etagBytes));
 
@@ -103,4 +287,83 @@ public class SINode implements IResource
     }
 
 
+    private static byte[] gzip(byte[] bytes)
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+
+        try
+        {
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(bytes);
+            out.close();
+        }
+        catch(IOException ioEx)   // impossibile: si scrive in memoria
+        {
+            ioEx.printStackTrace();
+        }
+
+        return compressed.toByteArray();
+    }
+
+
+    private byte[] gunzip(byte[] compressedBytes)
+    {
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream(compressedBytes.length * 4);
+
+        try
+        {
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressedBytes));
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while((n = in.read(buffer)) != -1)
+            {
+                uncompressed.write(buffer, 0, n);
+            }
+
+            in.close();
+        }
+        catch(IOException ioEx)   // il contenuto memorizzato e' corrotto
+        {
+            throw new DatabaseException("Cannot decompress the content of " + uri, ioEx);
+        }
+
+        return uncompressed.toByteArray();
+    }
+
+
+    private static byte[] toUTF8Bytes(String string)
+    {
+        byte[] stringBytes = null;
+
+        try
+        {
+            stringBytes = string.getBytes("UTF-8");
+        }
+        catch(UnsupportedEncodingException ueEx)
+        {
+            ueEx.printStackTrace();
+        }
+
+        return stringBytes;
+    }
+
+
+    private static String fromUTF8Bytes(byte[] stringBytes)
+    {
+        String string = null;
+
+        try
+        {
+            string = new String(stringBytes, "UTF-8");
+        }
+        catch(UnsupportedEncodingException ueEx)
+        {
+            ueEx.printStackTrace();
+        }
+
+        return string;
+    }
+
+
 }
@@ -0,0 +1,1021 @@
+package storageInterface;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Implementazione di {@link IDatabase} che distribuisce le risorse su piu' database (shard), scelti per URI
+ * con un hashing consistente: ogni shard occupa {@code virtualNodes} punti di un anello di hash, e una risorsa
+ * appartiene allo shard del primo punto che segue l'hash del suo URI. Aggiungendo uno shard si spostano quindi
+ * solo le risorse che passano al nuovo shard (circa 1/N).
+ * <p>
+ * Le operazioni su piu' risorse ({@link #getAll(Collection)}, {@link #putAll(Collection)},
+ * {@link #deleteAll(Collection)}) e gli elenchi vengono eseguiti in parallelo su tutti gli shard coinvolti,
+ * sui thread di un {@link ExecutorService}, e i risultati vengono uniti (gli elenchi in ordine di URI).
+ * <p>
+ * {@link #addShard(String, IDatabase)} aggiunge uno shard mentre il database resta in uso: finche' il
+ * ribilanciamento non e' terminato, una risorsa che deve essere spostata viene cercata prima nel nuovo shard e poi
+ * in quello precedente, e le scritture la spostano (se non e' gia' stata spostata) prima di eseguire l'operazione.
+ * Le operazioni su queste risorse vengono serializzate (lock striping) con il loro spostamento.
+ *
+ *
+ */
+public class ShardedDatabase implements IDatabase
+{
+    private final ExecutorService executor;
+
+    private final int virtualNodes;
+
+    // anello attuale e (durante un ribilanciamento) quello precedente; cambiano solo con il write lock di ringLock
+    private volatile Ring ring;
+
+    private volatile Ring previousRing;
+
+    // le operazioni tengono il read lock, cosi' che un cambio di anello attenda quelle iniziate con l'anello precedente
+    private final ReadWriteLock ringLock = new ReentrantReadWriteLock();
+
+    // serializzano le operazioni sulle risorse da spostare con il loro spostamento
+    private final ReentrantLock[] locks;
+
+    private final Object rebalanceLock = new Object();
+
+    private final static int lockCount = 16;
+
+    // risorse spostate alla volta durante un ribilanciamento
+    private final static int rebalanceBatchSize = 100;
+
+    private final static Charset utf8 = Charset.forName("UTF-8");
+
+    private final static ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>()
+    {
+        @Override
+        protected MessageDigest initialValue()
+        {
+            try
+            {
+                return MessageDigest.getInstance("MD5");
+            }
+            catch(NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link ShardedDatabase}.
+     * @param shards gli shard, per nome (il nome determina la posizione dello shard sull'anello: deve restare
+     * lo stesso tra un avvio e l'altro)
+     * @param virtualNodes numero di punti di ogni shard sull'anello (piu' punti, distribuzione piu' uniforme)
+     * @param executor l'executor sui cui thread eseguire le operazioni su piu' shard
+     */
+    public ShardedDatabase(Map<String, IDatabase> shards, int virtualNodes, ExecutorService executor)
+    {
+        if(shards.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+
+        this.virtualNodes = virtualNodes;
+        this.executor = executor;
+
+        ring = new Ring(new LinkedHashMap<String, IDatabase>(shards), virtualNodes);
+
+        locks = new ReentrantLock[lockCount];
+
+        for(int i = 0; i < lockCount; i++)
+        {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+
+    /**
+     * @return gli shard, per nome (compreso, durante un ribilanciamento, quello in aggiunta)
+     */
+    public Map<String, IDatabase> getShards()
+    {
+        return ring.shards;
+    }
+
+
+    /**
+     * Aggiunge uno shard e vi sposta le risorse che gli appartengono (vedi {@link #rebalance()}).
+     * Il database resta utilizzabile durante lo spostamento.
+     * @param name nome del nuovo shard
+     * @param shard il nuovo shard (vuoto)
+     */
+    public void addShard(String name, IDatabase shard)
+    {
+        synchronized(rebalanceLock)
+        {
+            startAddShard(name, shard);
+
+            rebalance();
+        }
+    }
+
+
+    /**
+     * Aggiunge uno shard senza spostarvi le risorse: da subito le risorse che gli appartengono vengono cercate prima
+     * nel nuovo shard e poi in quello precedente, e {@link #rebalance()} completa lo spostamento. Serve per riprendere,
+     * all'avvio, l'aggiunta di uno shard interrotta: il nuovo shard potrebbe gia' contenere parte delle risorse.
+     * @param name nome del nuovo shard
+     * @param shard il nuovo shard
+     */
+    public void startAddShard(String name, IDatabase shard)
+    {
+        synchronized(rebalanceLock)
+        {
+            if(ring.shards.containsKey(name))
+            {
+                throw new IllegalArgumentException("Shard " + name + " already exists");
+            }
+
+            if(previousRing != null)
+            {
+                rebalance();
+            }
+
+            Map<String, IDatabase> shards = new LinkedHashMap<String, IDatabase>(ring.shards);
+            shards.put(name, shard);
+
+            Ring newRing = new Ring(shards, virtualNodes);
+
+            ringLock.writeLock().lock();
+
+            try
+            {
+                previousRing = ring;
+                ring = newRing;
+            }
+            finally
+            {
+                ringLock.writeLock().unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Sposta nello shard di appartenenza le risorse che si trovano ancora in quello precedente all'ultimo
+     * {@link #addShard(String, IDatabase)} (o {@link #startAddShard(String, IDatabase)}). Viene gia' eseguito da
+     * {@link #addShard(String, IDatabase)}: serve per completare un ribilanciamento interrotto da un errore, o
+     * iniziato da {@link #startAddShard(String, IDatabase)}.
+     */
+    public void rebalance()
+    {
+        synchronized(rebalanceLock)
+        {
+            Ring currentRing = ring;
+            Ring oldRing = previousRing;
+
+            if(oldRing == null)
+            {
+                return;
+            }
+
+            for(IDatabase oldShard : new LinkedHashSet<IDatabase>(oldRing.shards.values()))
+            {
+                String cursor = null;
+
+                do
+                {
+                    ResourceListing listing = oldShard.list("", cursor, rebalanceBatchSize);
+
+                    List<String> movingURIs = new ArrayList<String>();
+
+                    for(String resourceURI : listing.getETags().keySet())
+                    {
+                        if(currentRing.shardFor(resourceURI) != oldShard)
+                        {
+                            movingURIs.add(resourceURI);
+                        }
+                    }
+
+                    if(!movingURIs.isEmpty())
+                    {
+                        move(movingURIs, oldShard, currentRing);
+                    }
+
+                    cursor = listing.getNextCursor();
+                }
+                while(cursor != null);
+            }
+
+            ringLock.writeLock().lock();
+
+            try
+            {
+                previousRing = null;
+            }
+            finally
+            {
+                ringLock.writeLock().unlock();
+            }
+        }
+    }
+
+
+    // sposta un blocco di risorse da oldShard ai rispettivi shard di appartenenza
+    private void move(List<String> resourceURIs, IDatabase oldShard, Ring currentRing)
+    {
+        List<ReentrantLock> locked = lockAll(resourceURIs);
+
+        try
+        {
+            // riletti con i lock: nel frattempo alcune potrebbero essere state spostate (o eliminate)
+            Map<String, IResource> found = oldShard.getAll(resourceURIs);
+
+            Map<IDatabase, List<IResource>> byShard = new HashMap<IDatabase, List<IResource>>();
+
+            for(IResource resource : found.values())
+            {
+                IDatabase shard = currentRing.shardFor(resource.getURI());
+
+                if(!byShard.containsKey(shard))
+                {
+                    byShard.put(shard, new ArrayList<IResource>());
+                }
+
+                byShard.get(shard).add(resource);
+            }
+
+            for(Map.Entry<IDatabase, List<IResource>> entry : byShard.entrySet())
+            {
+                entry.getKey().putAll(entry.getValue());
+            }
+
+            oldShard.deleteAll(found.keySet());
+        }
+        finally
+        {
+            unlockAll(locked);
+        }
+    }
+
+
+    // sposta (con il lock della risorsa) una singola risorsa non ancora spostata
+    private static void move(String resourceURI, IDatabase shard, IDatabase previousShard)
+    {
+        IResource resource = previousShard.get(resourceURI);
+
+        if(resource != null)
+        {
+            shard.putIfAbsent(resource);
+            previousShard.deleteIfMatch(resourceURI, resource.getETag());
+        }
+    }
+
+
+    private static long hash(String string)
+    {
+        byte[] digest = md5.get().digest(string.getBytes(utf8));
+
+        long hash = 0;
+
+        for(int i = 0; i < 8; i++)
+        {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+
+        return hash;
+    }
+
+
+    private ReentrantLock lockFor(String resourceURI)
+    {
+        return locks[(resourceURI.hashCode() & 0x7fffffff) % lockCount];
+    }
+
+
+    // blocca (in ordine, per evitare deadlock) i lock di tutti gli URI
+    private List<ReentrantLock> lockAll(Collection<String> resourceURIs)
+    {
+        Set<Integer> indexes = new TreeSet<Integer>();
+
+        for(String resourceURI : resourceURIs)
+        {
+            indexes.add((resourceURI.hashCode() & 0x7fffffff) % lockCount);
+        }
+
+        List<ReentrantLock> locked = new ArrayList<ReentrantLock>();
+
+        for(int index : indexes)
+        {
+            locks[index].lock();
+            locked.add(locks[index]);
+        }
+
+        return locked;
+    }
+
+
+    private static void unlockAll(List<ReentrantLock> locked)
+    {
+        for(ReentrantLock lock : locked)
+        {
+            lock.unlock();
+        }
+    }
+
+
+    // shard di appartenenza e shard precedente (se la risorsa deve essere spostata) di una risorsa;
+    // va chiamato con il read lock di ringLock
+    private IDatabase[] route(String resourceURI)
+    {
+        IDatabase shard = ring.shardFor(resourceURI);
+
+        Ring oldRing = previousRing;
+
+        IDatabase previousShard = oldRing != null ? oldRing.shardFor(resourceURI) : shard;
+
+        return new IDatabase[] { shard, previousShard != shard ? previousShard : null };
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource resource)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            IDatabase[] shards = route(resource.getURI());
+
+            if(shards[1] == null)
+            {
+                shards[0].put(resource);
+                return;
+            }
+
+            ReentrantLock lock = lockFor(resource.getURI());
+            lock.lock();
+
+            try
+            {
+                shards[0].put(resource);
+                shards[1].delete(resource.getURI());
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource resource)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            IDatabase[] shards = route(resource.getURI());
+
+            if(shards[1] == null)
+            {
+                return shards[0].putIfAbsent(resource);
+            }
+
+            ReentrantLock lock = lockFor(resource.getURI());
+            lock.lock();
+
+            try
+            {
+                move(resource.getURI(), shards[0], shards[1]);
+                return shards[0].putIfAbsent(resource);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource resource, String expectedETag)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            IDatabase[] shards = route(resource.getURI());
+
+            if(shards[1] == null)
+            {
+                return shards[0].putIfMatch(resource, expectedETag);
+            }
+
+            ReentrantLock lock = lockFor(resource.getURI());
+            lock.lock();
+
+            try
+            {
+                move(resource.getURI(), shards[0], shards[1]);
+                return shards[0].putIfMatch(resource, expectedETag);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String resourceURI)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            IDatabase[] shards = route(resourceURI);
+
+            if(shards[1] == null)
+            {
+                return shards[0].get(resourceURI);
+            }
+
+            ReentrantLock lock = lockFor(resourceURI);
+            lock.lock();
+
+            try
+            {
+                IResource resource = shards[0].get(resourceURI);
+                return resource != null ? resource : shards[1].get(resourceURI);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String resourceURI)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            IDatabase[] shards = route(resourceURI);
+
+            if(shards[1] == null)
+            {
+                return shards[0].getETag(resourceURI);
+            }
+
+            ReentrantLock lock = lockFor(resourceURI);
+            lock.lock();
+
+            try
+            {
+                String eTag = shards[0].getETag(resourceURI);
+                return eTag != null ? eTag : shards[1].getETag(resourceURI);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String resourceURI, long offset, int length)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            IDatabase[] shards = route(resourceURI);
+
+            if(shards[1] == null)
+            {
+                return shards[0].getRange(resourceURI, offset, length);
+            }
+
+            ReentrantLock lock = lockFor(resourceURI);
+            lock.lock();
+
+            try
+            {
+                ResourceRange range = shards[0].getRange(resourceURI, offset, length);
+                return range != null ? range : shards[1].getRange(resourceURI, offset, length);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(final String prefix, final String cursor, final int limit)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            Ring currentRing = ring;
+
+            Set<IDatabase> shards = new LinkedHashSet<IDatabase>(currentRing.shards.values());
+
+            if(previousRing != null)
+            {
+                shards.addAll(previousRing.shards.values());
+            }
+
+            // ogni shard restituisce le sue prime limit risorse: le prime limit complessive sono tra queste
+            Map<IDatabase, Callable<ResourceListing>> tasks = new LinkedHashMap<IDatabase, Callable<ResourceListing>>();
+
+            for(final IDatabase shard : shards)
+            {
+                tasks.put(shard, new Callable<ResourceListing>()
+                {
+                    @Override
+                    public ResourceListing call()
+                    {
+                        return shard.list(prefix, cursor, limit);
+                    }
+                });
+            }
+
+            Map<IDatabase, ResourceListing> listings = invokeAll(tasks);
+
+            TreeMap<String, String> merged = new TreeMap<String, String>();
+
+            boolean more = false;
+
+            for(Map.Entry<IDatabase, ResourceListing> entry : listings.entrySet())
+            {
+                for(Map.Entry<String, String> eTagEntry : entry.getValue().getETags().entrySet())
+                {
+                    // una risorsa in corso di spostamento puo' comparire in due shard: vale quello di appartenenza
+                    if(!merged.containsKey(eTagEntry.getKey()) || currentRing.shardFor(eTagEntry.getKey()) == entry.getKey())
+                    {
+                        merged.put(eTagEntry.getKey(), eTagEntry.getValue());
+                    }
+                }
+
+                more |= entry.getValue().getNextCursor() != null;
+            }
+
+            LinkedHashMap<String, String> eTags = new LinkedHashMap<String, String>();
+
+            for(Map.Entry<String, String> entry : merged.entrySet())
+            {
+                if(eTags.size() == limit)
+                {
+                    more = true;
+                    break;
+                }
+
+                eTags.put(entry.getKey(), entry.getValue());
+            }
+
+            String nextCursor = more && !eTags.isEmpty() ? new ArrayList<String>(eTags.keySet()).get(eTags.size() - 1) : null;
+
+            return new ResourceListing(eTags, nextCursor);
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource resource)
+    {
+        return delete(resource.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String resourceURI)
+    {
+        return deleteIfMatch(resourceURI, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String resourceURI, String expectedETag)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            IDatabase[] shards = route(resourceURI);
+
+            if(shards[1] == null)
+            {
+                return shards[0].deleteIfMatch(resourceURI, expectedETag);
+            }
+
+            ReentrantLock lock = lockFor(resourceURI);
+            lock.lock();
+
+            try
+            {
+                move(resourceURI, shards[0], shards[1]);
+                return shards[0].deleteIfMatch(resourceURI, expectedETag);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> resourceURIs)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            Map<IDatabase, List<String>> byShard = new LinkedHashMap<IDatabase, List<String>>();
+
+            // le risorse da spostare vengono lette una alla volta, come con get()
+            List<String> movingURIs = groupByShard(resourceURIs, byShard);
+
+            Map<IDatabase, Callable<Map<String, IResource>>> tasks = new LinkedHashMap<IDatabase, Callable<Map<String, IResource>>>();
+
+            for(final Map.Entry<IDatabase, List<String>> entry : byShard.entrySet())
+            {
+                tasks.put(entry.getKey(), new Callable<Map<String, IResource>>()
+                {
+                    @Override
+                    public Map<String, IResource> call()
+                    {
+                        return entry.getKey().getAll(entry.getValue());
+                    }
+                });
+            }
+
+            Map<String, IResource> found = new HashMap<String, IResource>();
+
+            for(Map<String, IResource> shardFound : invokeAll(tasks).values())
+            {
+                found.putAll(shardFound);
+            }
+
+            for(String resourceURI : movingURIs)
+            {
+                IResource resource = get(resourceURI);
+
+                if(resource != null)
+                {
+                    found.put(resourceURI, resource);
+                }
+            }
+
+            return found;
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> resources)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            Map<String, IResource> byURI = new LinkedHashMap<String, IResource>();
+
+            for(IResource resource : resources)
+            {
+                byURI.put(resource.getURI(), resource);
+            }
+
+            Map<IDatabase, List<String>> byShard = new LinkedHashMap<IDatabase, List<String>>();
+
+            List<String> movingURIs = groupByShard(byURI.keySet(), byShard);
+
+            Map<IDatabase, Callable<Void>> tasks = new LinkedHashMap<IDatabase, Callable<Void>>();
+
+            for(final Map.Entry<IDatabase, List<String>> entry : byShard.entrySet())
+            {
+                final List<IResource> shardResources = new ArrayList<IResource>();
+
+                for(String resourceURI : entry.getValue())
+                {
+                    shardResources.add(byURI.get(resourceURI));
+                }
+
+                tasks.put(entry.getKey(), new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        entry.getKey().putAll(shardResources);
+                        return null;
+                    }
+                });
+            }
+
+            invokeAll(tasks);
+
+            for(String resourceURI : movingURIs)
+            {
+                put(byURI.get(resourceURI));
+            }
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> resourceURIs)
+    {
+        ringLock.readLock().lock();
+
+        try
+        {
+            Map<IDatabase, List<String>> byShard = new LinkedHashMap<IDatabase, List<String>>();
+
+            List<String> movingURIs = groupByShard(resourceURIs, byShard);
+
+            Map<IDatabase, Callable<Set<String>>> tasks = new LinkedHashMap<IDatabase, Callable<Set<String>>>();
+
+            for(final Map.Entry<IDatabase, List<String>> entry : byShard.entrySet())
+            {
+                tasks.put(entry.getKey(), new Callable<Set<String>>()
+                {
+                    @Override
+                    public Set<String> call()
+                    {
+                        return entry.getKey().deleteAll(entry.getValue());
+                    }
+                });
+            }
+
+            Set<String> deleted = new HashSet<String>();
+
+            for(Set<String> shardDeleted : invokeAll(tasks).values())
+            {
+                deleted.addAll(shardDeleted);
+            }
+
+            for(String resourceURI : movingURIs)
+            {
+                if(delete(resourceURI))
+                {
+                    deleted.add(resourceURI);
+                }
+            }
+
+            return deleted;
+        }
+        finally
+        {
+            ringLock.readLock().unlock();
+        }
+    }
+
+
+    // raggruppa per shard gli URI che non devono essere spostati; restituisce quelli da spostare
+    private List<String> groupByShard(Collection<String> resourceURIs, Map<IDatabase, List<String>> byShard)
+    {
+        List<String> movingURIs = new ArrayList<String>();
+
+        for(String resourceURI : new LinkedHashSet<String>(resourceURIs))
+        {
+            IDatabase[] shards = route(resourceURI);
+
+            if(shards[1] != null)
+            {
+                movingURIs.add(resourceURI);
+                continue;
+            }
+
+            if(!byShard.containsKey(shards[0]))
+            {
+                byShard.put(shards[0], new ArrayList<String>());
+            }
+
+            byShard.get(shards[0]).add(resourceURI);
+        }
+
+        return movingURIs;
+    }
+
+
+    // esegue i task in parallelo (il primo sul thread chiamante) e ne restituisce i risultati, per shard
+    private <T> Map<IDatabase, T> invokeAll(Map<IDatabase, Callable<T>> tasks)
+    {
+        Map<IDatabase, T> results = new LinkedHashMap<IDatabase, T>();
+
+        if(tasks.isEmpty())
+        {
+            return results;
+        }
+
+        List<IDatabase> shards = new ArrayList<IDatabase>(tasks.keySet());
+
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+
+        for(IDatabase shard : shards.subList(1, shards.size()))
+        {
+            futures.add(executor.submit(tasks.get(shard)));
+        }
+
+        try
+        {
+            results.put(shards.get(0), tasks.get(shards.get(0)).call());
+
+            for(int i = 0; i < futures.size(); i++)
+            {
+                results.put(shards.get(i + 1), futures.get(i).get());
+            }
+
+            return results;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for a shard", e);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new DatabaseException("Shard operation failed", e.getCause());
+        }
+        catch(RuntimeException e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new DatabaseException("Shard operation failed", e);
+        }
+        finally
+        {
+            for(Future<T> future : futures)   // in caso di errore, le operazioni non ancora iniziate non servono piu'
+            {
+                future.cancel(false);
+            }
+        }
+    }
+
+
+    /**
+     * Anello di hash: i punti (ordinati) e lo shard a cui appartiene ciascuno.
+     */
+    private static class Ring
+    {
+        private final Map<String, IDatabase> shards;
+
+        private final long[] points;
+
+        private final IDatabase[] owners;
+
+        private Ring(Map<String, IDatabase> shards, int virtualNodes)
+        {
+            this.shards = Collections.unmodifiableMap(shards);
+
+            TreeMap<Long, IDatabase> sortedPoints = new TreeMap<Long, IDatabase>();
+
+            for(Map.Entry<String, IDatabase> entry : shards.entrySet())
+            {
+                for(int i = 0; i < virtualNodes; i++)
+                {
+                    sortedPoints.put(hash(entry.getKey() + "#" + i), entry.getValue());
+                }
+            }
+
+            points = new long[sortedPoints.size()];
+            owners = new IDatabase[sortedPoints.size()];
+
+            int i = 0;
+
+            for(Map.Entry<Long, IDatabase> entry : sortedPoints.entrySet())
+            {
+                points[i] = entry.getKey();
+                owners[i] = entry.getValue();
+                i++;
+            }
+        }
+
+        private IDatabase shardFor(String resourceURI)
+        {
+            int index = Arrays.binarySearch(points, hash(resourceURI));
+
+            if(index < 0)
+            {
+                index = -index - 1;   // primo punto maggiore
+            }
+
+            return owners[index == points.length ? 0 : index];
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+package storageInterface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link ChangeLog} condiviso da tutte le istanze che usano lo stesso database (e.g.: il Datastore): le modifiche
+ * vengono scritte in un {@link IDatabase} ({@code store}) come record il cui URI e' il numero di sequenza
+ * ({@code s/%019d}, cosi' che l'ordine degli URI sia quello delle sequenze), e ogni istanza le legge in un registro
+ * locale, da cui i client ricevono le modifiche di tutte le istanze.
+ * <ul>
+ * <li>il numero di sequenza iniziale (derivato dall'istante di creazione, come in {@link ChangeLog}) e' nel record
+ * {@code base}, scritto dalla prima istanza: e' lo stesso per tutte le istanze, e cambia solo se l'archivio viene
+ * svuotato</li>
+ * <li>{@link #append(String, String)} assegna alla modifica il numero successivo all'ultimo letto, con
+ * {@link IDatabase#putIfAbsent(IResource)}: se un'altra istanza lo ha gia' usato, legge le sue modifiche e riprova
+ * con il numero successivo; i numeri sono quindi consecutivi, senza buchi</li>
+ * <li>le modifiche delle altre istanze vengono lette ogni {@code pollInterval} ms (e prima di rispondere ad un client
+ * che conosce un numero di sequenza successivo all'ultimo letto), con {@link IDatabase#getAll(java.util.Collection)}
+ * dei numeri successivi: sul Datastore la lettura per chiave e' consistente</li>
+ * <li>chi scrive la modifica numero n elimina dall'archivio i record precedenti a n - {@code capacity}; se nel
+ * frattempo un'istanza e' rimasta indietro oltre i record conservati, riparte dall'ultimo (i suoi client ricevono
+ * un 410, come quando le modifiche escono dal buffer circolare)</li>
+ * </ul>
+ * Le modifiche delle altre istanze arrivano ai client con un ritardo di al piu' {@code pollInterval} ms. Due scritture
+ * concorrenti della stessa risorsa da istanze diverse possono comparire nell'ordine opposto a quello in cui il
+ * database le ha applicate (il lock di {@link ChangeLogDatabase} e' locale all'istanza): l'ultimo ETag registrato
+ * per una risorsa non e' quindi necessariamente quello attuale.
+ *
+ *
+ */
+public class SharedChangeLog extends ChangeLog
+{
+    private final IDatabase store;
+
+    private final int capacity;
+
+    // record eliminati alla volta: li elimina chi scrive una modifica il cui numero e' un multiplo di pruneBatchSize
+    private final int pruneBatchSize;
+
+    // numeri di sequenza letti con un solo accesso all'archivio
+    private final static int readBatchSize = 100;
+
+    // tentativi di append() senza che la lettura delle modifiche delle altre istanze faccia progressi
+    private final static int maxAppendAttempts = 10;
+
+    private final static String keyPrefix = "s/";
+
+    private final static String keyFormat = keyPrefix + "%019d";
+
+    private final static String baseKey = "base";
+
+    // le scritture locali vengono numerate una alla volta
+    private final Object appendLock = new Object();
+
+    private final ScheduledExecutorService poller;
+
+    private final static Logger logger = Logger.getLogger(SharedChangeLog.class.getName());
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link SharedChangeLog}, che prosegue dall'ultima modifica nell'archivio
+     * (se vuoto, i numeri di sequenza partono come in {@link ChangeLog}).
+     * @param capacity numero di modifiche conservate (in memoria e nell'archivio)
+     * @param store l'archivio dei record delle modifiche, condiviso da tutte le istanze e non usato per altro
+     * @param pollInterval intervallo (ms) tra due letture delle modifiche delle altre istanze
+     */
+    public SharedChangeLog(int capacity, IDatabase store, long pollInterval)
+    {
+        super(capacity);
+
+        this.store = store;
+        this.capacity = capacity;
+
+        pruneBatchSize = Math.max(1, capacity / 10);
+
+        if(store.putIfAbsent(new SINode(baseKey, Long.toString(getLastSequence()))) == null)   // non e' la prima istanza
+        {
+            restartFrom(Long.parseLong(store.get(baseKey).getContent()));
+        }
+
+        restartFromNewest();
+
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "SharedChangeLog poller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        poller.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    poll();
+                }
+                catch(RuntimeException e)   // riprova alla lettura successiva
+                {
+                    logger.log(Level.WARNING, "Cannot read the changes of the other instances", e);
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.ChangeLog#append(java.lang.String, java.lang.String)
+     */
+    @Override
+    public long append(String uri, String eTag)
+    {
+        synchronized(appendLock)
+        {
+            for(int attempt = 0; attempt < maxAppendAttempts; )
+            {
+                long lastSequence = getLastSequence();
+                long sequence = lastSequence + 1;
+
+                if(store.putIfAbsent(new SINode(toKey(sequence), (eTag != null ? eTag : "") + "\n" + uri)) != null)
+                {
+                    addAll(Collections.singletonList(new Change(sequence, uri, eTag)));
+
+                    if(sequence % pruneBatchSize == 0)
+                    {
+                        prune(sequence - capacity);
+                    }
+
+                    return sequence;
+                }
+
+                // numero gia' usato da un'altra istanza
+                poll();
+
+                if(getLastSequence() == lastSequence)
+                {
+                    attempt++;
+                }
+            }
+
+            throw new DatabaseException("Cannot assign a sequence number to the change of " + uri, null);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.ChangeLog#getChangesAsync(long, java.lang.String, int, long)
+     */
+    @Override
+    public AsyncResult<Page> getChangesAsync(long since, String prefix, int limit, long timeout)
+    {
+        if(since > getLastSequence())   // il client ha ricevuto modifiche da un'istanza piu' aggiornata
+        {
+            poll();
+        }
+
+        return super.getChangesAsync(since, prefix, limit, timeout);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.ChangeLog#close()
+     */
+    @Override
+    public void close()
+    {
+        poller.shutdownNow();
+
+        super.close();
+    }
+
+
+    /**
+     * Legge dall'archivio le modifiche successive all'ultima letta (anche quelle delle altre istanze).
+     */
+    void poll()
+    {
+        while(true)
+        {
+            long lastSequence = getLastSequence();
+
+            List<String> keys = new ArrayList<String>();
+
+            for(long sequence = lastSequence + 1; sequence <= lastSequence + readBatchSize; sequence++)
+            {
+                keys.add(toKey(sequence));
+            }
+
+            Map<String, IResource> records = store.getAll(keys);
+
+            List<Change> read = new ArrayList<Change>();
+
+            for(long sequence = lastSequence + 1; records.containsKey(toKey(sequence)); sequence++)
+            {
+                read.add(toChange(sequence, records.get(toKey(sequence))));
+            }
+
+            if(read.isEmpty())
+            {
+                // record dopo un buco, o il record piu' vecchio e' oltre lastSequence + 1: i mancanti sono stati eliminati
+                if(!records.isEmpty() || isBehind(lastSequence))
+                {
+                    restartFromNewest();
+                }
+
+                return;
+            }
+
+            addAll(read);
+
+            if(read.size() < readBatchSize)
+            {
+                return;
+            }
+        }
+    }
+
+
+    // true se i record successivi a lastSequence sono gia' stati eliminati da chi scrive
+    private boolean isBehind(long lastSequence)
+    {
+        Set<String> oldest = store.list(keyPrefix, null, 1).getETags().keySet();
+
+        return !oldest.isEmpty() && toSequence(oldest.iterator().next()) > lastSequence + 1;
+    }
+
+
+    // riparte dall'ultimo record dell'archivio, se ce n'e' almeno uno
+    private void restartFromNewest()
+    {
+        Set<String> oldest = store.list(keyPrefix, null, 1).getETags().keySet();
+
+        if(oldest.isEmpty())
+        {
+            return;
+        }
+
+        // i record sono consecutivi: ricerca esponenziale, poi binaria, del primo numero senza record
+        long newest = toSequence(oldest.iterator().next());
+        long step = 1;
+
+        while(store.getETag(toKey(newest + step)) != null)
+        {
+            newest += step;
+            step *= 2;
+        }
+
+        long missing = newest + step;
+
+        while(missing - newest > 1)
+        {
+            long middle = newest + (missing - newest) / 2;
+
+            if(store.getETag(toKey(middle)) != null)
+            {
+                newest = middle;
+            }
+            else
+            {
+                missing = middle;
+            }
+        }
+
+        restartFrom(newest);
+    }
+
+
+    // elimina i record fino a lastPruned (compreso); un errore lascia record in piu', eliminati da nessun altro
+    private void prune(long lastPruned)
+    {
+        List<String> keys = new ArrayList<String>();
+
+        for(long sequence = lastPruned - pruneBatchSize + 1; sequence <= lastPruned; sequence++)
+        {
+            keys.add(toKey(sequence));
+        }
+
+        try
+        {
+            store.deleteAll(keys);
+        }
+        catch(RuntimeException e)
+        {
+            logger.log(Level.WARNING, "Cannot prune the change log", e);
+        }
+    }
+
+
+    private static String toKey(long sequence)
+    {
+        return String.format(keyFormat, sequence);
+    }
+
+
+    private static long toSequence(String key)
+    {
+        return Long.parseLong(key.substring(keyPrefix.length()));
+    }
+
+
+    private static Change toChange(long sequence, IResource record)
+    {
+        String content = record.getContent();
+        int separator = content.indexOf('\n');
+
+        return new Change(sequence, content.substring(separator + 1), separator > 0 ? content.substring(0, separator) : null);
+    }
+
+}
@@ -0,0 +1,330 @@
+package storageInterface;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decoratore di un {@link IDatabase} che unisce le letture concorrenti della stessa risorsa (single-flight):
+ * se un {@link #get(String)} arriva mentre e' gia' in corso la lettura dello stesso URI, attende quella e ne
+ * restituisce lo stesso {@link IResource} (che quindi non deve essere modificato da chi lo riceve), invece di
+ * accedere di nuovo al database. Evita che molte richieste della stessa risorsa (e.g.: dopo la scadenza
+ * della cache o un riavvio) arrivino contemporaneamente al database.
+ * <p>
+ * Una lettura iniziata prima di una scrittura non viene condivisa con le letture iniziate dopo la fine della
+ * scrittura (effettuata attraverso il decoratore), che leggono quindi almeno la versione scritta.
+ *
+ *
+ */
+public class SingleFlightDatabase implements IDatabase
+{
+    private final IDatabase db;
+
+    // letture in corso, per URI
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    // metriche
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicLong sharedCount = new AtomicLong();
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link SingleFlightDatabase}.
+     * @param db il database di cui unire le letture
+     */
+    public SingleFlightDatabase(IDatabase db)
+    {
+        this.db = db;
+    }
+
+
+    /**
+     * @return numero di letture eseguite sul database
+     */
+    public long getLoadCount()
+    {
+        return loadCount.get();
+    }
+
+
+    /**
+     * @return numero di letture che hanno atteso (e condiviso) una lettura gia' in corso
+     */
+    public long getSharedCount()
+    {
+        return sharedCount.get();
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String resourceURI)
+    {
+        Flight flight = new Flight();
+
+        Flight inFlight = flights.putIfAbsent(resourceURI, flight);
+
+        if(inFlight != null)
+        {
+            sharedCount.incrementAndGet();
+            return inFlight.await();
+        }
+
+        loadCount.incrementAndGet();
+
+        try
+        {
+            flight.resource = db.get(resourceURI);
+        }
+        catch(RuntimeException e)   // l'errore arriva anche a chi attende
+        {
+            flight.failure = e;
+        }
+        finally
+        {
+            flights.remove(resourceURI, flight);
+            flight.done.countDown();
+        }
+
+        if(flight.failure != null)
+        {
+            throw flight.failure;
+        }
+
+        return flight.resource;
+    }
+
+
+    // dopo una scrittura, le letture successive non devono unirsi ad una lettura iniziata prima
+    private void written(String resourceURI)
+    {
+        flights.remove(resourceURI);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource resource)
+    {
+        try
+        {
+            db.put(resource);
+        }
+        finally
+        {
+            written(resource.getURI());
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource resource)
+    {
+        try
+        {
+            return db.putIfAbsent(resource);
+        }
+        finally
+        {
+            written(resource.getURI());
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource resource, String expectedETag)
+    {
+        try
+        {
+            return db.putIfMatch(resource, expectedETag);
+        }
+        finally
+        {
+            written(resource.getURI());
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String resourceURI)
+    {
+        return db.getETag(resourceURI);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String resourceURI, long offset, int length)
+    {
+        return db.getRange(resourceURI, offset, length);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        return db.list(prefix, cursor, limit);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource resource)
+    {
+        return delete(resource.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String resourceURI)
+    {
+        try
+        {
+            return db.delete(resourceURI);
+        }
+        finally
+        {
+            written(resourceURI);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String resourceURI, String expectedETag)
+    {
+        try
+        {
+            return db.deleteIfMatch(resourceURI, expectedETag);
+        }
+        finally
+        {
+            written(resourceURI);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> resourceURIs)
+    {
+        return db.getAll(resourceURIs);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> resources)
+    {
+        try
+        {
+            db.putAll(resources);
+        }
+        finally
+        {
+            for(IResource resource : resources)
+            {
+                written(resource.getURI());
+            }
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> resourceURIs)
+    {
+        try
+        {
+            return db.deleteAll(resourceURIs);
+        }
+        finally
+        {
+            for(String resourceURI : resourceURIs)
+            {
+                written(resourceURI);
+            }
+        }
+    }
+
+
+    /**
+     * Lettura in corso, con il suo esito.
+     */
+    private static class Flight
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // scritti da chi esegue la lettura prima di done.countDown()
+        private IResource resource;
+
+        private RuntimeException failure;
+
+        private IResource await()
+        {
+            boolean interrupted = false;
+
+            while(true)
+            {
+                try
+                {
+                    done.await();
+                    break;
+                }
+                catch(InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+
+            if(interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            if(failure != null)
+            {
+                throw failure;
+            }
+
+            return resource;
+        }
+    }
+
+}
@@ -2,81 +2,919 @@ package storageInterface;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-
+import java.io.InputStreamReader;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.XMLConstants;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
 
 import org.xml.sax.SAXException;
 
 /**
  * {@link HttpServlet} che implementa l'applicazione "Storage Interface".
+ * Il database viene costruito da {@link DatabaseStack}; le richieste sulle risorse (GET, HEAD, PUT e DELETE) sono
+ * elaborate qui, le altre dal gestore del loro endpoint ({@link ListHandler}, {@link VersionsHandler},
+ * {@link ChangesHandler}, {@link BatchHandler}, {@link BulkTransferHandler}, {@link MetricsHandler}).
  *
  *
  */
 @SuppressWarnings("serial")
 public class StorageInterfaceServlet extends HttpServlet
 {
-    // database
-    private IDatabase db = new DatastoreDatabase();
+    // database: costruito in init() in base agli init-param (vedi DatabaseStack)
+    private IDatabase db;
+
+    private DatabaseStack databaseStack;
+
+    // il backend con la misura degli accessi per richiesta
+    private InstrumentedDatabase instrumentedDb;
+
+    // gestori degli endpoint diversi dalle risorse
+    private ListHandler listHandler;
+
+    private VersionsHandler versionsHandler;
+
+    private ChangesHandler changesHandler;
+
+    private BatchHandler batchHandler;
+
+    private BulkTransferHandler bulkTransferHandler;
+
+    private MetricsHandler metricsHandler;
+
+    // invio del contenuto delle risorse
+    private ContentWriter contentWriter;
+
+    // init-param del registro delle modifiche (vedi ChangesHandler): attesa massima (ms) di una richiesta in long-poll,
+    // durata massima di uno stream (dopo la quale il client si riconnette)
+    private final static String changeMaxWaitParamName = "changeMaxWait";
+
+    private final static String changeStreamDurationParamName = "changeStreamDuration";
+
+    private final static long defaultChangeMaxWait = 30 * 1000;
+
+    private final static long defaultChangeStreamDuration = 5 * 60 * 1000;
+
+    private final static String changesResourceName = "!changes";
+
+    // http://localhost:8888/StorageInterface/!SI/
+    private final static String storageInterfaceURIprefix = "/StorageInterface/!SI/";
+
+    // nome riservato della risorsa a cui inviare (con una POST) le richieste batch
+    private final static String batchResourceName = "!batch";
+
+    // esportazione e importazione di tutte le risorse (vedi BulkTransferHandler), abilitate solo se l'init-param
+    // bulkTransfer e' "true"
+    private final static String exportResourceName = "!export";
+
+    private final static String importResourceName = "!import";
+
+    private final static String bulkTransferParamName = "bulkTransfer";
+
+    private final static String metricsResourceName = "!metrics";
+
+    // i nomi che terminano con il separatore sono collezioni: una GET ne elenca le risorse (vedi ListHandler)
+    private final static String collectionSeparator = "/";
+
+    // parametri di una GET su una collezione o su !changes
+    final static String cursorParamName = "cursor";
+
+    final static String limitParamName = "limit";
+
+    private final static int defaultListLimit = 100;
+
+    private final static int maxListLimit = 1000;
+
+    // attributi degli elenchi xml inviati dagli endpoint
+    final static String nextAttributeName = "next";
+
+    final static String uriAttributeName = "uri";
+
+    final static String etagAttributeName = "etag";
+
+    // percorso dell'xml schema da usare per la validazione
+    // (a partire dalla cartella war/)
+    private final static String xsdFilePath = "xsd/sinode.xsd";
+
+    // validatore xml: lo schema viene compilato una sola volta, in init()
+    private XmlValidator xmlValidator;
+
+    // init-param: intervallo (ms) tra i controlli di modifica dello schema, negativo = nessun ricaricamento
+    private final static String schemaReloadIntervalParamName = "schemaReloadInterval";
+
+    private final static long defaultSchemaReloadInterval = -1;
+
+    // dimensione massima (in byte) del body di una PUT
+    private int maxBodySize;
+
+    // init-param: dimensione massima del body; i contenuti piu' grandi di una entity del Datastore vengono
+    // suddivisi in blocchi, quindi si puo' alzare (e.g.: 33554432 per 32 MB) al costo di tenere in memoria body
+    // piu' grandi per ogni PUT in corso
+    private final static String maxBodySizeParamName = "maxBodySize";
+
+    private final static int defaultMaxBodySize = 1024 * 1024;
+
+    // charset usato se la richiesta non ne specifica uno
+    private final static Charset defaultCharset = Charset.forName("UTF-8");
+
+    // charset con cui vengono codificati URI e contenuto nel calcolo dell'ETag
+    private final static Charset etagCharset = Charset.forName("UTF-8");
+
+    // headers: nomi
+    final static String etagHeaderName = "ETag";
+
+    final static String acceptHeaderName = "Accept";
+
+    private final static String contentTypeHeaderName = "Content-Type";
+
+    private final static String ifMatchHeaderName = "If-Match";
+
+    private final static String ifNoneMatchHeaderName = "If-None-Match";
+
+    private final static String rangeHeaderName = "Range";
+
+    private final static String ifRangeHeaderName = "If-Range";
+
+    final static String acceptRangesHeaderName = "Accept-Ranges";
+
+    // unita' delle GET parziali (l'unica supportata)
+    final static String bytesRangeUnit = "bytes";
+
+    // suffisso dell'ETag del contenuto inviato compresso: le due rappresentazioni hanno byte diversi, quindi
+    // ETag (forti) diversi; nelle precondizioni (If-Match, If-None-Match) entrambi indicano la versione della risorsa
+    final static String gzipETagSuffix = "-gzip";
+
+    // headers: valori validi
+    private final static String validAcceptHeader = "application/xml";
+
+    private final static String validContentTypeHeader = validAcceptHeader;
+
+    // content type delle risposte che hanno un body xml generato dalla servlet
+    final static String xmlResponseContentType = validContentTypeHeader + "; charset=UTF-8";
+
+
+    // messaggi di errore (usati dal metodo sendError)
+    private final static String postMethodUndefinedMessage = "POST method is undefined, use PUT instead";
+
+    private final static String emptyResourceNameMessage = "Resource name cannot be empty";
+
+    private final static String collectionResourceNameMessage = "Resource name cannot end with \"" + collectionSeparator + "\"";
+
+    final static String invalidLimitMessage = limitParamName + " must be a positive integer";
+
+    final static String invalidAcceptHeaderMessage = acceptHeaderName + " header must be \"" + validAcceptHeader + "\"\n";
+
+    final static String invalidContentTypeHeaderMessage = contentTypeHeaderName + " header must be \"" + validContentTypeHeader + "\"\n";
+
+    private final static String ifMatchHeaderMissingMessage = ifMatchHeaderName + " header missing";
+
+    private final static String invalidIfMatchHeaderMessage = etagHeaderName + " mismatch";
+
+    final static String resourceNotFoundMessage = "Resource not found";
+
+    private final static String invalidBodyMessage = "Request body does not match xml schema";
+
+    private final static String invalidBodyEncodingMessage = "Request body is not correctly encoded";
+
+    final static String bodyTooLargeMessage = "Request body is too large";
+
+    // 507 Insufficient Storage (RFC 4918), non definito in HttpServletResponse
+    final static int insufficientStorageStatusCode = 507;
+
+
+
+    //private final static String xmlValidatorFatalErrorMessage = "XML Validator fatal error";
+
+    // modalita' asincrona: le richieste vengono elaborate sui thread di requestExecutor, non su quelli del container;
+    // le operazioni sul database di GET, PUT e DELETE vengono avviate su asyncDb e la richiesta prosegue (su
+    // requestExecutor) quando terminano, senza occupare un thread ad attenderle; null => modalita' sincrona
+    private ExecutorService requestExecutor;
+
+    // versione asincrona di db (solo in modalita' asincrona), usata anche per eseguire in parallelo le operazioni indipendenti
+    private ExecutorAsyncDatabase asyncDb;
+
+    // versione di db che esegue le operazioni sul thread chiamante: usata dalle richieste sincrone
+    private ExecutorAsyncDatabase directAsyncDb;
+
+    // attributo della richiesta con il suo AsyncRequest (solo per le richieste elaborate in modalita' asincrona)
+    private final static String asyncRequestAttributeName = AsyncRequest.class.getName();
+
+    private long asyncTimeout;
+
+    // init-param: modalita' asincrona ("true"), thread per le richieste e per il database, timeout (ms) di una richiesta
+    private final static String asyncParamName = "async";
+
+    private final static String asyncThreadsParamName = "asyncThreads";
+
+    private final static String asyncTimeoutParamName = "asyncTimeout";
+
+    private final static int defaultAsyncThreads = 200;
+
+    private final static long defaultAsyncTimeout = 30 * 1000;
+
+    private final static String requestTimeoutMessage = "Request timed out";
+
+    final static String serverBusyMessage = "Server is busy";
+
+
+    // metriche, esportate in GET su !metrics nel formato di Prometheus
+    private final Metrics metrics = new Metrics();
+
+    // durata delle richieste, per metodo HTTP
+    private final Map<String, Histogram> requestHistograms = new HashMap<String, Histogram>();
+
+    private Histogram otherRequestHistogram;
+
+    // risposte, per status code
+    private final ConcurrentMap<Integer, AtomicLong> responseCounters = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    private Histogram roundTripsHistogram;
+
+    private Histogram validationHistogram;
+
+    private Histogram eTagHistogram;
+
+    private Histogram responseWriteHistogram;
+
+    private AtomicLong requestContentBytes;
+
+    private AtomicLong responseContentBytes;
+
+    private final static String[] httpMethods = { "GET", "HEAD", "PUT", "POST", "DELETE" };
+
+    private final static double nanosPerSecond = 1e9;
+
+
+    @Override
+    public void init() throws ServletException
+    {
+        databaseStack = new DatabaseStack(getServletConfig(), metrics);
+
+        db = databaseStack.getDatabase();
+        instrumentedDb = databaseStack.getInstrumentedDatabase();
+
+        directAsyncDb = new ExecutorAsyncDatabase(db, null);
+
+        registerMetrics();
+
+        long schemaReloadInterval = getLongInitParameter(schemaReloadIntervalParamName, defaultSchemaReloadInterval);
+
+        try
+        {
+            xmlValidator = new XmlValidator(new File(xsdFilePath), schemaReloadInterval);
+        }
+        catch(SAXException e)
+        {
+            throw new ServletException("Cannot compile xml schema " + xsdFilePath, e);
+        }
+
+        maxBodySize = (int) getLongInitParameter(maxBodySizeParamName, defaultMaxBodySize);
+
+        if(Boolean.parseBoolean(getInitParameter(asyncParamName)))
+        {
+            // richiede <async-supported>true</async-supported> nel web.xml (Servlet 3.0)
+            int asyncThreads = (int) getLongInitParameter(asyncThreadsParamName, defaultAsyncThreads);
+
+            requestExecutor = Executors.newFixedThreadPool(asyncThreads, DatabaseStack.newDaemonThreadFactory("StorageInterface request"));
+            asyncDb = new ExecutorAsyncDatabase(db, Executors.newFixedThreadPool(asyncThreads, DatabaseStack.newDaemonThreadFactory("StorageInterface database")));
+            asyncTimeout = getLongInitParameter(asyncTimeoutParamName, defaultAsyncTimeout);
+        }
+
+        long changeMaxWait = getLongInitParameter(changeMaxWaitParamName, defaultChangeMaxWait);
+        long changeStreamDuration = getLongInitParameter(changeStreamDurationParamName, defaultChangeStreamDuration);
+
+        if(requestExecutor != null)   // le attese devono terminare prima del timeout della richiesta
+        {
+            changeMaxWait = Math.max(0, Math.min(changeMaxWait, asyncTimeout - 1000));
+            changeStreamDuration = Math.max(0, Math.min(changeStreamDuration, asyncTimeout - 1000));
+        }
+
+        contentWriter = new ContentWriter(responseWriteHistogram, responseContentBytes);
+
+        listHandler = new ListHandler(db);
+        versionsHandler = new VersionsHandler(databaseStack.getVersioningDatabase(), contentWriter);
+        changesHandler = new ChangesHandler(this, databaseStack.getChangeLog(), changeMaxWait, changeStreamDuration);
+        batchHandler = new BatchHandler(db, asyncDb, xmlValidator, maxBodySize, requestContentBytes);
+        bulkTransferHandler = new BulkTransferHandler(db, xmlValidator, maxBodySize, Boolean.parseBoolean(getInitParameter(bulkTransferParamName)),
+                                                      requestContentBytes, responseContentBytes);
+        metricsHandler = new MetricsHandler(metrics);
+    }
+
+
+    @Override
+    public void destroy()
+    {
+        if(requestExecutor != null)
+        {
+            requestExecutor.shutdown();
+
+            try
+            {
+                requestExecutor.awaitTermination(asyncTimeout, TimeUnit.MILLISECONDS);
+                asyncDb.shutdown(asyncTimeout);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        databaseStack.close();
+    }
+
+
+    private void registerMetrics()
+    {
+        for(String httpMethod : httpMethods)
+        {
+            requestHistograms.put(httpMethod, metrics.histogram("storage_interface_request_duration_seconds", "Request processing time",
+                                                                nanosPerSecond, "method", httpMethod));
+        }
+
+        // i metodi sconosciuti non creano nuove serie
+        otherRequestHistogram = metrics.histogram("storage_interface_request_duration_seconds", "Request processing time",
+                                                  nanosPerSecond, "method", "other");
+
+        roundTripsHistogram = metrics.histogram("storage_interface_request_database_round_trips", "Storage backend operations per request", 1);
+
+        validationHistogram = metrics.histogram("storage_interface_phase_duration_seconds", "Time spent in the request processing phases",
+                                                nanosPerSecond, "phase", "validation");
+        eTagHistogram = metrics.histogram("storage_interface_phase_duration_seconds", "Time spent in the request processing phases",
+                                          nanosPerSecond, "phase", "etag");
+        responseWriteHistogram = metrics.histogram("storage_interface_phase_duration_seconds", "Time spent in the request processing phases",
+                                                   nanosPerSecond, "phase", "response");
+
+        requestContentBytes = metrics.counter("storage_interface_request_content_bytes_total", "Request body bytes read");
+        responseContentBytes = metrics.counter("storage_interface_response_content_bytes_total", "Resource content bytes sent");
+    }
+
+
+    // in modalita' asincrona la richiesta viene passata a requestExecutor e il thread del container torna subito libero;
+    // la risposta viene completata (o, allo scadere del timeout, chiusa con un 503) da chi arriva prima
+    @Override
+    protected void service(final HttpServletRequest req, final HttpServletResponse resp)
+    throws ServletException, IOException
+    {
+        if(requestExecutor == null || !req.isAsyncSupported())
+        {
+            boolean failed = true;
+
+            try
+            {
+                serviceAndRecord(req, resp);
+                failed = false;
+            }
+            finally
+            {
+                // un'eccezione diventa un 500, inviato dal container
+                recordResponse(failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : resp.getStatus());
+            }
+
+            return;
+        }
+
+        final AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(asyncTimeout);
+
+        // dopo la chiusura della risposta (da parte del timeout) il thread che elabora la richiesta non puo' piu'
+        // usare richiesta e risposta, che il container potrebbe riutilizzare
+        final AsyncGuard guard = new AsyncGuard(req, resp);
+
+        final AsyncRequest asyncRequest = new AsyncRequest(asyncContext, guard, req.getMethod() + " " + req.getRequestURI(),
+                                                           getRequestHistogram(req));
+
+        req.setAttribute(asyncRequestAttributeName, asyncRequest);
+
+        asyncContext.addListener(new AsyncListener()
+        {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException
+            {
+                if(guard.closeWithError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, requestTimeoutMessage))
+                {
+                    recordResponse(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event)
+            {
+            }
+
+            @Override
+            public void onError(AsyncEvent event)
+            {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event)
+            {
+            }
+        });
+
+        try
+        {
+            requestExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runStep(asyncRequest, new AsyncStep()
+                    {
+                        @Override
+                        public void run() throws ServletException, IOException
+                        {
+                            dispatch(guard.getRequest(), guard.getResponse());
+                        }
+                    });
+                }
+            });
+        }
+        catch(RejectedExecutionException e)   // servlet in fase di chiusura
+        {
+            guard.close();
+            recordResponse(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, serverBusyMessage);
+            asyncContext.complete();
+        }
+    }
+
+
+    // esegue un passo dell'elaborazione di una richiesta asincrona: quello iniziale, o la prosecuzione dopo
+    // un'operazione sul database (vedi continueWith()); alla fine dell'ultimo passo la risposta viene completata
+    // (se nel frattempo non e' scaduto il timeout)
+    private void runStep(AsyncRequest asyncRequest, AsyncStep step)
+    {
+        AsyncGuard guard = asyncRequest.guard;
+        HttpServletResponse guardedResp = guard.getResponse();
+
+        instrumentedDb.resetRoundTrips();
+
+        try
+        {
+            step.run();
+        }
+        catch(Exception e)   // come farebbe il container per una richiesta sincrona
+        {
+            if(!guard.isClosed())   // altrimenti la richiesta e' scaduta mentre veniva elaborata
+            {
+                log("Error processing " + asyncRequest.requestLine, e);
+
+                try
+                {
+                    if(!guardedResp.isCommitted())
+                    {
+                        guardedResp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                }
+                catch(IOException ioEx)
+                {
+                    log("Cannot send error response", ioEx);
+                }
+            }
+        }
+        finally
+        {
+            asyncRequest.roundTrips.addAndGet(instrumentedDb.getRoundTrips());
+
+            if(asyncRequest.pendingSteps.decrementAndGet() == 0)   // l'elaborazione e' terminata
+            {
+                asyncRequest.requestHistogram.record(System.nanoTime() - asyncRequest.startTime);
+                roundTripsHistogram.record(asyncRequest.roundTrips.get());
+
+                int status = guardedResp.getStatus();
+
+                if(guard.close())
+                {
+                    recordResponse(status);
+                    asyncRequest.asyncContext.complete();
+                }
+            }
+        }
+    }
+
+
+    // prosegue l'elaborazione della richiesta con il risultato di un'operazione sul database avviata con
+    // getAsyncDatabase() (o di un'attesa di modifiche, vedi ChangesHandler): in modalita' asincrona la
+    // prosecuzione viene eseguita su requestExecutor quando l'operazione termina, e chi la chiama deve solo
+    // ritornare senza usare piu' la risposta; altrimenti la prosecuzione viene eseguita subito, sul thread
+    // corrente (dopo aver atteso il risultato, se l'operazione non e' ancora terminata)
+    <T> void continueWith(HttpServletRequest req, final AsyncResult<T> result, final Continuation<T> continuation)
+    throws IOException
+    {
+        final AsyncRequest asyncRequest = (AsyncRequest) req.getAttribute(asyncRequestAttributeName);
+
+        if(asyncRequest == null)
+        {
+            resume(result, continuation);
+            return;
+        }
+
+        asyncRequest.pendingSteps.incrementAndGet();
+
+        // l'operazione avviene su un altro thread: conta come un accesso
+        asyncRequest.roundTrips.incrementAndGet();
+
+        result.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Runnable resumeStep = new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        runStep(asyncRequest, new AsyncStep()
+                        {
+                            @Override
+                            public void run() throws IOException
+                            {
+                                resume(result, continuation);
+                            }
+                        });
+                    }
+                };
+
+                try
+                {
+                    requestExecutor.execute(resumeStep);
+                }
+                catch(RejectedExecutionException e)   // servlet in fase di chiusura: la richiesta viene comunque terminata
+                {
+                    resumeStep.run();
+                }
+            }
+        });
+    }
+
+
+    private static <T> void resume(AsyncResult<T> result, Continuation<T> continuation) throws IOException
+    {
+        T value;
+
+        try
+        {
+            value = result.getResult();
+        }
+        catch(RuntimeException e)
+        {
+            continuation.fail(e);
+            return;
+        }
+
+        continuation.resume(value);
+    }
+
+
+    // il database su cui avviare le operazioni da proseguire con continueWith()
+    private IAsyncDatabase getAsyncDatabase(HttpServletRequest req)
+    {
+        return isAsyncRequest(req) ? asyncDb : directAsyncDb;
+    }
+
+
+    // true se la richiesta e' elaborata in modalita' asincrona (e continueWith() non attende il risultato)
+    static boolean isAsyncRequest(HttpServletRequest req)
+    {
+        return req.getAttribute(asyncRequestAttributeName) != null;
+    }
+
+
+    private void dispatch(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+    {
+        super.service(req, resp);
+    }
+
+
+    private Histogram getRequestHistogram(HttpServletRequest req)
+    {
+        Histogram requestHistogram = requestHistograms.get(req.getMethod());
+
+        return requestHistogram != null ? requestHistogram : otherRequestHistogram;
+    }
+
+
+    /**
+     * Stato di una richiesta elaborata in modalita' asincrona.
+     */
+    private static class AsyncRequest
+    {
+        private final AsyncContext asyncContext;
+
+        private final AsyncGuard guard;
+
+        // metodo e URI, per i messaggi di errore
+        private final String requestLine;
+
+        private final Histogram requestHistogram;
+
+        private final long startTime = System.nanoTime();
+
+        // passi dell'elaborazione non ancora terminati (quello iniziale e le prosecuzioni avviate): a 0 la risposta e' completa
+        private final AtomicInteger pendingSteps = new AtomicInteger(1);
+
+        // accessi al database dei passi, piu' uno per ogni operazione asincrona
+        private final AtomicLong roundTrips = new AtomicLong();
+
+        private AsyncRequest(AsyncContext asyncContext, AsyncGuard guard, String requestLine, Histogram requestHistogram)
+        {
+            this.asyncContext = asyncContext;
+            this.guard = guard;
+            this.requestLine = requestLine;
+            this.requestHistogram = requestHistogram;
+        }
+    }
+
+
+    /**
+     * Passo dell'elaborazione di una richiesta asincrona.
+     */
+    private interface AsyncStep
+    {
+        public abstract void run() throws ServletException, IOException;
+    }
+
+
+    /**
+     * Prosecuzione dell'elaborazione di una richiesta con il risultato di un'operazione sul database.
+     */
+    abstract static class Continuation<T>
+    {
+        // con il risultato dell'operazione
+        abstract void resume(T result) throws IOException;
+
+        // con l'eccezione lanciata dall'operazione: per default viene rilanciata (e la risposta e' un 500)
+        void fail(RuntimeException e) throws IOException
+        {
+            throw e;
+        }
+    }
+
+
+    // elabora la richiesta registrandone la durata e gli accessi al database (che avvengono sul thread corrente)
+    private void serviceAndRecord(HttpServletRequest req, HttpServletResponse resp)
+    throws ServletException, IOException
+    {
+        Histogram requestHistogram = getRequestHistogram(req);
+
+        instrumentedDb.resetRoundTrips();
+
+        long startTime = System.nanoTime();
+
+        try
+        {
+            dispatch(req, resp);
+        }
+        finally
+        {
+            requestHistogram.record(System.nanoTime() - startTime);
+            roundTripsHistogram.record(instrumentedDb.getRoundTrips());
+        }
+    }
+
+
+    // da chiamare una sola volta per richiesta, con lo status code effettivamente inviato
+    private void recordResponse(int status)
+    {
+        AtomicLong responseCounter = responseCounters.get(status);
+
+        if(responseCounter == null)
+        {
+            responseCounter = metrics.counter("storage_interface_responses_total", "Responses sent, by status code",
+                                              "status", Integer.toString(status));
+            responseCounters.putIfAbsent(status, responseCounter);
+        }
+
+        responseCounter.incrementAndGet();
+    }
+
+
+    private long getLongInitParameter(String paramName, long defaultValue)
+    {
+        return DatabaseStack.getLongInitParameter(getServletConfig(), paramName, defaultValue);
+    }
+
+
+    // ------------------------------------------------ GET -----------------------------------------------------------------
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp)
+    throws IOException
+    {
+        String resourceName = getResourceName(req);
+
+        if(resourceName.isEmpty())
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, emptyResourceNameMessage);
+            return;
+        }
+
+        if(resourceName.equals(metricsResourceName))   // ---------------- METRICHE ----------------
+        {
+            metricsHandler.doGet(resp);
+            return;
+        }
+
+        if(resourceName.equals(changesResourceName))   // ---------------- MODIFICHE ----------------
+        {
+            changesHandler.doGet(req, resp);
+            return;
+        }
+
+        if(resourceName.equals(exportResourceName))   // ---------------- ESPORTAZIONE ----------------
+        {
+            bulkTransferHandler.doGet(req, resp);
+            return;
+        }
+
+
+        if(!isAcceptHeaderValid(req))   // la richiesta NON e' accettata
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, invalidAcceptHeaderMessage);
+            return;
+        }
+        else // la richiesta e' accettata
+        {
+            if(isCollectionName(resourceName))   // ---------------- ELENCO ----------------
+            {
+                listHandler.doGet(req, resp, resourceName);
+                return;
+            }
+
+            if(VersionsHandler.isVersionRequest(req))   // ---------------- VERSIONI ----------------
+            {
+                versionsHandler.doGet(req, resp, resourceName);
+                return;
+            }
+
+            if(isIfNoneMatchHeaderPresent(req))   // GET condizionale: basta l'ETag, il contenuto non viene letto
+            {
+                doGetIfNoneMatch(req, resp, resourceName);
+                return;
+            }
+
+            doGetContent(req, resp, resourceName);
+        }
+    }
+
+
+    // GET con If-None-Match: se il client non ha gia' la versione corrente, viene letto il contenuto
+    private void doGetIfNoneMatch(final HttpServletRequest req, final HttpServletResponse resp, final String resourceName)
+    throws IOException
+    {
+        continueWith(req, getAsyncDatabase(req).getETag(resourceName), new Continuation<String>()
+        {
+            @Override
+            void resume(String eTag) throws IOException
+            {
+                if(eTag == null)   // il nodo NON esiste
+                {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND, resourceNotFoundMessage);
+                    return;
+                }
+
+                String matchingETag = getIfNoneMatchHeaderMatchingETag(req, eTag);
+
+                if(matchingETag != null)   // il client ha gia' la versione corrente
+                {
+                    resp.setHeader(etagHeaderName, matchingETag);
+                    resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
 
-    // http://localhost:8888/StorageInterface/!SI/
-    private final static String storageInterfaceURIprefix = "/StorageInterface/!SI/";
+                doGetContent(req, resp, resourceName);
+            }
+        });
+    }
 
-    // percorso dell'xml schema da usare per la validazione
-    // (a partire dalla cartella war/)
-    private final static String xsdFilePath = "xsd/sinode.xsd";
 
-    // headers: nomi
-    private final static String etagHeaderName = "ETag";
+    // GET del contenuto, o della porzione richiesta (Range)
+    private void doGetContent(final HttpServletRequest req, final HttpServletResponse resp, final String resourceName)
+    throws IOException
+    {
+        long[] requestedRange = getRequestedRange(req);
 
-    private final static String acceptHeaderName = "Accept";
+        if(requestedRange == null)
+        {
+            doGetResource(req, resp, resourceName);
+            return;
+        }
 
-    private final static String contentTypeHeaderName = "Content-Type";
+        // GET parziale: vengono letti solo i byte richiesti
+        AsyncResult<ResourceRange> rangeResult =
+            getAsyncDatabase(req).getRange(resourceName, requestedRange[0],
+                                           (int) Math.min(Integer.MAX_VALUE, requestedRange[1] - requestedRange[0] + 1));
 
-    private final static String ifMatchHeaderName = "If-Match";
+        continueWith(req, rangeResult, new Continuation<ResourceRange>()
+        {
+            @Override
+            void resume(ResourceRange range) throws IOException
+            {
+                if(range == null)   // il nodo NON esiste
+                {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND, resourceNotFoundMessage);
+                    return;
+                }
 
-    // headers: valori validi
-    private final static String validAcceptHeader = "application/xml";
+                if(isIfRangeHeaderMatching(req, range.getETag()))
+                {
+                    contentWriter.writeRange(resp, range);
+                    return;
+                }
 
-    private final static String validContentTypeHeader = validAcceptHeader;
+                // il nodo e' cambiato rispetto alla versione del client (If-Range): viene inviato per intero
+                doGetResource(req, resp, resourceName);
+            }
+        });
+    }
 
 
-    // messaggi di errore (usati dal metodo sendError)
-    private final static String postMethodUndefinedMessage = "POST method is undefined, use PUT instead";
+    private void doGetResource(final HttpServletRequest req, final HttpServletResponse resp, String resourceName)
+    throws IOException
+    {
+        continueWith(req, getAsyncDatabase(req).get(resourceName), new Continuation<IResource>()
+        {
+            @Override
+            void resume(IResource siNode) throws IOException
+            {
+                if(siNode == null)   // il nodo NON esiste
+                {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND, resourceNotFoundMessage);
+                    return;
+                }
+                else // il nodo esiste
+                {
+                    resp.setHeader(acceptRangesHeaderName, bytesRangeUnit);
 
-    private final static String emptyResourceNameMessage = "Resource name cannot be empty";
+                    contentWriter.writeContent(req, resp, siNode, siNode.getETag());
+
+                    resp.setStatus(HttpServletResponse.SC_OK);
+                }
+            }
+        });
+    }
 
-    private final static String invalidAcceptHeaderMessage = acceptHeaderName + " header must be \"" + validAcceptHeader + "\"\n";
 
-    private final static String invalidContentTypeHeaderMessage = contentTypeHeaderName + " header must be \"" + validContentTypeHeader + "\"\n";
 
-    private final static String ifMatchHeaderMissingMessage = ifMatchHeaderName + " header missing";
+    // parametro limit (defaultListLimit se assente, al piu' maxListLimit), o 0 se non e' un intero positivo
+    static int getLimit(HttpServletRequest req)
+    {
+        String limitParam = req.getParameter(limitParamName);
 
-    private final static String invalidIfMatchHeaderMessage = etagHeaderName + " mismatch";
+        if(limitParam == null)
+        {
+            return defaultListLimit;
+        }
+
+        try
+        {
+            return Math.max(0, Math.min(Integer.parseInt(limitParam), maxListLimit));
+        }
+        catch(NumberFormatException e)
+        {
+            return 0;
+        }
+    }
 
-    private final static String resourceNotFoundMessage = "Resource not found";
 
-    private final static String databaseFatalErrorMessage = "Database fatal error";
+    static long getLongParameter(HttpServletRequest req, String paramName, long defaultValue)
+    {
+        String paramValue = req.getParameter(paramName);
 
-    private final static String invalidBodyMessage = "Request body does not match xml schema";
+        if(paramValue == null)
+        {
+            return defaultValue;
+        }
 
-    //private final static String xmlValidatorFatalErrorMessage = "XML Validator fatal error";
+        return Long.parseLong(paramValue);
+    }
 
 
 
 
-    // ------------------------------------------------ GET -----------------------------------------------------------------
+    // ------------------------------------------------ HEAD ----------------------------------------------------------------
     @Override
-    public void doGet(HttpServletRequest req, HttpServletResponse resp)
+    public void doHead(HttpServletRequest req, HttpServletResponse resp)
     throws IOException
     {
         String resourceName = getResourceName(req);
@@ -93,26 +931,29 @@ public class StorageInterfaceServlet extends HttpServlet
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, invalidAcceptHeaderMessage);
             return;
         }
-        else // la richiesta e' accettata
-        {
-            IResource siNode = db.get(resourceName);
 
-            if(siNode == null)   // il nodo NON esiste
-            {
-                resp.sendError(HttpServletResponse.SC_NOT_FOUND, resourceNotFoundMessage);
-                return;
-            }
-            else // il nodo esiste
-            {
-                String body = siNode.getContent();
-                resp.getWriter().write(body);
+        // HEAD non restituisce il contenuto, quindi non serve leggerlo: basta l'ETag
+        String eTag = db.getETag(resourceName);
+
+        if(eTag == null)   // il nodo NON esiste
+        {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, resourceNotFoundMessage);
+            return;
+        }
 
-                String eTag = siNode.getETag();
-                resp.setHeader(etagHeaderName, eTag);
+        // senza leggere il contenuto non si sa se verrebbe compresso: viene indicato l'ETag del contenuto non compresso
+        resp.setHeader(etagHeaderName, eTag);
 
-                resp.setStatus(HttpServletResponse.SC_OK);
-            }
+        String matchingETag = isIfNoneMatchHeaderPresent(req) ? getIfNoneMatchHeaderMatchingETag(req, eTag) : null;
 
+        if(matchingETag != null)
+        {
+            resp.setHeader(etagHeaderName, matchingETag);
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        else
+        {
+            resp.setStatus(HttpServletResponse.SC_OK);
         }
     }
 
@@ -120,10 +961,10 @@ public class StorageInterfaceServlet extends HttpServlet
 
     // ------------------------------------------------ DELETE --------------------------------------------------------------
     @Override
-    public void doDelete(HttpServletRequest req, HttpServletResponse resp)
+    public void doDelete(final HttpServletRequest req, final HttpServletResponse resp)
     throws ServletException, IOException
     {
-        String resourceName = getResourceName(req);
+        final String resourceName = getResourceName(req);
 
         if(resourceName.isEmpty())
         {
@@ -132,25 +973,44 @@ public class StorageInterfaceServlet extends HttpServlet
         }
 
 
-        IResource siNode = db.get(resourceName);
+        // se presente, l'If-Match viene controllato atomicamente insieme alla cancellazione
+        final String expectedETag = toIdentityETag(req.getHeader(ifMatchHeaderName));
 
-        if(siNode == null)   // il nodo NON esiste
-        {
-            resp.sendError(HttpServletResponse.SC_NOT_FOUND, resourceNotFoundMessage);
-            return;
-        }
-        else // il nodo esiste
+        continueWith(req, getAsyncDatabase(req).deleteIfMatch(resourceName, expectedETag), new Continuation<Boolean>()
         {
-            if(db.delete(siNode))
-            {
-                resp.setStatus(HttpServletResponse.SC_OK);
-            }
-            else
+            @Override
+            void resume(Boolean deleted) throws IOException
             {
-                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, databaseFatalErrorMessage);
-            }
+                if(deleted)
+                {
+                    resp.setStatus(HttpServletResponse.SC_OK);
+                    return;
+                }
 
-        }
+                if(expectedETag == null)   // il nodo NON esiste
+                {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND, resourceNotFoundMessage);
+                    return;
+                }
+
+                // non e' stato eliminato nulla: solo ora (caso raro) serve capire perche'
+                continueWith(req, getAsyncDatabase(req).getETag(resourceName), new Continuation<String>()
+                {
+                    @Override
+                    void resume(String eTag) throws IOException
+                    {
+                        if(eTag != null)   // il nodo esiste: ETag mismatch
+                        {
+                            resp.sendError(HttpServletResponse.SC_PRECONDITION_FAILED, invalidIfMatchHeaderMessage);
+                        }
+                        else // il nodo NON esiste
+                        {
+                            resp.sendError(HttpServletResponse.SC_NOT_FOUND, resourceNotFoundMessage);
+                        }
+                    }
+                });
+            }
+        });
     }
 
 
@@ -158,6 +1018,18 @@ public class StorageInterfaceServlet extends HttpServlet
     public void doPost(HttpServletRequest req, HttpServletResponse resp)
     throws ServletException, IOException
     {
+        if(getResourceName(req).equals(batchResourceName))   // ---------------- BATCH ----------------
+        {
+            batchHandler.doPost(req, resp);
+            return;
+        }
+
+        if(getResourceName(req).equals(importResourceName))   // ---------------- IMPORTAZIONE ----------------
+        {
+            bulkTransferHandler.doPost(req, resp);
+            return;
+        }
+
         resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, postMethodUndefinedMessage);
         return;
     }
@@ -176,6 +1048,12 @@ public class StorageInterfaceServlet extends HttpServlet
             return;
         }
 
+        if(isCollectionName(resourceName))   // una GET la elencherebbe invece di leggerla
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, collectionResourceNameMessage);
+            return;
+        }
+
 
         // accept header sia per create che update
         if(!isAcceptHeaderValid(req))
@@ -195,20 +1073,60 @@ public class StorageInterfaceServlet extends HttpServlet
         // prima di distinguere tra create e update, controllo se il body e' valido
         // altrimenti non ha senso andare avanti...!
 
+        if(req.getContentLength() > maxBodySize)   // inutile anche solo iniziare a leggerlo
+        {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, bodyTooLargeMessage);
+            return;
+        }
+
         // VALIDAZIONE DEL BODY SULL'XML SCHEMA
-        String body = getRequestBody(req);
+        // il body viene validato mentre viene letto: i byte letti vengono copiati in un unico buffer
+        // e la lettura si interrompe al primo errore di validazione
+        Charset bodyCharset = getRequestCharset(req);
+
+        BoundedTeeInputStream bodyStream = new BoundedTeeInputStream(req.getInputStream(), maxBodySize, req.getContentLength());
 
         boolean validBody = true;
 
+        // la validazione comprende anche la lettura del body
+        long validationStartTime = System.nanoTime();
+
         try
         {
-            validBody = isValid(body);
+            validBody = isValid(bodyStream, bodyCharset);
+
+            if(validBody)
+            {
+                bodyStream.drain(); // eventuali byte dopo la fine del documento
+            }
+        }
+        catch(CharacterCodingException e)   // il body non e' codificato correttamente nel charset dichiarato
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, invalidBodyEncodingMessage);
+            return;
         }
         catch(Exception e)  // IOException o SAXException, in entrambi i casi ha fallito internamente il validatore
         {
+            if(bodyStream.isLimitExceeded())
+            {
+                resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, bodyTooLargeMessage);
+                return;
+            }
+
             resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
             return;
         }
+        finally
+        {
+            validationHistogram.record(System.nanoTime() - validationStartTime);
+            requestContentBytes.addAndGet(bodyStream.size());
+        }
+
+        if(bodyStream.isLimitExceeded())   // il parser puo' aver trasformato l'errore di lettura in un errore di validazione
+        {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, bodyTooLargeMessage);
+            return;
+        }
 
         if(!validBody)   // il body NON rispetta lo schema xml
         {
@@ -216,100 +1134,228 @@ public class StorageInterfaceServlet extends HttpServlet
             return;
         }
 
-
         // ... se arrivo qui il body rispetta l'xml schema dato!
 
-        boolean update = true;
+        // creo il nodo, assegnandogli il contenuto...
+        IResource savingNode;
+
+        if(bodyCharset.equals(etagCharset))
+        {
+            // body in UTF-8: i byte letti sono gia' il contenuto
+            savingNode = new SINode(resourceName, bodyStream.toByteArray(), null);
+        }
+        else
+        {
+            // altro charset: il contenuto viene decodificato una volta, e ricodificato in UTF-8 quando serve
+            savingNode = new SINode(resourceName, bodyStream.toString(bodyCharset), null);
+        }
 
-        IResource siNode = db.get(resourceName);
+        // l'ETag servira' comunque al database: viene calcolato qui (sui byte UTF-8 del contenuto) per misurarlo
+        long eTagStartTime = System.nanoTime();
+        savingNode.getETag();
+        eTagHistogram.record(System.nanoTime() - eTagStartTime);
 
-        if(siNode != null)   //--------------------------- UPDATE -------------------------------------------
+        // ... e lo salvo nel db: il controllo della precondizione e la scrittura sono un'unica operazione atomica
+        if(isIfMatchHeaderPresent(req))   // if match header presente
         {
-            if(isIfMatchHeaderPresent(req))   // if match header presente
-            {
-                String updatingNodeETag = siNode.getETag();
+            doPutIfMatch(req, resp, savingNode);
+        }
+        else // if match header NON presente: e' ammessa solo la creazione
+        {
+            doPutIfAbsent(req, resp, savingNode, HttpServletResponse.SC_BAD_REQUEST, ifMatchHeaderMissingMessage);
+        }
+    }
+
+
+    private void doPutIfMatch(final HttpServletRequest req, final HttpServletResponse resp, final IResource savingNode)
+    throws IOException
+    {
+        AsyncResult<String> updateResult = getAsyncDatabase(req).putIfMatch(savingNode, toIdentityETag(req.getHeader(ifMatchHeaderName)));
 
-                if(!isIfMatchHeaderValid(req, updatingNodeETag))    // ETag mismatch
+        continueWith(req, updateResult, new PutContinuation(resp) //-------------------------------------------- UPDATE ----------
+        {
+            @Override
+            void resume(String savedNodeETag) throws IOException
+            {
+                if(savedNodeETag == null)   // il nodo non esiste, oppure ETag mismatch
                 {
-                    resp.sendError(HttpServletResponse.SC_PRECONDITION_FAILED, invalidIfMatchHeaderMessage);
+                    doPutIfAbsent(req, resp, savingNode, HttpServletResponse.SC_PRECONDITION_FAILED, invalidIfMatchHeaderMessage);
                     return;
                 }
+
+                writeSavedContent(req, resp, savingNode, savedNodeETag, HttpServletResponse.SC_OK);
             }
-            else // if match header NON presente
+        });
+    }
+
+
+    // crea la risorsa; se esiste gia' risponde con existsStatus (412 per una PUT con If-Match, 400 altrimenti)
+    private void doPutIfAbsent(final HttpServletRequest req, final HttpServletResponse resp, final IResource savingNode,
+                               final int existsStatus, final String existsMessage)
+    throws IOException
+    {
+        continueWith(req, getAsyncDatabase(req).putIfAbsent(savingNode), new PutContinuation(resp) //----------- CREATE ----------
+        {
+            @Override
+            void resume(String savedNodeETag) throws IOException
             {
-                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ifMatchHeaderMissingMessage);
-                return;
+                if(savedNodeETag == null)   // il nodo esiste gia' (con una PUT con If-Match: ETag mismatch)
+                {
+                    resp.sendError(existsStatus, existsMessage);
+                    return;
+                }
+
+                writeSavedContent(req, resp, savingNode, savedNodeETag, HttpServletResponse.SC_CREATED);
             }
+        });
+    }
+
+
+    // il contenuto salvato e' esattamente il body ricevuto: non serve rileggerlo dal db
+    private void writeSavedContent(HttpServletRequest req, HttpServletResponse resp, IResource savingNode, String savedNodeETag, int status)
+    throws IOException
+    {
+        contentWriter.writeContent(req, resp, savingNode, savedNodeETag);
+
+        resp.setStatus(status);
+    }
+
+
+    /**
+     * Prosecuzione di una scrittura: se il database ha raggiunto i suoi limiti la risposta e' un 507.
+     */
+    private abstract static class PutContinuation extends Continuation<String>
+    {
+        private final HttpServletResponse resp;
+
+        private PutContinuation(HttpServletResponse resp)
+        {
+            this.resp = resp;
         }
-        else // -------------------------------------------- CREATE -------------------------------------------
+
+        @Override
+        void fail(RuntimeException e) throws IOException
         {
-            update = false;
+            if(!(e instanceof InsufficientStorageException))
+            {
+                throw e;
+            }
+
+            resp.sendError(insufficientStorageStatusCode, e.getMessage());
         }
+    }
+
+
+
+    private static boolean isCollectionName(String resourceName)
+    {
+        return resourceName.endsWith(collectionSeparator);
+    }
+
+
+    private String getResourceName(HttpServletRequest req)
+    {
+        String requestURI = new String(req.getRequestURI());
+        String resourceName = requestURI.replace(storageInterfaceURIprefix, "");
+
+        return resourceName;
+    }
 
-        // in entrambi i casi...
-        // creo il nodo...
-        IResource savingNode = new SINode(resourceName);
-        // gli assegno il contenuto...
-        savingNode.setContent(body);
-        // lo salvo nel db.
-        db.put(savingNode);
 
-        // adesso recupero dal db il nodo appena salvato...
-        IResource savedNode = db.get(resourceName);
+    // Range: bytes=primo-ultimo, bytes=primo- oppure bytes=-numero (gli ultimi byte);
+    // restituisce {primo, ultimo} (o {-numero, -1} per un suffisso), oppure null se l'header e' assente,
+    // non valido o richiede piu' porzioni: in questi casi (come consentito dall'RFC 7233) si risponde con l'intero contenuto
+    private long[] getRequestedRange(HttpServletRequest req)
+    {
+        String rangeHeader = req.getHeader(rangeHeaderName);
 
-        if(savedNode == null)   //...ooops!
+        if(rangeHeader == null || !rangeHeader.startsWith(bytesRangeUnit + "=") || rangeHeader.indexOf(',') >= 0)
         {
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, databaseFatalErrorMessage);
-            return;
+            return null;
         }
-        else
+
+        String rangeSpec = rangeHeader.substring(bytesRangeUnit.length() + 1).trim();
+
+        int dashIndex = rangeSpec.indexOf('-');
+
+        if(dashIndex < 0)
         {
-            String savedNodeETag = savedNode.getETag();
-            resp.setHeader(etagHeaderName, savedNodeETag);
+            return null;
+        }
 
-            String savedNodeBody = savedNode.getContent();
-            resp.getWriter().write(savedNodeBody);
+        try
+        {
+            String first = rangeSpec.substring(0, dashIndex).trim();
+            String last = rangeSpec.substring(dashIndex + 1).trim();
 
-            if(update)
+            if(first.isEmpty())   // suffisso
             {
-                resp.setStatus(HttpServletResponse.SC_OK);
+                long suffixLength = Long.parseLong(last);
+
+                // "bytes=-0" non e' soddisfacibile: ne' richiede byte, ne' si puo' esprimere con un offset negativo
+                return (suffixLength > 0) ? new long[] { -suffixLength, -1 } : new long[] { Long.MAX_VALUE, Long.MAX_VALUE };
             }
-            else
+
+            long firstBytePosition = Long.parseLong(first);
+            long lastBytePosition = last.isEmpty() ? Long.MAX_VALUE - 1 : Long.parseLong(last);
+
+            if(firstBytePosition < 0 || lastBytePosition < firstBytePosition)
             {
-                resp.setStatus(HttpServletResponse.SC_CREATED);
+                return null;
             }
-        }
 
+            return new long[] { firstBytePosition, lastBytePosition };
+        }
+        catch(NumberFormatException e)
+        {
+            return null;
+        }
     }
 
 
-
-    private String getResourceName(HttpServletRequest req)
+    // If-Range contiene un ETag (forte) o una data: la porzione viene inviata solo se l'ETag e' quello corrente
+    // (una data non viene confrontata, e fa inviare l'intero contenuto)
+    private boolean isIfRangeHeaderMatching(HttpServletRequest req, String currentNodeETagString)
     {
-        String requestURI = new String(req.getRequestURI());
-        String resourceName = requestURI.replace(storageInterfaceURIprefix, "");
+        String ifRangeHeader = req.getHeader(ifRangeHeaderName);
 
-        return resourceName;
+        if(ifRangeHeader == null)
+        {
+            return true;
+        }
+
+        ifRangeHeader = ifRangeHeader.trim();
+
+        if(ifRangeHeader.length() >= 2 && ifRangeHeader.startsWith("\"") && ifRangeHeader.endsWith("\""))
+        {
+            ifRangeHeader = ifRangeHeader.substring(1, ifRangeHeader.length() - 1);
+        }
+
+        return ifRangeHeader.equals(currentNodeETagString);
     }
 
 
-    private String getRequestBody(HttpServletRequest req) throws IOException
+    static Charset getRequestCharset(HttpServletRequest req)
     {
-        String body = new String();
-        String line = req.getReader().readLine();
+        String characterEncoding = req.getCharacterEncoding();
 
-        while(line != null)
+        if(characterEncoding == null)
         {
-            body = body.concat(line);
-            body = body.concat("\n");
-            line = req.getReader().readLine();
+            return defaultCharset;
         }
 
-        return body;
+        try
+        {
+            return Charset.forName(characterEncoding);
+        }
+        catch(IllegalArgumentException e)  // charset sconosciuto o non supportato
+        {
+            return defaultCharset;
+        }
     }
 
 
-    private boolean isAcceptHeaderValid(HttpServletRequest req)
+    static boolean isAcceptHeaderValid(HttpServletRequest req)
     {
         String acceptHeader = req.getHeader(acceptHeaderName);
 
@@ -322,7 +1368,7 @@ public class StorageInterfaceServlet extends HttpServlet
     }
 
 
-    private boolean isContentTypeHeaderValid(HttpServletRequest req)
+    static boolean isContentTypeHeaderValid(HttpServletRequest req)
     {
         String contentTypeHeader = req.getHeader(contentTypeHeaderName); // application/xml; charset=UTF-8
 
@@ -348,37 +1394,76 @@ public class StorageInterfaceServlet extends HttpServlet
     }
 
 
-    private boolean isIfMatchHeaderValid(HttpServletRequest req, String updatingNodeETagString)
+    private boolean isIfNoneMatchHeaderPresent(HttpServletRequest req)
     {
-        String ifMatchHeader = req.getHeader(ifMatchHeaderName);
+        String ifNoneMatchHeader = req.getHeader(ifNoneMatchHeaderName);
+
+        if(ifNoneMatchHeader == null)
+        {
+            return false;
+        }
 
-        return ifMatchHeader.equals(updatingNodeETagString);
+        return true;
     }
 
 
-    // se lancia una SAXException e' perche' ha fallito: Schema schema = factory.newSchema(schemaFile);
-    private boolean isValid(String inputXml) throws SAXException, IOException
+    // If-None-Match puo' contenere "*" o una lista di ETag separati da virgole, eventualmente tra virgolette o deboli (W/);
+    // restituisce l'ETag corrente nella forma (compressa o no) che ha il client, o null se nessuno corrisponde
+    private String getIfNoneMatchHeaderMatchingETag(HttpServletRequest req, String currentNodeETagString)
     {
-        File schemaFile = new File(xsdFilePath);
-        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        Schema schema = factory.newSchema(schemaFile); // lancia SAXException
-        Validator validator = schema.newValidator();
+        String ifNoneMatchHeader = req.getHeader(ifNoneMatchHeaderName);
 
-        Source source = new StreamSource(new StringReader(inputXml));
+        for(String candidateETag : ifNoneMatchHeader.split(","))
+        {
+            candidateETag = candidateETag.trim();
 
-        boolean validXMLinput = true;
+            if(candidateETag.equals("*"))
+            {
+                return currentNodeETagString;
+            }
 
-        try
-        {
-            validator.validate(source); // se la SAXException la lanciasse lui, la beccherei qua! ...
-            // ... pero' lui puo' lanciare anche IOException (se succede casino dentro), che lascio passare
+            if(candidateETag.startsWith("W/"))
+            {
+                candidateETag = candidateETag.substring(2);
+            }
+
+            if(candidateETag.length() >= 2 && candidateETag.startsWith("\"") && candidateETag.endsWith("\""))
+            {
+                candidateETag = candidateETag.substring(1, candidateETag.length() - 1);
+            }
+
+            if(toIdentityETag(candidateETag).equals(currentNodeETagString))
+            {
+                return candidateETag;
+            }
         }
-        catch(SAXException e)  // xml non valido per lo schema
+
+        return null;
+    }
+
+
+    // l'ETag del contenuto compresso corrisponde alla stessa versione della risorsa: viene ricondotto all'ETag
+    // del contenuto non compresso, l'unico che conosce il database
+    static String toIdentityETag(String eTag)
+    {
+        if(eTag != null && eTag.endsWith(gzipETagSuffix))
         {
-            validXMLinput = false;
+            return eTag.substring(0, eTag.length() - gzipETagSuffix.length());
         }
 
-        return validXMLinput;
+        return eTag;
+    }
+
+
+    // se lancia una SAXException e' perche' ha fallito il ricaricamento dello schema
+    private boolean isValid(BoundedTeeInputStream bodyStream, Charset charset) throws SAXException, IOException
+    {
+        // decodifica rigorosa: un body non valido per il charset dichiarato viene rifiutato, invece di essere alterato
+        Source source = new StreamSource(new InputStreamReader(bodyStream, charset.newDecoder()
+                                         .onMalformedInput(CodingErrorAction.REPORT)
+                                         .onUnmappableCharacter(CodingErrorAction.REPORT)));
+
+        return xmlValidator.isValid(source);
     }
 
 
@@ -0,0 +1,718 @@
+package storageInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decoratore di un {@link IDatabase} che conserva le versioni precedenti delle risorse.
+ * Ogni volta che una risorsa viene aggiornata o eliminata, la versione sostituita viene archiviata in un secondo
+ * database ({@code versionsDb}) come record {@code <uri>/<numero>}, con lo stesso ETag della versione.
+ * I record sono delta (vedi {@link Delta}) rispetto alla versione successiva (delta inversi): la versione corrente
+ * e' sempre completa, e l'eliminazione dei record piu' vecchi non interrompe la catena dei delta.
+ * Un record ogni {@code snapshotInterval} (e quello di una risorsa eliminata) contiene la versione completa,
+ * cosi' che la ricostruzione di una versione richieda al piu' {@code snapshotInterval} delta, letti con un solo accesso.
+ * <p>
+ * La numerazione delle versioni e' consecutiva finche' le scritture di una risorsa passano da una sola istanza:
+ * le scritture dello stesso URI vengono serializzate solo all'interno del processo.
+ *
+ *
+ */
+public class VersioningDatabase implements IDatabase
+{
+    private final IDatabase db;
+
+    private final IDatabase versionsDb;
+
+    // numero massimo di versioni precedenti conservate per risorsa, negativo = nessun limite
+    private final int maxVersions;
+
+    // eta' massima (ms) delle versioni precedenti, negativo = nessun limite; la piu' recente viene sempre conservata
+    private final long maxAge;
+
+    private final int snapshotInterval;
+
+    // le scritture dello stesso URI vengono serializzate (lock striping, come i segmenti di CachingDatabase)
+    private final ReentrantLock[] locks;
+
+    private final static int lockCount = 16;
+
+    private final static byte fullRecord = 1;
+
+    private final static byte deltaRecord = 2;
+
+    // record letti alla volta quando si elencano le versioni di una risorsa
+    private final static int listPageSize = 1000;
+
+    private final static String recordNumberFormat = "%010d";
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link VersioningDatabase}.
+     * @param db il database delle versioni correnti
+     * @param versionsDb il database in cui archiviare le versioni precedenti (non deve essere {@code db})
+     * @param maxVersions numero massimo di versioni precedenti conservate per risorsa (almeno 1), negativo = nessun limite
+     * @param maxAge eta' massima (ms) delle versioni precedenti, negativo = nessun limite
+     * @param snapshotInterval ogni quante versioni archiviare una versione completa invece di un delta (almeno 1)
+     */
+    public VersioningDatabase(IDatabase db, IDatabase versionsDb, int maxVersions, long maxAge, int snapshotInterval)
+    {
+        if(maxVersions == 0 || snapshotInterval < 1)
+        {
+            throw new IllegalArgumentException("maxVersions and snapshotInterval must be positive");
+        }
+
+        this.db = db;
+        this.versionsDb = versionsDb;
+        this.maxVersions = maxVersions;
+        this.maxAge = maxAge;
+        this.snapshotInterval = snapshotInterval;
+
+        locks = new ReentrantLock[lockCount];
+
+        for(int i = 0; i < lockCount; i++)
+        {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+
+    /**
+     * Restituisce numero ed ETag delle versioni conservate di una risorsa, compresa quella corrente (se esiste),
+     * che ha il numero piu' alto.
+     * @param resourceURI {@link String} che identifica un {@link IResource}
+     * @return mappa (ordinata) da numero di versione a ETag; vuota se la risorsa non ha versioni
+     */
+    public SortedMap<Long, String> getVersions(String resourceURI)
+    {
+        SortedMap<Long, String> versions = getRecords(resourceURI);
+
+        String currentETag = db.getETag(resourceURI);
+
+        if(currentETag != null)
+        {
+            versions.put(versions.isEmpty() ? 1 : versions.lastKey() + 1, currentETag);
+        }
+
+        return versions;
+    }
+
+
+    /**
+     * Restituisce una versione di una risorsa, identificata dal numero.
+     * @param resourceURI {@link String} che identifica un {@link IResource}
+     * @param version numero della versione (vedi {@link #getVersions(String)})
+     * @return la versione richiesta, con il suo ETag, se e' conservata; {@code null} altrimenti
+     */
+    public IResource getVersion(String resourceURI, long version)
+    {
+        SortedMap<Long, String> records = getRecords(resourceURI);
+
+        if(records.containsKey(version))
+        {
+            return reconstruct(resourceURI, records, version);
+        }
+
+        long currentVersion = records.isEmpty() ? 1 : records.lastKey() + 1;
+
+        return version == currentVersion ? db.get(resourceURI) : null;
+    }
+
+
+    /**
+     * Restituisce la versione di una risorsa che ha l'ETag {@code eTag} (la piu' recente, se sono piu' d'una).
+     * @param resourceURI {@link String} che identifica un {@link IResource}
+     * @param eTag ETag della versione
+     * @return la versione richiesta, se e' conservata; {@code null} altrimenti
+     */
+    public IResource getVersionByETag(String resourceURI, String eTag)
+    {
+        IResource current = db.get(resourceURI);
+
+        if(current != null && current.getETag().equals(eTag))
+        {
+            return current;
+        }
+
+        SortedMap<Long, String> records = getRecords(resourceURI);
+
+        for(Long version : new TreeSet<Long>(records.keySet()).descendingSet())
+        {
+            if(records.get(version).equals(eTag))
+            {
+                return reconstruct(resourceURI, records, version);
+            }
+        }
+
+        return null;
+    }
+
+
+    // ricostruisce la versione archiviata nel record version, leggendo con un solo accesso i record fino al primo
+    // completo (e, se la catena dei delta arriva fin li', la versione corrente) e applicando i delta a ritroso
+    private IResource reconstruct(String resourceURI, SortedMap<Long, String> records, long version)
+    {
+        List<String> uris = new ArrayList<String>();
+
+        boolean needsCurrent = true;
+
+        for(Long number : records.tailMap(version).keySet())
+        {
+            uris.add(getRecordURI(resourceURI, number));
+
+            if(number % snapshotInterval == 0)   // archiviato sempre completo
+            {
+                needsCurrent = false;
+                break;
+            }
+        }
+
+        Map<String, IResource> found = versionsDb.getAll(uris);
+
+        // ETag -> contenuto delle versioni gia' ricostruite (o lette complete)
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+
+        if(needsCurrent)
+        {
+            IResource current = db.get(resourceURI);
+
+            if(current != null)
+            {
+                contents.put(current.getETag(), current.getContentBytes());
+            }
+        }
+
+        // dal record piu' recente al piu' vecchio: la base di un delta e' una versione successiva
+        for(int i = uris.size() - 1; i >= 0; i--)
+        {
+            IResource record = found.get(uris.get(i));
+
+            if(record == null)   // eliminato nel frattempo
+            {
+                continue;
+            }
+
+            try
+            {
+                DataInputStream input = new DataInputStream(new ByteArrayInputStream(record.getContentBytes()));
+
+                byte type = input.readByte();
+                input.readLong();   // istante della sostituzione
+
+                byte[] content;
+
+                if(type == fullRecord)
+                {
+                    content = readRemaining(input);
+                }
+                else
+                {
+                    byte[] base = contents.get(input.readUTF());
+
+                    if(base == null)   // la base non e' piu' disponibile
+                    {
+                        continue;
+                    }
+
+                    content = Delta.apply(base, readRemaining(input));
+                }
+
+                contents.put(record.getETag(), content);
+
+                if(i == 0)
+                {
+                    return new SINode(resourceURI, content, record.getETag());
+                }
+            }
+            catch(IOException e)
+            {
+                throw new DatabaseException("Corrupted version record " + uris.get(i), e);
+            }
+        }
+
+        return null;
+    }
+
+
+    // numero -> ETag dei record di una risorsa
+    private SortedMap<Long, String> getRecords(String resourceURI)
+    {
+        SortedMap<Long, String> records = new TreeMap<Long, String>();
+
+        String prefix = getRecordPrefix(resourceURI);
+
+        String cursor = null;
+
+        do
+        {
+            ResourceListing listing = versionsDb.list(prefix, cursor, listPageSize);
+
+            for(Map.Entry<String, String> entry : listing.getETags().entrySet())
+            {
+                records.put(Long.parseLong(entry.getKey().substring(prefix.length())), entry.getValue());
+            }
+
+            cursor = listing.getNextCursor();
+        }
+        while(cursor != null);
+
+        return records;
+    }
+
+
+    // archivia la versione replaced, sostituita da replacement (null se la risorsa e' stata eliminata), ed elimina
+    // i record oltre i limiti di conservazione
+    private void archive(IResource replaced, IResource replacement)
+    {
+        String resourceURI = replaced.getURI();
+
+        SortedMap<Long, String> records = getRecords(resourceURI);
+
+        long number = records.isEmpty() ? 1 : records.lastKey() + 1;
+
+        // il record viene creato solo se il numero e' libero: se un'altra istanza (o una scrittura non passata dal
+        // lock) lo ha appena usato, i record vengono riletti e si riprova con il numero successivo
+        while(versionsDb.putIfAbsent(new SINode(getRecordURI(resourceURI, number), encodeRecord(replaced, replacement, number),
+                                                replaced.getETag())) == null)
+        {
+            records = getRecords(resourceURI);
+
+            number = Math.max(number, records.isEmpty() ? 0 : records.lastKey()) + 1;
+        }
+
+        records.put(number, replaced.getETag());
+
+        prune(resourceURI, records);
+    }
+
+
+    // contenuto del record numero number: la versione replaced completa, o il delta rispetto a replacement
+    private byte[] encodeRecord(IResource replaced, IResource replacement, long number)
+    {
+        byte[] content = replaced.getContentBytes();
+
+        byte[] delta = null;
+
+        if(replacement != null && number % snapshotInterval != 0)
+        {
+            delta = Delta.encode(replacement.getContentBytes(), content);
+
+            if(delta.length >= content.length)   // il delta non conviene
+            {
+                delta = null;
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((delta != null ? delta.length : content.length) + 64);
+
+        try
+        {
+            DataOutputStream output = new DataOutputStream(bytes);
+
+            if(delta != null)
+            {
+                output.writeByte(deltaRecord);
+                output.writeLong(System.currentTimeMillis());
+                output.writeUTF(replacement.getETag());
+                output.write(delta);
+            }
+            else
+            {
+                output.writeByte(fullRecord);
+                output.writeLong(System.currentTimeMillis());
+                output.write(content);
+            }
+
+            output.flush();
+        }
+        catch(IOException e)
+        {
+            throw new DatabaseException("Cannot archive version of " + replaced.getURI(), e);
+        }
+
+        // il contenuto del record e' binario: i database conservano i byte cosi' come sono
+        return bytes.toByteArray();
+    }
+
+
+    // elimina i record piu' vecchi oltre maxVersions e (tranne il piu' recente) quelli sostituiti da piu' di maxAge ms
+    private void prune(String resourceURI, SortedMap<Long, String> records)
+    {
+        Set<String> expiredURIs = new HashSet<String>();
+
+        Iterator<Long> numbers = records.keySet().iterator();
+
+        for(int excess = maxVersions < 0 ? 0 : records.size() - maxVersions; excess > 0; excess--)
+        {
+            expiredURIs.add(getRecordURI(resourceURI, numbers.next()));
+        }
+
+        if(maxAge >= 0)
+        {
+            long oldest = System.currentTimeMillis() - maxAge;
+
+            while(numbers.hasNext())
+            {
+                long number = numbers.next();
+
+                if(number == records.lastKey() || getSupersededTime(resourceURI, number) >= oldest)
+                {
+                    break;
+                }
+
+                expiredURIs.add(getRecordURI(resourceURI, number));
+            }
+        }
+
+        if(!expiredURIs.isEmpty())
+        {
+            versionsDb.deleteAll(expiredURIs);
+        }
+    }
+
+
+    private long getSupersededTime(String resourceURI, long number)
+    {
+        // l'istante e' nei primi 9 byte del record: basta leggerne l'inizio
+        ResourceRange range = versionsDb.getRange(getRecordURI(resourceURI, number), 0, 9);
+
+        if(range == null || range.getBytes().length < 9)
+        {
+            return Long.MAX_VALUE;
+        }
+
+        try
+        {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(range.getBytes()));
+            input.readByte();
+            return input.readLong();
+        }
+        catch(IOException e)
+        {
+            throw new DatabaseException("Corrupted version record of " + resourceURI, e);
+        }
+    }
+
+
+    // gli URI dei record di una risorsa iniziano con l'URI (con escape di '/') seguito da '/', cosi' che il prefisso
+    // di una risorsa non sia anche il prefisso dei record di un'altra
+    private static String getRecordPrefix(String resourceURI)
+    {
+        return resourceURI.replace("%", "%25").replace("/", "%2F") + "/";
+    }
+
+
+    private static String getRecordURI(String resourceURI, long number)
+    {
+        return getRecordPrefix(resourceURI) + String.format(recordNumberFormat, number);
+    }
+
+
+    private static byte[] readRemaining(DataInputStream input) throws IOException
+    {
+        byte[] remaining = new byte[input.available()];
+        input.readFully(remaining);
+        return remaining;
+    }
+
+
+    private ReentrantLock lockFor(String resourceURI)
+    {
+        return locks[(resourceURI.hashCode() & 0x7fffffff) % lockCount];
+    }
+
+
+    // blocca (in ordine, per evitare deadlock) i lock di tutti gli URI
+    private List<ReentrantLock> lockAll(Collection<String> resourceURIs)
+    {
+        Set<Integer> indexes = new TreeSet<Integer>();
+
+        for(String resourceURI : resourceURIs)
+        {
+            indexes.add((resourceURI.hashCode() & 0x7fffffff) % lockCount);
+        }
+
+        List<ReentrantLock> locked = new ArrayList<ReentrantLock>();
+
+        for(int index : indexes)
+        {
+            locks[index].lock();
+            locked.add(locks[index]);
+        }
+
+        return locked;
+    }
+
+
+    private static void unlockAll(List<ReentrantLock> locked)
+    {
+        for(ReentrantLock lock : locked)
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#put(storageInterface.IResource)
+     */
+    @Override
+    public void put(IResource resource)
+    {
+        ReentrantLock lock = lockFor(resource.getURI());
+        lock.lock();
+
+        try
+        {
+            IResource replaced = db.get(resource.getURI());
+
+            db.put(resource);
+
+            if(replaced != null && !replaced.getETag().equals(resource.getETag()))
+            {
+                archive(replaced, resource);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfAbsent(storageInterface.IResource)
+     */
+    @Override
+    public String putIfAbsent(IResource resource)
+    {
+        return db.putIfAbsent(resource);   // non sostituisce nessuna versione
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putIfMatch(storageInterface.IResource, java.lang.String)
+     */
+    @Override
+    public String putIfMatch(IResource resource, String expectedETag)
+    {
+        ReentrantLock lock = lockFor(resource.getURI());
+        lock.lock();
+
+        try
+        {
+            IResource replaced = db.get(resource.getURI());
+
+            if(replaced == null || !replaced.getETag().equals(expectedETag))
+            {
+                return null;
+            }
+
+            // l'ETag viene ricontrollato atomicamente: la versione sostituita e' proprio replaced
+            String eTag = db.putIfMatch(resource, expectedETag);
+
+            if(eTag != null && !eTag.equals(expectedETag))
+            {
+                archive(replaced, resource);
+            }
+
+            return eTag;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#get(java.lang.String)
+     */
+    @Override
+    public IResource get(String resourceURI)
+    {
+        return db.get(resourceURI);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getETag(java.lang.String)
+     */
+    @Override
+    public String getETag(String resourceURI)
+    {
+        return db.getETag(resourceURI);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getRange(java.lang.String, long, int)
+     */
+    @Override
+    public ResourceRange getRange(String resourceURI, long offset, int length)
+    {
+        return db.getRange(resourceURI, offset, length);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#list(java.lang.String, java.lang.String, int)
+     */
+    @Override
+    public ResourceListing list(String prefix, String cursor, int limit)
+    {
+        return db.list(prefix, cursor, limit);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(storageInterface.IResource)
+     */
+    @Override
+    public boolean delete(IResource resource)
+    {
+        return delete(resource.getURI());
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String resourceURI)
+    {
+        return deleteIfMatch(resourceURI, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteIfMatch(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean deleteIfMatch(String resourceURI, String expectedETag)
+    {
+        ReentrantLock lock = lockFor(resourceURI);
+        lock.lock();
+
+        try
+        {
+            IResource deleted = db.get(resourceURI);
+
+            if(deleted == null || (expectedETag != null && !deleted.getETag().equals(expectedETag)))
+            {
+                return false;
+            }
+
+            // con l'ETag letto, cosi' che la versione archiviata sia proprio quella eliminata
+            if(!db.deleteIfMatch(resourceURI, deleted.getETag()))
+            {
+                return false;
+            }
+
+            archive(deleted, null);
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#getAll(java.util.Collection)
+     */
+    @Override
+    public Map<String, IResource> getAll(Collection<String> resourceURIs)
+    {
+        return db.getAll(resourceURIs);
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#putAll(java.util.Collection)
+     */
+    @Override
+    public void putAll(Collection<? extends IResource> resources)
+    {
+        List<String> resourceURIs = new ArrayList<String>();
+
+        for(IResource resource : resources)
+        {
+            resourceURIs.add(resource.getURI());
+        }
+
+        List<ReentrantLock> locked = lockAll(resourceURIs);
+
+        try
+        {
+            // le versioni sostituite vengono lette con un solo accesso, prima della scrittura
+            Map<String, IResource> replaced = db.getAll(resourceURIs);
+
+            db.putAll(resources);
+
+            for(IResource resource : resources)
+            {
+                IResource replacedResource = replaced.get(resource.getURI());
+
+                if(replacedResource != null && !replacedResource.getETag().equals(resource.getETag()))
+                {
+                    archive(replacedResource, resource);
+                }
+            }
+        }
+        finally
+        {
+            unlockAll(locked);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see storageInterface.IDatabase#deleteAll(java.util.Collection)
+     */
+    @Override
+    public Set<String> deleteAll(Collection<String> resourceURIs)
+    {
+        List<ReentrantLock> locked = lockAll(resourceURIs);
+
+        try
+        {
+            Map<String, IResource> replaced = db.getAll(resourceURIs);
+
+            Set<String> deleted = db.deleteAll(resourceURIs);
+
+            for(String resourceURI : deleted)
+            {
+                IResource deletedResource = replaced.get(resourceURI);
+
+                if(deletedResource != null)
+                {
+                    archive(deletedResource, null);
+                }
+            }
+
+            return deleted;
+        }
+        finally
+        {
+            unlockAll(locked);
+        }
+    }
+
+}
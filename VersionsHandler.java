@@ -0,0 +1,166 @@
+package storageInterface;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * GET delle versioni precedenti di una risorsa di {@link StorageInterfaceServlet}: una versione per numero
+ * (version=n) o per ETag (etag=...), oppure (versions=true) l'elenco delle versioni conservate,
+ * {@code <versions uri="..."><version number="n" etag="..."/>...</versions>}.
+ *
+ *
+ */
+public class VersionsHandler
+{
+    // parametri di una GET su una risorsa: versione per numero o per ETag, elenco delle versioni
+    private final static String versionParamName = "version";
+
+    private final static String etagParamName = "etag";
+
+    private final static String versionsParamName = "versions";
+
+    private final static String versionsElementName = "versions";
+
+    private final static String versionElementName = "version";
+
+    private final static String numberAttributeName = "number";
+
+    private final static String invalidVersionMessage = versionParamName + " must be a positive integer";
+
+    private final static String versioningDisabledMessage = "Versioning is not enabled";
+
+    private final static String versionNotFoundMessage = "Version not found";
+
+    private final VersioningDatabase versioningDb;
+
+    private final ContentWriter contentWriter;
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link VersionsHandler}.
+     * @param versioningDb il database delle versioni, o {@code null} se il versionamento e' disabilitato
+     * @param contentWriter con cui inviare il contenuto di una versione
+     */
+    public VersionsHandler(VersioningDatabase versioningDb, ContentWriter contentWriter)
+    {
+        this.versioningDb = versioningDb;
+        this.contentWriter = contentWriter;
+    }
+
+
+    /**
+     * @param req la richiesta
+     * @return {@code true} se la GET chiede una versione precedente (o l'elenco delle versioni) invece della risorsa
+     */
+    public static boolean isVersionRequest(HttpServletRequest req)
+    {
+        return req.getParameter(versionParamName) != null || req.getParameter(etagParamName) != null
+               || Boolean.parseBoolean(req.getParameter(versionsParamName));
+    }
+
+
+    /**
+     * Invia la versione richiesta di {@code resourceName}, o l'elenco delle sue versioni.
+     * @param req la richiesta
+     * @param resp la risposta
+     * @param resourceName il nome della risorsa
+     * @throws IOException se la risposta non puo' essere scritta
+     */
+    public void doGet(HttpServletRequest req, HttpServletResponse resp, String resourceName)
+    throws IOException
+    {
+        if(versioningDb == null)
+        {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, versioningDisabledMessage);
+            return;
+        }
+
+        if(Boolean.parseBoolean(req.getParameter(versionsParamName)))
+        {
+            SortedMap<Long, String> versions = versioningDb.getVersions(resourceName);
+
+            if(versions.isEmpty())
+            {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND, StorageInterfaceServlet.resourceNotFoundMessage);
+                return;
+            }
+
+            resp.setContentType(StorageInterfaceServlet.xmlResponseContentType);
+            resp.setStatus(HttpServletResponse.SC_OK);
+
+            try
+            {
+                XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(resp.getWriter());
+
+                writer.writeStartDocument();
+                writer.writeStartElement(versionsElementName);
+                writer.writeAttribute(StorageInterfaceServlet.uriAttributeName, resourceName);
+
+                for(Map.Entry<Long, String> entry : versions.entrySet())
+                {
+                    writer.writeEmptyElement(versionElementName);
+                    writer.writeAttribute(numberAttributeName, entry.getKey().toString());
+                    writer.writeAttribute(StorageInterfaceServlet.etagAttributeName, entry.getValue());
+                }
+
+                writer.writeEndElement();
+                writer.writeEndDocument();
+                writer.flush();
+            }
+            catch(XMLStreamException e)
+            {
+                throw new IOException("Cannot write version list", e);
+            }
+
+            return;
+        }
+
+        IResource version;
+
+        String versionParam = req.getParameter(versionParamName);
+
+        if(versionParam != null)
+        {
+            long versionNumber;
+
+            try
+            {
+                versionNumber = Long.parseLong(versionParam);
+            }
+            catch(NumberFormatException e)
+            {
+                versionNumber = 0;
+            }
+
+            if(versionNumber <= 0)
+            {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, invalidVersionMessage);
+                return;
+            }
+
+            version = versioningDb.getVersion(resourceName, versionNumber);
+        }
+        else
+        {
+            version = versioningDb.getVersionByETag(resourceName, StorageInterfaceServlet.toIdentityETag(req.getParameter(etagParamName)));
+        }
+
+        if(version == null)
+        {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, versionNotFoundMessage);
+            return;
+        }
+
+        contentWriter.writeContent(req, resp, version, version.getETag());
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+}
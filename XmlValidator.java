@@ -0,0 +1,184 @@
+package storageInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Validatore di documenti xml rispetto ad un xml schema.
+ * Lo schema viene compilato una sola volta (ed eventualmente ricaricato se il file viene modificato),
+ * mentre i {@link Validator} (che non sono thread-safe) vengono riutilizzati attraverso un pool.
+ *
+ *
+ */
+public class XmlValidator
+{
+    private final File schemaFile;
+
+    // intervallo minimo (in millisecondi) tra due controlli sulla data di modifica del file;
+    // se negativo il ricaricamento dello schema e' disabilitato
+    private final long reloadCheckInterval;
+
+    // lo schema compilato e il relativo pool di validatori vengono sostituiti insieme
+    private volatile CompiledSchema compiledSchema;
+
+    private volatile long lastReloadCheck;
+
+    // metriche
+    private final AtomicLong validationCount = new AtomicLong();
+
+    private final AtomicLong validationTimeNanos = new AtomicLong();
+
+
+    /**
+     * Istanzia un nuovo oggetto di tipo {@link XmlValidator}, compilando lo schema contenuto in {@code schemaFile}.
+     * @param schemaFile file contenente l'xml schema
+     * @param reloadCheckInterval intervallo minimo in millisecondi tra due controlli di modifica del file;
+     * un valore negativo disabilita il ricaricamento
+     * @throws SAXException se lo schema non puo' essere compilato
+     */
+    public XmlValidator(File schemaFile, long reloadCheckInterval) throws SAXException
+    {
+        this.schemaFile = schemaFile;
+        this.reloadCheckInterval = reloadCheckInterval;
+        this.compiledSchema = compile(schemaFile);
+        this.lastReloadCheck = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Valida {@code source} rispetto allo schema.
+     * @param source il documento da validare
+     * @return {@code true} se e solo se il documento rispetta lo schema
+     * @throws IOException se fallisce la lettura di {@code source}
+     * @throws SAXException se fallisce il ricaricamento dello schema
+     */
+    public boolean isValid(Source source) throws IOException, SAXException
+    {
+        CompiledSchema current = getCompiledSchema();
+
+        Validator validator = current.validators.poll();
+
+        if(validator == null)
+        {
+            validator = current.schema.newValidator();
+        }
+
+        long start = System.nanoTime();
+
+        boolean validXMLinput = true;
+
+        try
+        {
+            validator.validate(source);
+        }
+        catch(SAXException e)  // xml non valido per lo schema
+        {
+            validXMLinput = false;
+        }
+        finally
+        {
+            validationTimeNanos.addAndGet(System.nanoTime() - start);
+            validationCount.incrementAndGet();
+
+            // il validatore torna nel pool solo se lo schema nel frattempo non e' cambiato
+            validator.reset();
+            if(current == compiledSchema)
+            {
+                current.validators.offer(validator);
+            }
+        }
+
+        return validXMLinput;
+    }
+
+
+    /**
+     * Restituisce il numero di validazioni eseguite.
+     * @return il numero di validazioni eseguite
+     */
+    public long getValidationCount()
+    {
+        return validationCount.get();
+    }
+
+
+    /**
+     * Restituisce il tempo complessivo (in nanosecondi) speso nelle validazioni.
+     * @return il tempo complessivo speso nelle validazioni
+     */
+    public long getValidationTimeNanos()
+    {
+        return validationTimeNanos.get();
+    }
+
+
+    private CompiledSchema getCompiledSchema() throws SAXException
+    {
+        CompiledSchema current = compiledSchema;
+
+        if(reloadCheckInterval < 0)
+        {
+            return current;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if(now - lastReloadCheck < reloadCheckInterval)
+        {
+            return current;
+        }
+
+        synchronized(this)
+        {
+            if(now - lastReloadCheck >= reloadCheckInterval)
+            {
+                lastReloadCheck = now;
+
+                if(schemaFile.lastModified() != compiledSchema.lastModified)
+                {
+                    compiledSchema = compile(schemaFile);
+                }
+            }
+
+            return compiledSchema;
+        }
+    }
+
+
+    private static CompiledSchema compile(File schemaFile) throws SAXException
+    {
+        long lastModified = schemaFile.lastModified();
+
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        Schema schema = factory.newSchema(schemaFile); // lancia SAXException
+
+        return new CompiledSchema(schema, lastModified);
+    }
+
+
+    private static class CompiledSchema
+    {
+        private final Schema schema;
+
+        private final long lastModified;
+
+        private final ConcurrentLinkedQueue<Validator> validators = new ConcurrentLinkedQueue<Validator>();
+
+        private CompiledSchema(Schema schema, long lastModified)
+        {
+            this.schema = schema;
+            this.lastModified = lastModified;
+        }
+    }
+
+}
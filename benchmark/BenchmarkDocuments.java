@@ -0,0 +1,55 @@
+package storageInterface.benchmark;
+
+import java.nio.charset.Charset;
+
+/**
+ * Documenti xml (validi per {@code xsd/sinode.xsd}) usati dai benchmark.
+ *
+ *
+ */
+public final class BenchmarkDocuments
+{
+    /**
+     * Percorso dello schema, relativo alla radice del progetto, da cui vengono eseguiti i benchmark
+     * (lo stesso usato da {@link storageInterface.StorageInterfaceServlet}).
+     */
+    public final static String xsdFilePath = "xsd/sinode.xsd";
+
+    public final static Charset utf8 = Charset.forName("UTF-8");
+
+    private BenchmarkDocuments()
+    {
+    }
+
+    /**
+     * Restituisce un documento di (circa) {@code size} byte: una sequenza di proprieta', con qualche carattere non ASCII
+     * perche' la decodifica UTF-8 non segua solo il percorso veloce.
+     * @param size dimensione desiderata, in byte
+     * @return il documento
+     */
+    public static String sinode(int size)
+    {
+        StringBuilder document = new StringBuilder(size + 64);
+
+        document.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sinode>");
+
+        for(int i = 0; document.length() < size - 10; i++)
+        {
+            document.append("<property name=\"p").append(i).append("\">valore ").append(i).append(" è €</property>");
+        }
+
+        document.append("</sinode>");
+
+        return document.toString();
+    }
+
+    /**
+     * Restituisce i byte UTF-8 di {@link #sinode(int)}.
+     * @param size dimensione desiderata, in byte
+     * @return i byte UTF-8 del documento
+     */
+    public static byte[] sinodeBytes(int size)
+    {
+        return sinode(size).getBytes(utf8);
+    }
+}
@@ -0,0 +1,70 @@
+package storageInterface.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Esegue tutti i benchmark una volta per ciascun numero di thread richiesto, salvando i risultati
+ * (throughput e, con il profiler GC, byte allocati per operazione) in formato JSON, un file per numero di thread:
+ * <pre>
+ * java storageInterface.benchmark.BenchmarkMain [thread...] [-- opzioni JMH]
+ * </pre>
+ * Senza argomenti usa 1, 4 e 16 thread. Le opzioni JMH dopo {@code --} (e.g.: {@code -p documentSize=65536},
+ * o un filtro sui benchmark) vengono applicate a tutte le esecuzioni.
+ *
+ *
+ */
+public final class BenchmarkMain
+{
+    private final static int[] defaultThreadCounts = { 1, 4, 16 };
+
+    private BenchmarkMain()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int separatorIndex = args.length;
+
+        for(int i = 0; i < args.length; i++)
+        {
+            if(args[i].equals("--"))
+            {
+                separatorIndex = i;
+                break;
+            }
+        }
+
+        int[] threadCounts = defaultThreadCounts;
+
+        if(separatorIndex > 0)
+        {
+            threadCounts = new int[separatorIndex];
+
+            for(int i = 0; i < separatorIndex; i++)
+            {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        String[] jmhArgs = new String[Math.max(0, args.length - separatorIndex - 1)];
+        System.arraycopy(args, Math.min(args.length, separatorIndex + 1), jmhArgs, 0, jmhArgs.length);
+
+        CommandLineOptions commandLineOptions = new CommandLineOptions(jmhArgs);
+
+        for(int threadCount : threadCounts)
+        {
+            new Runner(new OptionsBuilder()
+                       .parent(commandLineOptions)
+                       .include(BenchmarkMain.class.getPackage().getName() + ".*Benchmark")
+                       .threads(threadCount)
+                       .addProfiler(GCProfiler.class)
+                       .resultFormat(ResultFormatType.JSON)
+                       .result("jmh-result-" + threadCount + "-threads.json")
+                       .build()).run();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package storageInterface.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.DigestInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import storageInterface.BoundedTeeInputStream;
+import storageInterface.SINode;
+
+/**
+ * Lettura del body di una PUT come in {@code StorageInterfaceServlet.doPut}: il body passa per il digest dell'ETag
+ * e viene copiato (una sola volta) da {@link BoundedTeeInputStream}, senza validazione (vedi {@link XmlValidationBenchmark}).
+ *
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BodyReadBenchmark
+{
+    @Param({ "1024", "65536", "1048576" })
+    public int documentSize;
+
+    // Content-Length dichiarato dal client (il buffer viene allocato subito) o assente (il buffer viene espanso man mano)
+    @Param({ "true", "false" })
+    public boolean contentLengthKnown;
+
+    private byte[] documentBytes;
+
+    // il limite di default della servlet
+    private final static int maxBodySize = 32 * 1024 * 1024;
+
+    private final static String uri = "benchmark/body";
+
+    @Setup
+    public void setUp()
+    {
+        documentBytes = BenchmarkDocuments.sinodeBytes(documentSize);
+    }
+
+    @Benchmark
+    public SINode readBody() throws IOException
+    {
+        DigestInputStream digestStream = new DigestInputStream(new ByteArrayInputStream(documentBytes), SINode.newETagDigest(uri));
+
+        BoundedTeeInputStream bodyStream = new BoundedTeeInputStream(digestStream, maxBodySize,
+                                                                     contentLengthKnown ? documentBytes.length : -1);
+
+        bodyStream.drain();
+
+        return new SINode(uri, bodyStream.toByteArray(), SINode.toETag(digestStream.getMessageDigest()));
+    }
+}
@@ -0,0 +1,69 @@
+package storageInterface.benchmark;
+
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import storageInterface.SINode;
+
+/**
+ * Calcolo dell'ETag ({@link SINode#getETag()}): SHA-256 di URI e contenuto, a partire dal contenuto
+ * come {@link String} (codifica UTF-8 compresa) o gia' come byte, e in modo incrementale come in una PUT.
+ *
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ETagBenchmark
+{
+    @Param({ "1024", "65536", "1048576" })
+    public int documentSize;
+
+    private String document;
+
+    private byte[] documentBytes;
+
+    private final static String uri = "benchmark/etag";
+
+    @Setup
+    public void setUp()
+    {
+        document = BenchmarkDocuments.sinode(documentSize);
+        documentBytes = document.getBytes(BenchmarkDocuments.utf8);
+    }
+
+    @Benchmark
+    public String fromString()
+    {
+        return new SINode(uri, document).getETag();
+    }
+
+    @Benchmark
+    public String fromBytes()
+    {
+        return new SINode(uri, documentBytes, null).getETag();
+    }
+
+    // come in doPut: il digest viene aggiornato a blocchi mentre il body viene letto
+    @Benchmark
+    public String incremental()
+    {
+        MessageDigest digest = SINode.newETagDigest(uri);
+
+        for(int offset = 0; offset < documentBytes.length; offset += 8192)
+        {
+            digest.update(documentBytes, offset, Math.min(8192, documentBytes.length - offset));
+        }
+
+        return SINode.toETag(digest);
+    }
+}
@@ -0,0 +1,189 @@
+package storageInterface.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import storageInterface.StorageInterfaceServlet;
+
+/**
+ * Elaborazione completa di una richiesta da parte di {@link StorageInterfaceServlet} (dispatch, header, validazione,
+ * accesso al database, scrittura della risposta), con richieste e risposte fittizie ({@link ServletFakes})
+ * e il database in memoria al posto del Datastore.
+ * Ogni thread lavora su una propria risorsa, cosi' che le PUT condizionali non falliscano per le scritture degli altri.
+ *
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ServletBenchmark
+{
+    private final static String storageInterfaceURIprefix = "/StorageInterface/!SI/";
+
+
+    /**
+     * Servlet condivisa da tutti i thread, come in un container.
+     */
+    @State(Scope.Benchmark)
+    public static class ServletState
+    {
+        @Param({ "1024", "65536", "1048576" })
+        public int documentSize;
+
+        // dimensione della cache davanti al database (0 = nessuna cache)
+        @Param({ "0", "67108864" })
+        public long cacheSize;
+
+        private StorageInterfaceServlet servlet;
+
+        private byte[] documentBytes;
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Setup
+        public void setUp() throws ServletException
+        {
+            Map<String, String> initParameters = new HashMap<String, String>();
+            initParameters.put("database", "memory");
+            initParameters.put("cacheSize", Long.toString(cacheSize));
+
+            servlet = new StorageInterfaceServlet();
+            servlet.init(ServletFakes.newConfig(initParameters));
+
+            documentBytes = BenchmarkDocuments.sinodeBytes(documentSize);
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            servlet.destroy();
+        }
+    }
+
+
+    /**
+     * Risorsa (gia' creata) del singolo thread, con il suo ETag corrente.
+     */
+    @State(Scope.Thread)
+    public static class ResourceState
+    {
+        private String requestURI;
+
+        private String eTag;
+
+        @Setup(Level.Trial)
+        public void setUp(ServletState servletState) throws Exception
+        {
+            requestURI = storageInterfaceURIprefix + "benchmark/resource" + servletState.threadCount.incrementAndGet();
+
+            ServletFakes.FakeResponse response = put(servletState, this, null);
+
+            if(response.getStatus() != HttpServletResponse.SC_CREATED)
+            {
+                throw new IllegalStateException("Cannot create " + requestURI + ": " + response.getStatus());
+            }
+
+            eTag = response.getHeader("ETag");
+        }
+    }
+
+
+    @Benchmark
+    public int get(ServletState servletState, ResourceState resourceState) throws Exception
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/xml");
+
+        ServletFakes.FakeResponse response = ServletFakes.newResponse();
+
+        servletState.servlet.service(ServletFakes.newRequest("GET", resourceState.requestURI, headers, null), response.getResponse());
+
+        return check(response, HttpServletResponse.SC_OK);
+    }
+
+
+    @Benchmark
+    public int getGzip(ServletState servletState, ResourceState resourceState) throws Exception
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/xml");
+        headers.put("Accept-Encoding", "gzip");
+
+        ServletFakes.FakeResponse response = ServletFakes.newResponse();
+
+        servletState.servlet.service(ServletFakes.newRequest("GET", resourceState.requestURI, headers, null), response.getResponse());
+
+        return check(response, HttpServletResponse.SC_OK);
+    }
+
+
+    @Benchmark
+    public int getNotModified(ServletState servletState, ResourceState resourceState) throws Exception
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/xml");
+        headers.put("If-None-Match", "\"" + resourceState.eTag + "\"");
+
+        ServletFakes.FakeResponse response = ServletFakes.newResponse();
+
+        servletState.servlet.service(ServletFakes.newRequest("GET", resourceState.requestURI, headers, null), response.getResponse());
+
+        return check(response, HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+
+    // aggiornamento condizionale con lo stesso contenuto: l'ETag non cambia, quindi ogni iterazione e' identica
+    @Benchmark
+    public int put(ServletState servletState, ResourceState resourceState) throws Exception
+    {
+        return check(put(servletState, resourceState, resourceState.eTag), HttpServletResponse.SC_OK);
+    }
+
+
+    private static ServletFakes.FakeResponse put(ServletState servletState, ResourceState resourceState, String ifMatch)
+    throws Exception
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/xml");
+        headers.put("Content-Type", "application/xml; charset=UTF-8");
+
+        if(ifMatch != null)
+        {
+            headers.put("If-Match", ifMatch);
+        }
+
+        ServletFakes.FakeResponse response = ServletFakes.newResponse();
+
+        servletState.servlet.service(ServletFakes.newRequest("PUT", resourceState.requestURI, headers, servletState.documentBytes),
+                                     response.getResponse());
+
+        return response;
+    }
+
+
+    // una risposta inattesa renderebbe il benchmark privo di significato
+    private static int check(ServletFakes.FakeResponse response, int expectedStatus)
+    {
+        if(response.getStatus() != expectedStatus)
+        {
+            throw new IllegalStateException("Unexpected status " + response.getStatus() + " (expected " + expectedStatus + ")");
+        }
+
+        return response.getStatus() + (int) response.getBodyLength();
+    }
+}
@@ -0,0 +1,318 @@
+package storageInterface.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Richieste, risposte e configurazione fittizie (realizzate con {@link Proxy}) con cui eseguire
+ * {@link storageInterface.StorageInterfaceServlet} nello stesso processo dei benchmark, senza un container.
+ * Implementano solo i metodi usati dalla servlet: gli altri restituiscono {@code null}, 0 o {@code false}.
+ *
+ *
+ */
+public final class ServletFakes
+{
+    private ServletFakes()
+    {
+    }
+
+
+    /**
+     * Restituisce una {@link ServletConfig} con gli init-param {@code initParameters}.
+     * @param initParameters gli init-param della servlet
+     * @return la configurazione
+     */
+    public static ServletConfig newConfig(final Map<String, String> initParameters)
+    {
+        final ServletContext servletContext = newProxy(ServletContext.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                return defaultValue(method);
+            }
+        });
+
+        return newProxy(ServletConfig.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+
+                if(name.equals("getInitParameter"))
+                {
+                    return initParameters.get(args[0]);
+                }
+
+                if(name.equals("getInitParameterNames"))
+                {
+                    return Collections.enumeration(initParameters.keySet());
+                }
+
+                if(name.equals("getServletContext"))
+                {
+                    return servletContext;
+                }
+
+                if(name.equals("getServletName"))
+                {
+                    return "StorageInterface";
+                }
+
+                return defaultValue(method);
+            }
+        });
+    }
+
+
+    /**
+     * Restituisce una richiesta HTTP con metodo, URI, header e body indicati.
+     * Il body puo' essere letto una sola volta, come in una richiesta vera.
+     * @param httpMethod metodo HTTP (e.g.: "GET")
+     * @param requestURI URI della richiesta
+     * @param headers gli header della richiesta
+     * @param body il body della richiesta, o {@code null}
+     * @return la richiesta
+     */
+    public static HttpServletRequest newRequest(final String httpMethod, final String requestURI,
+                                                final Map<String, String> headers, final byte[] body)
+    {
+        final ServletInputStream bodyStream = new ServletInputStream()
+        {
+            private final InputStream in = new ByteArrayInputStream((body != null) ? body : new byte[0]);
+
+            @Override
+            public int read() throws IOException
+            {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                return in.read(b, off, len);
+            }
+        };
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        return newProxy(HttpServletRequest.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+
+                if(name.equals("getMethod"))
+                {
+                    return httpMethod;
+                }
+
+                if(name.equals("getRequestURI"))
+                {
+                    return requestURI;
+                }
+
+                if(name.equals("getHeader"))
+                {
+                    return headers.get(args[0]);
+                }
+
+                if(name.equals("getContentLength"))
+                {
+                    return (body != null) ? body.length : -1;
+                }
+
+                if(name.equals("getCharacterEncoding"))
+                {
+                    return "UTF-8";
+                }
+
+                if(name.equals("getInputStream"))
+                {
+                    return bodyStream;
+                }
+
+                if(name.equals("getProtocol"))
+                {
+                    return "HTTP/1.1";
+                }
+
+                if(name.equals("getAttribute"))
+                {
+                    return attributes.get(args[0]);
+                }
+
+                if(name.equals("setAttribute"))
+                {
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                }
+
+                return defaultValue(method);
+            }
+        });
+    }
+
+
+    /**
+     * Restituisce una risposta HTTP che scarta il body, contandone i byte, e registra lo stato.
+     * @return la risposta
+     */
+    public static FakeResponse newResponse()
+    {
+        return new FakeResponse();
+    }
+
+
+    /**
+     * Risposta HTTP fittizia: il body viene scartato (ma contato) e lo stato registrato.
+     */
+    public static class FakeResponse
+    {
+        private int status = HttpServletResponse.SC_OK;
+
+        private long bodyLength;
+
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        private final ServletOutputStream bodyStream = new ServletOutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                bodyLength++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                bodyLength += len;
+            }
+        };
+
+        private final PrintWriter writer = new PrintWriter(new OutputStreamWriter(bodyStream, BenchmarkDocuments.utf8), true);
+
+        private final HttpServletResponse response = newProxy(HttpServletResponse.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+
+                if(name.equals("setStatus") || name.equals("sendError"))
+                {
+                    status = (Integer) args[0];
+                    return null;
+                }
+
+                if(name.equals("setHeader") || name.equals("addHeader"))
+                {
+                    headers.put((String) args[0], (String) args[1]);
+                    return null;
+                }
+
+                if(name.equals("getStatus"))
+                {
+                    return status;
+                }
+
+                if(name.equals("getOutputStream"))
+                {
+                    return bodyStream;
+                }
+
+                if(name.equals("getWriter"))
+                {
+                    return writer;
+                }
+
+                return defaultValue(method);
+            }
+        });
+
+        /**
+         * Restituisce la risposta da passare alla servlet
+         * @return la risposta da passare alla servlet
+         */
+        public HttpServletResponse getResponse()
+        {
+            return response;
+        }
+
+        /**
+         * Restituisce lo stato impostato dalla servlet
+         * @return lo stato impostato dalla servlet
+         */
+        public int getStatus()
+        {
+            return status;
+        }
+
+        /**
+         * Restituisce il numero di byte scritti nel body
+         * @return il numero di byte scritti nel body
+         */
+        public long getBodyLength()
+        {
+            return bodyLength;
+        }
+
+        /**
+         * Restituisce l'header {@code name} impostato dalla servlet
+         * @param name nome dell'header
+         * @return il valore dell'header, o {@code null}
+         */
+        public String getHeader(String name)
+        {
+            return headers.get(name);
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static <T> T newProxy(Class<T> type, InvocationHandler handler)
+    {
+        return (T) Proxy.newProxyInstance(ServletFakes.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+
+    private static Object defaultValue(Method method)
+    {
+        Class<?> returnType = method.getReturnType();
+
+        if(returnType == boolean.class)
+        {
+            return false;
+        }
+
+        if(returnType == int.class)
+        {
+            return 0;
+        }
+
+        if(returnType == long.class)
+        {
+            return 0L;
+        }
+
+        return null;
+    }
+}
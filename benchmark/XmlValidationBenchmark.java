@@ -0,0 +1,58 @@
+package storageInterface.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xml.sax.SAXException;
+
+import storageInterface.XmlValidator;
+
+/**
+ * Validazione xsd del body ({@link XmlValidator#isValid(javax.xml.transform.Source)}), con la stessa
+ * decodifica rigorosa usata dalla servlet. Il validatore e' condiviso tra i thread, come nella servlet.
+ *
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class XmlValidationBenchmark
+{
+    @Param({ "1024", "65536", "1048576" })
+    public int documentSize;
+
+    private byte[] documentBytes;
+
+    private XmlValidator xmlValidator;
+
+    @Setup
+    public void setUp() throws SAXException
+    {
+        documentBytes = BenchmarkDocuments.sinodeBytes(documentSize);
+        xmlValidator = new XmlValidator(new File(BenchmarkDocuments.xsdFilePath), -1);
+    }
+
+    @Benchmark
+    public boolean validate() throws IOException, SAXException
+    {
+        InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(documentBytes), BenchmarkDocuments.utf8.newDecoder()
+                                                         .onMalformedInput(CodingErrorAction.REPORT)
+                                                         .onUnmappableCharacter(CodingErrorAction.REPORT));
+
+        return xmlValidator.isValid(new StreamSource(reader));
+    }
+}
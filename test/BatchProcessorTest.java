@@ -0,0 +1,157 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link BatchProcessor}: esito delle scritture (senza ifMatch e' ammessa solo la creazione) e delle
+ * cancellazioni, eseguite una alla volta o in parallelo con un {@link IAsyncDatabase}.
+ *
+ *
+ */
+public class BatchProcessorTest
+{
+    private final static String xsdFilePath = "xsd/sinode.xsd";
+
+    private InMemoryDatabase db;
+
+    private XmlValidator xmlValidator;
+
+    private ExecutorAsyncDatabase asyncDb;
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        db = new InMemoryDatabase();
+        xmlValidator = new XmlValidator(new File(xsdFilePath), -1);
+        asyncDb = new ExecutorAsyncDatabase(db, Executors.newFixedThreadPool(4));
+    }
+
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        asyncDb.shutdown(1000);
+    }
+
+
+    @Test
+    public void writesWithoutIfMatchOnlyCreate() throws Exception
+    {
+        checkWrites(new BatchProcessor(db, xmlValidator));
+    }
+
+
+    @Test
+    public void parallelWritesWithoutIfMatchOnlyCreate() throws Exception
+    {
+        checkWrites(new BatchProcessor(db, asyncDb, xmlValidator));
+    }
+
+
+    @Test
+    public void deletesReportMissingAndChangedResources() throws Exception
+    {
+        checkDeletes(new BatchProcessor(db, xmlValidator));
+    }
+
+
+    @Test
+    public void parallelDeletesReportMissingAndChangedResources() throws Exception
+    {
+        checkDeletes(new BatchProcessor(db, asyncDb, xmlValidator));
+    }
+
+
+    private void checkWrites(BatchProcessor batchProcessor) throws Exception
+    {
+        String eTag = db.putIfAbsent(new SINode("a", sinode("1")));
+
+        String result = process(batchProcessor, "<batch>"
+                                                + put("a", null, "2")       // esiste gia'
+                                                + put("b", null, "1")       // creata...
+                                                + put("b", null, "2")       // ...e quindi gia' esistente
+                                                + put("c", eTag, "1")       // con ifMatch una risorsa mancante viene creata
+                                                + put("a", "wrong", "3")
+                                                + put("a", eTag, "4")
+                                                + put("d", null, "<other/>")
+                                                + "</batch>");
+
+        assertTrue(result.contains("op=\"put\" uri=\"a\" status=\"400\""));
+        assertTrue(result.contains("op=\"put\" uri=\"b\" status=\"201\""));
+        assertTrue(result.contains("op=\"put\" uri=\"b\" status=\"400\""));
+        assertTrue(result.contains("op=\"put\" uri=\"c\" status=\"201\""));
+        assertTrue(result.contains("op=\"put\" uri=\"a\" status=\"412\""));
+        assertTrue(result.contains("op=\"put\" uri=\"a\" status=\"200\" etag=\"" + db.getETag("a") + "\""));
+        assertTrue(result.contains("op=\"put\" uri=\"d\" status=\"400\""));
+
+        assertEquals(sinode("4"), db.get("a").getContent());
+        assertEquals(sinode("1"), db.get("b").getContent());
+        assertEquals(sinode("1"), db.get("c").getContent());
+        assertNull(db.get("d"));
+    }
+
+
+    private void checkDeletes(BatchProcessor batchProcessor) throws Exception
+    {
+        db.put(new SINode("a", sinode("1")));
+        db.put(new SINode("b", sinode("1")));
+        String eTag = db.putIfAbsent(new SINode("c", sinode("1")));
+
+        String result = process(batchProcessor, "<batch>"
+                                                + "<delete uri=\"a\"/>"
+                                                + "<delete uri=\"missing\"/>"
+                                                + "<delete uri=\"b\" ifMatch=\"wrong\"/>"
+                                                + "<delete uri=\"other\" ifMatch=\"wrong\"/>"
+                                                + "<delete uri=\"c\" ifMatch=\"" + eTag + "\"/>"
+                                                + "</batch>");
+
+        assertTrue(result.contains("op=\"delete\" uri=\"a\" status=\"200\""));
+        assertTrue(result.contains("op=\"delete\" uri=\"missing\" status=\"404\""));
+        assertTrue(result.contains("op=\"delete\" uri=\"b\" status=\"412\""));
+        assertTrue(result.contains("op=\"delete\" uri=\"other\" status=\"404\""));
+        assertTrue(result.contains("op=\"delete\" uri=\"c\" status=\"200\""));
+
+        assertNull(db.get("a"));
+        assertEquals(sinode("1"), db.get("b").getContent());
+        assertNull(db.get("c"));
+    }
+
+
+    private static String process(BatchProcessor batchProcessor, String batch) throws Exception
+    {
+        StringWriter out = new StringWriter();
+
+        batchProcessor.process(new StringReader(batch), out);
+
+        return out.toString();
+    }
+
+
+    // value e' il valore della proprieta' del nodo, o un contenuto xml completo se inizia con '<'
+    private static String put(String uri, String ifMatch, String value)
+    {
+        String content = value.startsWith("<") ? value : sinode(value);
+
+        return "<put uri=\"" + uri + "\"" + ((ifMatch != null) ? " ifMatch=\"" + ifMatch + "\"" : "") + ">"
+               + content.replace("<", "&lt;") + "</put>";
+    }
+
+
+    private static String sinode(String value)
+    {
+        return "<sinode><property name=\"p\">" + value + "</property></sinode>";
+    }
+
+}
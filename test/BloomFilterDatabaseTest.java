@@ -0,0 +1,157 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static storageInterface.TestResources.newResource;
+import static storageInterface.TestResources.uri;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link BloomFilterDatabase}, con il database scritto solo dal decoratore o anche da altre istanze
+ * (simulate scrivendo direttamente nel database).
+ *
+ *
+ */
+public class BloomFilterDatabaseTest
+{
+    private final static int entries = 1000;
+
+    private final static double falsePositiveRate = 0.01;
+
+    private final static int pageSize = 10;
+
+    private InMemoryDatabase backend;
+
+    private InstrumentedDatabase instrumented;
+
+
+    @Before
+    public void setUp()
+    {
+        backend = new InMemoryDatabase();
+        instrumented = new InstrumentedDatabase(backend, new Metrics());
+    }
+
+
+    @Test
+    public void missingResourcesAreAnsweredWithoutTheDatabase()
+    {
+        backend.put(newResource(1, "1"));
+
+        BloomFilterDatabase db = new BloomFilterDatabase(instrumented, entries, falsePositiveRate);
+
+        // prima della costruzione del filtro ogni operazione arriva al database
+        instrumented.resetRoundTrips();
+        assertNull(db.get(uri(2)));
+        assertEquals(1, instrumented.getRoundTrips());
+
+        db.rebuild(pageSize);
+
+        assertTrue(db.isReady());
+        assertTrue(db.isFresh());
+
+        instrumented.resetRoundTrips();
+        assertNull(db.get(uri(2)));
+        assertNull(db.getETag(uri(2)));
+        assertFalse(db.delete(uri(2)));
+        assertEquals(0, instrumented.getRoundTrips());
+        assertEquals(3, db.getNegativeCount());
+
+        assertNotNull(db.get(uri(1)));
+
+        // le risorse scritte dal decoratore entrano subito nel filtro, e ne escono dopo la cancellazione
+        db.putIfAbsent(newResource(2, "1"));
+        assertNotNull(db.get(uri(2)));
+        assertTrue(db.delete(uri(2)));
+        assertFalse(db.getFilter().mightContain(uri(2)));
+    }
+
+
+    @Test
+    public void resourcesOfOtherInstancesAreFoundAfterTheWindow() throws InterruptedException
+    {
+        BloomFilterDatabase db = new BloomFilterDatabase(instrumented, entries, falsePositiveRate, 100);
+
+        db.rebuild(pageSize);
+
+        backend.put(newResource(1, "1"));   // scritta da un'altra istanza
+
+        // nel filtro recente la risorsa non c'e'
+        assertNull(db.get(uri(1)));
+
+        Thread.sleep(150);
+
+        // il filtro e' troppo vecchio per le risposte negative: l'operazione arriva al database
+        assertFalse(db.isFresh());
+        assertNotNull(db.get(uri(1)));
+
+        db.rebuild(pageSize);
+
+        assertTrue(db.isFresh());
+        assertTrue(db.getFilter().mightContain(uri(1)));
+    }
+
+
+    @Test
+    public void sharedDatabaseDeletesDoNotDecrementTheFilter()
+    {
+        BloomFilterDatabase db = new BloomFilterDatabase(instrumented, entries, falsePositiveRate, 60000);
+
+        db.rebuild(pageSize);
+
+        db.putIfAbsent(newResource(1, "1"));
+
+        // la risorsa potrebbe essere stata creata da un'altra istanza (e non essere nel filtro): resta contata
+        assertTrue(db.delete(uri(1)));
+        assertTrue(db.getFilter().mightContain(uri(1)));
+
+        db.rebuild(pageSize);
+
+        assertFalse(db.getFilter().mightContain(uri(1)));
+    }
+
+
+    @Test
+    public void writesDuringARebuildReachTheNewFilter()
+    {
+        for(int i = 0; i < 5 * pageSize; i++)
+        {
+            backend.put(newResource(i, "1"));
+        }
+
+        final BloomFilterDatabase[] db = new BloomFilterDatabase[1];
+
+        // scrive una risorsa gia' elencata mentre il filtro viene costruito
+        IDatabase listingWriter = new InstrumentedDatabase(backend, new Metrics())
+        {
+            private boolean written;
+
+            @Override
+            public ResourceListing list(String prefix, String cursor, int limit)
+            {
+                ResourceListing listing = super.list(prefix, cursor, limit);
+
+                if(!written)
+                {
+                    written = true;
+                    db[0].put(newResource(-1, "1"));
+                }
+
+                return listing;
+            }
+        };
+
+        db[0] = new BloomFilterDatabase(listingWriter, entries, falsePositiveRate, 60000);
+
+        db[0].rebuild(pageSize);
+
+        assertTrue(db[0].getFilter().mightContain(uri(-1)));
+        assertEquals(5 * pageSize + 1, db[0].getFilter().getCount());
+    }
+
+}
@@ -0,0 +1,178 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static storageInterface.TestResources.content;
+import static storageInterface.TestResources.newResource;
+import static storageInterface.TestResources.uri;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link CachingDatabase}: scritture concorrenti ad una lettura (simulate dal database stesso, durante
+ * l'accesso del decoratore) ed eliminazione delle risorse per rispettare la dimensione massima e il TTL.
+ *
+ *
+ */
+public class CachingDatabaseTest
+{
+    private final static long maxBytes = 1024 * 1024;
+
+    private InMemoryDatabase backend;
+
+    private InstrumentedDatabase instrumented;
+
+
+    @Before
+    public void setUp()
+    {
+        backend = new InMemoryDatabase();
+        instrumented = new InstrumentedDatabase(backend, new Metrics());
+    }
+
+
+    @Test
+    public void readOverwrittenDuringTheAccessIsNotCached()
+    {
+        backend.put(newResource(1, "1"));
+
+        final CachingDatabase[] cache = new CachingDatabase[1];
+
+        // la versione 1 viene letta, poi la risorsa viene sovrascritta prima che la lettura finisca
+        IDatabase racingDatabase = new InstrumentedDatabase(backend, new Metrics())
+        {
+            private boolean written;
+
+            @Override
+            public IResource get(String resourceURI)
+            {
+                IResource resource = super.get(resourceURI);
+
+                if(!written)
+                {
+                    written = true;
+                    cache[0].put(newResource(1, "2"));
+                }
+
+                return resource;
+            }
+        };
+
+        cache[0] = new CachingDatabase(racingDatabase, maxBytes, -1);
+
+        assertEquals(content(1, "1"), cache[0].get(uri(1)).getContent());
+
+        // in cache c'e' la versione scritta, non quella letta
+        assertEquals(content(1, "2"), cache[0].get(uri(1)).getContent());
+        assertEquals(1, cache[0].getHitCount());
+    }
+
+
+    @Test
+    public void writeOvertakenByAnotherWriteIsNotCached()
+    {
+        final CachingDatabase[] cache = new CachingDatabase[1];
+
+        // una seconda scrittura si conclude mentre la prima e' in corso, ma la prima arriva al database per ultima
+        IDatabase racingDatabase = new InstrumentedDatabase(backend, new Metrics())
+        {
+            private boolean written;
+
+            @Override
+            public void put(IResource resource)
+            {
+                if(!written)
+                {
+                    written = true;
+                    cache[0].put(newResource(1, "2"));
+                }
+
+                super.put(resource);
+            }
+        };
+
+        cache[0] = new CachingDatabase(racingDatabase, maxBytes, -1);
+
+        cache[0].put(newResource(1, "1"));
+
+        // la cache non sa quale scrittura e' stata applicata per ultima: la risorsa viene riletta dal database
+        assertEquals(content(1, "1"), cache[0].get(uri(1)).getContent());
+        assertEquals(0, cache[0].getHitCount());
+        assertEquals(content(1, "1"), cache[0].get(uri(1)).getContent());
+        assertEquals(1, cache[0].getHitCount());
+    }
+
+
+    @Test
+    public void leastRecentlyUsedResourcesAreEvicted()
+    {
+        for(int i = 10; i < 100; i++)   // URI e contenuti della stessa lunghezza
+        {
+            backend.put(newResource(i, "1"));
+        }
+
+        CachingDatabase probe = new CachingDatabase(backend, maxBytes, -1);
+        probe.get(uri(10));
+
+        long entrySize = probe.sizeInBytes();
+
+        // ogni segmento contiene al piu' due risorse
+        CachingDatabase cache = new CachingDatabase(instrumented, 16 * 2 * entrySize, -1);
+
+        for(int i = 10; i < 100; i++)
+        {
+            assertEquals(content(i, "1"), cache.get(uri(i)).getContent());
+        }
+
+        assertTrue(cache.sizeInBytes() <= 16 * 2 * entrySize);
+        assertTrue(cache.getEvictionCount() >= 90 - 16 * 2);
+        assertEquals(90, cache.sizeInBytes() / entrySize + cache.getEvictionCount());
+
+        // l'ultima risorsa letta e' ancora in cache
+        instrumented.resetRoundTrips();
+        cache.get(uri(99));
+        assertEquals(0, instrumented.getRoundTrips());
+    }
+
+
+    @Test
+    public void resourcesLargerThanASegmentAreNotCached()
+    {
+        backend.put(newResource(1, "1"));
+
+        CachingDatabase cache = new CachingDatabase(instrumented, 16, -1);
+
+        cache.get(uri(1));
+        cache.get(uri(1));
+
+        assertEquals(2, instrumented.getRoundTrips());
+        assertEquals(0, cache.sizeInBytes());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+
+    @Test
+    public void expiredResourcesAreReadAgain() throws InterruptedException
+    {
+        backend.put(newResource(1, "1"));
+
+        CachingDatabase cache = new CachingDatabase(instrumented, maxBytes, 50);
+
+        cache.get(uri(1));
+
+        Thread.sleep(100);
+
+        // la risorsa e' cambiata senza passare dalla cache
+        backend.put(newResource(1, "2"));
+
+        assertEquals(content(1, "2"), cache.get(uri(1)).getContent());
+        assertEquals(1, cache.getEvictionCount());
+
+        cache.delete(uri(1));
+
+        assertNull(cache.get(uri(1)));
+    }
+
+}
@@ -0,0 +1,304 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link ChangeLog} e di {@link ChangeLogDatabase}.
+ *
+ *
+ */
+public class ChangeLogTest
+{
+    private final static int capacity = 8;
+
+    private ExecutorService executor;
+
+    private ChangeLog changeLog;
+
+
+    @Before
+    public void setUp()
+    {
+        executor = Executors.newSingleThreadExecutor();
+        changeLog = new ChangeLog(capacity);
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+        changeLog.close();
+    }
+
+
+    @Test
+    public void changesAreReturnedInSequenceOrder() throws InterruptedException
+    {
+        long since = changeLog.getLastSequence();
+
+        long first = changeLog.append("a", "e1");
+        long second = changeLog.append("b", "e2");
+        long third = changeLog.append("a", null);
+
+        assertEquals(since + 1, first);
+        assertEquals(third, changeLog.getLastSequence());
+
+        ChangeLog.Page page = changeLog.getChanges(since, "", 10, 0);
+
+        assertEquals(Arrays.asList("a", "b", "a"), uris(page));
+        assertEquals(Arrays.asList(first, second, third), sequences(page));
+        assertEquals("e1", page.getChanges().get(0).getETag());
+        assertNull(page.getChanges().get(2).getETag());   // cancellazione
+        assertEquals(third, page.getNextSequence());
+
+        assertTrue(changeLog.getChanges(page.getNextSequence(), "", 10, 0).getChanges().isEmpty());
+    }
+
+
+    @Test
+    public void pagesHonourLimitAndPrefix() throws InterruptedException
+    {
+        long since = changeLog.getLastSequence();
+
+        changeLog.append("docs/1", "e1");
+        changeLog.append("img/1", "e2");
+        changeLog.append("docs/2", "e3");
+        changeLog.append("img/2", "e4");
+        long last = changeLog.append("img/3", "e5");
+
+        ChangeLog.Page page = changeLog.getChanges(since, "docs/", 1, 0);
+
+        assertEquals(Arrays.asList("docs/1"), uris(page));
+
+        page = changeLog.getChanges(page.getNextSequence(), "docs/", 1, 0);
+
+        assertEquals(Arrays.asList("docs/2"), uris(page));
+
+        // le modifiche scartate dal prefisso fanno comunque avanzare la sequenza
+        page = changeLog.getChanges(page.getNextSequence(), "docs/", 10, 0);
+
+        assertTrue(page.getChanges().isEmpty());
+        assertEquals(last, page.getNextSequence());
+    }
+
+
+    @Test
+    public void overwrittenOrForeignSequencesAreRejected() throws InterruptedException
+    {
+        long since = changeLog.getLastSequence();
+
+        for(int i = 0; i < capacity; i++)
+        {
+            changeLog.append("r/" + i, "e" + i);
+        }
+
+        // il buffer contiene ancora tutte le modifiche successive a since
+        assertEquals(capacity, changeLog.getChanges(since, "", 100, 0).getChanges().size());
+
+        changeLog.append("r/" + capacity, "e" + capacity);
+
+        assertNull(changeLog.getChanges(since, "", 100, 0));
+        assertEquals(capacity, changeLog.getChanges(since + 1, "", 100, 0).getChanges().size());
+
+        assertNull(changeLog.getChanges(changeLog.getLastSequence() + 1, "", 100, 0));
+        assertNull(changeLog.getChanges(0, "", 100, 0));
+    }
+
+
+    @Test
+    public void waitingClientIsWokenByANewChange() throws Exception
+    {
+        final long since = changeLog.getLastSequence();
+
+        Future<ChangeLog.Page> waiting = executor.submit(new Callable<ChangeLog.Page>()
+        {
+            @Override
+            public ChangeLog.Page call() throws InterruptedException
+            {
+                return changeLog.getChanges(since, "docs/", 10, 60000);
+            }
+        });
+
+        Thread.sleep(50);
+
+        changeLog.append("img/1", "e1");   // non corrisponde al prefisso: il client continua ad attendere
+        Thread.sleep(50);
+
+        assertFalse(waiting.isDone());
+
+        changeLog.append("docs/1", "e2");
+
+        assertEquals(Arrays.asList("docs/1"), uris(waiting.get()));
+    }
+
+
+    @Test
+    public void waitEndsWithAnEmptyPageAtTimeout() throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+
+        ChangeLog.Page page = changeLog.getChanges(changeLog.getLastSequence(), "", 10, 100);
+
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertNotNull(page);
+        assertTrue(page.getChanges().isEmpty());
+        assertEquals(changeLog.getLastSequence(), page.getNextSequence());
+    }
+
+
+    @Test
+    public void subscriberIsCompletedByAMatchingChange() throws Exception
+    {
+        long since = changeLog.getLastSequence();
+
+        final AtomicInteger notified = new AtomicInteger();
+
+        AsyncResult<ChangeLog.Page> result = changeLog.getChangesAsync(since, "docs/", 10, 60000);
+
+        result.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                notified.incrementAndGet();
+            }
+        });
+
+        changeLog.append("img/1", "e1");   // non corrisponde al prefisso
+
+        assertFalse(result.isDone());
+
+        long last = changeLog.append("docs/1", "e2");
+
+        // completato dal thread di append(), senza altri thread in attesa
+        assertTrue(result.isDone());
+        assertEquals(1, notified.get());
+        assertEquals(Arrays.asList("docs/1"), uris(result.getResult()));
+        assertEquals(last, result.getResult().getNextSequence());
+    }
+
+
+    @Test
+    public void subscriberIsCompletedAtTimeout() throws Exception
+    {
+        AsyncResult<ChangeLog.Page> result = changeLog.getChangesAsync(changeLog.getLastSequence(), "", 10, 100);
+
+        assertFalse(result.isDone());
+
+        ChangeLog.Page page = result.get(5, TimeUnit.SECONDS);
+
+        assertTrue(page.getChanges().isEmpty());
+        assertEquals(changeLog.getLastSequence(), page.getNextSequence());
+    }
+
+
+    @Test
+    public void subscriberWithOverwrittenChangesIsCompletedWithNull()
+    {
+        AsyncResult<ChangeLog.Page> result = changeLog.getChangesAsync(changeLog.getLastSequence(), "docs/", 10, 60000);
+
+        for(int i = 0; i <= capacity; i++)
+        {
+            changeLog.append("img/" + i, "e" + i);
+        }
+
+        assertTrue(result.isDone());
+        assertNull(result.getResult());
+    }
+
+
+    @Test
+    public void closeCompletesWaitingSubscribers()
+    {
+        AsyncResult<ChangeLog.Page> result = changeLog.getChangesAsync(changeLog.getLastSequence(), "", 10, 60000);
+
+        changeLog.close();
+
+        assertTrue(result.isDone());
+        assertTrue(result.getResult().getChanges().isEmpty());
+
+        // dopo la chiusura non si attende
+        assertTrue(changeLog.getChangesAsync(changeLog.getLastSequence(), "", 10, 60000).isDone());
+    }
+
+
+    @Test
+    public void onlyAppliedWritesAreRecorded() throws InterruptedException
+    {
+        ChangeLogDatabase db = new ChangeLogDatabase(new InMemoryDatabase(), changeLog);
+
+        long since = changeLog.getLastSequence();
+
+        String eTag = db.putIfAbsent(new SINode("a", "<a v=\"1\"/>"));
+
+        assertNull(db.putIfAbsent(new SINode("a", "<a v=\"2\"/>")));
+        assertNull(db.putIfMatch(new SINode("a", "<a v=\"2\"/>"), "wrong"));
+        assertFalse(db.deleteIfMatch("a", "wrong"));
+        assertFalse(db.delete("missing"));
+
+        String newETag = db.putIfMatch(new SINode("a", "<a v=\"2\"/>"), eTag);
+
+        db.putAll(Arrays.asList(new SINode("b", "<b/>"), new SINode("c", "<c/>")));
+        db.deleteAll(Arrays.asList("a", "b", "missing"));
+
+        ChangeLog.Page page = changeLog.getChanges(since, "", 100, 0);
+
+        assertEquals(Arrays.asList("a", "a", "b", "c"), uris(page).subList(0, 4));
+        assertEquals(eTag, page.getChanges().get(0).getETag());
+        assertEquals(newETag, page.getChanges().get(1).getETag());
+
+        // le cancellazioni di deleteAll non hanno un ordine definito
+        List<String> deleted = uris(page).subList(4, uris(page).size());
+
+        assertEquals(2, deleted.size());
+        assertTrue(deleted.containsAll(Arrays.asList("a", "b")));
+        assertNull(page.getChanges().get(4).getETag());
+        assertNull(page.getChanges().get(5).getETag());
+    }
+
+
+    private static List<String> uris(ChangeLog.Page page)
+    {
+        List<String> uris = new ArrayList<String>();
+
+        for(ChangeLog.Change change : page.getChanges())
+        {
+            uris.add(change.getURI());
+        }
+
+        return uris;
+    }
+
+
+    private static List<Long> sequences(ChangeLog.Page page)
+    {
+        List<Long> sequences = new ArrayList<Long>();
+
+        for(ChangeLog.Change change : page.getChanges())
+        {
+            sequences.add(change.getSequence());
+        }
+
+        return sequences;
+    }
+
+}
@@ -0,0 +1,214 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Test di {@link CountingBloomFilter}.
+ *
+ *
+ */
+public class CountingBloomFilterTest
+{
+    private final static int entries = 10000;
+
+    private final static double falsePositiveRate = 0.01;
+
+
+    @Test
+    public void addedKeysAreAlwaysFound()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(entries, falsePositiveRate);
+
+        for(int i = 0; i < entries; i++)
+        {
+            filter.add(key(i));
+        }
+
+        for(int i = 0; i < entries; i++)
+        {
+            assertTrue(filter.mightContain(key(i)));
+        }
+
+        assertEquals(entries, filter.getCount());
+    }
+
+
+    @Test
+    public void falsePositivesStayNearTheConfiguredRate()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(entries, falsePositiveRate);
+
+        for(int i = 0; i < entries; i++)
+        {
+            filter.add(key(i));
+        }
+
+        int falsePositives = 0;
+
+        for(int i = entries; i < 2 * entries; i++)
+        {
+            if(filter.mightContain(key(i)))
+            {
+                falsePositives++;
+            }
+        }
+
+        // margine ampio: il tasso effettivo oscilla intorno a quello configurato
+        assertTrue("false positives: " + falsePositives, falsePositives < 3 * falsePositiveRate * entries);
+        assertEquals(falsePositiveRate, filter.getFalsePositiveRate(), falsePositiveRate / 2);
+    }
+
+
+    @Test
+    public void removedKeysAreNoLongerFound()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(entries, falsePositiveRate);
+
+        for(int i = 0; i < entries; i++)
+        {
+            filter.add(key(i));
+        }
+
+        for(int i = 0; i < entries; i += 2)
+        {
+            filter.remove(key(i));
+        }
+
+        assertEquals(entries / 2, filter.getCount());
+
+        for(int i = 1; i < entries; i += 2)   // la rimozione delle altre non causa falsi negativi
+        {
+            assertTrue(filter.mightContain(key(i)));
+        }
+
+        for(int i = 1; i < entries; i += 2)
+        {
+            filter.remove(key(i));
+        }
+
+        // tutti i contatori sono tornati a 0
+        for(int i = 0; i < 2 * entries; i++)
+        {
+            assertFalse(filter.mightContain(key(i)));
+        }
+
+        assertEquals(0, filter.getCount());
+        assertEquals(0, filter.getFalsePositiveRate(), 0);
+    }
+
+
+    @Test
+    public void saturatedCountersDoNotCauseFalseNegatives()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(entries, falsePositiveRate);
+
+        filter.add("other");
+
+        for(int i = 0; i < 100; i++)   // oltre il massimo di un contatore a 4 bit
+        {
+            filter.add("hot");
+        }
+
+        for(int i = 0; i < 100; i++)
+        {
+            filter.remove("hot");
+        }
+
+        assertTrue(filter.mightContain("other"));
+        assertTrue(filter.mightContain("hot"));   // i contatori al massimo non scendono: solo un falso positivo
+    }
+
+
+    @Test
+    public void concurrentAddsAreNotLost() throws Exception
+    {
+        final CountingBloomFilter filter = new CountingBloomFilter(entries, falsePositiveRate);
+
+        final int threadCount = 8;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+        try
+        {
+            List<Callable<Object>> adders = new ArrayList<Callable<Object>>();
+
+            for(int t = 0; t < threadCount; t++)
+            {
+                final int thread = t;
+
+                adders.add(new Callable<Object>()
+                {
+                    @Override
+                    public Object call()
+                    {
+                        for(int i = thread; i < entries; i += threadCount)
+                        {
+                            filter.add(key(i));
+                        }
+
+                        return null;
+                    }
+                });
+            }
+
+            for(Future<Object> result : executor.invokeAll(adders))
+            {
+                result.get();
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(entries, filter.getCount());
+
+        for(int i = 0; i < entries; i++)
+        {
+            filter.remove(key(i));
+        }
+
+        // ogni incremento e' stato applicato: dopo le rimozioni il filtro e' vuoto
+        for(int i = 0; i < entries; i++)
+        {
+            assertFalse(filter.mightContain(key(i)));
+        }
+    }
+
+
+    @Test
+    public void memoryGrowsWithExpectedEntries()
+    {
+        CountingBloomFilter small = new CountingBloomFilter(entries, falsePositiveRate);
+        CountingBloomFilter large = new CountingBloomFilter(10 * entries, falsePositiveRate);
+
+        // circa 9,6 contatori da 4 bit per stringa con l'1% di falsi positivi
+        assertEquals(entries * 9.6 / 2, small.sizeInBytes(), entries * 0.1);
+        assertEquals(10 * small.sizeInBytes(), large.sizeInBytes(), small.sizeInBytes() / 100);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidFalsePositiveRateIsRejected()
+    {
+        new CountingBloomFilter(entries, 1);
+    }
+
+
+    private static String key(int i)
+    {
+        return "r/" + i;
+    }
+
+}
@@ -0,0 +1,413 @@
+package storageInterface;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Test di {@link DatastoreDatabase} sul Datastore locale in memoria: scritture multiple e condizionali,
+ * contenuti suddivisi in blocchi, letture parziali.
+ *
+ *
+ */
+public class DatastoreDatabaseTest
+{
+    private final static String chunkEntityKind = "SInodeChunk";
+
+    // query fortemente consistenti: i conteggi delle entity non dipendono dai ritardi di replica simulati
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+    private CountingDelegate calls;
+
+    private DatastoreDatabase db;
+
+
+    @Before
+    public void setUp()
+    {
+        helper.setUp();
+
+        calls = new CountingDelegate(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(calls);
+
+        db = new DatastoreDatabase();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        helper.tearDown();
+    }
+
+
+    @Test
+    public void putAllWritesEachGroupOfResourcesWithOneCall()
+    {
+        List<IResource> resources = new ArrayList<IResource>();
+
+        for(int i = 0; i < 30; i++)
+        {
+            resources.add(new SINode("r/" + i, "<r n=\"" + i + "\"/>"));
+        }
+
+        calls.reset();
+
+        db.putAll(resources);
+
+        // 30 risorse: due transazioni (25 + 5), ciascuna con una lettura e una scrittura multipla
+        assertEquals(2, calls.get("Get"));
+        assertEquals(2, calls.get("Put"));
+        assertEquals(2, calls.get("Commit"));
+
+        Map<String, IResource> found = db.getAll(Arrays.asList("r/0", "r/24", "r/25", "r/29"));
+
+        assertEquals(4, found.size());
+        assertEquals("<r n=\"29\"/>", found.get("r/29").getContent());
+    }
+
+
+    @Test
+    public void writeAllEvaluatesConditionsInOrder()
+    {
+        String eTagB = db.putIfAbsent(new SINode("b", "<b v=\"1\"/>"));
+
+        SINode a1 = new SINode("a", "<a v=\"1\"/>");
+        SINode a2 = new SINode("a", "<a v=\"2\"/>");
+
+        List<ConditionalWrite> writes = Arrays.asList(
+            ConditionalWrite.putIfAbsent(a1),
+            ConditionalWrite.putIfAbsent(new SINode("a", "<a v=\"x\"/>")),   // a esiste gia': la prima e' applicata
+            ConditionalWrite.putIfMatch(a2, a1.getETag()),
+            ConditionalWrite.putIfMatch(new SINode("b", "<b v=\"2\"/>"), "wrong"),
+            ConditionalWrite.deleteIfMatch("b", eTagB),
+            ConditionalWrite.deleteIfMatch("missing", null));
+
+        db.writeAll(writes);
+
+        assertEquals(Arrays.asList(true, false, true, false, true, false), applied(writes));
+        assertEquals(a1.getETag(), writes.get(0).getResult());
+        assertNull(writes.get(1).getResult());
+        assertEquals(Boolean.TRUE, writes.get(4).getResult());
+
+        assertEquals("<a v=\"2\"/>", db.get("a").getContent());
+        assertNull(db.get("b"));
+    }
+
+
+    @Test
+    public void deleteAllReturnsTheDeletedResourcesAndTheirChunks()
+    {
+        db.putAll(Arrays.asList(new SINode("small", "<s/>"), new SINode("large", largeContent(3 * 1024 * 1024))));
+
+        assertTrue(countChunks() > 1);
+
+        calls.reset();
+
+        assertEquals(new HashSet<String>(Arrays.asList("small", "large")),
+                     db.deleteAll(Arrays.asList("small", "large", "missing", "small")));
+
+        assertEquals(1, calls.get("Commit"));   // una sola transazione per tutte le risorse
+        assertNull(db.get("small"));
+        assertNull(db.get("large"));
+        assertEquals(0, countChunks());
+    }
+
+
+    @Test
+    public void supersededAndRejectedWritesLeaveNoChunks()
+    {
+        String large = largeContent(3 * 1024 * 1024);
+
+        SINode first = new SINode("large", large);
+
+        db.writeAll(Arrays.asList(
+            ConditionalWrite.put(first),
+            ConditionalWrite.put(new SINode("large", large + "<more/>")),   // sostituisce la precedente
+            ConditionalWrite.putIfMatch(new SINode("other", large), "wrong")));   // non applicata
+
+        // restano solo i blocchi della seconda scrittura
+        IResource stored = db.get("large");
+
+        assertNotNull(stored);
+        assertEquals(large + "<more/>", stored.getContent());
+        assertNull(db.get("other"));
+        assertEquals((large.length() + 7 + 512 * 1024 - 1) / (512 * 1024), countChunks());
+    }
+
+
+    @Test
+    public void deduplicatingDatabaseWritesOneResourceAtATime()
+    {
+        db = new DatastoreDatabase(true);
+
+        db.putAll(Arrays.asList(new SINode("a", "<same/>"), new SINode("b", "<same/>")));
+
+        List<ConditionalWrite> writes = Arrays.asList(
+            ConditionalWrite.putIfAbsent(new SINode("a", "<other/>")),
+            ConditionalWrite.deleteIfMatch("b", null));
+
+        db.writeAll(writes);
+
+        assertEquals(Arrays.asList(false, true), applied(writes));
+        assertEquals("<same/>", db.get("a").getContent());
+        assertNull(db.get("b"));
+        assertFalse(db.deleteAll(Arrays.asList("a")).isEmpty());
+    }
+
+
+    @Test
+    public void largeContentIsSplitIntoChunks() throws UnsupportedEncodingException
+    {
+        String large = largeContent(3 * 1024 * 1024);
+
+        SINode resource = new SINode("large", large);
+
+        db.put(resource);
+
+        assertEquals(6, countChunks());   // blocchi da 512 KB
+
+        IResource stored = db.get("large");
+
+        assertEquals(resource.getETag(), stored.getETag());
+        assertEquals(resource.getETag(), db.getETag("large"));
+        assertArrayEquals(large.getBytes("UTF-8"), stored.getContentBytes());
+
+        // sovrascrivere la risorsa cancella i blocchi della versione precedente
+        db.put(new SINode("large", "<small/>"));
+
+        assertEquals(0, countChunks());
+        assertEquals("<small/>", db.get("large").getContent());
+    }
+
+
+    @Test
+    public void chunksAreReadOnlyWhenTheContentIsUsed()
+    {
+        String large = largeContent(3 * 1024 * 1024);
+
+        db.put(new SINode("large", large));
+
+        calls.reset();
+
+        IResource stored = db.get("large");
+
+        assertEquals(new SINode("large", large).getETag(), stored.getETag());
+        assertEquals(1, calls.get("Get"));   // solo la entity della risorsa
+
+        assertEquals(large, stored.getContent());
+        assertTrue(calls.get("Get") > 1);
+    }
+
+
+    @Test
+    public void rangeReadsOnlyTheNeededChunks() throws UnsupportedEncodingException
+    {
+        String large = largeContent(5 * 1024 * 1024);
+
+        db.put(new SINode("large", large));
+
+        IResource stored = db.get("large");
+
+        // senza il primo blocco il contenuto intero non e' piu' leggibile, le porzioni negli altri blocchi si'
+        DatastoreServiceFactory.getDatastoreService().delete(chunkKey(0));
+
+        int offset = 512 * 1024 - 10;   // a cavallo tra il secondo e il terzo blocco
+
+        ResourceRange range = db.getRange("large", offset + 512 * 1024, 20);
+
+        assertEquals(large.length(), range.getTotalLength());
+        assertEquals(stored.getETag(), range.getETag());
+        assertArrayEquals(large.substring(offset + 512 * 1024, offset + 512 * 1024 + 20).getBytes("UTF-8"), range.getBytes());
+
+        try
+        {
+            stored.getContent();
+            fail("content read without its first chunk");
+        }
+        catch(ConcurrentModificationException e)
+        {
+            // atteso
+        }
+    }
+
+
+    @Test
+    public void rangeOfInlineContent() throws UnsupportedEncodingException
+    {
+        db.put(new SINode("small", "<s>0123456789</s>"));
+
+        ResourceRange range = db.getRange("small", 3, 4);
+
+        assertArrayEquals("0123".getBytes("UTF-8"), range.getBytes());
+        assertEquals(17, range.getTotalLength());
+        assertNull(db.getRange("missing", 0, 4));
+    }
+
+
+    private static List<Boolean> applied(List<ConditionalWrite> writes)
+    {
+        List<Boolean> applied = new ArrayList<Boolean>();
+
+        for(ConditionalWrite write : writes)
+        {
+            assertTrue(write.isExecuted());
+            applied.add(write.isApplied());
+        }
+
+        return applied;
+    }
+
+
+    private static int countChunks()
+    {
+        return DatastoreServiceFactory.getDatastoreService().prepare(new Query(chunkEntityKind).setKeysOnly())
+               .countEntities(FetchOptions.Builder.withDefaults());
+    }
+
+
+    private static Key chunkKey(int index)
+    {
+        for(Entity chunk : DatastoreServiceFactory.getDatastoreService().prepare(new Query(chunkEntityKind).setKeysOnly())
+                           .asIterable())
+        {
+            if(chunk.getKey().getName().endsWith("-" + index))
+            {
+                return chunk.getKey();
+            }
+        }
+
+        throw new AssertionError("no chunk " + index);
+    }
+
+
+    // contenuto poco comprimibile: anche compresso supera il limite di una entity, quindi viene suddiviso in blocchi
+    private static String largeContent(int length)
+    {
+        Random random = new Random(length);
+
+        StringBuilder content = new StringBuilder(length);
+
+        content.append("<l>");
+
+        while(content.length() < length - 4)
+        {
+            content.append((char) ('a' + random.nextInt(26)));
+        }
+
+        return content.append("</l>").toString();
+    }
+
+
+    // conta le chiamate al Datastore (per metodo) prima di passarle al Datastore locale
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static class CountingDelegate implements ApiProxy.Delegate
+    {
+        private final ApiProxy.Delegate delegate;
+
+        private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+
+        CountingDelegate(ApiProxy.Delegate delegate)
+        {
+            this.delegate = delegate;
+        }
+
+
+        int get(String method)
+        {
+            AtomicInteger count = counts.get(method);
+
+            return (count != null) ? count.get() : 0;
+        }
+
+
+        void reset()
+        {
+            counts.clear();
+        }
+
+
+        private void count(String service, String method)
+        {
+            if("datastore_v3".equals(service))
+            {
+                counts.putIfAbsent(method, new AtomicInteger());
+                counts.get(method).incrementAndGet();
+            }
+        }
+
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String service, String method, byte[] request)
+            throws ApiProxy.ApiProxyException
+        {
+            count(service, method);
+
+            return delegate.makeSyncCall(environment, service, method, request);
+        }
+
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String service, String method, byte[] request,
+                                            ApiProxy.ApiConfig apiConfig)
+        {
+            count(service, method);
+
+            return delegate.makeAsyncCall(environment, service, method, request, apiConfig);
+        }
+
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record)
+        {
+            delegate.log(environment, record);
+        }
+
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment)
+        {
+            delegate.flushLogs(environment);
+        }
+
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment)
+        {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+
+}
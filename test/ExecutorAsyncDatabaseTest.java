@@ -0,0 +1,217 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static storageInterface.TestResources.content;
+import static storageInterface.TestResources.newResource;
+import static storageInterface.TestResources.uri;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link ExecutorAsyncDatabase} e {@link AsyncResult}: listener, eccezioni delle operazioni ed esecuzione
+ * sul thread chiamante in assenza di executor.
+ *
+ *
+ */
+public class ExecutorAsyncDatabaseTest
+{
+    private InMemoryDatabase backend;
+
+
+    @Before
+    public void setUp()
+    {
+        backend = new InMemoryDatabase();
+    }
+
+
+    @Test
+    public void listenersRunWhenTheOperationEnds() throws InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        AsyncResult<String> result = new AsyncResult<String>(new Callable<String>()
+        {
+            @Override
+            public String call() throws InterruptedException
+            {
+                release.await();
+                return "done";
+            }
+        });
+
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch listened = new CountDownLatch(2);
+
+        result.addListener(newListener(calls, "first", listened));
+        result.addListener(newListener(calls, "second", listened));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.execute(result);
+        executor.shutdown();
+
+        assertFalse(listened.await(50, TimeUnit.MILLISECONDS));
+        assertTrue(calls.isEmpty());
+
+        release.countDown();
+
+        assertTrue(listened.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "second"), calls);
+        assertEquals("done", result.getResult());
+
+        // ad operazione terminata il listener viene eseguito subito, sul thread chiamante
+        final Thread caller = Thread.currentThread();
+        final Thread[] listenerThread = new Thread[1];
+
+        result.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listenerThread[0] = Thread.currentThread();
+            }
+        });
+
+        assertSame(caller, listenerThread[0]);
+    }
+
+
+    @Test
+    public void runtimeExceptionsAreRethrownUnwrapped()
+    {
+        final InsufficientStorageException failure = new InsufficientStorageException("full");
+
+        AsyncResult<Void> result = new AsyncResult<Void>(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                throw failure;
+            }
+        });
+
+        result.run();
+
+        try
+        {
+            result.getResult();
+            fail();
+        }
+        catch(InsufficientStorageException e)
+        {
+            assertSame(failure, e);
+        }
+    }
+
+
+    @Test
+    public void checkedExceptionsBecomeDatabaseExceptions()
+    {
+        final IOException failure = new IOException("unreachable");
+
+        AsyncResult<Void> result = new AsyncResult<Void>(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                throw failure;
+            }
+        });
+
+        result.run();
+
+        try
+        {
+            result.getResult();
+            fail();
+        }
+        catch(DatabaseException e)
+        {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+
+    @Test
+    public void withoutExecutorOperationsRunOnTheCallerThread()
+    {
+        final Thread caller = Thread.currentThread();
+        final Thread[] operationThread = new Thread[1];
+
+        IDatabase recordingDatabase = new InstrumentedDatabase(backend, new Metrics())
+        {
+            @Override
+            public String putIfAbsent(IResource resource)
+            {
+                operationThread[0] = Thread.currentThread();
+                return super.putIfAbsent(resource);
+            }
+        };
+
+        ExecutorAsyncDatabase asyncDb = new ExecutorAsyncDatabase(recordingDatabase, null);
+
+        AsyncResult<String> created = asyncDb.putIfAbsent(newResource(1, "1"));
+
+        // il risultato e' gia' disponibile
+        assertTrue(created.isDone());
+        assertSame(caller, operationThread[0]);
+        assertEquals(backend.getETag(uri(1)), created.getResult());
+
+        assertNull(asyncDb.putIfAbsent(newResource(1, "2")).getResult());
+        assertEquals(content(1, "1"), asyncDb.get(uri(1)).getResult().getContent());
+    }
+
+
+    @Test
+    public void operationsRunOnTheExecutor() throws InterruptedException
+    {
+        ExecutorAsyncDatabase asyncDb = new ExecutorAsyncDatabase(backend, Executors.newFixedThreadPool(2));
+
+        try
+        {
+            asyncDb.put(newResource(1, "1")).getResult();
+
+            String eTag = backend.getETag(uri(1));
+
+            assertFalse(asyncDb.deleteIfMatch(uri(1), "wrong").getResult());
+            assertTrue(asyncDb.deleteIfMatch(uri(1), eTag).getResult());
+            assertNull(asyncDb.get(uri(1)).getResult());
+        }
+        finally
+        {
+            asyncDb.shutdown(1000);
+        }
+    }
+
+
+    private static Runnable newListener(final List<String> calls, final String name, final CountDownLatch listened)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                calls.add(name);
+                listened.countDown();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,560 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static storageInterface.TestResources.content;
+import static storageInterface.TestResources.newResource;
+import static storageInterface.TestResources.uri;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link GroupCommitDatabase} con un database in memoria.
+ *
+ *
+ */
+public class GroupCommitDatabaseTest
+{
+    private final static int threadCount = 8;
+
+    // attesa (us) perche' un blocco si riempia: abbondante, cosi' che le scritture concorrenti finiscano nello stesso blocco
+    private final static long longDelay = 1000000;
+
+    private final static String rejectedURI = "rejected";
+
+    private ExecutorService executor;
+
+    private CountingDatabase backend;
+
+    private GroupCommitDatabase db;
+
+
+    @Before
+    public void setUp()
+    {
+        executor = Executors.newFixedThreadPool(threadCount);
+
+        backend = new CountingDatabase();
+    }
+
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        executor.shutdownNow();
+
+        if(db != null)
+        {
+            db.shutdown();
+        }
+    }
+
+
+    @Test
+    public void concurrentWritesShareOneBatch() throws Exception
+    {
+        db = new GroupCommitDatabase(backend, threadCount, longDelay, false);
+
+        List<Callable<Object>> writes = new ArrayList<Callable<Object>>();
+
+        for(int i = 0; i < threadCount; i++)
+        {
+            final int n = i;
+
+            writes.add(new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    db.put(newResource(n, "v1"));
+                    return null;
+                }
+            });
+        }
+
+        getAll(executor.invokeAll(writes));
+
+        // il blocco si riempie prima della fine dell'attesa
+        assertEquals(threadCount, db.getWriteCount());
+        assertEquals(1, db.getBatchCount());
+
+        for(int i = 0; i < threadCount; i++)   // ogni scrittura e' persistente al ritorno del chiamante
+        {
+            assertEquals(content(i, "v1"), backend.get(uri(i)).getContent());
+        }
+    }
+
+
+    @Test
+    public void exclusiveConditionalWritesStayAtomic() throws Exception
+    {
+        db = new GroupCommitDatabase(backend, 64, 0, true);
+
+        db.put(new SINode("counter", "0"));
+
+        final int increments = 50;
+
+        List<Callable<Object>> writers = new ArrayList<Callable<Object>>();
+
+        for(int t = 0; t < threadCount; t++)
+        {
+            writers.add(new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    for(int i = 0; i < increments; i++)
+                    {
+                        while(true)
+                        {
+                            IResource current = db.get("counter");
+
+                            IResource next = new SINode("counter", String.valueOf(Integer.parseInt(current.getContent()) + 1));
+
+                            if(db.putIfMatch(next, current.getETag()) != null)
+                            {
+                                break;
+                            }
+                        }
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        getAll(executor.invokeAll(writers));
+
+        // nessun incremento perso: i controlli degli ETag nello stesso blocco vedono le scritture precedenti
+        assertEquals(String.valueOf(threadCount * increments), backend.get("counter").getContent());
+    }
+
+
+    @Test
+    public void onlyOnePutIfAbsentWins() throws Exception
+    {
+        db = new GroupCommitDatabase(backend, threadCount, longDelay, true);
+
+        List<Callable<String>> writes = new ArrayList<Callable<String>>();
+
+        for(int i = 0; i < threadCount; i++)
+        {
+            final int n = i;
+
+            writes.add(new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    return db.putIfAbsent(new SINode("shared", "<w n=\"" + n + "\"/>"));
+                }
+            });
+        }
+
+        String winner = null;
+
+        for(Future<String> result : executor.invokeAll(writes))
+        {
+            if(result.get() != null)
+            {
+                assertNull("more than one putIfAbsent succeeded", winner);
+                winner = result.get();
+            }
+        }
+
+        assertNotNull(winner);
+        assertEquals(winner, backend.getETag("shared"));
+    }
+
+
+    @Test
+    public void conditionalWritesInTheSameBatchSeeEachOther()
+    {
+        db = new GroupCommitDatabase(backend, 64, 0, true);
+
+        String eTag = db.putIfAbsent(newResource(1, "v1"));
+
+        assertNotNull(eTag);
+        assertNull(db.putIfMatch(newResource(1, "v2"), "wrong"));
+        assertFalse(db.deleteIfMatch(uri(1), "wrong"));
+        assertTrue(db.deleteIfMatch(uri(1), eTag));
+        assertNull(backend.get(uri(1)));
+
+        db.putAll(Arrays.asList(newResource(1, "v1"), newResource(2, "v1"), newResource(1, "v2")));
+
+        // piu' scritture dello stesso URI nello stesso blocco: vince l'ultima
+        assertEquals(content(1, "v2"), backend.get(uri(1)).getContent());
+
+        assertEquals(2, db.deleteAll(Arrays.asList(uri(1), uri(2), uri(3))).size());
+        assertEquals(0, backend.size());
+    }
+
+
+    @Test
+    public void concurrentConditionalWritesReachTheBackendAsOnePutAll() throws Exception
+    {
+        db = new GroupCommitDatabase(backend, threadCount, longDelay, true);
+
+        backend.put(newResource(0, "v1"));
+
+        final String eTag = backend.getETag(uri(0));
+
+        backend.resetCounts();
+
+        // come doPut: putIfMatch per aggiornare una risorsa esistente, putIfAbsent per crearne una
+        List<Future<String>> results = executor.invokeAll(conditionalPuts(eTag));
+
+        for(Future<String> result : results)
+        {
+            assertNotNull(result.get());
+        }
+
+        // una lettura per le condizioni e una scrittura per tutto il blocco
+        assertEquals(1, backend.getAllCount.get());
+        assertEquals(1, backend.putAllCount.get());
+        assertEquals(0, backend.singleWriteCount.get());
+        assertEquals(1, db.getBatchCount());
+        assertEquals(content(0, "v2"), backend.get(uri(0)).getContent());
+    }
+
+
+    @Test
+    public void batchWriteDatabaseReceivesOneWriteAll() throws Exception
+    {
+        BatchWriteDatabase batchBackend = new BatchWriteDatabase();
+
+        batchBackend.put(newResource(0, "v1"));
+
+        String eTag = batchBackend.getETag(uri(0));
+
+        batchBackend.resetCounts();
+
+        // anche se non e' esclusivo: le condizioni vengono controllate dal database, atomicamente con le scritture
+        db = new GroupCommitDatabase(batchBackend, threadCount, longDelay, false);
+
+        List<Future<String>> results = executor.invokeAll(conditionalPuts(eTag));
+
+        for(Future<String> result : results)
+        {
+            assertNotNull(result.get());
+        }
+
+        assertEquals(1, batchBackend.writeAllCount.get());
+        assertEquals(0, batchBackend.singleWriteCount.get());
+        assertEquals(threadCount, batchBackend.size());
+
+        // le scritture condizionali non applicate restituiscono il loro esito
+        assertNull(db.putIfAbsent(newResource(0, "v3")));
+        assertFalse(db.deleteIfMatch(uri(0), "wrong"));
+        assertTrue(db.deleteIfMatch(uri(0), batchBackend.getETag(uri(0))));
+        assertEquals(4, batchBackend.writeAllCount.get());
+    }
+
+
+    @Test
+    public void failedBatchWriteIsRetriedOneWriteAtATime() throws Exception
+    {
+        BatchWriteDatabase batchBackend = new BatchWriteDatabase();
+
+        db = new GroupCommitDatabase(batchBackend, threadCount, longDelay, false);
+
+        List<Callable<String>> writes = new ArrayList<Callable<String>>();
+
+        for(int i = 0; i < threadCount; i++)
+        {
+            final IResource resource = i == threadCount / 2 ? new SINode(rejectedURI, "<r/>") : newResource(i, "v1");
+
+            writes.add(new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    return db.putIfAbsent(resource);
+                }
+            });
+        }
+
+        int failures = 0;
+
+        for(Future<String> result : executor.invokeAll(writes))
+        {
+            try
+            {
+                assertNotNull(result.get());
+            }
+            catch(ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof InsufficientStorageException);
+                failures++;
+            }
+        }
+
+        // writeAll si ferma alla scrittura rifiutata: le precedenti (nell'ordine di arrivo) mantengono il loro esito,
+        // la rifiutata e le successive vengono rieseguite una alla volta
+        assertEquals(1, failures);
+        assertEquals(1, batchBackend.writeAllCount.get());
+        assertTrue(batchBackend.singleWriteCount.get() >= 1);
+        assertTrue(batchBackend.singleWriteCount.get() <= threadCount);
+        assertEquals(0, db.getBatchCount());
+        assertEquals(threadCount - 1, batchBackend.size());
+    }
+
+
+    @Test
+    public void failedWriteDoesNotFailTheRestOfTheBatch() throws Exception
+    {
+        db = new GroupCommitDatabase(backend, threadCount, longDelay, false);
+
+        List<Callable<Object>> writes = new ArrayList<Callable<Object>>();
+
+        for(int i = 0; i < threadCount; i++)
+        {
+            final IResource resource = i == 0 ? new SINode(rejectedURI, "<r/>") : newResource(i, "v1");
+
+            writes.add(new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    db.put(resource);
+                    return null;
+                }
+            });
+        }
+
+        List<Future<Object>> results = executor.invokeAll(writes);
+
+        try
+        {
+            results.get(0).get();
+            fail("the rejected write succeeded");
+        }
+        catch(ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof InsufficientStorageException);
+        }
+
+        getAll(results.subList(1, results.size()));
+
+        assertNull(backend.get(rejectedURI));
+
+        for(int i = 1; i < threadCount; i++)
+        {
+            assertEquals(content(i, "v1"), backend.get(uri(i)).getContent());
+        }
+    }
+
+
+    @Test
+    public void writesAfterShutdownAreExecutedDirectly() throws InterruptedException
+    {
+        db = new GroupCommitDatabase(backend, 64, 0, true);
+
+        db.put(newResource(1, "v1"));
+        db.shutdown();
+
+        long batches = db.getBatchCount();
+
+        db.put(newResource(2, "v1"));
+        assertNotNull(db.putIfMatch(newResource(1, "v2"), backend.getETag(uri(1))));
+
+        assertEquals(batches, db.getBatchCount());
+        assertEquals(content(1, "v2"), backend.get(uri(1)).getContent());
+        assertEquals(content(2, "v1"), backend.get(uri(2)).getContent());
+    }
+
+
+    // scritture come quelle di doPut, una per thread: putIfMatch di uri(0) (che esiste con eTag), putIfAbsent delle altre
+    private List<Callable<String>> conditionalPuts(final String eTag)
+    {
+        List<Callable<String>> writes = new ArrayList<Callable<String>>();
+
+        for(int i = 0; i < threadCount; i++)
+        {
+            final int n = i;
+
+            writes.add(new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    return n == 0 ? db.putIfMatch(newResource(0, "v2"), eTag) : db.putIfAbsent(newResource(n, "v1"));
+                }
+            });
+        }
+
+        return writes;
+    }
+
+
+    // attende i risultati, rilanciando il primo errore
+    private static void getAll(List<? extends Future<?>> results) throws Exception
+    {
+        for(Future<?> result : results)
+        {
+            result.get();
+        }
+    }
+
+
+    // conta gli accessi, e rifiuta le scritture di rejectedURI (anche all'interno di un blocco)
+    private static class CountingDatabase extends InMemoryDatabase
+    {
+        final AtomicInteger getAllCount = new AtomicInteger();
+
+        final AtomicInteger putAllCount = new AtomicInteger();
+
+        // put, putIfAbsent, putIfMatch, deleteIfMatch (non eseguite da putAll o writeAll)
+        final AtomicInteger singleWriteCount = new AtomicInteger();
+
+        // true mentre putAll (o writeAll) esegue le scritture del blocco
+        volatile boolean batching;
+
+
+        void resetCounts()
+        {
+            getAllCount.set(0);
+            putAllCount.set(0);
+            singleWriteCount.set(0);
+        }
+
+
+        @Override
+        public void put(IResource siNode)
+        {
+            countSingleWrite();
+            check(siNode);
+            super.put(siNode);
+        }
+
+
+        @Override
+        public String putIfAbsent(IResource siNode)
+        {
+            countSingleWrite();
+            check(siNode);
+            return super.putIfAbsent(siNode);
+        }
+
+
+        @Override
+        public String putIfMatch(IResource siNode, String expectedETag)
+        {
+            countSingleWrite();
+            check(siNode);
+            return super.putIfMatch(siNode, expectedETag);
+        }
+
+
+        @Override
+        public boolean deleteIfMatch(String siNodeURI, String expectedETag)
+        {
+            countSingleWrite();
+            return super.deleteIfMatch(siNodeURI, expectedETag);
+        }
+
+
+        @Override
+        public Map<String, IResource> getAll(Collection<String> siNodeURIs)
+        {
+            getAllCount.incrementAndGet();
+            return super.getAll(siNodeURIs);
+        }
+
+
+        @Override
+        public void putAll(Collection<? extends IResource> siNodes)
+        {
+            putAllCount.incrementAndGet();
+
+            for(IResource siNode : siNodes)
+            {
+                check(siNode);
+            }
+
+            batching = true;
+
+            try
+            {
+                super.putAll(siNodes);
+            }
+            finally
+            {
+                batching = false;
+            }
+        }
+
+
+        private void countSingleWrite()
+        {
+            if(!batching)
+            {
+                singleWriteCount.incrementAndGet();
+            }
+        }
+
+
+        private static void check(IResource siNode)
+        {
+            if(siNode.getURI().equals(rejectedURI))
+            {
+                throw new InsufficientStorageException("Rejected " + rejectedURI);
+            }
+        }
+    }
+
+
+    // esegue i blocchi una scrittura alla volta, fermandosi alla prima che fallisce
+    private static class BatchWriteDatabase extends CountingDatabase implements IBatchWriteDatabase
+    {
+        final AtomicInteger writeAllCount = new AtomicInteger();
+
+
+        @Override
+        void resetCounts()
+        {
+            super.resetCounts();
+            writeAllCount.set(0);
+        }
+
+
+        @Override
+        public synchronized void writeAll(List<ConditionalWrite> writes)
+        {
+            writeAllCount.incrementAndGet();
+
+            batching = true;
+
+            try
+            {
+                for(ConditionalWrite write : writes)
+                {
+                    write.executeOn(this);
+                }
+            }
+            finally
+            {
+                batching = false;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static storageInterface.TestResources.content;
+import static storageInterface.TestResources.newResource;
+import static storageInterface.TestResources.uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test di {@link InMemoryDatabase}: operazioni condizionali, elenco per prefisso, limiti di dimensione e snapshot.
+ *
+ *
+ */
+public class InMemoryDatabaseTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void conditionalWritesCompareTheETag()
+    {
+        InMemoryDatabase db = new InMemoryDatabase();
+
+        String eTag = db.putIfAbsent(newResource(1, "1"));
+
+        assertNotNull(eTag);
+        assertNull(db.putIfAbsent(newResource(1, "2")));
+        assertEquals(content(1, "1"), db.get(uri(1)).getContent());
+
+        assertNull(db.putIfMatch(newResource(1, "2"), "wrong"));
+        assertNull(db.putIfMatch(newResource(2, "1"), eTag));   // la risorsa non esiste
+
+        String newETag = db.putIfMatch(newResource(1, "2"), eTag);
+
+        assertNotNull(newETag);
+        assertEquals(newETag, db.getETag(uri(1)));
+
+        assertFalse(db.deleteIfMatch(uri(1), eTag));
+        assertTrue(db.deleteIfMatch(uri(1), newETag));
+        assertNull(db.get(uri(1)));
+        assertEquals(0, db.size());
+        assertEquals(0, db.sizeInBytes());
+    }
+
+
+    @Test
+    public void listingIsPagedWithinThePrefix()
+    {
+        InMemoryDatabase db = new InMemoryDatabase();
+
+        for(int i = 0; i < 5; i++)
+        {
+            db.put(newResource(i, "1"));
+        }
+
+        db.put(new SINode("q", "<q/>"));
+        db.put(new SINode("s", "<s/>"));
+
+        List<String> listed = new ArrayList<String>();
+        String cursor = null;
+
+        do
+        {
+            ResourceListing listing = db.list("r/", cursor, 2);
+
+            assertTrue(listing.getETags().size() <= 2);
+
+            listed.addAll(listing.getETags().keySet());
+            cursor = listing.getNextCursor();
+        }
+        while(cursor != null);
+
+        assertEquals(Arrays.asList(uri(0), uri(1), uri(2), uri(3), uri(4)), listed);
+        assertEquals(db.getETag(uri(0)), db.list("r/", null, 1).getETags().get(uri(0)));
+    }
+
+
+    @Test
+    public void limitsAreEnforced()
+    {
+        InMemoryDatabase db = new InMemoryDatabase(2, -1);
+
+        db.put(newResource(1, "1"));
+        db.put(newResource(2, "1"));
+        db.put(newResource(2, "2"));   // una sovrascrittura non aumenta il numero di risorse
+
+        try
+        {
+            db.put(newResource(3, "1"));
+            fail();
+        }
+        catch(InsufficientStorageException e)
+        {
+            // atteso
+        }
+
+        assertNull(db.putIfAbsent(newResource(1, "2")));
+        assertEquals(2, db.size());
+
+        assertTrue(db.delete(uri(1)));
+        assertNotNull(db.putIfAbsent(newResource(3, "1")));
+
+        long bytes = db.sizeInBytes();
+
+        InMemoryDatabase small = new InMemoryDatabase(-1, bytes / 2);
+
+        small.put(newResource(1, "1"));
+
+        try
+        {
+            small.put(newResource(2, "1"));
+            fail();
+        }
+        catch(InsufficientStorageException e)
+        {
+            // atteso
+        }
+
+        // lo spazio riservato per la scrittura fallita e' stato rilasciato
+        assertEquals(1, small.size());
+        assertEquals(bytes / 2, small.sizeInBytes());
+    }
+
+
+    @Test
+    public void snapshotIsRestored() throws IOException
+    {
+        InMemoryDatabase db = new InMemoryDatabase();
+
+        for(int i = 0; i < 3; i++)
+        {
+            db.put(newResource(i, "1"));
+        }
+
+        File snapshotFile = new File(folder.getRoot(), "snapshot");
+
+        db.snapshot(snapshotFile);
+        db.snapshot(snapshotFile);   // sostituisce lo snapshot precedente
+
+        InMemoryDatabase restored = new InMemoryDatabase();
+
+        restored.put(newResource(0, "0"));
+        restored.restore(snapshotFile);
+
+        assertEquals(3, restored.size());
+
+        for(int i = 0; i < 3; i++)
+        {
+            assertEquals(content(i, "1"), restored.get(uri(i)).getContent());
+            assertEquals(db.getETag(uri(i)), restored.getETag(uri(i)));
+        }
+    }
+
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreNotRestored() throws IOException
+    {
+        File otherFile = folder.newFile("other");
+
+        FileOutputStream out = new FileOutputStream(otherFile);
+
+        try
+        {
+            out.write(new byte[] { 1, 2, 3, 4 });
+        }
+        finally
+        {
+            out.close();
+        }
+
+        new InMemoryDatabase().restore(otherFile);
+    }
+
+}
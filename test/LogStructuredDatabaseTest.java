@@ -0,0 +1,359 @@
+package storageInterface;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test di {@link LogStructuredDatabase}: recupero alla riapertura, record finali incompleti o corrotti, compattazione.
+ *
+ *
+ */
+public class LogStructuredDatabaseTest
+{
+    // segmenti piccoli, cosi' che pochi record ne riempiano piu' d'uno
+    private final static long segmentSize = 4 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private LogStructuredDatabase db;
+
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = folder.newFolder("log");
+        db = open();
+    }
+
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if(db != null)
+        {
+            db.close();
+        }
+    }
+
+
+    @Test
+    public void writesSurviveReopening() throws IOException
+    {
+        db.put(new SINode("a", "<a v=\"1\"/>"));
+        db.put(new SINode("a", "<a v=\"2\"/>"));
+        db.put(new SINode("b", "<b/>"));
+        db.put(new SINode("c", largeContent('c')));   // compresso con gzip
+        assertTrue(db.delete("b"));
+
+        String eTag = db.getETag("a");
+
+        reopen();
+
+        assertEquals("<a v=\"2\"/>", db.get("a").getContent());
+        assertEquals(eTag, db.getETag("a"));
+        assertNull(db.get("b"));
+        assertEquals(largeContent('c'), db.get("c").getContent());
+
+        // le cancellazioni restano valide anche se la versione cancellata e' in un segmento precedente
+        assertEquals(Arrays.asList("a", "c"), Arrays.asList(db.list("", null, 10).getETags().keySet().toArray()));
+    }
+
+
+    @Test
+    public void recoverySpansManySegments() throws IOException
+    {
+        for(int i = 0; i < 200; i++)
+        {
+            db.put(new SINode("r/" + i, "<r n=\"" + i + "\" padding=\"" + largeContent('x').substring(0, 100) + "\"/>"));
+        }
+
+        assertTrue(segmentFiles().length > 3);
+
+        reopen();
+
+        for(int i = 0; i < 200; i++)
+        {
+            assertTrue(db.get("r/" + i).getContent().startsWith("<r n=\"" + i + "\""));
+        }
+    }
+
+
+    @Test
+    public void incompleteLastRecordIsDiscarded() throws IOException
+    {
+        db.put(new SINode("a", "<a/>"));
+        db.put(new SINode("b", "<b/>"));
+
+        db.close();
+        db = null;
+
+        File segment = lastSegmentFile();
+        long validSize = segment.length();
+
+        // un crash durante la scrittura: la lunghezza dichiarata supera i byte presenti
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+
+        try
+        {
+            file.seek(validSize);
+            file.writeInt(1000);
+            file.write(new byte[10]);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        db = open();
+
+        assertEquals(validSize, segment.length());   // il record incompleto e' stato troncato
+        assertEquals("<a/>", db.get("a").getContent());
+        assertEquals("<b/>", db.get("b").getContent());
+
+        db.put(new SINode("c", "<c/>"));   // le scritture successive proseguono dal record troncato
+
+        reopen();
+
+        assertEquals(3, db.list("", null, 10).getETags().size());
+    }
+
+
+    @Test
+    public void lastRecordWithWrongChecksumIsDiscarded() throws IOException
+    {
+        db.put(new SINode("a", "<a/>"));
+        db.put(new SINode("b", "<b v=\"1\"/>"));
+
+        db.close();
+        db = null;
+
+        File segment = lastSegmentFile();
+
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+
+        try
+        {
+            file.seek(segment.length() - 6);   // un byte del contenuto dell'ultimo record
+            int value = file.read();
+            file.seek(segment.length() - 6);
+            file.write(value ^ 0xff);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        db = open();
+
+        assertEquals("<a/>", db.get("a").getContent());
+        assertNull(db.get("b"));
+    }
+
+
+    @Test
+    public void corruptedOlderSegmentIsNotTruncated() throws IOException
+    {
+        for(int i = 0; i < 100; i++)
+        {
+            db.put(new SINode("r/" + i, largeContent('x').substring(0, 200)));
+        }
+
+        db.close();
+        db = null;
+
+        File firstSegment = segmentFiles()[0];
+        long size = firstSegment.length();
+
+        RandomAccessFile file = new RandomAccessFile(firstSegment, "rw");
+
+        try
+        {
+            file.setLength(size - 3);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        // solo l'ultimo segmento puo' essere stato interrotto da un crash: gli altri non vengono toccati
+        try
+        {
+            db = open();
+            fail("a corrupted sealed segment was accepted");
+        }
+        catch(IOException e)
+        {
+            assertEquals(size - 3, firstSegment.length());
+        }
+    }
+
+
+    @Test
+    public void compactionReclaimsOverwrittenSegments() throws IOException
+    {
+        for(int round = 0; round < 5; round++)
+        {
+            for(int i = 0; i < 20; i++)
+            {
+                db.put(new SINode("r/" + i, "<r n=\"" + i + "\" round=\"" + round + "\">" + largeContent('x').substring(0, 100) + "</r>"));
+            }
+        }
+
+        db.delete("r/0");
+
+        long sizeBefore = totalSize();
+        int segmentsBefore = segmentFiles().length;
+
+        db.compact();
+
+        assertEquals(0, db.getCompactionFailureCount());
+        assertTrue(segmentFiles().length < segmentsBefore);
+        assertTrue(totalSize() < sizeBefore);
+
+        assertNull(db.get("r/0"));
+
+        for(int i = 1; i < 20; i++)
+        {
+            assertTrue(db.get("r/" + i).getContent().startsWith("<r n=\"" + i + "\" round=\"4\">"));
+        }
+
+        // le copie dei record (e i record di cancellazione ancora necessari) sopravvivono alla riapertura
+        reopen();
+
+        assertNull(db.get("r/0"));
+        assertEquals(19, db.list("r/", null, 100).getETags().size());
+
+        for(int i = 1; i < 20; i++)
+        {
+            assertTrue(db.get("r/" + i).getContent().startsWith("<r n=\"" + i + "\" round=\"4\">"));
+        }
+    }
+
+
+    @Test
+    public void conditionalWritesAndRangesAfterCompaction() throws IOException
+    {
+        String eTag = db.putIfAbsent(new SINode("a", "<a>0123456789</a>"));
+
+        assertNotNull(eTag);
+        assertNull(db.putIfAbsent(new SINode("a", "<a/>")));
+
+        for(int i = 0; i < 100; i++)   // riempie (e rende compattabili) i segmenti
+        {
+            db.put(new SINode("filler", largeContent('f').substring(0, 200)));
+        }
+
+        db.compact();
+
+        assertNull(db.putIfMatch(new SINode("a", "<a/>"), "wrong"));
+
+        ResourceRange range = db.getRange("a", 3, 4);
+
+        assertArrayEquals("0123".getBytes("UTF-8"), range.getBytes());
+
+        assertFalse(db.deleteIfMatch("a", "wrong"));
+        assertTrue(db.deleteIfMatch("a", eTag));
+    }
+
+
+    @Test
+    public void directoryCannotBeOpenedTwice() throws IOException
+    {
+        try
+        {
+            new LogStructuredDatabase(directory);
+            fail("the directory was opened twice");
+        }
+        catch(IOException e)
+        {
+            // atteso
+        }
+
+        reopen();   // dopo close() il lock e' stato rilasciato
+
+        db.put(new SINode("a", "<a/>"));
+    }
+
+
+    private LogStructuredDatabase open() throws IOException
+    {
+        // niente compattazione in background: i test la invocano esplicitamente
+        return new LogStructuredDatabase(directory, segmentSize, true, 0.5, 0);
+    }
+
+
+    private void reopen() throws IOException
+    {
+        db.close();
+        db = null;
+        db = open();
+    }
+
+
+    private File[] segmentFiles()
+    {
+        File[] files = directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(".log");
+            }
+        });
+
+        Arrays.sort(files);
+
+        return files;
+    }
+
+
+    private File lastSegmentFile()
+    {
+        File[] files = segmentFiles();
+
+        return files[files.length - 1];
+    }
+
+
+    private long totalSize()
+    {
+        long size = 0;
+
+        for(File file : segmentFiles())
+        {
+            size += file.length();
+        }
+
+        return size;
+    }
+
+
+    private static String largeContent(char c)
+    {
+        char[] content = new char[8 * 1024];
+        Arrays.fill(content, c);
+
+        return "<l>" + new String(content) + "</l>";
+    }
+
+}
@@ -0,0 +1,374 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static storageInterface.TestResources.content;
+import static storageInterface.TestResources.newResource;
+import static storageInterface.TestResources.uri;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link ShardedDatabase} con shard in memoria.
+ *
+ *
+ */
+public class ShardedDatabaseTest
+{
+    private final static int shardCount = 3;
+
+    private final static int virtualNodes = 64;
+
+    private final static int resourceCount = 300;
+
+    private ExecutorService executor;
+
+    private Map<String, InMemoryDatabase> shards;
+
+    private ShardedDatabase db;
+
+
+    @Before
+    public void setUp()
+    {
+        executor = Executors.newFixedThreadPool(8);
+
+        shards = new LinkedHashMap<String, InMemoryDatabase>();
+
+        for(int i = 0; i < shardCount; i++)
+        {
+            shards.put("shard-" + i, new InMemoryDatabase());
+        }
+
+        db = new ShardedDatabase(new LinkedHashMap<String, IDatabase>(shards), virtualNodes, executor);
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void eachResourceIsStoredInExactlyOneShard()
+    {
+        for(int i = 0; i < resourceCount; i++)
+        {
+            db.put(newResource(i, "v1"));
+        }
+
+        for(int i = 0; i < resourceCount; i++)
+        {
+            assertEquals(1, countShardsContaining(uri(i)));
+            assertEquals(content(i, "v1"), db.get(uri(i)).getContent());
+        }
+
+        for(InMemoryDatabase shard : shards.values())   // con 300 risorse ogni shard ne riceve almeno una
+        {
+            assertTrue(shard.size() > 0);
+        }
+    }
+
+
+    @Test
+    public void conditionalWritesAreRoutedToTheOwningShard()
+    {
+        String eTag = db.putIfAbsent(newResource(1, "v1"));
+
+        assertNotNull(eTag);
+        assertNull(db.putIfAbsent(newResource(1, "v2")));
+
+        assertNull(db.putIfMatch(newResource(1, "v2"), "wrong"));
+        assertNotNull(db.putIfMatch(newResource(1, "v2"), eTag));
+
+        assertEquals(content(1, "v2"), db.get(uri(1)).getContent());
+        assertEquals(db.get(uri(1)).getETag(), db.getETag(uri(1)));
+
+        assertTrue(db.delete(uri(1)));
+        assertEquals(0, countShardsContaining(uri(1)));
+        assertFalse(db.delete(uri(1)));
+    }
+
+
+    @Test
+    public void bulkOperationsSpanAllShards()
+    {
+        List<IResource> resources = new ArrayList<IResource>();
+        List<String> uris = new ArrayList<String>();
+
+        for(int i = 0; i < resourceCount; i++)
+        {
+            resources.add(newResource(i, "v1"));
+            uris.add(uri(i));
+        }
+
+        db.putAll(resources);
+
+        uris.add("missing");
+
+        Map<String, IResource> found = db.getAll(uris);
+
+        assertEquals(resourceCount, found.size());
+
+        for(int i = 0; i < resourceCount; i++)
+        {
+            assertEquals(content(i, "v1"), found.get(uri(i)).getContent());
+        }
+
+        Set<String> deleted = db.deleteAll(uris);
+
+        assertEquals(resourceCount, deleted.size());
+        assertFalse(deleted.contains("missing"));
+
+        for(InMemoryDatabase shard : shards.values())
+        {
+            assertEquals(0, shard.size());
+        }
+    }
+
+
+    @Test
+    public void listMergesShardsInUriOrder()
+    {
+        TreeSet<String> expected = new TreeSet<String>();
+
+        for(int i = 0; i < resourceCount; i++)
+        {
+            db.put(newResource(i, "v1"));
+
+            if(uri(i).startsWith("r/1"))
+            {
+                expected.add(uri(i));
+            }
+        }
+
+        db.put(new SINode("q/1", "<q/>"));   // fuori dal prefisso
+
+        List<String> listed = new ArrayList<String>();
+
+        String cursor = null;
+
+        do
+        {
+            ResourceListing listing = db.list("r/1", cursor, 7);
+
+            assertTrue(listing.getETags().size() <= 7);
+
+            for(Map.Entry<String, String> entry : listing.getETags().entrySet())
+            {
+                listed.add(entry.getKey());
+                assertEquals(db.getETag(entry.getKey()), entry.getValue());
+            }
+
+            cursor = listing.getNextCursor();
+        }
+        while(cursor != null);
+
+        assertEquals(new ArrayList<String>(expected), listed);
+    }
+
+
+    @Test
+    public void addShardMovesOnlyResourcesOfTheNewShard()
+    {
+        for(int i = 0; i < resourceCount; i++)
+        {
+            db.put(newResource(i, "v1"));
+        }
+
+        Map<String, String> ownerBefore = new ConcurrentHashMap<String, String>();
+
+        for(int i = 0; i < resourceCount; i++)
+        {
+            ownerBefore.put(uri(i), owner(uri(i)));
+        }
+
+        InMemoryDatabase newShard = new InMemoryDatabase();
+
+        db.addShard("shard-" + shardCount, newShard);
+        shards.put("shard-" + shardCount, newShard);
+
+        assertTrue(newShard.size() > 0);
+
+        for(int i = 0; i < resourceCount; i++)
+        {
+            String owner = owner(uri(i));
+
+            assertNotNull(owner);
+            assertTrue(owner.equals(ownerBefore.get(uri(i))) || owner.equals("shard-" + shardCount));
+            assertEquals(content(i, "v1"), db.get(uri(i)).getContent());
+        }
+    }
+
+
+    @Test
+    public void addShardDuringConcurrentTraffic() throws Exception
+    {
+        for(int i = 0; i < resourceCount; i++)
+        {
+            db.put(newResource(i, "v0"));
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        // ultima versione scritta di ogni risorsa (ogni thread scrive solo le proprie)
+        final Map<String, String> lastContents = new ConcurrentHashMap<String, String>();
+
+        final int writers = 4;
+
+        final CountDownLatch started = new CountDownLatch(writers);
+        final CountDownLatch done = new CountDownLatch(writers);
+
+        for(int w = 0; w < writers; w++)
+        {
+            final int writer = w;
+
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        started.countDown();
+
+                        for(int round = 1; !stop.get(); round++)
+                        {
+                            for(int i = writer; i < resourceCount; i += writers)
+                            {
+                                IResource current = db.get(uri(i));
+
+                                assertNotNull(uri(i) + " not found", current);
+
+                                IResource next = newResource(i, "v" + round);
+
+                                assertNotNull(db.putIfMatch(next, current.getETag()));
+
+                                lastContents.put(uri(i), next.getContent());
+                            }
+                        }
+                    }
+                    catch(Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        started.await();
+
+        InMemoryDatabase newShard = new InMemoryDatabase();
+
+        db.addShard("shard-" + shardCount, newShard);
+        shards.put("shard-" + shardCount, newShard);
+
+        stop.set(true);
+        done.await();
+
+        if(failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+
+        assertTrue(newShard.size() > 0);
+
+        for(int i = 0; i < resourceCount; i++)
+        {
+            String expected = lastContents.containsKey(uri(i)) ? lastContents.get(uri(i)) : content(i, "v0");
+
+            assertEquals(expected, db.get(uri(i)).getContent());
+            assertEquals(1, countShardsContaining(uri(i)));
+        }
+    }
+
+
+    @Test
+    public void startAddShardKeepsResourcesReadableUntilRebalance()
+    {
+        for(int i = 0; i < resourceCount; i++)
+        {
+            db.put(newResource(i, "v1"));
+        }
+
+        InMemoryDatabase newShard = new InMemoryDatabase();
+
+        db.startAddShard("shard-" + shardCount, newShard);
+
+        assertEquals(0, newShard.size());
+
+        for(int i = 0; i < resourceCount; i++)   // non ancora spostate: lette dallo shard precedente
+        {
+            assertEquals(content(i, "v1"), db.get(uri(i)).getContent());
+        }
+
+        db.rebalance();
+
+        assertTrue(newShard.size() > 0);
+
+        shards.put("shard-" + shardCount, newShard);
+
+        for(int i = 0; i < resourceCount; i++)
+        {
+            assertEquals(1, countShardsContaining(uri(i)));
+            assertEquals(content(i, "v1"), db.get(uri(i)).getContent());
+        }
+    }
+
+
+    private int countShardsContaining(String resourceURI)
+    {
+        int count = 0;
+
+        for(InMemoryDatabase shard : shards.values())
+        {
+            if(shard.get(resourceURI) != null)
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    // nome dello shard che contiene la risorsa, null se nessuno
+    private String owner(String resourceURI)
+    {
+        for(Map.Entry<String, InMemoryDatabase> shard : shards.entrySet())
+        {
+            if(shard.getValue().get(resourceURI) != null)
+            {
+                return shard.getKey();
+            }
+        }
+
+        return null;
+    }
+
+}
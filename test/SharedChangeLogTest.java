@@ -0,0 +1,186 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link SharedChangeLog}: due istanze che condividono lo stesso archivio (in memoria).
+ * Le letture periodiche sono disabilitate (intervallo di un'ora): i test chiamano direttamente poll().
+ *
+ *
+ */
+public class SharedChangeLogTest
+{
+    private final static int capacity = 20;
+
+    private final static long pollInterval = 60 * 60 * 1000;
+
+    private InMemoryDatabase store;
+
+    private List<SharedChangeLog> changeLogs;
+
+
+    @Before
+    public void setUp()
+    {
+        store = new InMemoryDatabase();
+        changeLogs = new ArrayList<SharedChangeLog>();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        for(SharedChangeLog changeLog : changeLogs)
+        {
+            changeLog.close();
+        }
+    }
+
+
+    @Test
+    public void appendsOfBothInstancesAreNumberedConsecutively() throws InterruptedException
+    {
+        SharedChangeLog first = newChangeLog();
+        SharedChangeLog second = newChangeLog();
+
+        long since = first.getLastSequence();
+
+        long a = first.append("a", "e1");
+        long b = second.append("b", "e2");   // il numero successivo a quello di first, gia' usato
+        long c = first.append("c", null);
+
+        assertEquals(since + 1, a);
+        assertEquals(a + 1, b);
+        assertEquals(b + 1, c);
+
+        second.poll();
+
+        ChangeLog.Page page = second.getChanges(since, "", 10, 0);
+
+        assertEquals(Arrays.asList("a", "b", "c"), uris(page));
+        assertEquals("e2", page.getChanges().get(1).getETag());
+        assertNull(page.getChanges().get(2).getETag());   // cancellazione
+        assertEquals(first.getChanges(since, "", 10, 0).getNextSequence(), page.getNextSequence());
+    }
+
+
+    @Test
+    public void waitingClientIsWokenByAnotherInstance()
+    {
+        SharedChangeLog first = newChangeLog();
+        SharedChangeLog second = newChangeLog();
+
+        AsyncResult<ChangeLog.Page> result = second.getChangesAsync(second.getLastSequence(), "docs/", 10, 60000);
+
+        first.append("docs/1", "e1");
+
+        assertFalse(result.isDone());
+
+        second.poll();
+
+        assertTrue(result.isDone());
+        assertEquals(Arrays.asList("docs/1"), uris(result.getResult()));
+    }
+
+
+    @Test
+    public void sequenceOfAnotherInstanceIsReadBeforeAnswering() throws InterruptedException
+    {
+        SharedChangeLog first = newChangeLog();
+        SharedChangeLog second = newChangeLog();
+
+        long since = first.getLastSequence();
+
+        first.append("a", "e1");
+        long last = first.append("b", "e2");
+
+        // un client che ha gia' ricevuto le modifiche da first si riconnette a second
+        ChangeLog.Page page = second.getChanges(last - 1, "", 10, 0);
+
+        assertEquals(Arrays.asList("b"), uris(page));
+        assertEquals(Arrays.asList("a", "b"), uris(second.getChanges(since, "", 10, 0)));
+    }
+
+
+    @Test
+    public void newInstanceContinuesFromTheNewestRecord() throws InterruptedException
+    {
+        SharedChangeLog first = newChangeLog();
+
+        long last = 0;
+
+        for(int i = 0; i < 13; i++)
+        {
+            last = first.append("r/" + i, "e" + i);
+        }
+
+        SharedChangeLog restarted = newChangeLog();
+
+        assertEquals(last, restarted.getLastSequence());
+        assertEquals(last + 1, restarted.append("s", "e"));
+
+        // le modifiche precedenti all'avvio non sono nel registro locale
+        assertNull(restarted.getChanges(last - 1, "", 10, 0));
+    }
+
+
+    @Test
+    public void oldRecordsArePrunedAndLaggingInstanceRestarts() throws InterruptedException
+    {
+        SharedChangeLog first = newChangeLog();
+        SharedChangeLog lagging = newChangeLog();
+
+        long since = lagging.getLastSequence();
+
+        for(int i = 0; i < 5 * capacity; i++)
+        {
+            first.append("r/" + i, "e" + i);
+        }
+
+        // l'archivio conserva circa capacity record
+        int records = store.list("", null, 10 * capacity).getETags().size();
+
+        assertTrue(records >= capacity);
+        assertTrue(records <= capacity + capacity / 10);
+
+        // i record successivi a since sono stati eliminati: lagging riparte dall'ultimo
+        lagging.poll();
+
+        assertEquals(first.getLastSequence(), lagging.getLastSequence());
+        assertNull(lagging.getChanges(since, "", 10, 0));
+    }
+
+
+    private SharedChangeLog newChangeLog()
+    {
+        SharedChangeLog changeLog = new SharedChangeLog(capacity, store, pollInterval);
+        changeLogs.add(changeLog);
+
+        return changeLog;
+    }
+
+
+    private static List<String> uris(ChangeLog.Page page)
+    {
+        List<String> uris = new ArrayList<String>();
+
+        for(ChangeLog.Change change : page.getChanges())
+        {
+            uris.add(change.getURI());
+        }
+
+        return uris;
+    }
+
+}
@@ -0,0 +1,224 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static storageInterface.TestResources.content;
+import static storageInterface.TestResources.newResource;
+import static storageInterface.TestResources.uri;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link SingleFlightDatabase}: letture concorrenti della stessa risorsa, trattenute nel database
+ * finche' tutte non sono arrivate al decoratore.
+ *
+ *
+ */
+public class SingleFlightDatabaseTest
+{
+    private final static int readers = 8;
+
+    private InMemoryDatabase backend;
+
+    private ExecutorService executor;
+
+    // la prima lettura che arriva al database resta in attesa di release
+    private CountDownLatch loading;
+
+    private CountDownLatch release;
+
+    private volatile RuntimeException failure;
+
+    // letture arrivate al database
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private IDatabase blockingDatabase;
+
+
+    @Before
+    public void setUp()
+    {
+        backend = new InMemoryDatabase();
+        executor = Executors.newFixedThreadPool(readers + 1);
+        loading = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+
+        blockingDatabase = new InstrumentedDatabase(backend, new Metrics())
+        {
+            @Override
+            public IResource get(String resourceURI)
+            {
+                loads.incrementAndGet();
+
+                IResource resource = super.get(resourceURI);
+
+                if(loading.getCount() > 0)
+                {
+                    loading.countDown();
+
+                    try
+                    {
+                        release.await();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    if(failure != null)
+                    {
+                        throw failure;
+                    }
+                }
+
+                return resource;
+            }
+        };
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void concurrentReadsShareOneLoad() throws Exception
+    {
+        backend.put(newResource(1, "1"));
+
+        SingleFlightDatabase db = new SingleFlightDatabase(blockingDatabase);
+
+        List<Future<IResource>> results = startReads(db);
+
+        release.countDown();
+
+        IResource first = results.get(0).get(5, TimeUnit.SECONDS);
+
+        assertEquals(content(1, "1"), first.getContent());
+
+        for(Future<IResource> result : results)
+        {
+            assertSame(first, result.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(1, db.getLoadCount());
+        assertEquals(readers, db.getSharedCount());
+        assertEquals(1, loads.get());
+    }
+
+
+    @Test
+    public void failureReachesTheWaitingReads() throws Exception
+    {
+        backend.put(newResource(1, "1"));
+
+        SingleFlightDatabase db = new SingleFlightDatabase(blockingDatabase);
+
+        List<Future<IResource>> results = startReads(db);
+
+        failure = new DatabaseException("unavailable", null);
+        release.countDown();
+
+        for(Future<IResource> result : results)
+        {
+            try
+            {
+                result.get(5, TimeUnit.SECONDS);
+                fail();
+            }
+            catch(ExecutionException e)
+            {
+                assertSame(failure, e.getCause());
+            }
+        }
+
+        // la lettura fallita non resta in corso
+        failure = null;
+        assertEquals(content(1, "1"), db.get(uri(1)).getContent());
+        assertEquals(2, db.getLoadCount());
+    }
+
+
+    @Test
+    public void readAfterAWriteDoesNotShareAnOlderLoad() throws Exception
+    {
+        backend.put(newResource(1, "1"));
+
+        SingleFlightDatabase db = new SingleFlightDatabase(blockingDatabase);
+
+        Future<IResource> older = executor.submit(newRead(db));
+
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        db.put(newResource(1, "2"));
+
+        // la lettura in corso potrebbe aver letto la versione precedente: questa accede di nuovo al database
+        assertEquals(content(1, "2"), db.get(uri(1)).getContent());
+
+        release.countDown();
+
+        assertEquals(content(1, "1"), older.get(5, TimeUnit.SECONDS).getContent());
+        assertEquals(2, db.getLoadCount());
+        assertEquals(0, db.getSharedCount());
+    }
+
+
+    // avvia una lettura che resta nel database, poi readers letture che si uniscono ad essa
+    private List<Future<IResource>> startReads(SingleFlightDatabase db) throws InterruptedException
+    {
+        List<Future<IResource>> results = new ArrayList<Future<IResource>>();
+
+        results.add(executor.submit(newRead(db)));
+
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        for(int i = 0; i < readers; i++)
+        {
+            results.add(executor.submit(newRead(db)));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while(db.getSharedCount() < readers && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(readers, db.getSharedCount());
+
+        return results;
+    }
+
+
+    private static Callable<IResource> newRead(final SingleFlightDatabase db)
+    {
+        return new Callable<IResource>()
+        {
+            @Override
+            public IResource call()
+            {
+                return db.get(uri(1));
+            }
+        };
+    }
+
+}
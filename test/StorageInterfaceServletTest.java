@@ -0,0 +1,315 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static storageInterface.TestServlets.newConfig;
+import static storageInterface.TestServlets.newRequest;
+import static storageInterface.TestServlets.utf8;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link StorageInterfaceServlet} con il database in memoria: richieste sulle risorse, e instradamento
+ * delle altre richieste ai gestori degli endpoint.
+ *
+ *
+ */
+public class StorageInterfaceServletTest
+{
+    private StorageInterfaceServlet servlet;
+
+
+    @Before
+    public void setUp() throws ServletException
+    {
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put("database", "memory");
+        initParameters.put("versioning", "true");
+        initParameters.put("changeLogSize", "100");
+        initParameters.put("bulkTransfer", "true");
+
+        servlet = newServlet(initParameters);
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        servlet.destroy();
+    }
+
+
+    @Test
+    public void putCreatesAndUpdatesResources() throws Exception
+    {
+        TestServlets.FakeResponse created = put("a", sinode("1"), null);
+
+        assertEquals(HttpServletResponse.SC_CREATED, created.getStatus());
+        String eTag = created.getHeader("ETag");
+        assertNotNull(eTag);
+
+        // senza If-Match e' ammessa solo la creazione
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, put("a", sinode("2"), null).getStatus());
+        assertEquals(HttpServletResponse.SC_PRECONDITION_FAILED, put("a", sinode("2"), "wrong").getStatus());
+
+        TestServlets.FakeResponse updated = put("a", sinode("2"), eTag);
+
+        assertEquals(HttpServletResponse.SC_OK, updated.getStatus());
+
+        TestServlets.FakeResponse read = send("GET", "a", null);
+
+        assertEquals(HttpServletResponse.SC_OK, read.getStatus());
+        assertEquals(sinode("2"), read.getBody());
+        assertEquals(updated.getHeader("ETag"), read.getHeader("ETag"));
+
+        TestServlets.FakeResponse head = send("HEAD", "a", null);
+
+        assertEquals(HttpServletResponse.SC_OK, head.getStatus());
+        assertEquals(updated.getHeader("ETag"), head.getHeader("ETag"));
+    }
+
+
+    @Test
+    public void invalidBodyIsRejected() throws Exception
+    {
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, put("a", "<other/>", null).getStatus());
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, send("GET", "a", null).getStatus());
+    }
+
+
+    @Test
+    public void deleteRemovesTheResource() throws Exception
+    {
+        put("a", sinode("1"), null);
+
+        assertEquals(HttpServletResponse.SC_OK, send("DELETE", "a", null).getStatus());
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, send("GET", "a", null).getStatus());
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, send("DELETE", "a", null).getStatus());
+    }
+
+
+    @Test
+    public void collectionsAreListed() throws Exception
+    {
+        put("c/1", sinode("1"), null);
+        put("c/2", sinode("2"), null);
+        put("d/1", sinode("3"), null);
+
+        TestServlets.FakeResponse list = send("GET", "c/?limit=10", null);
+
+        assertEquals(HttpServletResponse.SC_OK, list.getStatus());
+        assertTrue(list.getBody().contains("uri=\"c/1\""));
+        assertTrue(list.getBody().contains("uri=\"c/2\""));
+        assertFalse(list.getBody().contains("uri=\"d/1\""));
+
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, send("GET", "c/?limit=0", null).getStatus());
+
+        // il nome vuoto non e' una collezione
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, send("GET", "", null).getStatus());
+    }
+
+
+    @Test
+    public void previousVersionsAreServed() throws Exception
+    {
+        String eTag = put("a", sinode("1"), null).getHeader("ETag");
+        put("a", sinode("2"), eTag);
+
+        TestServlets.FakeResponse versions = send("GET", "a?versions=true", null);
+
+        assertEquals(HttpServletResponse.SC_OK, versions.getStatus());
+        assertTrue(versions.getBody().contains("etag=\"" + eTag + "\""));
+
+        TestServlets.FakeResponse byETag = send("GET", "a?etag=" + eTag, null);
+
+        assertEquals(HttpServletResponse.SC_OK, byETag.getStatus());
+        assertEquals(sinode("1"), byETag.getBody());
+
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, send("GET", "a?version=x", null).getStatus());
+    }
+
+
+    @Test
+    public void changesAreServed() throws Exception
+    {
+        // senza since si parte da adesso
+        long since = getNext(send("GET", "!changes", null).getBody());
+
+        put("a", sinode("1"), null);
+        send("DELETE", "a", null);
+
+        TestServlets.FakeResponse changes = send("GET", "!changes?since=" + since, null);
+
+        assertEquals(HttpServletResponse.SC_OK, changes.getStatus());
+        assertTrue(changes.getBody().contains("sequence=\"" + (since + 1) + "\" uri=\"a\" etag="));
+        assertTrue(changes.getBody().contains("sequence=\"" + (since + 2) + "\" uri=\"a\" deleted=\"true\""));
+        assertEquals(since + 2, getNext(changes.getBody()));
+
+        assertEquals(HttpServletResponse.SC_GONE, send("GET", "!changes?since=0", null).getStatus());
+    }
+
+
+    @Test
+    public void batchIsProcessed() throws Exception
+    {
+        put("a", sinode("1"), null);
+
+        String batch = "<batch><get uri=\"a\"/><put uri=\"b\">" + sinode("2").replace("<", "&lt;") + "</put></batch>";
+
+        TestServlets.FakeResponse result = send("POST", "!batch", utf8(batch));
+
+        assertEquals(HttpServletResponse.SC_OK, result.getStatus());
+        assertTrue(result.getBody().contains("op=\"get\" uri=\"a\" status=\"200\""));
+        assertEquals(HttpServletResponse.SC_OK, send("GET", "b", null).getStatus());
+    }
+
+
+    @Test
+    public void exportedResourcesCanBeImported() throws Exception
+    {
+        put("a", sinode("1"), null);
+        put("b", sinode("2"), null);
+
+        TestServlets.FakeResponse export = send("GET", "!export", null);
+
+        assertEquals(HttpServletResponse.SC_OK, export.getStatus());
+        assertNull(export.getHeader("X-Export-Cursor"));   // un solo pezzo
+
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put("database", "memory");
+        initParameters.put("bulkTransfer", "true");
+
+        StorageInterfaceServlet target = newServlet(initParameters);
+
+        try
+        {
+            TestServlets.FakeResponse imported = send(target, "POST", "!import", export.getBodyBytes());
+
+            assertEquals(HttpServletResponse.SC_OK, imported.getStatus());
+            assertEquals("2", imported.getHeader("X-Imported-Resources"));
+            assertEquals(sinode("2"), send(target, "GET", "b", null).getBody());
+        }
+        finally
+        {
+            target.destroy();
+        }
+    }
+
+
+    @Test
+    public void metricsCountRequestsAndResponses() throws Exception
+    {
+        put("a", sinode("1"), null);
+        send("GET", "missing", null);
+
+        TestServlets.FakeResponse metrics = send("GET", "!metrics", null);
+
+        assertEquals(HttpServletResponse.SC_OK, metrics.getStatus());
+        assertTrue(metrics.getBody().contains("storage_interface_request_duration_seconds_count{method=\"PUT\"} 1"));
+        assertTrue(metrics.getBody().contains("storage_interface_responses_total{status=\"404\"} 1"));
+    }
+
+
+    @Test
+    public void disabledEndpointsAreRefused() throws Exception
+    {
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put("database", "memory");
+
+        StorageInterfaceServlet plain = newServlet(initParameters);
+
+        try
+        {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, send(plain, "GET", "!changes", null).getStatus());
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, send(plain, "GET", "a?versions=true", null).getStatus());
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, send(plain, "GET", "!export", null).getStatus());
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, send(plain, "POST", "!import", new byte[0]).getStatus());
+        }
+        finally
+        {
+            plain.destroy();
+        }
+    }
+
+
+    private static StorageInterfaceServlet newServlet(Map<String, String> initParameters) throws ServletException
+    {
+        StorageInterfaceServlet newServlet = new StorageInterfaceServlet();
+        newServlet.init(newConfig(initParameters));
+
+        return newServlet;
+    }
+
+
+    private TestServlets.FakeResponse put(String path, String content, String ifMatch) throws ServletException, IOException
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/xml");
+        headers.put("Content-Type", "application/xml; charset=UTF-8");
+
+        if(ifMatch != null)
+        {
+            headers.put("If-Match", ifMatch);
+        }
+
+        return send(servlet, "PUT", path, headers, utf8(content));
+    }
+
+
+    private TestServlets.FakeResponse send(String httpMethod, String path, byte[] body) throws ServletException, IOException
+    {
+        return send(servlet, httpMethod, path, body);
+    }
+
+
+    private static TestServlets.FakeResponse send(StorageInterfaceServlet target, String httpMethod, String path, byte[] body)
+    throws ServletException, IOException
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/xml");
+        headers.put("Content-Type", "application/xml; charset=UTF-8");
+
+        return send(target, httpMethod, path, headers, body);
+    }
+
+
+    private static TestServlets.FakeResponse send(StorageInterfaceServlet target, String httpMethod, String path,
+                                                  Map<String, String> headers, byte[] body)
+    throws ServletException, IOException
+    {
+        TestServlets.FakeResponse response = new TestServlets.FakeResponse();
+
+        target.service((ServletRequest) newRequest(httpMethod, path, headers, body), (ServletResponse) response.getResponse());
+
+        return response;
+    }
+
+
+    private static long getNext(String changes)
+    {
+        int start = changes.indexOf("next=\"") + "next=\"".length();
+
+        return Long.parseLong(changes.substring(start, changes.indexOf('"', start)));
+    }
+
+
+    private static String sinode(String value)
+    {
+        return "<sinode><property name=\"p\">" + value + "</property></sinode>";
+    }
+
+}
@@ -0,0 +1,33 @@
+package storageInterface;
+
+/**
+ * Risorse numerate usate dai test dei decoratori: la risorsa {@code i} ha URI {@code r/i} e un contenuto che ne
+ * riporta il numero e la versione.
+ *
+ *
+ */
+final class TestResources
+{
+    private TestResources()
+    {
+    }
+
+
+    static String uri(int i)
+    {
+        return "r/" + i;
+    }
+
+
+    static String content(int i, String version)
+    {
+        return "<r n=\"" + i + "\" v=\"" + version + "\"/>";
+    }
+
+
+    static IResource newResource(int i, String version)
+    {
+        return new SINode(uri(i), content(i, version));
+    }
+
+}
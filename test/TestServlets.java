@@ -0,0 +1,379 @@
+package storageInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Configurazione, richieste e risposte fittizie (realizzate con {@link Proxy}) con cui i test eseguono
+ * {@link StorageInterfaceServlet} e i gestori dei suoi endpoint senza un container, in modalita' sincrona.
+ * Implementano solo i metodi usati dalla servlet: gli altri restituiscono {@code null}, 0 o {@code false}.
+ *
+ *
+ */
+final class TestServlets
+{
+    private final static String uriPrefix = "/StorageInterface/!SI/";
+
+    private TestServlets()
+    {
+    }
+
+
+    static ServletConfig newConfig(final Map<String, String> initParameters)
+    {
+        final ServletContext servletContext = newProxy(ServletContext.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                return defaultValue(method);
+            }
+        });
+
+        return newProxy(ServletConfig.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+
+                if(name.equals("getInitParameter"))
+                {
+                    return initParameters.get(args[0]);
+                }
+
+                if(name.equals("getInitParameterNames"))
+                {
+                    return Collections.enumeration(initParameters.keySet());
+                }
+
+                if(name.equals("getServletContext"))
+                {
+                    return servletContext;
+                }
+
+                if(name.equals("getServletName"))
+                {
+                    return "StorageInterface";
+                }
+
+                return defaultValue(method);
+            }
+        });
+    }
+
+
+    // path e' il nome della risorsa, eventualmente seguito dalla query string; body puo' essere null
+    static HttpServletRequest newRequest(final String httpMethod, String path, final Map<String, String> headers, final byte[] bodyBytes)
+    {
+        int queryStart = path.indexOf('?');
+
+        final String requestURI = uriPrefix + (queryStart >= 0 ? path.substring(0, queryStart) : path);
+        final Map<String, String> parameters = parseQuery(queryStart >= 0 ? path.substring(queryStart + 1) : "");
+
+        final ServletInputStream bodyStream = new ServletInputStream()
+        {
+            private final InputStream in = new ByteArrayInputStream((bodyBytes != null) ? bodyBytes : new byte[0]);
+
+            @Override
+            public int read() throws IOException
+            {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                return in.read(b, off, len);
+            }
+        };
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        return newProxy(HttpServletRequest.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+
+                if(name.equals("getMethod"))
+                {
+                    return httpMethod;
+                }
+
+                if(name.equals("getRequestURI"))
+                {
+                    return requestURI;
+                }
+
+                if(name.equals("getHeader"))
+                {
+                    return headers.get(args[0]);
+                }
+
+                if(name.equals("getParameter"))
+                {
+                    return parameters.get(args[0]);
+                }
+
+                if(name.equals("getContentLength"))
+                {
+                    return (bodyBytes != null) ? bodyBytes.length : -1;
+                }
+
+                if(name.equals("getCharacterEncoding"))
+                {
+                    return "UTF-8";
+                }
+
+                if(name.equals("getInputStream"))
+                {
+                    return bodyStream;
+                }
+
+                if(name.equals("getProtocol"))
+                {
+                    return "HTTP/1.1";
+                }
+
+                if(name.equals("getAttribute"))
+                {
+                    return attributes.get(args[0]);
+                }
+
+                if(name.equals("setAttribute"))
+                {
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                }
+
+                return defaultValue(method);
+            }
+        });
+    }
+
+
+    static byte[] utf8(String text)
+    {
+        try
+        {
+            return text.getBytes("UTF-8");
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+
+    private static Map<String, String> parseQuery(String query)
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+
+        for(String parameter : query.split("&"))
+        {
+            int equalsIndex = parameter.indexOf('=');
+
+            if(equalsIndex > 0)
+            {
+                try
+                {
+                    parameters.put(parameter.substring(0, equalsIndex), URLDecoder.decode(parameter.substring(equalsIndex + 1), "UTF-8"));
+                }
+                catch(UnsupportedEncodingException e)
+                {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+
+        return parameters;
+    }
+
+
+    /**
+     * Risposta fittizia: registra stato, messaggio di errore, header e body.
+     */
+    static class FakeResponse
+    {
+        private int status = HttpServletResponse.SC_OK;
+
+        private String errorMessage;
+
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private final ServletOutputStream bodyStream = new ServletOutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                body.write(b, off, len);
+            }
+        };
+
+        private final PrintWriter writer;
+
+        private final HttpServletResponse response;
+
+        FakeResponse()
+        {
+            try
+            {
+                writer = new PrintWriter(new OutputStreamWriter(bodyStream, "UTF-8"), true);
+            }
+            catch(UnsupportedEncodingException e)
+            {
+                throw new AssertionError(e);
+            }
+
+            response = newProxy(HttpServletResponse.class, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+
+                    if(name.equals("setStatus"))
+                    {
+                        status = (Integer) args[0];
+                        return null;
+                    }
+
+                    if(name.equals("sendError"))
+                    {
+                        status = (Integer) args[0];
+                        errorMessage = (args.length > 1) ? (String) args[1] : null;
+                        return null;
+                    }
+
+                    if(name.equals("setHeader") || name.equals("addHeader"))
+                    {
+                        headers.put((String) args[0], (String) args[1]);
+                        return null;
+                    }
+
+                    if(name.equals("setContentType"))
+                    {
+                        headers.put("Content-Type", (String) args[0]);
+                        return null;
+                    }
+
+                    if(name.equals("getStatus"))
+                    {
+                        return status;
+                    }
+
+                    if(name.equals("getOutputStream"))
+                    {
+                        return bodyStream;
+                    }
+
+                    if(name.equals("getWriter"))
+                    {
+                        return writer;
+                    }
+
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        HttpServletResponse getResponse()
+        {
+            return response;
+        }
+
+        int getStatus()
+        {
+            return status;
+        }
+
+        String getErrorMessage()
+        {
+            return errorMessage;
+        }
+
+        String getHeader(String name)
+        {
+            return headers.get(name);
+        }
+
+        byte[] getBodyBytes()
+        {
+            writer.flush();
+
+            return body.toByteArray();
+        }
+
+        String getBody()
+        {
+            try
+            {
+                return new String(getBodyBytes(), "UTF-8");
+            }
+            catch(UnsupportedEncodingException e)
+            {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static <T> T newProxy(Class<T> type, InvocationHandler handler)
+    {
+        return (T) Proxy.newProxyInstance(TestServlets.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+
+    private static Object defaultValue(Method method)
+    {
+        Class<?> returnType = method.getReturnType();
+
+        if(returnType == boolean.class)
+        {
+            return false;
+        }
+
+        if(returnType == int.class)
+        {
+            return 0;
+        }
+
+        if(returnType == long.class)
+        {
+            return 0L;
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,195 @@
+package storageInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test di {@link VersioningDatabase} con database in memoria.
+ *
+ *
+ */
+public class VersioningDatabaseTest
+{
+    private final static int snapshotInterval = 3;
+
+    private final static String resourceURI = "docs/1";
+
+    private InMemoryDatabase versionsDb;
+
+
+    @Before
+    public void setUp()
+    {
+        versionsDb = new InMemoryDatabase();
+    }
+
+
+    @Test
+    public void everyReplacedVersionCanBeRead()
+    {
+        VersioningDatabase db = newDatabase(-1);
+
+        List<String> eTags = new ArrayList<String>();
+
+        for(int v = 1; v <= 7; v++)   // oltre due snapshot: la ricostruzione attraversa delta e record completi
+        {
+            db.put(newResource(v));
+            eTags.add(db.getETag(resourceURI));
+        }
+
+        SortedMap<Long, String> versions = db.getVersions(resourceURI);
+
+        assertEquals(7, versions.size());
+        assertEquals(Long.valueOf(7), versions.lastKey());
+
+        for(int v = 1; v <= 7; v++)
+        {
+            assertEquals(eTags.get(v - 1), versions.get(Long.valueOf(v)));
+
+            IResource version = db.getVersion(resourceURI, v);
+
+            assertNotNull(version);
+            assertEquals(content(v), version.getContent());
+            assertEquals(eTags.get(v - 1), version.getETag());
+
+            assertEquals(content(v), db.getVersionByETag(resourceURI, eTags.get(v - 1)).getContent());
+        }
+
+        assertNull(db.getVersion(resourceURI, 8));
+        assertNull(db.getVersionByETag(resourceURI, "missing"));
+        assertEquals(content(7), db.get(resourceURI).getContent());
+    }
+
+
+    @Test
+    public void oldestVersionsArePrunedBeyondMaxVersions()
+    {
+        VersioningDatabase db = newDatabase(2);
+
+        for(int v = 1; v <= 6; v++)
+        {
+            db.put(newResource(v));
+        }
+
+        SortedMap<Long, String> versions = db.getVersions(resourceURI);
+
+        // due versioni precedenti piu' quella corrente; la numerazione prosegue
+        assertEquals(Arrays.asList(Long.valueOf(4), Long.valueOf(5), Long.valueOf(6)), new ArrayList<Long>(versions.keySet()));
+        assertEquals(2, versionsDb.size());
+
+        assertNull(db.getVersion(resourceURI, 3));
+        assertEquals(content(4), db.getVersion(resourceURI, 4).getContent());
+        assertEquals(content(5), db.getVersion(resourceURI, 5).getContent());
+    }
+
+
+    @Test
+    public void deletedResourceKeepsItsVersions()
+    {
+        VersioningDatabase db = newDatabase(-1);
+
+        for(int v = 1; v <= 4; v++)
+        {
+            db.put(newResource(v));
+        }
+
+        assertTrue(db.delete(resourceURI));
+        assertNull(db.get(resourceURI));
+
+        SortedMap<Long, String> versions = db.getVersions(resourceURI);
+
+        assertEquals(4, versions.size());   // nessuna versione corrente
+
+        for(int v = 1; v <= 4; v++)
+        {
+            assertEquals(content(v), db.getVersion(resourceURI, v).getContent());
+        }
+
+        assertFalse(db.delete(resourceURI));
+        assertEquals(4, db.getVersions(resourceURI).size());
+    }
+
+
+    @Test
+    public void conditionalWritesArchiveOnlyWhenApplied()
+    {
+        VersioningDatabase db = newDatabase(-1);
+
+        String eTag = db.putIfAbsent(newResource(1));
+
+        assertNotNull(eTag);
+        assertNull(db.putIfAbsent(newResource(2)));
+        assertNull(db.putIfMatch(newResource(2), "wrong"));
+        assertFalse(db.deleteIfMatch(resourceURI, "wrong"));
+
+        assertEquals(1, db.getVersions(resourceURI).size());
+
+        String newETag = db.putIfMatch(newResource(2), eTag);
+
+        assertNotNull(newETag);
+        assertEquals(2, db.getVersions(resourceURI).size());
+        assertEquals(content(1), db.getVersion(resourceURI, 1).getContent());
+
+        assertTrue(db.deleteIfMatch(resourceURI, newETag));
+        assertEquals(2, db.getVersions(resourceURI).size());
+        assertEquals(content(2), db.getVersionByETag(resourceURI, newETag).getContent());
+    }
+
+
+    @Test
+    public void bulkWritesArchiveEveryResource()
+    {
+        VersioningDatabase db = newDatabase(-1);
+
+        db.putAll(Arrays.asList(new SINode("a", content(1)), new SINode("a/b", content(1))));
+        db.putAll(Arrays.asList(new SINode("a", content(2)), new SINode("a/b", content(2))));
+
+        assertEquals(2, db.deleteAll(Arrays.asList("a", "a/b", "missing")).size());
+
+        // le versioni di "a" non includono quelle di "a/b", nonostante il prefisso comune
+        for(String uri : Arrays.asList("a", "a/b"))
+        {
+            assertEquals(2, db.getVersions(uri).size());
+            assertEquals(content(1), db.getVersion(uri, 1).getContent());
+            assertEquals(content(2), db.getVersion(uri, 2).getContent());
+        }
+    }
+
+
+    private VersioningDatabase newDatabase(int maxVersions)
+    {
+        return new VersioningDatabase(new InMemoryDatabase(), versionsDb, maxVersions, -1, snapshotInterval);
+    }
+
+
+    // versioni abbastanza lunghe e simili da essere archiviate come delta
+    private static String content(int version)
+    {
+        StringBuilder content = new StringBuilder("<doc>");
+
+        for(int i = 0; i < 20; i++)
+        {
+            content.append("<p n=\"").append(i).append("\">").append(i == version ? "changed " + version : "unchanged").append("</p>");
+        }
+
+        return content.append("<v>").append(version).append("</v></doc>").toString();
+    }
+
+
+    private static IResource newResource(int version)
+    {
+        return new SINode(resourceURI, content(version));
+    }
+
+}